@@ -0,0 +1,578 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Profiler;
+import exm.stc.common.Profiler.Record;
+import exm.stc.common.Profiler.Sample;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.frontend.ASTWalker;
+import exm.stc.frontend.ParsedModule;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.opt.DeadCodeEliminator;
+import exm.stc.ic.opt.DemoteGlobals;
+import exm.stc.ic.opt.FixupVariables;
+import exm.stc.ic.opt.FlattenNested;
+import exm.stc.ic.opt.FunctionInline;
+import exm.stc.ic.opt.FunctionSignature;
+import exm.stc.ic.opt.HoistLoops;
+import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.OptimizerPipeline;
+import exm.stc.ic.opt.ProgramIndex;
+import exm.stc.ic.opt.PruneFunctions;
+import exm.stc.ic.opt.ReorderInstructions;
+import exm.stc.ic.opt.UniqueVarNames;
+import exm.stc.ic.opt.WaitCoalescer;
+import exm.stc.ic.opt.valuenumber.ValueNumber;
+import exm.stc.ic.refcount.RefcountPass;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.tclbackend.TurbineGenerator;
+
+/**
+ * Measure time and memory allocated by compiler phases on a set of
+ * input programs, to catch performance regressions.
+ *
+ * Each phase is run a number of times for warmup, then measured a number
+ * of times.  State needed by the phase, e.g. the intermediate code for
+ * an optimizer pass, is rebuilt before each run and isn't measured.
+ * Optimizer passes are measured on intermediate code straight from the
+ * frontend, i.e. as in the first optimizer iteration.
+ *
+ * Inputs are Swift files, which are run through the C preprocessor, or
+ * generated programs given as functions:N, array:N or nested:N.
+ *
+ * Run with ant bench, or directly with the STC jars on the class path
+ * and stc.turbine_home set so that the standard library can be found.
+ */
+public class CompilerBenchmark {
+
+  private static final String PHASE = "bench";
+
+  private static final String WARMUP_FLAG = "w";
+  private static final String ITERATIONS_FLAG = "i";
+  private static final String PHASES_FLAG = "p";
+  private static final String OUTPUT_FLAG = "o";
+  private static final String BASELINE_FLAG = "b";
+  private static final String TOLERANCE_FLAG = "t";
+
+  private final Logger logger;
+  private final CompilerOptions options;
+  private final int warmup;
+  private final int iterations;
+  private final Profiler profiler = Profiler.create();
+
+  public CompilerBenchmark(Logger logger, CompilerOptions options,
+                           int warmup, int iterations) {
+    this.logger = logger;
+    this.options = options;
+    this.warmup = warmup;
+    this.iterations = iterations;
+  }
+
+  /**
+   * Program to compile, with original name for error messages
+   */
+  private static class Input {
+    final String name;
+    final String path;
+    final String originalPath;
+    final boolean preprocessed;
+
+    Input(String name, String path, String originalPath,
+          boolean preprocessed) {
+      this.name = name;
+      this.path = path;
+      this.originalPath = originalPath;
+      this.preprocessed = preprocessed;
+    }
+  }
+
+  /**
+   * Phase of compilation to measure.  Subclasses prepare any state needed
+   * in setup, which isn't measured, then do the work in run.
+   */
+  private abstract class Phase {
+    final String name;
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    abstract Object setup(Input input) throws UserException, IOException;
+
+    abstract void run(Input input, Object state)
+                            throws UserException, IOException;
+  }
+
+  /**
+   * Optimizer pass run on intermediate code from the frontend
+   */
+  private abstract class PassPhase extends Phase {
+    PassPhase(String name) {
+      super(name);
+    }
+
+    /**
+     * Create new pass instance, since some are stateful
+     * @param program program to be optimized
+     */
+    abstract OptimizerPass createPass(Program program);
+
+    /** Passes needed before this one to get valid input */
+    List<OptimizerPass> prerequisites(Program program) {
+      List<OptimizerPass> passes = new ArrayList<OptimizerPass>();
+      passes.add(new PruneFunctions(new ProgramIndex(program)));
+      passes.add(new UniqueVarNames());
+      passes.add(new FlattenNested());
+      return passes;
+    }
+
+    @Override
+    Object setup(Input input) throws UserException {
+      Program program = frontend(input).program();
+      OptimizerPipeline pipe = new OptimizerPipeline(null);
+      for (OptimizerPass pass: prerequisites(program)) {
+        pipe.addPass(pass);
+      }
+      pipe.runPipeline(logger, program, 0);
+      return program;
+    }
+
+    @Override
+    void run(Input input, Object state) throws UserException {
+      // Each op builds a cold index for the pass
+      Program program = (Program)state;
+      createPass(program).optimize(logger, program);
+    }
+  }
+
+  private List<Phase> allPhases() {
+    List<Phase> phases = new ArrayList<Phase>();
+    phases.add(new Phase("parse") {
+      @Override
+      Object setup(Input input) {
+        return null;
+      }
+
+      @Override
+      void run(Input input, Object state) throws IOException {
+        ParsedModule.parse(input.name, input.path, input.preprocessed);
+      }
+    });
+    phases.add(new Phase("walk") {
+      @Override
+      Object setup(Input input) {
+        ForeignFunctions foreignFuncs = new ForeignFunctions();
+        STCMiddleEnd middle = new STCMiddleEnd(logger, null,
+                                  Profiler.DISABLED, foreignFuncs, options);
+        return new ASTWalker(middle, foreignFuncs, options);
+      }
+
+      @Override
+      void run(Input input, Object state) throws UserException {
+        ((ASTWalker)state).walk(input.path, input.originalPath,
+                                input.preprocessed);
+      }
+    });
+    phases.add(new PassPhase("ValueNumber") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new ValueNumber(options, true);
+      }
+    });
+    phases.add(new PassPhase("DeadCodeEliminator") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new DeadCodeEliminator();
+      }
+    });
+    phases.add(new PassPhase("ReorderInstructions") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new ReorderInstructions();
+      }
+    });
+    phases.add(new PassPhase("WaitCoalescer") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new WaitCoalescer(true, true);
+      }
+    });
+    phases.add(new PassPhase("FunctionInline") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new FunctionInline(options, new ProgramIndex(program));
+      }
+    });
+    phases.add(new PassPhase("PruneFunctions") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new PruneFunctions(new ProgramIndex(program));
+      }
+    });
+    phases.add(new PassPhase("DemoteGlobals") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new DemoteGlobals(new ProgramIndex(program));
+      }
+    });
+    phases.add(new PassPhase("FunctionSignature") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new FunctionSignature(new ProgramIndex(program));
+      }
+    });
+    phases.add(new PassPhase("HoistLoops") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new HoistLoops(false);
+      }
+    });
+    phases.add(new PassPhase("RefcountPass") {
+      @Override
+      OptimizerPass createPass(Program program) {
+        return new RefcountPass();
+      }
+
+      @Override
+      List<OptimizerPass> prerequisites(Program program) {
+        // Refcounting needs variable passing annotations
+        List<OptimizerPass> passes = super.prerequisites(program);
+        passes.add(new FixupVariables());
+        return passes;
+      }
+    });
+    phases.add(new Phase("generate") {
+      @Override
+      Object setup(Input input) throws UserException {
+        STCMiddleEnd middle = frontend(input);
+        middle.optimize();
+        return middle;
+      }
+
+      @Override
+      void run(Input input, Object state) throws UserException, IOException {
+        TurbineGenerator codeGen = new TurbineGenerator(logger, "",
+                                                        options);
+        ((STCMiddleEnd)state).regenerate(codeGen);
+        codeGen.generate(NullOutputStream.NULL_OUTPUT_STREAM);
+      }
+    });
+    return phases;
+  }
+
+  private STCMiddleEnd frontend(Input input) throws UserException {
+    ForeignFunctions foreignFuncs = new ForeignFunctions();
+    STCMiddleEnd middle = new STCMiddleEnd(logger, null, Profiler.DISABLED,
+                                           foreignFuncs, options);
+    ASTWalker walker = new ASTWalker(middle, foreignFuncs, options);
+    walker.walk(input.path, input.originalPath, input.preprocessed);
+    return middle;
+  }
+
+  /**
+   * Run phase on input, recording measured runs
+   */
+  public void measure(Input input, Phase phase)
+                      throws UserException, IOException {
+    String name = input.name + " " + phase.name;
+    for (int i = 0; i < warmup + iterations; i++) {
+      Object state = phase.setup(input);
+      // Avoid garbage from setup being collected during measurement
+      System.gc();
+      Sample start = profiler.start();
+      phase.run(input, state);
+      if (i >= warmup) {
+        profiler.record(PHASE, name, i - warmup, start);
+      }
+    }
+    Stats stats = stats(profiler.records()).get(name);
+    System.out.println(String.format("%-48s %10.2f %10.3f %10.1f %10.1f",
+        name, stats.meanMillis(), stats.opsPerSecond(),
+        stats.allocatedMBPerOp(), stats.allocationRateMBPerSecond()));
+  }
+
+  private static void printHeader() {
+    System.out.println(String.format("%-48s %10s %10s %10s %10s",
+          "BENCHMARK", "ms/op", "ops/s", "MB/op", "MB/s"));
+  }
+
+  /**
+   * Summary of measured runs of one benchmark
+   */
+  private static class Stats {
+    long runs = 0;
+    long wallNanos = 0;
+    long allocatedBytes = 0;
+
+    double meanMillis() {
+      return wallNanos / 1e6 / runs;
+    }
+
+    double opsPerSecond() {
+      return runs * 1e9 / wallNanos;
+    }
+
+    double allocatedMBPerOp() {
+      return allocatedBytes / 1048576.0 / runs;
+    }
+
+    double allocationRateMBPerSecond() {
+      return allocatedBytes / 1048576.0 / (wallNanos / 1e9);
+    }
+  }
+
+  private static Map<String, Stats> stats(List<Record> records) {
+    Map<String, Stats> result = new LinkedHashMap<String, Stats>();
+    for (Record r: records) {
+      add(result, r.name, r.wallNanos, r.allocatedBytes);
+    }
+    return result;
+  }
+
+  private static void add(Map<String, Stats> stats, String name,
+                          long wallNanos, long allocatedBytes) {
+    Stats s = stats.get(name);
+    if (s == null) {
+      s = new Stats();
+      stats.put(name, s);
+    }
+    s.runs++;
+    s.wallNanos += wallNanos;
+    s.allocatedBytes += Math.max(allocatedBytes, 0);
+  }
+
+  /**
+   * Read stats from a CSV report written by a previous run
+   */
+  private static Map<String, Stats> readBaseline(String fileName)
+                                                 throws IOException {
+    Map<String, Stats> result = new HashMap<String, Stats>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+                          new FileInputStream(fileName), "UTF-8"));
+    try {
+      // Skip header
+      String line = in.readLine();
+      while ((line = in.readLine()) != null) {
+        // Benchmark names don't contain commas, so aren't quoted
+        String fields[] = line.split(",");
+        add(result, fields[1], Long.parseLong(fields[3]),
+            Long.parseLong(fields[5]));
+      }
+    } finally {
+      in.close();
+    }
+    return result;
+  }
+
+  /**
+   * Compare mean times against baseline
+   * @param tolerance allowed slowdown, e.g. 0.2 for 20%
+   * @return true if no benchmark was slower than allowed
+   */
+  private boolean checkBaseline(Map<String, Stats> baseline,
+                                double tolerance) {
+    boolean ok = true;
+    for (Map.Entry<String, Stats> e: stats(profiler.records()).entrySet()) {
+      Stats old = baseline.get(e.getKey());
+      if (old == null) {
+        continue;
+      }
+      double ratio = e.getValue().meanMillis() / old.meanMillis();
+      if (ratio > 1.0 + tolerance) {
+        System.out.println(String.format(
+            "REGRESSION: %s took %.2fms/op, baseline %.2fms/op (%.0f%%)",
+            e.getKey(), e.getValue().meanMillis(), old.meanMillis(),
+            (ratio - 1.0) * 100));
+        ok = false;
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * @param spec path to Swift file, or functions:N, array:N or nested:N
+   */
+  private static Input createInput(String spec) throws IOException {
+    String parts[] = spec.split(":");
+    if (parts.length == 2 && !new File(spec).exists()) {
+      File generated = SyntheticPrograms.generate(parts[0],
+                                            Integer.parseInt(parts[1]));
+      return new Input(parts[0] + parts[1], generated.getPath(),
+                       generated.getPath(), false);
+    }
+
+    File file = new File(spec);
+    if (!file.isFile()) {
+      throw new IOException("Input file \"" + spec + "\" is not readable");
+    }
+    // Imports are resolved relative to the directory of the input
+    Settings.addModulePath(file.getAbsoluteFile().getParent());
+    File preprocessed = preprocess(file);
+    return new Input(FilenameUtils.getBaseName(spec), preprocessed.getPath(),
+                     spec, true);
+  }
+
+  /**
+   * Run through C preprocessor, as the stc script does by default
+   */
+  private static File preprocess(File input) throws IOException {
+    File result = File.createTempFile("stc-preproc", ".swift");
+    result.deleteOnExit();
+    List<String> cmd = new ArrayList<String>(Arrays.asList(
+                "cpp", "-undef", input.getPath(), result.getPath()));
+    for (String dir: Settings.getModulePath()) {
+      cmd.add("-I");
+      cmd.add(dir);
+    }
+    Process cpp = new ProcessBuilder(cmd).inheritIO().start();
+    try {
+      if (cpp.waitFor() != 0) {
+        throw new IOException("Preprocessor failed on " + input);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while preprocessing " + input);
+    }
+    return result;
+  }
+
+  private static Options initOptions() {
+    Options opts = new Options();
+    opts.addOption(WARMUP_FLAG, "warmup", true,
+                   "Warmup runs of each benchmark (default 3)");
+    opts.addOption(ITERATIONS_FLAG, "iterations", true,
+                   "Measured runs of each benchmark (default 5)");
+    opts.addOption(PHASES_FLAG, "phases", true,
+                   "Comma-separated phases to run (default all)");
+    opts.addOption(OUTPUT_FLAG, "output", true,
+                   "Write measurements to file (CSV if name ends in .csv)");
+    opts.addOption(BASELINE_FLAG, "baseline", true,
+                   "CSV file from previous run to compare against");
+    opts.addOption(TOLERANCE_FLAG, "tolerance", true,
+                   "Allowed slowdown in percent vs. baseline (default 20)");
+    return opts;
+  }
+
+  private static void usage(Options opts) {
+    HelpFormatter fmt = new HelpFormatter();
+    fmt.printHelp("CompilerBenchmark [options] <input>...", opts);
+    System.out.println("Inputs are Swift files, or functions:N, array:N or " +
+                       "nested:N for generated programs");
+  }
+
+  public static void main(String[] args) {
+    Options opts = initOptions();
+    CommandLine cmd;
+    try {
+      cmd = new GnuParser().parse(opts, args);
+    } catch (ParseException ex) {
+      System.err.println(ex.getMessage());
+      usage(opts);
+      System.exit(1);
+      return;
+    }
+    if (cmd.getArgs().length == 0) {
+      usage(opts);
+      System.exit(1);
+    }
+
+    try {
+      Settings.initSTCProperties();
+      // Caches would hide the cost of phases
+      Settings.set(Settings.AST_CACHE, "false");
+    } catch (InvalidOptionException ex) {
+      System.err.println("Error setting up options: " + ex.getMessage());
+      System.exit(1);
+    }
+    Logger logger = Logging.setupLogging(null, false);
+    // Warnings would be repeated for every run
+    logger.setLevel(Level.ERROR);
+
+    int warmup = Integer.parseInt(cmd.getOptionValue(WARMUP_FLAG, "3"));
+    int iterations = Integer.parseInt(
+                        cmd.getOptionValue(ITERATIONS_FLAG, "5"));
+    List<String> phaseNames = null;
+    if (cmd.hasOption(PHASES_FLAG)) {
+      phaseNames = Arrays.asList(cmd.getOptionValue(PHASES_FLAG).split(","));
+    }
+
+    try {
+      List<Input> inputs = new ArrayList<Input>();
+      for (String spec: cmd.getArgs()) {
+        inputs.add(createInput(spec));
+      }
+      // Inputs may add to module path
+      CompilerBenchmark bench = new CompilerBenchmark(logger,
+                      CompilerOptions.fromSettings(), warmup, iterations);
+
+      printHeader();
+      for (Input input: inputs) {
+        for (Phase phase: bench.allPhases()) {
+          if (phaseNames == null || phaseNames.contains(phase.name)) {
+            bench.measure(input, phase);
+          }
+        }
+      }
+
+      if (cmd.hasOption(OUTPUT_FLAG)) {
+        bench.profiler.writeReport(cmd.getOptionValue(OUTPUT_FLAG));
+      }
+
+      if (cmd.hasOption(BASELINE_FLAG)) {
+        double tolerance = Double.parseDouble(
+                    cmd.getOptionValue(TOLERANCE_FLAG, "20")) / 100.0;
+        if (!bench.checkBaseline(
+                readBaseline(cmd.getOptionValue(BASELINE_FLAG)), tolerance)) {
+          System.exit(1);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("I/O error: " + e.getMessage());
+      System.exit(1);
+    } catch (UserException e) {
+      System.err.println("Compile error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+}
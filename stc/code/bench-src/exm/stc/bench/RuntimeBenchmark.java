@@ -0,0 +1,510 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import exm.stc.jvm.runtime.BlockingTask;
+import exm.stc.jvm.runtime.Builtins;
+import exm.stc.jvm.runtime.JVMRuntime;
+import exm.stc.jvm.runtime.JVMRuntime.BlockingMode;
+import exm.stc.jvm.runtime.Task;
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.MemberSlot;
+
+/**
+ * Measure throughput of the JVM runtime's scheduler on fine-grained
+ * tasks with varying numbers of worker threads.
+ *
+ * Workloads are:
+ * - tree: each task spawns two child tasks, down to a fixed depth
+ * - flat: a single task spawns all the others
+ * - dataflow: a reduction tree of rules, each waiting on two futures
+ * - array: tasks insert into a shared array while rules wait on its
+ *   elements
+ * - exec: CPU tasks mixed with blocking tasks that each run a short
+ *   external process
+ *
+ * The tree and flat workloads are also run on a shared-queue thread pool,
+ * like the runtime used before the work-stealing TaskQueue, to compare
+ * scaling.  Each task does a small amount of arithmetic so that the
+ * scheduler overhead dominates.  The exec workload is also run with
+ * blocking tasks inline on the workers, to compare with running them on
+ * the runtime's blocking executor.
+ */
+public class RuntimeBenchmark {
+
+  private static final String THREADS_FLAG = "t";
+  private static final String TASKS_FLAG = "n";
+  private static final String WORK_FLAG = "k";
+  private static final String WARMUP_FLAG = "w";
+  private static final String ITERATIONS_FLAG = "i";
+  private static final String SCHEDULERS_FLAG = "s";
+  private static final String PROCESSES_FLAG = "p";
+
+  private static final String STEALING = "stealing";
+  private static final String SHARED = "shared";
+  private static final String INLINE = "inline";
+
+  /** External process run by blocking tasks */
+  private static final String EXEC_CMD = "sleep";
+  private static final String EXEC_ARG = "0.01";
+
+  private final int warmup;
+  private final int iterations;
+  private final int work;
+  private final int processes;
+
+  /** Prevent leaf work from being optimized out */
+  private static volatile long sink;
+
+  public RuntimeBenchmark(int warmup, int iterations, int work,
+                          int processes) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.work = work;
+    this.processes = processes;
+  }
+
+  /**
+   * Scheduler that tasks can be spawned on
+   */
+  private interface Scheduler {
+    void spawn(Task task);
+
+    /** Run root task and anything it spawns to completion */
+    void run(Task root);
+  }
+
+  private static class StealingScheduler implements Scheduler {
+    final JVMRuntime rt;
+
+    StealingScheduler(int threads, BlockingMode blockingMode) {
+      this.rt = new JVMRuntime(threads, blockingMode);
+    }
+
+    @Override
+    public void spawn(Task task) {
+      rt.spawn(task);
+    }
+
+    @Override
+    public void run(Task root) {
+      if (rt.run(root) != 0) {
+        throw new RuntimeException("Runtime failed");
+      }
+    }
+  }
+
+  /**
+   * Fixed thread pool with a single shared queue, counting outstanding
+   * tasks to detect completion
+   */
+  private static class SharedQueueScheduler implements Scheduler {
+    final ExecutorService pool;
+    final AtomicLong outstanding = new AtomicLong();
+    final Object lock = new Object();
+
+    SharedQueueScheduler(int threads) {
+      this.pool = new ThreadPoolExecutor(threads, threads, 0L,
+          TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    @Override
+    public void spawn(final Task task) {
+      outstanding.incrementAndGet();
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            if (outstanding.decrementAndGet() == 0) {
+              synchronized (lock) {
+                lock.notifyAll();
+              }
+            }
+          }
+        }
+      });
+    }
+
+    @Override
+    public void run(Task root) {
+      spawn(root);
+      synchronized (lock) {
+        while (outstanding.get() > 0) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+      pool.shutdown();
+    }
+  }
+
+  private static Scheduler createScheduler(String name, int threads) {
+    if (name.equals(STEALING)) {
+      return new StealingScheduler(threads,
+                                   JVMRuntime.defaultBlockingMode());
+    } else if (name.equals(INLINE)) {
+      return new StealingScheduler(threads, BlockingMode.WORKERS);
+    } else if (name.equals(SHARED)) {
+      return new SharedQueueScheduler(threads);
+    }
+    throw new IllegalArgumentException("Unknown scheduler: " + name);
+  }
+
+  private void leafWork() {
+    long x = 0;
+    for (int i = 0; i < work; i++) {
+      x = x * 31 + i;
+    }
+    sink = x;
+  }
+
+  /**
+   * Workload run on a scheduler
+   */
+  private abstract class Workload {
+    final String name;
+
+    Workload(String name) {
+      this.name = name;
+    }
+
+    boolean supports(String scheduler) {
+      // Only differs from stealing with blocking tasks
+      return !scheduler.equals(INLINE);
+    }
+
+    /** @return number of tasks run */
+    abstract long run(Scheduler sched, int tasks);
+  }
+
+  private List<Workload> allWorkloads() {
+    List<Workload> workloads = new ArrayList<Workload>();
+    workloads.add(new Workload("tree") {
+      @Override
+      long run(Scheduler sched, int tasks) {
+        int depth = depth(tasks);
+        sched.run(treeTask(sched, depth));
+        return (2L << depth) - 1;
+      }
+    });
+    workloads.add(new Workload("flat") {
+      @Override
+      long run(final Scheduler sched, final int tasks) {
+        sched.run(new Task() {
+          @Override
+          public void run() {
+            for (int i = 0; i < tasks; i++) {
+              sched.spawn(new Task() {
+                @Override
+                public void run() {
+                  leafWork();
+                }
+              });
+            }
+          }
+        });
+        return tasks + 1;
+      }
+    });
+    workloads.add(new Workload("dataflow") {
+      @Override
+      boolean supports(String scheduler) {
+        // Needs rules
+        return scheduler.equals(STEALING);
+      }
+
+      @Override
+      long run(Scheduler sched, int tasks) {
+        int depth = depth(tasks);
+        final JVMRuntime rt = ((StealingScheduler)sched).rt;
+        final IntVar result = new IntVar(1);
+        sched.run(reduceTask(rt, result, depth));
+        if (result.getInt() != (1L << depth)) {
+          throw new RuntimeException("Wrong result: " + result.get());
+        }
+        return (2L << depth) - 1;
+      }
+    });
+    workloads.add(new Workload("array") {
+      @Override
+      boolean supports(String scheduler) {
+        return scheduler.equals(STEALING);
+      }
+
+      @Override
+      long run(Scheduler sched, int tasks) {
+        final JVMRuntime rt = ((StealingScheduler)sched).rt;
+        final int elems = Math.max(1, tasks / 2);
+        final ArrayVar array = new ArrayVar(1);
+        final LongAdder sum = new LongAdder();
+        sched.run(new Task() {
+          @Override
+          public void run() {
+            for (int i = 0; i < elems; i++) {
+              final long key = i;
+              final MemberSlot slot = array.slot(key);
+              rt.rule(new BaseVar[] {slot}, new Task() {
+                @Override
+                public void run() {
+                  sum.add(slot.getInt());
+                }
+              });
+              array.incrWriters(1);
+              rt.spawn(new Task() {
+                @Override
+                public void run() {
+                  leafWork();
+                  array.store(key, key, 1);
+                }
+              });
+            }
+            array.decrWriters(1);
+          }
+        });
+        long expected = (long)elems * (elems - 1) / 2;
+        if (array.size() != elems || sum.sum() != expected) {
+          throw new RuntimeException("Wrong result: " + sum.sum());
+        }
+        return 2L * elems + 1;
+      }
+    });
+    workloads.add(new Workload("exec") {
+      @Override
+      boolean supports(String scheduler) {
+        return scheduler.equals(STEALING) || scheduler.equals(INLINE);
+      }
+
+      @Override
+      long run(final Scheduler sched, final int tasks) {
+        final int procs = Math.min(processes, tasks);
+        final LongAdder ran = new LongAdder();
+        sched.run(new Task() {
+          @Override
+          public void run() {
+            // Spread processes evenly through the CPU tasks
+            int procsSpawned = 0;
+            for (int i = 0; i < tasks; i++) {
+              if ((long)i * procs >= (long)procsSpawned * tasks) {
+                procsSpawned++;
+                sched.spawn(new BlockingTask() {
+                  @Override
+                  public void run() {
+                    Builtins.exec(EXEC_CMD, EXEC_ARG);
+                    ran.increment();
+                  }
+                });
+              }
+              sched.spawn(new Task() {
+                @Override
+                public void run() {
+                  leafWork();
+                  ran.increment();
+                }
+              });
+            }
+          }
+        });
+        if (ran.sum() != tasks + procs) {
+          throw new RuntimeException("Wrong count: " + ran.sum());
+        }
+        return tasks + procs + 1;
+      }
+    });
+    return workloads;
+  }
+
+  /** @return depth of binary tree with about this many tasks */
+  private static int depth(int tasks) {
+    return Math.max(0, 31 - Integer.numberOfLeadingZeros(tasks + 1) - 1);
+  }
+
+  private Task treeTask(final Scheduler sched, final int depth) {
+    return new Task() {
+      @Override
+      public void run() {
+        if (depth == 0) {
+          leafWork();
+        } else {
+          sched.spawn(treeTask(sched, depth - 1));
+          sched.spawn(treeTask(sched, depth - 1));
+        }
+      }
+    };
+  }
+
+  /**
+   * Compute number of leaves under node: leaves set their output directly,
+   * inner nodes add their children's outputs in a rule
+   */
+  private Task reduceTask(final JVMRuntime rt, final IntVar out,
+                          final int depth) {
+    return new Task() {
+      @Override
+      public void run() {
+        if (depth == 0) {
+          leafWork();
+          out.setInt(1);
+          return;
+        }
+        final IntVar left = new IntVar(1);
+        final IntVar right = new IntVar(1);
+        rt.spawn(reduceTask(rt, left, depth - 1));
+        rt.spawn(reduceTask(rt, right, depth - 1));
+        rt.rule(new BaseVar[] {left, right}, new Task() {
+          @Override
+          public void run() {
+            out.setInt(left.getInt() + right.getInt());
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Run workload with given scheduler and thread count
+   * @return mean tasks per second
+   */
+  private double measure(Workload workload, String scheduler, int threads,
+                         int tasks) {
+    long totalTasks = 0;
+    long totalNanos = 0;
+    for (int i = 0; i < warmup + iterations; i++) {
+      Scheduler sched = createScheduler(scheduler, threads);
+      System.gc();
+      long start = System.nanoTime();
+      long ran = workload.run(sched, tasks);
+      long elapsed = System.nanoTime() - start;
+      if (i >= warmup) {
+        totalTasks += ran;
+        totalNanos += elapsed;
+      }
+    }
+    return totalTasks * 1e9 / totalNanos;
+  }
+
+  private static List<Integer> defaultThreadCounts() {
+    List<Integer> counts = new ArrayList<Integer>();
+    int max = Runtime.getRuntime().availableProcessors();
+    for (int t = 1; t < max; t *= 2) {
+      counts.add(t);
+    }
+    counts.add(max);
+    return counts;
+  }
+
+  private static Options initOptions() {
+    Options opts = new Options();
+    opts.addOption(THREADS_FLAG, true,
+        "Comma-separated worker thread counts (default: powers of two up " +
+        "to number of processors)");
+    opts.addOption(TASKS_FLAG, true, "Approximate tasks per run " +
+        "(default 1000000)");
+    opts.addOption(WORK_FLAG, true, "Loop iterations of work per leaf " +
+        "task (default 100)");
+    opts.addOption(WARMUP_FLAG, true, "Warmup runs (default 3)");
+    opts.addOption(ITERATIONS_FLAG, true, "Measured runs (default 5)");
+    opts.addOption(SCHEDULERS_FLAG, true, "Comma-separated schedulers: " +
+        STEALING + "," + SHARED + "," + INLINE + " (default all)");
+    opts.addOption(PROCESSES_FLAG, true, "External processes per run " +
+        "for exec workload (default 100)");
+    return opts;
+  }
+
+  private static void usage(Options opts) {
+    new HelpFormatter().printHelp("RuntimeBenchmark [options] " +
+                    "[tree|flat|dataflow|array|exec]...", opts);
+  }
+
+  public static void main(String[] args) {
+    Options opts = initOptions();
+    CommandLine cmd;
+    try {
+      cmd = new GnuParser().parse(opts, args);
+    } catch (ParseException ex) {
+      System.err.println(ex.getMessage());
+      usage(opts);
+      System.exit(1);
+      return;
+    }
+
+    List<Integer> threadCounts;
+    if (cmd.hasOption(THREADS_FLAG)) {
+      threadCounts = new ArrayList<Integer>();
+      for (String t: cmd.getOptionValue(THREADS_FLAG).split(",")) {
+        threadCounts.add(Integer.parseInt(t.trim()));
+      }
+    } else {
+      threadCounts = defaultThreadCounts();
+    }
+    int tasks = Integer.parseInt(cmd.getOptionValue(TASKS_FLAG, "1000000"));
+    List<String> schedulers = Arrays.asList(
+        cmd.getOptionValue(SCHEDULERS_FLAG,
+                           STEALING + "," + SHARED + "," + INLINE)
+           .split(","));
+    List<String> workloadNames = Arrays.asList(cmd.getArgs());
+
+    RuntimeBenchmark bench = new RuntimeBenchmark(
+        Integer.parseInt(cmd.getOptionValue(WARMUP_FLAG, "3")),
+        Integer.parseInt(cmd.getOptionValue(ITERATIONS_FLAG, "5")),
+        Integer.parseInt(cmd.getOptionValue(WORK_FLAG, "100")),
+        Integer.parseInt(cmd.getOptionValue(PROCESSES_FLAG, "100")));
+
+    System.out.println(String.format("%-10s %-10s %8s %14s %8s",
+          "WORKLOAD", "SCHEDULER", "THREADS", "tasks/s", "speedup"));
+    for (Workload w: bench.allWorkloads()) {
+      if (!workloadNames.isEmpty() && !workloadNames.contains(w.name)) {
+        continue;
+      }
+      for (String sched: schedulers) {
+        if (!w.supports(sched)) {
+          continue;
+        }
+        double base = 0;
+        for (int threads: threadCounts) {
+          double rate = bench.measure(w, sched, threads, tasks);
+          if (base == 0) {
+            base = rate;
+          }
+          System.out.println(String.format("%-10s %-10s %8d %14.0f %8.2f",
+                w.name, sched, threads, rate, rate / base));
+        }
+      }
+    }
+  }
+}
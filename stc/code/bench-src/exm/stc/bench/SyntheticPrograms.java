@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generate large Swift programs to check how compiler phases scale.
+ */
+public class SyntheticPrograms {
+
+  /** Kinds of generated program */
+  public static final String FUNCTIONS = "functions";
+  public static final String ARRAY = "array";
+  public static final String NESTED = "nested";
+
+  /**
+   * Write program to a new temporary file
+   * @param kind FUNCTIONS, ARRAY or NESTED
+   * @param size number of functions, array elements or nesting levels
+   * @return the file
+   */
+  public static File generate(String kind, int size) throws IOException {
+    String code;
+    if (kind.equals(FUNCTIONS)) {
+      code = functions(size);
+    } else if (kind.equals(ARRAY)) {
+      code = arrayLiteral(size);
+    } else if (kind.equals(NESTED)) {
+      code = nested(size);
+    } else {
+      throw new IllegalArgumentException("Unknown synthetic program: "
+                                         + kind);
+    }
+    File file = File.createTempFile(kind + size + "_", ".swift");
+    file.deleteOnExit();
+    FileUtils.writeStringToFile(file, code, "UTF-8");
+    return file;
+  }
+
+  /**
+   * Program with many small functions, each called from main more than
+   * once so that they aren't all inlined.
+   */
+  public static String functions(int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("import io;\n\n");
+    for (int i = 0; i < n; i++) {
+      sb.append("(int o) f" + i + "(int x, int y) {\n");
+      sb.append("  int a[];\n");
+      sb.append("  foreach j in [0:4] {\n");
+      sb.append("    a[j] = x * j + y + " + i + ";\n");
+      sb.append("  }\n");
+      sb.append("  if (x > " + i + ") {\n");
+      sb.append("    o = a[1] + a[2] * 2;\n");
+      sb.append("  } else {\n");
+      sb.append("    o = a[3] - " + i + ";\n");
+      sb.append("  }\n");
+      sb.append("  trace(\"f" + i + "\", o);\n");
+      sb.append("}\n\n");
+    }
+    sb.append("main {\n");
+    for (int i = 0; i < n; i++) {
+      sb.append("  int r" + i + "_0 = f" + i + "(" + i + ", 1);\n");
+      sb.append("  int r" + i + "_1 = f" + i + "(" + (i + 1) + ", 2);\n");
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Program with one large array literal
+   */
+  public static String arrayLiteral(int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("import io;\n\n");
+    sb.append("main {\n");
+    sb.append("  int A[] = [");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sb.append(i % 20 == 0 ? ",\n    " : ", ");
+      }
+      sb.append(i);
+    }
+    sb.append("];\n");
+    sb.append("  trace(A[0], A[" + (n - 1) + "]);\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Program with deeply nested loops and conditionals, where each level
+   * refers to variables from outer levels
+   */
+  public static String nested(int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("import io;\n\n");
+    sb.append("main {\n");
+    sb.append("  int x0 = 1;\n");
+    String indent = "  ";
+    for (int i = 1; i <= n; i++) {
+      if (i % 2 == 1) {
+        sb.append(indent + "foreach i" + i + " in [0:1] {\n");
+        indent += "  ";
+        sb.append(indent + "int x" + i + " = x" + (i - 1) + " + i" + i +
+                  " + x0;\n");
+      } else {
+        sb.append(indent + "if (x" + (i - 1) + " > " + i + ") {\n");
+        indent += "  ";
+        sb.append(indent + "int x" + i + " = x" + (i - 1) + " * 2 + x" +
+                  (i / 2) + ";\n");
+      }
+    }
+    sb.append(indent + "trace(x" + n + ");\n");
+    for (int i = n; i >= 1; i--) {
+      indent = indent.substring(2);
+      sb.append(indent + "}\n");
+    }
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
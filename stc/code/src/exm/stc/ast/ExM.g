@@ -113,12 +113,15 @@ tokens {
 package exm.stc.ast.antlr;
 import exm.stc.ast.FilePosition;
 import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.ast.SyntaxErrorListener;
 
 }
 
 @parser::members {
     public boolean parserError = false;
     public LineMapping lineMap = null;
+    /** If not null, errors are passed here instead of printed */
+    public SyntaxErrorListener errorListener = null;
 
     public void displayRecognitionError(String[] tokenNames,
                                     RecognitionException e) {
@@ -137,7 +140,13 @@ import exm.stc.ast.FilePosition.LineMapping;
                     e.line + ":" + e.charPositionInLine;
       }
       String msg = getErrorMessage(e, tokenNames);
-      emitErrorMessage(hdr + " " + msg);
+      if (errorListener != null && lineMap != null) {
+        FilePosition realPos = lineMap.getFilePosition(e.line);
+        errorListener.syntaxError(realPos.file, realPos.line,
+                                  e.charPositionInLine, msg);
+      } else {
+        emitErrorMessage(hdr + " " + msg);
+      }
     }
 
     protected Object recoverFromMismatchedToken(IntStream input,
@@ -152,6 +161,7 @@ import exm.stc.ast.FilePosition.LineMapping;
 package exm.stc.ast.antlr;
 import exm.stc.ast.FilePosition;
 import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.ast.SyntaxErrorListener;
 }
 
 @lexer::members {
@@ -159,10 +169,14 @@ import exm.stc.ast.FilePosition.LineMapping;
     public static int CPP = 5;
     public LineMapping lineMap = null;
     public boolean quiet = false; // if true, don't report errors
+    public boolean lexerError = false;
+    /** If not null, errors are passed here instead of printed */
+    public SyntaxErrorListener errorListener = null;
 
     public void displayRecognitionError(String[] tokenNames,
                                     RecognitionException e) {
       if (quiet) return;
+      lexerError = true;
       String hdr;
       /* Use lineMap if available */
       if (lineMap != null) {
@@ -175,7 +189,13 @@ import exm.stc.ast.FilePosition.LineMapping;
                     e.line + ":" + e.charPositionInLine;
       }
       String msg = getErrorMessage(e, tokenNames);
-      emitErrorMessage(hdr + " " + msg);
+      if (errorListener != null && lineMap != null) {
+        FilePosition realPos = lineMap.getFilePosition(e.line);
+        errorListener.syntaxError(realPos.file, realPos.line,
+                                  e.charPositionInLine, msg);
+      } else {
+        emitErrorMessage(hdr + " " + msg);
+      }
     }
 }
 
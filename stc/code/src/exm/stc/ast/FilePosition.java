@@ -15,7 +15,9 @@
  */
 package exm.stc.ast;
 
+import java.util.Collections;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 
 /** 
@@ -82,6 +84,13 @@ public class FilePosition {
             precedingP.line + diff);
       }
     }
+    /**
+     * @return all preprocessor line to original position entries
+     */
+    public Set<Entry<Integer, FilePosition>> entries() {
+      return Collections.unmodifiableMap(fileMap).entrySet();
+    }
+
     public String toString() {
       return fileMap.toString();
     }
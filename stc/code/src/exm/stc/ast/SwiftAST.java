@@ -147,4 +147,35 @@ public class SwiftAST extends CommonTree {
     }
   }
 
+  /**
+   * Copy the tree without frontend annotations.  Tokens are shared, since
+   * they are not modified after parsing.
+   * @return a new tree
+   */
+  public SwiftAST copyTree() {
+    SwiftAST root = copyNode(this);
+    // Pairs of original and copied nodes whose children need copying
+    ArrayList<SwiftAST> stack = new ArrayList<SwiftAST>();
+    stack.add(this);
+    stack.add(root);
+
+    while (!stack.isEmpty()) {
+      SwiftAST copy = stack.remove(stack.size() - 1);
+      SwiftAST tree = stack.remove(stack.size() - 1);
+      for (SwiftAST child: tree.children()) {
+        SwiftAST childCopy = copyNode(child);
+        copy.addChild(childCopy);
+        stack.add(child);
+        stack.add(childCopy);
+      }
+    }
+    return root;
+  }
+
+  private static SwiftAST copyNode(SwiftAST tree) {
+    SwiftAST copy = new SwiftAST(tree.getToken());
+    copy.setTokenStartIndex(tree.getTokenStartIndex());
+    copy.setTokenStopIndex(tree.getTokenStopIndex());
+    return copy;
+  }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.common.util.Pair;
+
+/**
+ * Settings for a single compilation, fixed when it starts.
+ *
+ * {@link Settings} collects and validates options from the command line
+ * and system properties; a snapshot is then passed through the compiler
+ * instead of looking up the global settings.  Values are parsed once when
+ * the snapshot is taken, so lookups in the optimizer are cheap, and
+ * compilations with different options can run at the same time.
+ */
+public class CompilerOptions {
+
+  private final Map<String, String> values;
+  private final Map<String, Boolean> booleans;
+  private final Map<String, Long> longs;
+  private final List<String> keys;
+  private final List<String> modulePath;
+  private final List<Pair<String, String>> metadata;
+  private final Map<String, String> compileTimeArgs;
+
+  public CompilerOptions(Properties props, List<String> modulePath,
+        List<Pair<String, String>> metadata,
+        Map<String, String> compileTimeArgs) {
+    this.values = new HashMap<String, String>();
+    this.booleans = new HashMap<String, Boolean>();
+    this.longs = new HashMap<String, Long>();
+    for (String key: props.stringPropertyNames()) {
+      String val = props.getProperty(key);
+      values.put(key, val);
+      if (val.equalsIgnoreCase("true")) {
+        booleans.put(key, true);
+      } else if (val.equalsIgnoreCase("false")) {
+        booleans.put(key, false);
+      } else {
+        try {
+          longs.put(key, Long.parseLong(val));
+        } catch (NumberFormatException e) {
+          // Not numeric
+        }
+      }
+    }
+    List<String> sortedKeys = new ArrayList<String>(values.keySet());
+    Collections.sort(sortedKeys);
+    this.keys = Collections.unmodifiableList(sortedKeys);
+    this.modulePath = Collections.unmodifiableList(
+                                new ArrayList<String>(modulePath));
+    this.metadata = Collections.unmodifiableList(
+                      new ArrayList<Pair<String, String>>(metadata));
+    this.compileTimeArgs = Collections.unmodifiableMap(
+                      new HashMap<String, String>(compileTimeArgs));
+  }
+
+  /**
+   * Take a snapshot of the current global settings.  They should have
+   * been initialized with {@link Settings#initSTCProperties()}.
+   */
+  public static CompilerOptions fromSettings() {
+    Properties props = new Properties();
+    for (String key: Settings.getKeys()) {
+      props.setProperty(key, Settings.get(key));
+    }
+    return new CompilerOptions(props, Settings.getModulePath(),
+        Settings.getMetadata(), CompileTimeArgs.getCompileTimeArgs());
+  }
+
+  /**
+   * Default settings, ignoring system properties.  For tests and tools
+   * that construct parts of the compiler directly.
+   */
+  public static CompilerOptions defaults() {
+    return new CompilerOptions(Settings.defaultProperties(),
+        Collections.<String>emptyList(),
+        Collections.<Pair<String, String>>emptyList(),
+        Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * @return copy of these options with one setting changed
+   */
+  public CompilerOptions with(String key, String value) {
+    Properties props = new Properties();
+    for (Map.Entry<String, String> e: values.entrySet()) {
+      props.setProperty(e.getKey(), e.getValue());
+    }
+    props.setProperty(key, value);
+    return new CompilerOptions(props, modulePath, metadata, compileTimeArgs);
+  }
+
+  /**
+   * @return value of setting, or null if not set
+   */
+  public String get(String key) {
+    return values.get(key);
+  }
+
+  public boolean getBoolean(String key) {
+    Boolean val = booleans.get(key);
+    if (val == null) {
+      throw new STCRuntimeError("Option " + key + " is not a boolean: " +
+                                values.get(key));
+    }
+    return val;
+  }
+
+  public long getLong(String key) {
+    Long val = longs.get(key);
+    if (val == null) {
+      throw new STCRuntimeError("Option " + key + " is not an integer: " +
+                                values.get(key));
+    }
+    return val;
+  }
+
+  public int getInt(String key) {
+    long val = getLong(key);
+    if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+      throw new STCRuntimeError("Option " + key + " out of range: " + val);
+    }
+    return (int)val;
+  }
+
+  /**
+   * @return names of all settings in sorted order
+   */
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  /**
+   * @return list of directory paths to search, from first to last
+   */
+  public List<String> getModulePath() {
+    return modulePath;
+  }
+
+  public List<Pair<String, String>> getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @return value of compile-time argument, or null if not set
+   */
+  public String getCompileTimeArg(String key) {
+    return compileTimeArgs.get(key);
+  }
+
+  public Map<String, String> getCompileTimeArgs() {
+    return compileTimeArgs;
+  }
+
+  /**
+     RPATH should be a Unix-style colon-separated list of directories
+     @return Possibly empty String array
+   */
+  public String[] getRpaths() {
+    String rpaths = get(Settings.RPATH);
+    if (rpaths == null)
+      return new String[0];
+    return rpaths.split(":");
+  }
+
+  /**
+   * Locate a compiler cache directory
+   * @param dirKey setting that overrides the location, if non-empty
+   * @param name subdirectory of user cache directory to use by default
+   * @return
+   */
+  public File cacheDir(String dirKey, String name) {
+    String dirName = get(dirKey);
+    if (dirName != null && dirName.length() > 0) {
+      return new File(dirName);
+    }
+    String cacheHome = Settings.getenv("XDG_CACHE_HOME");
+    if (cacheHome == null || cacheHome.length() == 0) {
+      cacheHome = System.getProperty("user.home") + File.separator +
+                  ".cache";
+    }
+    return new File(cacheHome + File.separator + "stc" +
+                    File.separator + name);
+  }
+}
@@ -16,15 +16,21 @@
 package exm.stc.common;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
+import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
+import org.apache.log4j.Hierarchy;
 import org.apache.log4j.Layout;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.RootLogger;
 
+import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.util.Pair;
 import exm.stc.ui.ExitCode;
 
@@ -32,18 +38,50 @@ public class Logging {
   private static final String STC_LOGGER_NAME = "exm.stc";
 
   /**
-   * Messages already emitted.
+   * Messages already emitted.  Synchronized since optimizer passes may
+   * run in multiple threads.
    */
-  private static final HashSet<Pair<org.apache.log4j.Level, String>> emitted =
-          new HashSet<Pair<org.apache.log4j.Level, String>>();
+  private static final Set<Pair<org.apache.log4j.Level, String>> emitted =
+      Collections.synchronizedSet(
+          new HashSet<Pair<org.apache.log4j.Level, String>>());
 
+  /**
+   * Log for compilation running in the current thread, if set up with
+   * startThreadLog.  Lets several programs be compiled at the same time,
+   * each with its own messages.
+   */
+  private static final ThreadLocal<ThreadLog> threadLog =
+                                          new ThreadLocal<ThreadLog>();
+
+  private static class ThreadLog {
+    final Logger logger;
+    final Set<Pair<org.apache.log4j.Level, String>> emitted =
+                        new HashSet<Pair<org.apache.log4j.Level, String>>();
+
+    ThreadLog(Logger logger) {
+      this.logger = logger;
+    }
+  }
+
+  /**
+   * @return logger for current thread's compilation if there is one,
+   *         otherwise the global compiler logger
+   */
   public static Logger getSTCLogger() {
+    ThreadLog log = threadLog.get();
+    if (log != null) {
+      return log.logger;
+    }
     return Logger.getLogger(STC_LOGGER_NAME);
   }
 
 
   public static Logger setupLogging(String logfile, boolean trace) {
     Logger stcLogger = getSTCLogger();
+    // Discard state from any previous compilation in this JVM
+    stcLogger.removeAllAppenders();
+    emitted.clear();
+
     if (logfile != null && logfile.length() > 0) {
       setupLoggingToStderr(stcLogger);
       setupLoggingToFile(stcLogger, logfile, trace);
@@ -55,6 +93,52 @@ public class Logging {
     return stcLogger;
   }
 
+  /**
+   * Send compiler messages at level WARN and above only to appender, e.g.
+   * to collect them when compiling in memory
+   * @param appender
+   * @return
+   */
+  public static Logger setupLogging(AppenderSkeleton appender) {
+    Logger stcLogger = getSTCLogger();
+    stcLogger.removeAllAppenders();
+    emitted.clear();
+
+    appender.setThreshold(Level.WARN);
+    stcLogger.addAppender(appender);
+    stcLogger.setLevel(Level.WARN);
+    return stcLogger;
+  }
+
+  /**
+   * Send compiler messages logged by the current thread at level WARN and
+   * above only to appender, until endThreadLog is called.  The logger is
+   * separate from the global one, so other threads are unaffected.
+   * @param appender
+   * @return
+   */
+  public static Logger startThreadLog(AppenderSkeleton appender) {
+    Hierarchy hierarchy = new Hierarchy(new RootLogger(Level.OFF));
+    Logger stcLogger = hierarchy.getLogger(STC_LOGGER_NAME);
+
+    appender.setThreshold(Level.WARN);
+    stcLogger.addAppender(appender);
+    stcLogger.setLevel(Level.WARN);
+    threadLog.set(new ThreadLog(stcLogger));
+    return stcLogger;
+  }
+
+  /**
+   * Go back to using global logger in current thread
+   */
+  public static void endThreadLog() {
+    ThreadLog log = threadLog.get();
+    if (log != null) {
+      log.logger.removeAllAppenders();
+      threadLog.remove();
+    }
+  }
+
   private static void setupLoggingToFile(Logger stcLogger, String logfile,
       boolean trace) {
     Layout layout = new PatternLayout("%-5p %m%n");
@@ -72,7 +156,7 @@ public class Logging {
       stcLogger.setLevel(threshold);
     } catch (IOException e) {
       System.out.println(e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
   }
 
@@ -96,6 +180,10 @@ public class Logging {
    * @return true if not already emitted
    */
   public static boolean addEmitted(org.apache.log4j.Level level, String msg) {
+    ThreadLog log = threadLog.get();
+    if (log != null) {
+      return log.emitted.add(Pair.create(level, msg));
+    }
     return emitted.add(Pair.create(level, msg));
   }
 
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records time and memory used by each phase of compilation, so that
+ * expensive frontend, optimizer and code generation steps can be
+ * identified.
+ *
+ * Each record has the wall clock time, CPU time and bytes allocated by
+ * the current thread, where supported by the JVM.  Optimizer records
+ * also have the size of the intermediate code before and after.  Work
+ * done on other threads, e.g. by parallel optimizer passes, is only
+ * included in the wall clock time.
+ */
+public class Profiler {
+
+  /** Phase names used in records */
+  public static final String FRONTEND = "frontend";
+  public static final String OPTIMIZER = "optimizer";
+  public static final String CODEGEN = "codegen";
+  public static final String COMPILE = "compile";
+
+  /** Profiler that doesn't record anything */
+  public static final Profiler DISABLED = new Profiler(false);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final boolean enabled;
+  private final List<Record> records = new ArrayList<Record>();
+  private final ThreadMXBean threads;
+  private final com.sun.management.ThreadMXBean allocation;
+
+  private Profiler(boolean enabled) {
+    this.enabled = enabled;
+    if (enabled) {
+      threads = ManagementFactory.getThreadMXBean();
+      if (threads.isThreadCpuTimeSupported()) {
+        threads.setThreadCpuTimeEnabled(true);
+      }
+      allocation = allocationBean(threads);
+    } else {
+      threads = null;
+      allocation = null;
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean allocationBean(
+                                                  ThreadMXBean threads) {
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean bean =
+                    (com.sun.management.ThreadMXBean)threads;
+    if (!bean.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    bean.setThreadAllocatedMemoryEnabled(true);
+    return bean;
+  }
+
+  /**
+   * @return a new profiler if a profile report was requested in options,
+   *         otherwise DISABLED
+   */
+  public static Profiler fromOptions(CompilerOptions options) {
+    String report = options.get(Settings.PROFILE_REPORT);
+    if (report == null || report.isEmpty()) {
+      return DISABLED;
+    }
+    return create();
+  }
+
+  /**
+   * @return a new profiler that records everything
+   */
+  public static Profiler create() {
+    return new Profiler(true);
+  }
+
+  /**
+   * @return true if recording.  Callers can check this to avoid
+   *         computing information only needed for the profile.
+   */
+  public boolean enabled() {
+    return enabled;
+  }
+
+  /**
+   * Start measuring something on the current thread
+   * @return start sample to pass to record, or null if disabled
+   */
+  public Sample start() {
+    if (!enabled) {
+      return null;
+    }
+    return sample();
+  }
+
+  public void record(String phase, String name, long iteration,
+                     Sample start) {
+    record(phase, name, iteration, start, -1, -1);
+  }
+
+  /**
+   * Record something measured since start was called
+   * @param phase
+   * @param name
+   * @param iteration optimizer iteration, or -1 if not applicable
+   * @param start
+   * @param sizeBefore size of intermediate code before, or -1
+   * @param sizeAfter size of intermediate code after, or -1
+   */
+  public void record(String phase, String name, long iteration,
+                     Sample start, long sizeBefore, long sizeAfter) {
+    if (!enabled) {
+      return;
+    }
+    Sample end = sample();
+    records.add(new Record(phase, name, iteration,
+        end.wallNanos - start.wallNanos,
+        difference(start.cpuNanos, end.cpuNanos),
+        difference(start.allocatedBytes, end.allocatedBytes),
+        sizeBefore, sizeAfter));
+  }
+
+  public List<Record> records() {
+    return Collections.unmodifiableList(records);
+  }
+
+  private Sample sample() {
+    long id = Thread.currentThread().getId();
+    long cpu = -1;
+    if (threads.isThreadCpuTimeSupported()) {
+      cpu = threads.getThreadCpuTime(id);
+    }
+    long allocated = -1;
+    if (allocation != null) {
+      allocated = allocation.getThreadAllocatedBytes(id);
+    }
+    return new Sample(System.nanoTime(), cpu, allocated);
+  }
+
+  private static long difference(long start, long end) {
+    if (start < 0 || end < 0) {
+      return -1;
+    }
+    return end - start;
+  }
+
+  /**
+   * Write all records to file as CSV if file name ends in .csv,
+   * otherwise as JSON.
+   */
+  public void writeReport(String fileName) throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(fileName), UTF8));
+    try {
+      if (fileName.toLowerCase().endsWith(".csv")) {
+        writeCSV(out);
+      } else {
+        writeJSON(out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeCSV(Writer out) throws IOException {
+    out.write("phase,name,iteration,wall_ns,cpu_ns,alloc_bytes," +
+              "size_before,size_after\n");
+    for (Record r: records) {
+      out.write(csvString(r.phase) + "," + csvString(r.name) + "," +
+                r.iteration + "," + r.wallNanos + "," + r.cpuNanos + "," +
+                r.allocatedBytes + "," + r.sizeBefore + "," +
+                r.sizeAfter + "\n");
+    }
+  }
+
+  private void writeJSON(Writer out) throws IOException {
+    out.write("[\n");
+    for (int i = 0; i < records.size(); i++) {
+      Record r = records.get(i);
+      out.write("  {\"phase\": " + jsonString(r.phase) +
+                ", \"name\": " + jsonString(r.name) +
+                ", \"iteration\": " + r.iteration +
+                ", \"wall_ns\": " + r.wallNanos +
+                ", \"cpu_ns\": " + r.cpuNanos +
+                ", \"alloc_bytes\": " + r.allocatedBytes +
+                ", \"size_before\": " + r.sizeBefore +
+                ", \"size_after\": " + r.sizeAfter + "}");
+      out.write(i == records.size() - 1 ? "\n" : ",\n");
+    }
+    out.write("]\n");
+  }
+
+  private static String csvString(String s) {
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+      return s;
+    }
+    return "\"" + s.replace("\"", "\"\"") + "\"";
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c: s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Print table with totals for each phase and name, most expensive first.
+   * Percentages are of total compile time if recorded.  Phases may be
+   * nested in others, e.g. parsing happens while loading definitions.
+   */
+  public void printSummary(PrintStream out) {
+    Map<String, Record> totals = new LinkedHashMap<String, Record>();
+    Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    long compileNanos = 0;
+    for (Record r: records) {
+      if (r.phase.equals(COMPILE)) {
+        compileNanos += r.wallNanos;
+      }
+      String key = r.phase + " " + r.name;
+      Record total = totals.get(key);
+      if (total == null) {
+        totals.put(key, r);
+        counts.put(key, 1);
+      } else {
+        totals.put(key, new Record(r.phase, r.name, -1,
+            total.wallNanos + r.wallNanos,
+            sum(total.cpuNanos, r.cpuNanos),
+            sum(total.allocatedBytes, r.allocatedBytes),
+            total.sizeBefore, r.sizeAfter));
+        counts.put(key, counts.get(key) + 1);
+      }
+    }
+
+    List<Map.Entry<String, Record>> sorted =
+        new ArrayList<Map.Entry<String, Record>>(totals.entrySet());
+    Collections.sort(sorted, new Comparator<Map.Entry<String, Record>>() {
+      @Override
+      public int compare(Map.Entry<String, Record> a,
+                         Map.Entry<String, Record> b) {
+        return Long.compare(b.getValue().wallNanos, a.getValue().wallNanos);
+      }
+    });
+
+    out.println(String.format("%-10s %-32s %6s %10s %6s %10s %10s",
+          "PHASE", "NAME", "CALLS", "WALL(ms)", "%", "CPU(ms)", "ALLOC(MB)"));
+    for (Map.Entry<String, Record> e: sorted) {
+      Record r = e.getValue();
+      String percent = compileNanos > 0 ?
+          String.format("%.1f", 100.0 * r.wallNanos / compileNanos) : "-";
+      out.println(String.format("%-10s %-32s %6d %10.1f %6s %10s %10s",
+          r.phase, r.name, counts.get(e.getKey()), r.wallNanos / 1e6,
+          percent,
+          r.cpuNanos < 0 ? "-" : String.format("%.1f", r.cpuNanos / 1e6),
+          r.allocatedBytes < 0 ? "-" :
+              String.format("%.1f", r.allocatedBytes / 1048576.0)));
+    }
+  }
+
+  private static long sum(long a, long b) {
+    if (a < 0 || b < 0) {
+      return -1;
+    }
+    return a + b;
+  }
+
+  /**
+   * Measurements for current thread at a point in time
+   */
+  public static class Sample {
+    private final long wallNanos;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+
+    private Sample(long wallNanos, long cpuNanos, long allocatedBytes) {
+      this.wallNanos = wallNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+  }
+
+  /**
+   * Measurements for one phase.  Values are -1 if not available.
+   */
+  public static class Record {
+    public final String phase;
+    public final String name;
+    public final long iteration;
+    public final long wallNanos;
+    public final long cpuNanos;
+    public final long allocatedBytes;
+    public final long sizeBefore;
+    public final long sizeAfter;
+
+    private Record(String phase, String name, long iteration,
+        long wallNanos, long cpuNanos, long allocatedBytes,
+        long sizeBefore, long sizeAfter) {
+      this.phase = phase;
+      this.name = name;
+      this.iteration = iteration;
+      this.wallNanos = wallNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.sizeBefore = sizeBefore;
+      this.sizeAfter = sizeAfter;
+    }
+  }
+}
@@ -24,7 +24,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import exm.stc.common.exceptions.InvalidOptionException;
@@ -108,11 +110,67 @@ public class Settings {
 
   public static final String OPT_MAX_ITERATIONS = "stc.opt.max-iterations";
 
+  /**
+   * Number of threads for running per-function optimizer passes.
+   * 1 runs passes serially, 0 uses all available processors
+   */
+  public static final String OPT_THREADS = "stc.opt.threads";
+
+  /**
+   * Skip optimizer passes on functions they have already left unchanged,
+   * and skip iterations once the program stops changing
+   */
+  public static final String OPT_SKIP_STABLE = "stc.opt.skip-stable";
+
+  /**
+   * When to validate intermediate code between optimizer passes:
+   * always, iteration or final.  See ICOptimizer.ValidationPolicy
+   */
+  public static final String OPT_VALIDATE = "stc.opt.validate";
+
   public static final String ENABLE_REFCOUNTING = "stc.refcounting";
   public static final String ENABLE_CHECKPOINTING = "stc.checkpointing";
 
   public static final String AUTO_DECLARE = "stc.auto-declare";
 
+  /** Cache parsed modules on disk */
+  public static final String AST_CACHE = "stc.ast-cache";
+  /** Directory for AST cache.  If empty, use user cache directory */
+  public static final String AST_CACHE_DIR = "stc.ast-cache.dir";
+  /**
+   * Size limit for AST cache in megabytes: least recently used entries
+   * are removed beyond this.  0 means no limit
+   */
+  public static final String AST_CACHE_MAX_MB = "stc.ast-cache.max-mb";
+
+  /** Cache generated code for programs whose inputs are unchanged */
+  public static final String OUTPUT_CACHE = "stc.output-cache";
+  /** Directory for output cache.  If empty, use user cache directory */
+  public static final String OUTPUT_CACHE_DIR = "stc.output-cache.dir";
+  /**
+   * Size limit for output cache in megabytes: least recently used
+   * entries are removed beyond this.  0 means no limit
+   */
+  public static final String OUTPUT_CACHE_MAX_MB = "stc.output-cache.max-mb";
+
+  /**
+   * Code generation target: "turbine" generates Tcl for Turbine,
+   * "jvm" generates Java for the in-process runtime
+   */
+  public static final String TARGET = "stc.target";
+
+  /**
+   * Run program in the compiler's JVM after compiling it for the "jvm"
+   * target, instead of only writing output
+   */
+  public static final String RUN_JVM = "stc.jvm.run";
+
+  /**
+   * Number of programs to compile concurrently in batch mode.
+   * 0 uses all available processors
+   */
+  public static final String BATCH_THREADS = "stc.batch.threads";
+
   public static final String INPUT_FILENAME = "stc.input_filename";
   public static final String OUTPUT_FILENAME = "stc.output_filename";
   public static final String STC_HOME = "stc.stc_home";
@@ -126,14 +184,22 @@ public class Settings {
   /** Run compiler repeatedly so can be profiled */
   public static final String PROFILE_STC = "stc.profile";
 
+  /**
+   * File to write compile time profile to: CSV if name ends in .csv,
+   * otherwise JSON.  Empty for no profile
+   */
+  public static final String PROFILE_REPORT = "stc.profile.report";
+
   public static final String USE_C_PREPROCESSOR = "stc.c_preprocess";
   public static final String PREPROCESS_ONLY = "stc.preprocess_only";
   public static final String PREPROCESSOR_FORCE_GCC = "stc.preproc.force-gcc";
   public static final String PREPROCESSOR_FORCE_CPP = "stc.preproc.force-cpp";
 
-
-  /** Record assumption that we need to pass waited-on vars into block */
-  public static final String MUST_PASS_WAIT_VARS = "stc.must_pass_wait_vars";
+  /**
+   * Directory that relative paths are resolved against.  Only set when
+   * compiling on behalf of another process, e.g. in the compile server.
+   */
+  public static final String WORKING_DIR = "stc.working_dir";
 
   private static final Properties defaults;
   private static final Properties properties;
@@ -144,8 +210,19 @@ public class Settings {
   private static final List<Pair<String, String>> metadata =
             new ArrayList<Pair<String, String>>();
 
+  /**
+   * Environment of process being compiled for, if not this one, e.g.
+   * in the compile server.  Null to use this process's environment.
+   */
+  private static Map<String, String> environment = null;
+
   static {
     defaults = new Properties();
+    setDefaults(defaults);
+    properties = new Properties(defaults);
+  }
+
+  private static void setDefaults(Properties defaults) {
     // Set defaults here
     defaults.setProperty(TURBINE_VERSION, "0.0.5");
     defaults.setProperty(DEBUG_LEVEL, "COMMENTS");
@@ -200,22 +277,80 @@ public class Settings {
     defaults.setProperty(OPT_BATCH_REFCOUNTS, "true");
     defaults.setProperty(OPT_HOIST_REFCOUNTS, "true");
     defaults.setProperty(OPT_MAX_ITERATIONS, "10");
+    defaults.setProperty(OPT_THREADS, "1");
+    defaults.setProperty(OPT_SKIP_STABLE, "true");
+    defaults.setProperty(OPT_VALIDATE, "always");
     defaults.setProperty(ENABLE_REFCOUNTING, "true");
     defaults.setProperty(ENABLE_CHECKPOINTING, "true");
     defaults.setProperty(AUTO_DECLARE, "true");
+    defaults.setProperty(AST_CACHE, "true");
+    defaults.setProperty(AST_CACHE_DIR, "");
+    defaults.setProperty(AST_CACHE_MAX_MB, "64");
+    defaults.setProperty(OUTPUT_CACHE, "true");
+    defaults.setProperty(OUTPUT_CACHE_DIR, "");
+    defaults.setProperty(OUTPUT_CACHE_MAX_MB, "256");
+    defaults.setProperty(TARGET, "turbine");
+    defaults.setProperty(RUN_JVM, "false");
+    defaults.setProperty(BATCH_THREADS, "0");
     defaults.setProperty(PROFILE_STC, "false");
+    defaults.setProperty(PROFILE_REPORT, "");
     defaults.setProperty(LOG_FILE, "");
     defaults.setProperty(LOG_TRACE, "false");
 
-
-
-    // True for all current targets
-    defaults.setProperty(MUST_PASS_WAIT_VARS, "true");
-
     // Turbine code generation
     // Turbine version
     defaults.setProperty(TURBINE_VERSION, "unknown");
-    properties = new Properties(defaults);
+  }
+
+  /**
+   * @return default value of every setting
+   */
+  static Properties defaultProperties() {
+    Properties props = new Properties();
+    setDefaults(props);
+    return props;
+  }
+
+  /**
+   * Discard all settings, module path entries, metadata and environment
+   * so that the compiler can be run again in the same JVM.
+   */
+  public static void reset() {
+    properties.clear();
+    defaults.clear();
+    setDefaults(defaults);
+    modulePath.clear();
+    metadata.clear();
+    environment = null;
+  }
+
+  /**
+   * Set environment to use instead of this process's, e.g. when
+   * compiling on behalf of another process
+   * @param env environment variables, or null for this process's
+   */
+  public static void setEnvironment(Map<String, String> env) {
+    environment = env == null ? null :
+            Collections.unmodifiableMap(new HashMap<String, String>(env));
+  }
+
+  /**
+   * @return environment set with setEnvironment, or null if this
+   *         process's environment is used
+   */
+  public static Map<String, String> getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * @param name environment variable
+   * @return value in environment of process being compiled for, or null
+   */
+  public static String getenv(String name) {
+    if (environment != null) {
+      return environment.get(name);
+    }
+    return System.getenv(name);
   }
 
   /**
@@ -223,9 +358,22 @@ public class Settings {
      with value from System
    */
   public static void initSTCProperties() throws InvalidOptionException {
+    initSTCProperties(null);
+  }
+
+  /**
+   * As {@link #initSTCProperties()}, but values in overrides take
+   * precedence over the System properties.
+   * @param overrides properties to apply, or null for none
+   */
+  public static void initSTCProperties(Properties overrides)
+                                      throws InvalidOptionException {
     // Pull in properties from wrapper script
     for (String key: properties.stringPropertyNames()) {
       String sysVal = System.getProperty(key);
+      if (overrides != null && overrides.getProperty(key) != null) {
+        sysVal = overrides.getProperty(key);
+      }
       if (sysVal != null) {
         properties.setProperty(key, sysVal);
       }
@@ -243,7 +391,7 @@ public class Settings {
     // Search Turbine directory first
     modulePath.add(0, Settings.get(Settings.TURBINE_HOME) + "/export");
     // Search current directory last
-    modulePath.add(".");
+    modulePath.add(properties.getProperty(WORKING_DIR, "."));
   }
 
   public static void addModulePath(String dir) {
@@ -294,17 +442,6 @@ public class Settings {
     return keys;
   }
 
-  /**
-     RPATH should be a Unix-style colon-separated list of directories
-     @return Possibly empty String array
-   */
-  public static String[] getRpaths() {
-    String rpaths = get(RPATH);
-    if (rpaths == null)
-      return new String[0];
-    return rpaths.split(":");
-  }
-
   /**
    * Do any checks for correctness of properties
    * @throws InvalidOptionException
@@ -345,19 +482,40 @@ public class Settings {
     getBoolean(ENABLE_REFCOUNTING);
     getBoolean(ENABLE_CHECKPOINTING);
     getBoolean(AUTO_DECLARE);
+    getBoolean(AST_CACHE);
+    getBoolean(OUTPUT_CACHE);
+    if (getLong(AST_CACHE_MAX_MB) < 0) {
+      throw new InvalidOptionException("Option " + AST_CACHE_MAX_MB +
+                                       " must not be negative");
+    }
+    if (getLong(OUTPUT_CACHE_MAX_MB) < 0) {
+      throw new InvalidOptionException("Option " + OUTPUT_CACHE_MAX_MB +
+                                       " must not be negative");
+    }
     getBoolean(COMPILER_DEBUG);
     getBoolean(PROFILE_STC);
     getBoolean(USE_C_PREPROCESSOR);
     getBoolean(PREPROCESS_ONLY);
     getBoolean(PREPROCESSOR_FORCE_CPP);
     getBoolean(PREPROCESSOR_FORCE_GCC);
-    getBoolean(MUST_PASS_WAIT_VARS);
+    getBoolean(RUN_JVM);
+    if (getInt(BATCH_THREADS) < 0) {
+      throw new InvalidOptionException("Option " + BATCH_THREADS +
+                                       " must not be negative");
+    }
 
     getLong(OPT_MAX_ITERATIONS);
+    getBoolean(OPT_SKIP_STABLE);
+    if (getInt(OPT_THREADS) < 0) {
+      throw new InvalidOptionException("Option " + OPT_THREADS +
+                                       " must not be negative");
+    }
 
     initInlineProperties();
 
     checkOneOf(DEBUG_LEVEL, Arrays.asList("off", "comments", "debugger"));
+    checkOneOf(OPT_VALIDATE, Arrays.asList("always", "iteration", "final"));
+    checkOneOf(TARGET, Arrays.asList("turbine", "jvm"));
   }
 
   private static void initInlineProperties() throws InvalidOptionException {
@@ -433,20 +591,6 @@ public class Settings {
     }
   }
 
-  /**
-   * Return long int, raise runtime exception on error
-   * @param key
-   * @return
-   */
-  public static long getLongUnchecked(String key)
-      throws STCRuntimeError {
-    try {
-      return getLong(key);
-    } catch (InvalidOptionException e) {
-      throw new STCRuntimeError("unexpected error", e);
-    }
-  }
-
   public static int getInt(String key) throws InvalidOptionException {
     String strVal = properties.getProperty(key);
     if (strVal == null) {
@@ -460,20 +604,6 @@ public class Settings {
     }
   }
 
-  /**
-   * Return int, raise runtime exception on error
-   * @param key
-   * @return
-   */
-  public static int getIntUnchecked(String key)
-      throws STCRuntimeError {
-    try {
-      return getInt(key);
-    } catch (InvalidOptionException e) {
-      throw new STCRuntimeError("unexpected error", e);
-    }
-  }
-
   public static boolean getBoolean(String key)
                   throws InvalidOptionException {
     String strVal = properties.getProperty(key);
@@ -492,18 +622,4 @@ public class Settings {
               strVal + "'");
     }
   }
-
-  /**
-   * Return boolean, raise runtime exception on error
-   * @param key
-   * @return
-   */
-  public static boolean getBooleanUnchecked(String key)
-      throws STCRuntimeError {
-    try {
-      return getBoolean(key);
-    } catch (InvalidOptionException e) {
-      throw new STCRuntimeError("unexpected error", e);
-    }
-  }
 }
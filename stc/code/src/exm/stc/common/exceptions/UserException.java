@@ -34,10 +34,43 @@ extends Exception
   public UserException(String file, int line, int col, String message) {
     super(file + ":" + line + ":" + (col > 0 ? (col + 1) + ":" : "") + 
           " " + message);
+    this.file = file;
+    this.line = line;
+    this.col = col;
+    this.description = message;
   }
   
   public UserException(String message) {
     super(message);
+    this.file = null;
+    this.line = -1;
+    this.col = -1;
+    this.description = message;
+  }
+
+  /** Source file of error, or null if unknown */
+  private final String file;
+  /** Line of error, or -1 if unknown */
+  private final int line;
+  /** Zero-based column of error, or -1 if unknown */
+  private final int col;
+  /** Message without location */
+  private final String description;
+
+  public String getFile() {
+    return file;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+  public int getColumn() {
+    return col;
+  }
+
+  public String getDescription() {
+    return description;
   }
 
 
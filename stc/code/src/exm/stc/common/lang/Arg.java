@@ -296,7 +296,8 @@ public class Arg implements Comparable<Arg>, Typed {
     default:
       throw new STCRuntimeError("Unknown oparg type " + this.kind.toString());
     }
-    return this.kind.hashCode() ^ hash1;
+    // Not kind.hashCode(): identity hash differs between threads
+    return this.kind.ordinal() ^ hash1;
   }
 
   @Override
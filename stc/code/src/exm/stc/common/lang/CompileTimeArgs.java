@@ -22,6 +22,10 @@ public class CompileTimeArgs {
     }
   }
   
+  public static void reset() {
+    compileTimeArgs.clear();
+  }
+
   public static String lookup(String key) {
     return compileTimeArgs.get(key);
   }
@@ -15,6 +15,7 @@
  */
 package exm.stc.common.lang;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -25,6 +26,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -41,6 +43,10 @@ import exm.stc.common.lang.Var.Alloc;
  * The base class for variable types is Type.
  * Since we don't yet have first class functions, FunctionType is separate
  * from the variable type system.
+ *
+ * Types are immutable, and can be interned with intern() so that equal
+ * types share an instance.  Variables hold canonical types, so type
+ * equality checks usually succeed or fail on identity.
  */
 public class Types {
 
@@ -106,6 +112,11 @@ public class Types {
         throw new STCRuntimeError("Comparing ArrayType with non-type " +
                 "object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       if (!(other instanceof ArrayType)) {
         return false;
       }
@@ -121,6 +132,18 @@ public class Types {
             (ArrayType.class.hashCode() + 13 * (local ? 0 : 1));
     }
 
+    @Override
+    Type canonicalize() {
+      Type key = intern(keyType);
+      Type member = intern(memberType);
+      ArrayType type = this;
+      if (key != keyType || member != memberType) {
+        type = new ArrayType(local, key, member);
+      }
+      return internAs(type, key.exactCanonical && member.exactCanonical,
+                      local, key, member);
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       return new ArrayType(local, keyType.bindTypeVars(vals),
@@ -269,6 +292,11 @@ public class Types {
         throw new STCRuntimeError("Comparing BagType with non-type " +
                 "object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       if (!(other instanceof BagType)) {
         return false;
       }
@@ -283,6 +311,16 @@ public class Types {
               (elemType.hashCode() + 31 * BagType.class.hashCode());
     }
 
+    @Override
+    Type canonicalize() {
+      Type elem = intern(elemType);
+      BagType type = this;
+      if (elem != elemType) {
+        type = new BagType(local, elem);
+      }
+      return internAs(type, elem.exactCanonical, local, elem);
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       return new BagType(local, elemType.bindTypeVars(vals));
@@ -401,6 +439,10 @@ public class Types {
         throw new STCRuntimeError("Comparing ReferenceType with " +
               "non-type object");
       }
+      if (this == other) {
+        return true;
+      }
+      // Can't compare canonical instances: equal regardless of mutability
       Type otherT = (Type) other;
       if (!(otherT instanceof RefType)) {
         return false;
@@ -430,6 +472,16 @@ public class Types {
               (mutable ? 1 : 0);
     }
 
+    @Override
+    Type canonicalize() {
+      Type member = intern(referencedType);
+      RefType type = this;
+      if (member != referencedType) {
+        type = new RefType(member, mutable);
+      }
+      return internAs(type, false, mutable, member);
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       return new RefType(referencedType.bindTypeVars(vals), mutable);
@@ -623,6 +675,11 @@ public class Types {
         throw new STCRuntimeError("Comparing ReferenceType with " +
               "non-type object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       Type otherT = (Type) other;
       if (!isStruct(otherT) && !isStructLocal(otherT)) {
         return false;
@@ -685,6 +742,33 @@ public class Types {
       return hashCode;
     }
 
+    @Override
+    Type canonicalize() {
+      Object[] parts = new Object[2 + 2 * fields.size()];
+      parts[0] = local;
+      parts[1] = typeName;
+      List<StructField> canonFields = new ArrayList<StructField>();
+      boolean changed = false;
+      boolean exact = true;
+      for (int i = 0; i < fields.size(); i++) {
+        StructField field = fields.get(i);
+        Type fieldType = intern(field.type);
+        if (fieldType != field.type) {
+          changed = true;
+          field = new StructField(fieldType, field.name);
+        }
+        canonFields.add(field);
+        exact = exact && fieldType.exactCanonical;
+        parts[2 + 2 * i] = field.name;
+        parts[3 + 2 * i] = fieldType;
+      }
+      StructType type = this;
+      if (changed) {
+        type = new StructType(local, typeName, canonFields);
+      }
+      return internAs(type, exact, parts);
+    }
+
     private int calcHashCode() {
       int code = ((StructType.class.hashCode() * 13) +
                typeName.hashCode()) * 2 + (local ? 0 : 1);
@@ -886,6 +970,11 @@ public class Types {
         throw new STCRuntimeError("Comparing " + this.getClass().getName() +
                                   " with non-type object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       Type otherT = (Type) other;
       // Check that class and primType match
       if (this.getClass().equals(other.getClass())) {
@@ -900,6 +989,11 @@ public class Types {
       return primType.hashCode() * 31 + getClass().hashCode();
     }
 
+    @Override
+    Type canonicalize() {
+      return internAs(this, true, primType);
+    }
+
 
   }
 
@@ -1037,6 +1131,11 @@ public class Types {
       return kind.hashCode() + 13 * getClass().hashCode();
     }
 
+    @Override
+    Type canonicalize() {
+      return internAs(this, true, kind);
+    }
+
     @Override
     public boolean equals(Object other) {
       // Generic comparison algorithm for files
@@ -1044,6 +1143,11 @@ public class Types {
         throw new STCRuntimeError("Comparing " + this.getClass().getName() +
                                   "with non-type object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       Type otherT = (Type) other;
       if (this.getClass().isInstance(otherT)) {
         // Check that the kind matches
@@ -1192,6 +1296,10 @@ public class Types {
         throw new STCRuntimeError("Comparing UnionType " +
             "with non-type object");
       }
+      if (this == other) {
+        return true;
+      }
+      // Can't compare canonical instances: order of alternatives is ignored
       Type otherT = (Type) other;
       if (otherT.structureType() != StructureType.TYPE_UNION) {
         return false;
@@ -1238,6 +1346,16 @@ public class Types {
       return hash;
     }
 
+    @Override
+    Type canonicalize() {
+      ArrayList<Type> canonAlts = internAll(alts);
+      UnionType type = this;
+      if (!allIdentical(alts, canonAlts)) {
+        type = new UnionType(canonAlts);
+      }
+      return internAs(type, false, canonAlts.toArray());
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       ArrayList<Type> boundAlts = new ArrayList<Type>(alts.size());
@@ -1395,6 +1513,11 @@ public class Types {
         throw new STCRuntimeError("Comparing TupleType " +
             "with non-type object");
       }
+      if (this == other) {
+        return true;
+      } else if (distinctCanonical(this, (Type)other)) {
+        return false;
+      }
       Type otherT = (Type) other;
       if (otherT.structureType() != StructureType.TUPLE) {
         return false;
@@ -1445,6 +1568,16 @@ public class Types {
       return hash;
     }
 
+    @Override
+    Type canonicalize() {
+      ArrayList<Type> canonFields = internAll(fields);
+      TupleType type = this;
+      if (!allIdentical(fields, canonFields)) {
+        type = new TupleType(canonFields);
+      }
+      return internAs(type, allExact(canonFields), canonFields.toArray());
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       ArrayList<Type> boundFields = new ArrayList<Type>(fields.size());
@@ -1617,6 +1750,11 @@ public class Types {
         throw new STCRuntimeError("Comparing TypeVariable " +
             "with non-type object");
       }
+      if (this == obj) {
+        return true;
+      } else if (distinctCanonical(this, (Type)obj)) {
+        return false;
+      }
       if (((Type)obj).structureType() == StructureType.TYPE_VARIABLE) {
         TypeVariable other = (TypeVariable) obj;
         return this.typeVarName.equals(other.typeVarName);
@@ -1629,6 +1767,11 @@ public class Types {
       return typeVarName.hashCode() ^ TypeVariable.class.hashCode();
     }
 
+    @Override
+    Type canonicalize() {
+      return internAs(this, true, typeVarName);
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       Type binding = vals.get(typeVarName);
@@ -1703,6 +1846,11 @@ public class Types {
       return WildcardType.class.hashCode();
     }
 
+    @Override
+    Type canonicalize() {
+      return internAs(this, true);
+    }
+
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       return this;
@@ -1772,6 +1920,25 @@ public class Types {
    */
   public abstract static class Type implements Typed {
 
+    /** Cached structure type, null until first used */
+    private StructureType structure = null;
+
+    /**
+     * Cached flags for predicates.  FLAGS_SET bit is set once computed,
+     * so that types with no other flags aren't recomputed.
+     */
+    private int flags = 0;
+
+    /** Key in intern table if this is a canonical instance, otherwise null */
+    private InternKey internKey = null;
+
+    /**
+     * True if this is a canonical instance that is only equal to other
+     * canonical instances when identical.  Not true for all canonical
+     * types, e.g. reference types are equal regardless of mutability.
+     */
+    private boolean exactCanonical = false;
+
     /**
      * For Typed interface
      * @return
@@ -1783,6 +1950,38 @@ public class Types {
 
     public abstract StructureType structureType();
 
+    private StructureType structure() {
+      StructureType s = structure;
+      if (s == null) {
+        s = structureType();
+        structure = s;
+      }
+      return s;
+    }
+
+    private int flags() {
+      int f = flags;
+      if ((f & FLAGS_SET) == 0) {
+        f = computeFlags(this);
+        flags = f;
+      }
+      return f;
+    }
+
+    /**
+     * @return true if this is the canonical instance of the type
+     */
+    public boolean isCanonical() {
+      return internKey != null;
+    }
+
+    /**
+     * Intern any component types, then look up the canonical instance
+     * of this type.  Called by {@link Types#intern(Type)}.
+     * @return canonical instance
+     */
+    abstract Type canonicalize();
+
     /**
      * Get the primitive type (only valid if scalar)
      * @return
@@ -1980,6 +2179,10 @@ public class Types {
         throw new STCRuntimeError("Comparing FunctionType " +
             "with non-type object");
       }
+      if (this == obj) {
+        return true;
+      }
+      // Can't compare canonical instances: type variables are ignored
       if (obj instanceof FunctionType) {
         FunctionType other = (FunctionType) obj;
         // All fields should match
@@ -2012,6 +2215,25 @@ public class Types {
       code ^= ((Boolean)varargs).hashCode();
       return code;
     }
+
+    @Override
+    Type canonicalize() {
+      ArrayList<Type> canonInputs = internAll(inputs);
+      ArrayList<Type> canonOutputs = internAll(outputs);
+      FunctionType type = this;
+      if (!allIdentical(inputs, canonInputs) ||
+          !allIdentical(outputs, canonOutputs)) {
+        type = new FunctionType(canonInputs, canonOutputs, varargs,
+                                typeVars);
+      }
+      List<Object> parts = new ArrayList<Object>();
+      parts.add(varargs);
+      parts.add(typeVars);
+      parts.add(inputs.size());
+      parts.addAll(canonInputs);
+      parts.addAll(canonOutputs);
+      return internAs(type, false, parts.toArray());
+    }
     @Override
     public Type bindTypeVars(Map<String, Type> vals) {
       List<Type> boundInputs = new ArrayList<Type>();
@@ -2212,7 +2434,11 @@ public class Types {
 
     @Override
     public boolean equals(Object o) {
-      if (!(o instanceof SubType)) {
+      if (this == o) {
+        return true;
+      } else if (!(o instanceof SubType)) {
+        return false;
+      } else if (distinctCanonical(this, (Type)o)) {
         return false;
       }
       SubType ot = (SubType)o;
@@ -2242,6 +2468,16 @@ public class Types {
       return baseType.hashCode() ^ name.hashCode();
     }
 
+    @Override
+    Type canonicalize() {
+      Type base = intern(baseType);
+      SubType type = this;
+      if (base != baseType) {
+        type = new SubType(base, name);
+      }
+      return internAs(type, base.exactCanonical, name, base);
+    }
+
   }
 
   /**
@@ -2262,11 +2498,11 @@ public class Types {
    * @return
    */
   public static boolean isArray(Typed t) {
-    return t.type().structureType() == StructureType.ARRAY;
+    return structure(t) == StructureType.ARRAY;
   }
 
   public static boolean isArrayLocal(Typed t) {
-    return t.type().structureType() == StructureType.ARRAY_LOCAL;
+    return structure(t) == StructureType.ARRAY_LOCAL;
   }
 
   /**
@@ -2275,7 +2511,7 @@ public class Types {
    * @return
    */
   public static boolean isArrayRef(Typed t) {
-    return isRef(t) && isArray(t.type().memberType());
+    return hasFlag(t, ARRAY_REF);
   }
 
   public static boolean isArrayRef(Typed t, boolean mutable) {
@@ -2283,19 +2519,19 @@ public class Types {
   }
 
   public static boolean isArrayLocalRef(Typed t) {
-    return isRef(t) && isArrayLocal(t.type().memberType());
+    return hasFlag(t, ARRAY_LOCAL_REF);
   }
 
   public static boolean isBag(Typed t) {
-    return t.type().structureType() == StructureType.BAG;
+    return structure(t) == StructureType.BAG;
   }
 
   public static boolean isBagLocal(Typed t) {
-    return t.type().structureType() == StructureType.BAG_LOCAL;
+    return structure(t) == StructureType.BAG_LOCAL;
   }
 
   public static boolean isBagRef(Typed t) {
-    return isRef(t) && isBag(t.type().memberType());
+    return hasFlag(t, BAG_REF);
   }
 
   public static boolean isBagRef(Typed t, boolean mutable) {
@@ -2303,7 +2539,7 @@ public class Types {
   }
 
   public static boolean isBagLocalRef(Typed t) {
-    return isRef(t) && isBagLocal(t.type().memberType());
+    return hasFlag(t, BAG_LOCAL_REF);
   }
 
   /**
@@ -2311,19 +2547,19 @@ public class Types {
    *          e.g. an array or multiset
    */
   public static boolean isContainer(Typed t) {
-    return isArray(t) || isBag(t);
+    return hasFlag(t, CONTAINER);
   }
 
   public static boolean isContainerLocal(Typed t) {
-    return isArrayLocal(t) || isBagLocal(t);
+    return hasFlag(t, CONTAINER_LOCAL);
   }
 
   public static boolean isContainerRef(Typed t) {
-    return isArrayRef(t) || isBagRef(t);
+    return hasFlag(t, ARRAY_REF | BAG_REF);
   }
 
   public static boolean isContainerLocalRef(Typed t) {
-    return isArrayLocalRef(t) || isBagLocalRef(t);
+    return hasFlag(t, ARRAY_LOCAL_REF | BAG_LOCAL_REF);
   }
 
   /**
@@ -2479,7 +2715,7 @@ public class Types {
    * @return
    */
   public static boolean isFuture(Typed t) {
-    return isPrimFuture(t) || isRef(t);
+    return hasFlag(t, PRIM_FUTURE | REF);
   }
 
 
@@ -2489,11 +2725,11 @@ public class Types {
    * @return
    */
   public static boolean isPrimFuture(Typed t) {
-    return isFile(t) || isScalarFuture(t);
+    return hasFlag(t, PRIM_FUTURE);
   }
 
   public static boolean isPrimValue(Typed t) {
-    return isFileVal(t) || isScalarValue(t);
+    return hasFlag(t, PRIM_VALUE);
   }
 
   public static boolean isPrimUpdateable(Typed t) {
@@ -2501,19 +2737,19 @@ public class Types {
   }
 
   public static boolean isScalarFuture(Typed t) {
-    return t.type().structureType() == StructureType.SCALAR_FUTURE;
+    return structure(t) == StructureType.SCALAR_FUTURE;
   }
 
   public static boolean isScalarValue(Typed t) {
-    return t.type().structureType() == StructureType.SCALAR_VALUE;
+    return structure(t) == StructureType.SCALAR_VALUE;
   }
 
   public static boolean isScalarUpdateable(Typed t) {
-    return t.type().structureType() == StructureType.SCALAR_UPDATEABLE;
+    return structure(t) == StructureType.SCALAR_UPDATEABLE;
   }
 
   public static boolean isRef(Typed t) {
-    return isConstRef(t) || isMutableRef(t);
+    return hasFlag(t, REF);
   }
 
   public static boolean isRef(Typed t, boolean mutable) {
@@ -2521,23 +2757,23 @@ public class Types {
   }
 
   public static boolean isConstRef(Typed t) {
-    return t.type().structureType() == StructureType.CONST_REFERENCE;
+    return structure(t) == StructureType.CONST_REFERENCE;
   }
 
   public static boolean isMutableRef(Typed t) {
-    return t.type().structureType() == StructureType.MUTABLE_REFERENCE;
+    return structure(t) == StructureType.MUTABLE_REFERENCE;
   }
 
   public static boolean isStruct(Typed t) {
-    return t.type().structureType() == StructureType.STRUCT;
+    return structure(t) == StructureType.STRUCT;
   }
 
   public static boolean isStructLocal(Typed t) {
-    return t.type().structureType() == StructureType.STRUCT_LOCAL;
+    return structure(t) == StructureType.STRUCT_LOCAL;
   }
 
   public static boolean isStructRef(Typed t) {
-    return isRef(t) && isStruct(t.type().memberType());
+    return hasFlag(t, STRUCT_REF);
   }
 
   public static boolean isStructRef(Typed t, boolean mutable) {
@@ -2618,11 +2854,11 @@ public class Types {
   }
 
   public static boolean isFile(Typed t) {
-    return t.type().structureType() == StructureType.FILE_FUTURE;
+    return structure(t) == StructureType.FILE_FUTURE;
   }
 
   public static boolean isFileVal(Typed t) {
-    return t.type().structureType() == StructureType.FILE_VALUE;
+    return structure(t) == StructureType.FILE_VALUE;
   }
 
   public static boolean isFileRef(Typed t) {
@@ -2674,12 +2910,9 @@ public class Types {
    * @return
    */
   public static boolean isNonLocal(Typed t) {
-    if (isContainer(t) || isRef(t) || isPrimFuture(t)) {
-      return true;
-    } else if (isStruct(t)) {
+    if (hasFlag(t, NON_LOCAL)) {
       return true;
-    } else if (isPrimValue(t) || isContainerLocal(t) ||
-               isStructLocal(t)) {
+    } else if (hasFlag(t, LOCAL)) {
       return false;
     } else {
       throw new STCRuntimeError("Not sure if can deref " + t);
@@ -2864,11 +3097,11 @@ public class Types {
   }
 
   public static boolean isUnion(Typed type) {
-    return type.type().structureType() == StructureType.TYPE_UNION;
+    return structure(type) == StructureType.TYPE_UNION;
   }
 
   public static boolean isTuple(Typed type) {
-    return type.type().structureType() == StructureType.TUPLE;
+    return structure(type) == StructureType.TUPLE;
   }
 
   public static boolean isSubType(Typed typed) {
@@ -2876,7 +3109,7 @@ public class Types {
   }
 
 public static boolean isTypeVar(Typed type) {
-    return type.type().structureType() == StructureType.TYPE_VARIABLE;
+    return structure(type) == StructureType.TYPE_VARIABLE;
   }
 
   public static boolean isPolymorphic(Typed type) {
@@ -2884,11 +3117,11 @@ public static boolean isTypeVar(Typed type) {
   }
 
   public static boolean isFunction(Typed type) {
-    return type.type().structureType() == StructureType.FUNCTION;
+    return structure(type) == StructureType.FUNCTION;
   }
 
   public static boolean isWildcard(Typed argType) {
-    return argType.type().structureType() == StructureType.WILDCARD;
+    return structure(argType) == StructureType.WILDCARD;
   }
 
   public static boolean isPiecewiseAssigned(Typed type) {
@@ -3067,41 +3300,263 @@ public static boolean isTypeVar(Typed type) {
     return t;
   }
 
-  public static final Type F_INT = new ScalarFutureType(PrimType.INT);
-  public static final Type V_INT = new ScalarValueType(PrimType.INT);
+  /*
+   * Flags cached in types for fast checking of common predicates
+   */
+  /** Marks flags as computed, since a type may have no other flags */
+  private static final int FLAGS_SET = 1;
+  private static final int PRIM_FUTURE = 1 << 1;
+  private static final int PRIM_VALUE = 1 << 2;
+  private static final int REF = 1 << 3;
+  private static final int CONTAINER = 1 << 4;
+  private static final int CONTAINER_LOCAL = 1 << 5;
+  private static final int ARRAY_REF = 1 << 6;
+  private static final int ARRAY_LOCAL_REF = 1 << 7;
+  private static final int BAG_REF = 1 << 8;
+  private static final int BAG_LOCAL_REF = 1 << 9;
+  private static final int STRUCT_REF = 1 << 10;
+  private static final int NON_LOCAL = 1 << 11;
+  private static final int LOCAL = 1 << 12;
+
+  private static int computeFlags(Type t) {
+    int flags = FLAGS_SET;
+    switch (t.structure()) {
+      case SCALAR_FUTURE:
+      case FILE_FUTURE:
+        flags |= PRIM_FUTURE | NON_LOCAL;
+        break;
+      case SCALAR_VALUE:
+      case FILE_VALUE:
+        flags |= PRIM_VALUE | LOCAL;
+        break;
+      case ARRAY:
+      case BAG:
+        flags |= CONTAINER | NON_LOCAL;
+        break;
+      case ARRAY_LOCAL:
+      case BAG_LOCAL:
+        flags |= CONTAINER_LOCAL | LOCAL;
+        break;
+      case STRUCT:
+        flags |= NON_LOCAL;
+        break;
+      case STRUCT_LOCAL:
+        flags |= LOCAL;
+        break;
+      case CONST_REFERENCE:
+      case MUTABLE_REFERENCE:
+        flags |= REF | NON_LOCAL;
+        switch (t.memberType().structure()) {
+          case ARRAY:
+            flags |= ARRAY_REF;
+            break;
+          case ARRAY_LOCAL:
+            flags |= ARRAY_LOCAL_REF;
+            break;
+          case BAG:
+            flags |= BAG_REF;
+            break;
+          case BAG_LOCAL:
+            flags |= BAG_LOCAL_REF;
+            break;
+          case STRUCT:
+            flags |= STRUCT_REF;
+            break;
+          default:
+            break;
+        }
+        break;
+      default:
+        // No flags for other types
+        break;
+    }
+    return flags;
+  }
+
+  private static boolean hasFlag(Typed t, int flag) {
+    return (t.type().flags() & flag) != 0;
+  }
+
+  private static StructureType structure(Typed t) {
+    return t.type().structure();
+  }
+
+  /**
+   * Table of canonical types.  Keys are only strongly referenced by the
+   * canonical type, so entries are dropped once the type is unreachable.
+   */
+  private static final Map<InternKey, WeakReference<Type>> internTable =
+                          new WeakHashMap<InternKey, WeakReference<Type>>();
+
+  /**
+   * Return the canonical instance of a type.  Types with the same
+   * structure, names and component types share a canonical instance,
+   * so canonical types can be compared by identity in most cases.
+   * @param type
+   * @return canonical instance, which may be the argument
+   */
+  public static Type intern(Type type) {
+    if (type.internKey != null) {
+      return type;
+    }
+    return type.canonicalize();
+  }
+
+  /**
+   * Look up canonical instance, adding type to intern table if there is
+   * none.
+   * @param type type with canonical component types
+   * @param exact if canonical instance is equal to other canonical
+   *              instances only if identical
+   * @param parts names, flags and canonical component types for key
+   * @return canonical instance
+   */
+  private static Type internAs(Type type, boolean exact, Object ...parts) {
+    InternKey key = new InternKey(type.getClass(), parts);
+    synchronized (internTable) {
+      WeakReference<Type> ref = internTable.get(key);
+      Type canonical = (ref == null) ? null : ref.get();
+      if (canonical == null) {
+        canonical = type;
+        canonical.exactCanonical = exact;
+        canonical.internKey = key;
+        internTable.put(key, new WeakReference<Type>(canonical));
+      }
+      return canonical;
+    }
+  }
+
+  private static ArrayList<Type> internAll(List<Type> types) {
+    ArrayList<Type> result = new ArrayList<Type>(types.size());
+    for (Type type: types) {
+      result.add(intern(type));
+    }
+    return result;
+  }
+
+  private static boolean allIdentical(List<Type> a, List<Type> b) {
+    for (int i = 0; i < a.size(); i++) {
+      if (a.get(i) != b.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean allExact(List<Type> types) {
+    for (Type type: types) {
+      if (!type.exactCanonical) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if types are known to be unequal without comparing structure.
+   * Should only be called if types are not identical.
+   */
+  private static boolean distinctCanonical(Type a, Type b) {
+    return a.exactCanonical && b.exactCanonical;
+  }
+
+  /**
+   * Key for intern table.  Component types are compared by identity,
+   * since they are canonical, and other parts with equals.
+   */
+  private static class InternKey {
+    private final Class<?> typeClass;
+    private final Object[] parts;
+    private final int hashCode;
+
+    InternKey(Class<?> typeClass, Object[] parts) {
+      this.typeClass = typeClass;
+      this.parts = parts;
+      int code = typeClass.hashCode();
+      for (Object part: parts) {
+        code = code * 31 + ((part instanceof Type) ?
+                  System.identityHashCode(part) : part.hashCode());
+      }
+      this.hashCode = code;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof InternKey)) {
+        return false;
+      }
+      InternKey other = (InternKey)o;
+      if (typeClass != other.typeClass ||
+          parts.length != other.parts.length) {
+        return false;
+      }
+      for (int i = 0; i < parts.length; i++) {
+        Object p1 = parts[i], p2 = other.parts[i];
+        if (p1 instanceof Type ? p1 != p2 : !p1.equals(p2)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  public static final Type F_INT =
+                        intern(new ScalarFutureType(PrimType.INT));
+  public static final Type V_INT =
+                        intern(new ScalarValueType(PrimType.INT));
 
-  public static final Type F_STRING = new ScalarFutureType(PrimType.STRING);
-  public static final Type V_STRING = new ScalarValueType(PrimType.STRING);
+  public static final Type F_STRING =
+                        intern(new ScalarFutureType(PrimType.STRING));
+  public static final Type V_STRING =
+                        intern(new ScalarValueType(PrimType.STRING));
 
-  public static final Type F_FLOAT = new ScalarFutureType(PrimType.FLOAT);
-  public static final Type V_FLOAT = new ScalarValueType(PrimType.FLOAT);
-  public static final Type UP_FLOAT = new ScalarUpdateableType(PrimType.FLOAT);
+  public static final Type F_FLOAT =
+                        intern(new ScalarFutureType(PrimType.FLOAT));
+  public static final Type V_FLOAT =
+                        intern(new ScalarValueType(PrimType.FLOAT));
+  public static final Type UP_FLOAT =
+                        intern(new ScalarUpdateableType(PrimType.FLOAT));
 
-  public static final Type F_BOOL = new ScalarFutureType(PrimType.BOOL);
-  public static final Type V_BOOL = new ScalarValueType(PrimType.BOOL);
+  public static final Type F_BOOL =
+                        intern(new ScalarFutureType(PrimType.BOOL));
+  public static final Type V_BOOL =
+                        intern(new ScalarValueType(PrimType.BOOL));
 
-  public static final Type F_BLOB = new ScalarFutureType(PrimType.BLOB);
-  public static final Type V_BLOB = new ScalarValueType(PrimType.BLOB);
+  public static final Type F_BLOB =
+                        intern(new ScalarFutureType(PrimType.BLOB));
+  public static final Type V_BLOB =
+                        intern(new ScalarValueType(PrimType.BLOB));
 
-  public static final Type F_FILE = new FileFutureType(FileKind.LOCAL_FS);
-  public static final Type V_FILE = new FileValueType(FileKind.LOCAL_FS);
+  public static final Type F_FILE =
+                        intern(new FileFutureType(FileKind.LOCAL_FS));
+  public static final Type V_FILE =
+                        intern(new FileValueType(FileKind.LOCAL_FS));
 
-  public static final Type F_URL = new FileFutureType(FileKind.URL);
-  public static final Type V_URL = new FileValueType(FileKind.URL);
+  public static final Type F_URL =
+                        intern(new FileFutureType(FileKind.URL));
+  public static final Type V_URL =
+                        intern(new FileValueType(FileKind.URL));
 
-  public static final Type V_VOID = new ScalarValueType(PrimType.VOID);
-  public static final Type F_VOID = new ScalarFutureType(PrimType.VOID);
+  public static final Type V_VOID =
+                        intern(new ScalarValueType(PrimType.VOID));
+  public static final Type F_VOID =
+                        intern(new ScalarFutureType(PrimType.VOID));
 
   /**
    * Represents location of execution
    */
   public static final Type F_LOC_STRICTNESS =
-                        new SubType(F_STRING, "LocationStrictness");
+                        intern(new SubType(F_STRING, "LocationStrictness"));
   public static final Type V_LOC_STRICTNESS =
                         V_STRING; // Internally a string
 
   public static final Type F_LOC_ACCURACY =
-                        new SubType(F_STRING, "LocationAccuracy");
+                        intern(new SubType(F_STRING, "LocationAccuracy"));
   public static final Type V_LOC_ACCURACY =
                         V_STRING; // Internally a string
 
@@ -3150,7 +3605,7 @@ public static boolean isTypeVar(Typed type) {
     fields.add(new StructField(F_LOC_STRICTNESS, "strictness"));
     fields.add(new StructField(F_LOC_ACCURACY, "accuracy"));
 
-    return new StructType(local, "location", fields);
+    return intern(new StructType(local, "location", fields));
   }
 
 }
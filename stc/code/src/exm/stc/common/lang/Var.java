@@ -155,7 +155,8 @@ public class Var implements Comparable<Var>, Typed {
   public Var(Type type, String name, Alloc storage, DefType defType,
              VarProvenance provenance, boolean mappedDecl) {
     assert(provenance != null);
-    this.type = type;
+    // Share canonical type instances between variables
+    this.type = Types.intern(type);
     this.name = name;
     this.storage = storage;
     this.defType = defType;
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package exm.stc.common.lang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns dense integer IDs to variables, so that analyses can track
+ * variables with bitsets and int-keyed maps instead of hashing Var
+ * objects.  An analysis of a function creates one index and shares it
+ * between its data structures.  IDs are assigned on first use.
+ * Variables are identified by name, consistent with
+ * {@link Var#equals(Object)}.
+ *
+ * Not thread-safe: each analysis runs in a single thread.
+ */
+public class VarIndex {
+  private final HashMap<String, Integer> ids =
+                                    new HashMap<String, Integer>();
+  private final ArrayList<Var> vars = new ArrayList<Var>();
+
+  /**
+   * @param var
+   * @return ID of var, assigning a new one if needed
+   */
+  public int id(Var var) {
+    Integer id = ids.get(var.name());
+    if (id == null) {
+      id = vars.size();
+      ids.put(var.name(), id);
+      vars.add(var);
+    }
+    return id;
+  }
+
+  /**
+   * @param var
+   * @return ID of var, or -1 if it doesn't have one yet
+   */
+  public int find(Var var) {
+    Integer id = ids.get(var.name());
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param id
+   * @return first var assigned the ID
+   */
+  public Var var(int id) {
+    return vars.get(id);
+  }
+
+  /**
+   * @return number of IDs assigned.  All IDs are less than this.
+   */
+  public int size() {
+    return vars.size();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package exm.stc.common.lang;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of variables stored as a bitset over IDs from a {@link VarIndex}.
+ * Bulk operations with another VarSet over the same index are done
+ * word-at-a-time.
+ */
+public class VarSet extends AbstractSet<Var> {
+  private final VarIndex index;
+  private final BitSet bits;
+  private int size;
+
+  public VarSet(VarIndex index) {
+    this.index = index;
+    this.bits = new BitSet();
+    this.size = 0;
+  }
+
+  public VarSet(VarIndex index, Collection<? extends Var> vars) {
+    this(index);
+    addAll(vars);
+  }
+
+  public VarIndex index() {
+    return index;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof Var)) {
+      return false;
+    }
+    int id = index.find((Var)o);
+    return id >= 0 && bits.get(id);
+  }
+
+  public boolean containsID(int id) {
+    return bits.get(id);
+  }
+
+  @Override
+  public boolean add(Var var) {
+    return addID(index.id(var));
+  }
+
+  public boolean addID(int id) {
+    if (bits.get(id)) {
+      return false;
+    }
+    bits.set(id);
+    size++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof Var)) {
+      return false;
+    }
+    int id = index.find((Var)o);
+    if (id < 0 || !bits.get(id)) {
+      return false;
+    }
+    bits.clear(id);
+    size--;
+    return true;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Var> c) {
+    if (sameIndex(c)) {
+      bits.or(((VarSet)c).bits);
+      return updateSize();
+    }
+    return super.addAll(c);
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    if (sameIndex(c)) {
+      bits.andNot(((VarSet)c).bits);
+      return updateSize();
+    }
+    boolean changed = false;
+    for (Object o: c) {
+      changed = remove(o) || changed;
+    }
+    return changed;
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    if (sameIndex(c)) {
+      bits.and(((VarSet)c).bits);
+      return updateSize();
+    }
+    return super.retainAll(c);
+  }
+
+  @Override
+  public void clear() {
+    bits.clear();
+    size = 0;
+  }
+
+  @Override
+  public Iterator<Var> iterator() {
+    return new Iterator<Var>() {
+      private int next = bits.nextSetBit(0);
+      private int last = -1;
+
+      @Override
+      public boolean hasNext() {
+        return next >= 0;
+      }
+
+      @Override
+      public Var next() {
+        if (next < 0) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        next = bits.nextSetBit(next + 1);
+        return index.var(last);
+      }
+
+      @Override
+      public void remove() {
+        if (last < 0) {
+          throw new IllegalStateException();
+        }
+        bits.clear(last);
+        size--;
+        last = -1;
+      }
+    };
+  }
+
+  private boolean sameIndex(Collection<?> c) {
+    return c instanceof VarSet && ((VarSet)c).index == index;
+  }
+
+  /**
+   * Recompute size after bulk operation
+   * @return true if size changed
+   */
+  private boolean updateSize() {
+    int oldSize = size;
+    size = bits.cardinality();
+    return size != oldSize;
+  }
+}
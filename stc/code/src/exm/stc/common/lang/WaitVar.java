@@ -92,13 +92,18 @@ public class WaitVar implements Comparable<WaitVar> {
     return null;
   }
 
-  public static void replaceVars(List<WaitVar> waitVars, Map<Var, Arg> renames) {
+  /**
+   * @return true if any wait vars were changed
+   */
+  public static boolean replaceVars(List<WaitVar> waitVars,
+                                    Map<Var, Arg> renames) {
     boolean replaced = false;
     ListIterator<WaitVar> it = waitVars.listIterator();
     while (it.hasNext()) {
       WaitVar wv = it.next();
       Arg replacement = renames.get(wv.var);
-      if (replacement != null && replacement.isVar()) {
+      if (replacement != null && replacement.isVar() &&
+          replacement.getVar() != wv.var) {
         it.set(new WaitVar(replacement.getVar(), wv.explicit));
         replaced = true;
       }
@@ -106,6 +111,7 @@ public class WaitVar implements Comparable<WaitVar> {
     if (replaced) {
       removeDuplicates(waitVars);
     }
+    return replaced;
   }
 
   /**
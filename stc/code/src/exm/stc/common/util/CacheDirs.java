@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Size bound for on-disk cache directories.  Entries are files with a
+ * common suffix, and the modification time of an entry is updated when
+ * it is used, so removing the oldest entries first approximates LRU.
+ */
+public class CacheDirs {
+
+  /** Suffix of partially written entries */
+  public static final String TMP_SUFFIX = ".tmp";
+
+  /**
+   * Temporary files older than this were left by a compiler process that
+   * did not finish writing them
+   */
+  private static final long ABANDONED_TMP_MS = 60 * 60 * 1000L;
+
+  public static final long BYTES_PER_MB = 1024L * 1024L;
+
+  /**
+   * Mark entry as recently used
+   */
+  public static void touch(File entry) {
+    entry.setLastModified(System.currentTimeMillis());
+  }
+
+  /**
+   * Remove least recently used entries until total size of entries is
+   * at most maxBytes, and remove abandoned temporary files.  Other
+   * processes may be using the directory concurrently, so files that
+   * disappear or cannot be deleted are ignored.
+   * @param dir cache directory
+   * @param suffix suffix of entry files
+   * @param maxBytes 0 for no limit
+   * @param logger
+   */
+  public static void trim(File dir, final String suffix, long maxBytes,
+                          Logger logger) {
+    File files[] = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        return f.getName().endsWith(suffix) ||
+               f.getName().endsWith(TMP_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    long total = 0;
+    int entryCount = 0;
+    File entries[] = new File[files.length];
+    final long modified[] = new long[files.length];
+    for (File f: files) {
+      long lastModified = f.lastModified();
+      if (f.getName().endsWith(TMP_SUFFIX)) {
+        if (lastModified != 0 && now - lastModified > ABANDONED_TMP_MS) {
+          f.delete();
+        }
+      } else {
+        total += f.length();
+        modified[entryCount] = lastModified;
+        entries[entryCount++] = f;
+      }
+    }
+
+    if (maxBytes <= 0 || total <= maxBytes) {
+      return;
+    }
+
+    Integer order[] = new Integer[entryCount];
+    for (int i = 0; i < entryCount; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(modified[a], modified[b]);
+      }
+    });
+
+    int removed = 0;
+    for (int i = 0; i < entryCount && total > maxBytes; i++) {
+      File entry = entries[order[i]];
+      long length = entry.length();
+      if (entry.delete()) {
+        total -= length;
+        removed++;
+      }
+    }
+    logger.debug("Removed " + removed + " entries from cache " + dir);
+  }
+}
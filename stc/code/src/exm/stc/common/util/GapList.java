@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Array-backed list with a gap at the position of the last insertion or
+ * removal.  Access by index is constant time, like ArrayList, and
+ * insertions and removals are constant time when they are close to the
+ * previous one, like LinkedList, e.g. when editing through a ListIterator
+ * while walking the list.
+ *
+ * @param <T>
+ */
+public class GapList<T> extends AbstractList<T> implements RandomAccess {
+  private static final int MIN_CAPACITY = 8;
+
+  /** Elements stored in [0, gapStart) and [gapEnd, data.length) */
+  private Object data[];
+  private int gapStart;
+  private int gapEnd;
+
+  public GapList() {
+    this(MIN_CAPACITY);
+  }
+
+  public GapList(int capacity) {
+    this.data = new Object[Math.max(capacity, MIN_CAPACITY)];
+    this.gapStart = 0;
+    this.gapEnd = data.length;
+  }
+
+  public GapList(Collection<? extends T> c) {
+    this(c.size());
+    addAll(c);
+  }
+
+  @Override
+  public int size() {
+    return data.length - (gapEnd - gapStart);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T get(int index) {
+    return (T)data[slot(index)];
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T set(int index, T element) {
+    int slot = slot(index);
+    Object prev = data[slot];
+    data[slot] = element;
+    return (T)prev;
+  }
+
+  @Override
+  public void add(int index, T element) {
+    checkPositionIndex(index);
+    prepareInsert(index, 1);
+    data[gapStart++] = element;
+    modCount++;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends T> c) {
+    return addAll(size(), c);
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<? extends T> c) {
+    checkPositionIndex(index);
+    Object elems[] = c.toArray();
+    if (elems.length == 0) {
+      return false;
+    }
+    prepareInsert(index, elems.length);
+    System.arraycopy(elems, 0, data, gapStart, elems.length);
+    gapStart += elems.length;
+    modCount++;
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T remove(int index) {
+    int slot = slot(index);
+    Object prev = data[slot];
+    moveGap(index);
+    data[gapEnd++] = null;
+    modCount++;
+    return (T)prev;
+  }
+
+  @Override
+  protected void removeRange(int fromIndex, int toIndex) {
+    if (fromIndex >= toIndex) {
+      return;
+    }
+    moveGap(fromIndex);
+    int count = toIndex - fromIndex;
+    Arrays.fill(data, gapEnd, gapEnd + count, null);
+    gapEnd += count;
+    modCount++;
+  }
+
+  /**
+   * Remove all elements in collection, compacting the list in one pass
+   */
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    return filter(c, false);
+  }
+
+  /**
+   * Retain only elements in collection, compacting the list in one pass
+   */
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    return filter(c, true);
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(data, null);
+    gapStart = 0;
+    gapEnd = data.length;
+    modCount++;
+  }
+
+  private boolean filter(Collection<?> c, boolean keepIfContained) {
+    int size = size();
+    moveGap(size);
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (c.contains(data[i]) == keepIfContained) {
+        data[kept++] = data[i];
+      }
+    }
+    if (kept == size) {
+      return false;
+    }
+    Arrays.fill(data, kept, size, null);
+    gapStart = kept;
+    modCount++;
+    return true;
+  }
+
+  /**
+   * Move gap to index and make sure it can fit count elements
+   */
+  private void prepareInsert(int index, int count) {
+    if (gapEnd - gapStart < count) {
+      int size = size();
+      int capacity = Math.max(data.length * 2, size + count);
+      Object newData[] = new Object[capacity];
+      // Copy so that gap is at index
+      int before = index;
+      int after = size - index;
+      copyOut(0, newData, 0, before);
+      copyOut(index, newData, capacity - after, after);
+      data = newData;
+      gapStart = index;
+      gapEnd = capacity - after;
+    } else {
+      moveGap(index);
+    }
+  }
+
+  /**
+   * Copy elements from list positions to array, accounting for gap
+   */
+  private void copyOut(int index, Object dst[], int dstPos, int count) {
+    int beforeGap = Math.max(0, Math.min(count, gapStart - index));
+    System.arraycopy(data, index, dst, dstPos, beforeGap);
+    int gapLen = gapEnd - gapStart;
+    System.arraycopy(data, index + beforeGap + gapLen, dst,
+                     dstPos + beforeGap, count - beforeGap);
+  }
+
+  private void moveGap(int index) {
+    if (index < gapStart) {
+      int count = gapStart - index;
+      System.arraycopy(data, index, data, gapEnd - count, count);
+      Arrays.fill(data, index, Math.min(gapStart, gapEnd - count), null);
+      gapStart = index;
+      gapEnd -= count;
+    } else if (index > gapStart) {
+      int count = index - gapStart;
+      System.arraycopy(data, gapEnd, data, gapStart, count);
+      Arrays.fill(data, Math.max(gapEnd, index), gapEnd + count, null);
+      gapStart = index;
+      gapEnd += count;
+    }
+  }
+
+  private int slot(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index +
+                                          ", Size: " + size());
+    }
+    return index < gapStart ? index : index + (gapEnd - gapStart);
+  }
+
+  private void checkPositionIndex(int index) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException("Index: " + index +
+                                          ", Size: " + size());
+    }
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable hash map implemented as a hash array mapped trie.
+ * Updates return a new map that shares all unchanged nodes with the
+ * old one, so taking a snapshot is free and an update costs
+ * O(log32 n) node copies.  Keys must be non-null, values may be null.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class HashTrie<K, V> implements Iterable<Entry<K, V>> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final Object NOT_FOUND = new Object();
+
+  private static final HashTrie<Object, Object> EMPTY =
+      new HashTrie<Object, Object>(null, 0);
+
+  private static final BitmapNode EMPTY_NODE =
+                          new BitmapNode(0, new Object[0]);
+
+  private final Node root;
+  private final int size;
+
+  private HashTrie(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> HashTrie<K, V> empty() {
+    return (HashTrie<K, V>)EMPTY;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(Object key) {
+    return root != null &&
+           root.find(0, hash(key), key) != NOT_FOUND;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    if (root == null) {
+      return null;
+    }
+    Object val = root.find(0, hash(key), key);
+    return val == NOT_FOUND ? null : (V)val;
+  }
+
+  /**
+   * @param key
+   * @param value
+   * @return map with key bound to value, or this if already bound to
+   *          the same value
+   */
+  public HashTrie<K, V> plus(K key, V value) {
+    assert(key != null);
+    Node curr = root == null ? EMPTY_NODE : root;
+    boolean added[] = new boolean[1];
+    Node newRoot = curr.assoc(0, hash(key), key, value, added);
+    if (newRoot == root) {
+      return this;
+    }
+    return new HashTrie<K, V>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  /**
+   * @param m
+   * @return map with all entries of m added.  Building from an empty map
+   *          is done in one pass without copying nodes.
+   */
+  public HashTrie<K, V> plusAll(Map<? extends K, ? extends V> m) {
+    if (m.isEmpty()) {
+      return this;
+    } else if (root != null) {
+      HashTrie<K, V> result = this;
+      for (Entry<? extends K, ? extends V> e: m.entrySet()) {
+        result = result.plus(e.getKey(), e.getValue());
+      }
+      return result;
+    }
+
+    int n = m.size();
+    int hashes[] = new int[n];
+    Object keys[] = new Object[n];
+    Object vals[] = new Object[n];
+    int i = 0;
+    for (Entry<? extends K, ? extends V> e: m.entrySet()) {
+      assert(e.getKey() != null);
+      hashes[i] = hash(e.getKey());
+      keys[i] = e.getKey();
+      vals[i] = e.getValue();
+      i++;
+    }
+    return new HashTrie<K, V>(build(hashes, keys, vals, n, 0), n);
+  }
+
+  /**
+   * Build node from distinct keys
+   */
+  private static Node build(int hashes[], Object keys[], Object vals[],
+                            int n, int shift) {
+    boolean sameHash = true;
+    for (int i = 1; i < n; i++) {
+      if (hashes[i] != hashes[0]) {
+        sameHash = false;
+        break;
+      }
+    }
+    if (sameHash && n > 1) {
+      Object array[] = new Object[2 * n];
+      for (int i = 0; i < n; i++) {
+        array[2 * i] = keys[i];
+        array[2 * i + 1] = vals[i];
+      }
+      return new CollisionNode(hashes[0], array);
+    }
+
+    int counts[] = new int[1 << BITS];
+    int bitmap = 0;
+    for (int i = 0; i < n; i++) {
+      int b = (hashes[i] >>> shift) & MASK;
+      counts[b]++;
+      bitmap |= 1 << b;
+    }
+    Object array[] = new Object[2 * Integer.bitCount(bitmap)];
+    int slot = 0;
+    for (int b = 0; b < counts.length; b++) {
+      int count = counts[b];
+      if (count == 0) {
+        continue;
+      }
+      int subHashes[] = new int[count];
+      Object subKeys[] = new Object[count];
+      Object subVals[] = new Object[count];
+      int j = 0;
+      for (int i = 0; i < n; i++) {
+        if (((hashes[i] >>> shift) & MASK) == b) {
+          subHashes[j] = hashes[i];
+          subKeys[j] = keys[i];
+          subVals[j] = vals[i];
+          j++;
+        }
+      }
+      if (count == 1) {
+        array[slot] = subKeys[0];
+        array[slot + 1] = subVals[0];
+      } else {
+        array[slot + 1] = build(subHashes, subKeys, subVals, count,
+                                shift + BITS);
+      }
+      slot += 2;
+    }
+    return new BitmapNode(bitmap, array);
+  }
+
+  /**
+   * @param key
+   * @return map without key, or this if key not present
+   */
+  public HashTrie<K, V> minus(Object key) {
+    if (root == null) {
+      return this;
+    }
+    Node newRoot = root.without(0, hash(key), key);
+    if (newRoot == root) {
+      return this;
+    } else if (newRoot == null) {
+      return empty();
+    }
+    return new HashTrie<K, V>(newRoot, size - 1);
+  }
+
+  /**
+   * Iterate over entries in unspecified order
+   */
+  @Override
+  public Iterator<Entry<K, V>> iterator() {
+    return new EntryIt<K, V>(root);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    boolean first = true;
+    for (Entry<K, V> e: this) {
+      if (first) {
+        first = false;
+      } else {
+        sb.append(", ");
+      }
+      sb.append(e.getKey()).append('=').append(e.getValue());
+    }
+    return sb.append('}').toString();
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int bitpos(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /**
+   * Nodes store keys and values in alternate array slots.  A null key
+   * means the value slot holds a child node.
+   */
+  private static abstract class Node {
+    final Object array[];
+
+    Node(Object array[]) {
+      this.array = array;
+    }
+
+    /**
+     * @return value, or NOT_FOUND
+     */
+    abstract Object find(int shift, int hash, Object key);
+
+    /**
+     * @return updated node, or this if unchanged
+     */
+    abstract Node assoc(int shift, int hash, Object key, Object val,
+                        boolean added[]);
+
+    /**
+     * @return updated node, this if unchanged, or null if now empty
+     */
+    abstract Node without(int shift, int hash, Object key);
+  }
+
+  private static final class BitmapNode extends Node {
+    final int bitmap;
+
+    BitmapNode(int bitmap, Object array[]) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+      int i = 2 * index(bit);
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        return ((Node)v).find(shift + BITS, hash, key);
+      } else if (key.equals(k)) {
+        return v;
+      }
+      return NOT_FOUND;
+    }
+
+    @Override
+    Node assoc(int shift, int hash, Object key, Object val,
+               boolean added[]) {
+      int bit = bitpos(hash, shift);
+      int i = 2 * index(bit);
+      if ((bitmap & bit) == 0) {
+        added[0] = true;
+        Object newArray[] = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = val;
+        System.arraycopy(array, i, newArray, i + 2, array.length - i);
+        return new BitmapNode(bitmap | bit, newArray);
+      }
+
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        Node child = (Node)v;
+        Node newChild = child.assoc(shift + BITS, hash, key, val, added);
+        if (newChild == child) {
+          return this;
+        }
+        return new BitmapNode(bitmap, cloneAndSet(array, i + 1, newChild));
+      } else if (key.equals(k)) {
+        if (v == val) {
+          return this;
+        }
+        return new BitmapNode(bitmap, cloneAndSet(array, i + 1, val));
+      } else {
+        added[0] = true;
+        Node child = createNode(shift + BITS, k, v, hash, key, val);
+        Object newArray[] = cloneAndSet(array, i + 1, child);
+        newArray[i] = null;
+        return new BitmapNode(bitmap, newArray);
+      }
+    }
+
+    @Override
+    Node without(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = 2 * index(bit);
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        Node child = (Node)v;
+        Node newChild = child.without(shift + BITS, hash, key);
+        if (newChild == child) {
+          return this;
+        } else if (newChild != null) {
+          return new BitmapNode(bitmap, cloneAndSet(array, i + 1, newChild));
+        }
+      } else if (!key.equals(k)) {
+        return this;
+      }
+
+      // Remove the slot entirely
+      if (bitmap == bit) {
+        return null;
+      }
+      Object newArray[] = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new BitmapNode(bitmap ^ bit, newArray);
+    }
+
+    private static Node createNode(int shift, Object k1, Object v1,
+                                   int hash2, Object k2, Object v2) {
+      int hash1 = hash(k1);
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new Object[] {k1, v1, k2, v2});
+      }
+      boolean added[] = new boolean[1];
+      return EMPTY_NODE.assoc(shift, hash1, k1, v1, added)
+                       .assoc(shift, hash2, k2, v2, added);
+    }
+  }
+
+  /**
+   * Node for keys with identical hashes
+   */
+  private static final class CollisionNode extends Node {
+    final int hash;
+
+    CollisionNode(int hash, Object array[]) {
+      super(array);
+      this.hash = hash;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      if (hash != this.hash) {
+        return NOT_FOUND;
+      }
+      int i = indexOf(key);
+      return i < 0 ? NOT_FOUND : array[i + 1];
+    }
+
+    @Override
+    Node assoc(int shift, int hash, Object key, Object val,
+               boolean added[]) {
+      if (hash != this.hash) {
+        // Nest inside a bitmap node so the hashes can be told apart
+        BitmapNode parent = new BitmapNode(bitpos(this.hash, shift),
+                                           new Object[] {null, this});
+        return parent.assoc(shift, hash, key, val, added);
+      }
+      int i = indexOf(key);
+      if (i >= 0) {
+        if (array[i + 1] == val) {
+          return this;
+        }
+        return new CollisionNode(hash, cloneAndSet(array, i + 1, val));
+      }
+      added[0] = true;
+      Object newArray[] = new Object[array.length + 2];
+      System.arraycopy(array, 0, newArray, 0, array.length);
+      newArray[array.length] = key;
+      newArray[array.length + 1] = val;
+      return new CollisionNode(hash, newArray);
+    }
+
+    @Override
+    Node without(int shift, int hash, Object key) {
+      if (hash != this.hash) {
+        return this;
+      }
+      int i = indexOf(key);
+      if (i < 0) {
+        return this;
+      } else if (array.length == 2) {
+        return null;
+      }
+      Object newArray[] = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new CollisionNode(hash, newArray);
+    }
+  }
+
+  private static Object[] cloneAndSet(Object array[], int i, Object val) {
+    Object clone[] = array.clone();
+    clone[i] = val;
+    return clone;
+  }
+
+  /**
+   * Depth-first walk over nodes
+   */
+  private static final class EntryIt<K, V> implements Iterator<Entry<K, V>> {
+    private final StackLite<Object[]> arrays = new StackLite<Object[]>();
+    private final StackLite<Integer> positions = new StackLite<Integer>();
+    private Object currArray[];
+    private int pos;
+
+    EntryIt(Node root) {
+      this.currArray = root == null ? new Object[0] : root.array;
+      this.pos = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (true) {
+        if (pos < currArray.length) {
+          if (currArray[pos] != null) {
+            return true;
+          }
+          // Descend into child
+          Node child = (Node)currArray[pos + 1];
+          arrays.push(currArray);
+          positions.push(pos + 2);
+          currArray = child.array;
+          pos = 0;
+        } else if (arrays.isEmpty()) {
+          return false;
+        } else {
+          currArray = arrays.pop();
+          pos = positions.pop();
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> e = new SimpleImmutableEntry<K, V>((K)currArray[pos],
+                                                     (V)currArray[pos + 1]);
+      pos += 2;
+      return e;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -15,9 +15,16 @@
  */
 package exm.stc.common.util;
 
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import exm.stc.common.exceptions.STCRuntimeError;
 
@@ -27,11 +34,72 @@ import exm.stc.common.exceptions.STCRuntimeError;
  * the key is in the parent map.  Attempts to remove items that appear in
  * the parent result in a copy of the parent map.
  *
+ * To keep lookups independent of nesting depth, each non-root map that
+ * has children keeps a persistent trie with all entries visible from it,
+ * except for the root's.  A lookup checks the map's own entries, then
+ * its parent's trie, then the root.  Tries are built by adding a map's
+ * entries to its parent's trie, and each records which keys changed
+ * afterwards so that children can lazily catch up with changes made to
+ * ancestors after they were created.  The root is usually the largest
+ * and busiest map, so keeping it out of the tries means changes to it
+ * are never copied.  Instead, once it has children the root records
+ * which keys it added or removed, so that children can keep count of
+ * their visible entries.
+ *
+ * entrySet() and keySet() are unmodifiable views: iterating them visits
+ * this map's entries, then the parent's trie, then the root, skipping
+ * shadowed keys.
  */
 public class HierarchicalMap<K, V> implements Map<K, V> {
+  /** Entries defined at this level */
   private final HashMap<K, V> map;
   private HierarchicalMap<K, V> parent;
 
+  /** Root of hierarchy, kept up to date by sync() */
+  private HierarchicalMap<K, V> root;
+
+  /**
+   * Modification counter shared by all maps in the hierarchy, incremented
+   * when a trie changes
+   */
+  private final ModCount modCount;
+
+  /**
+   * All entries visible at this level, except for the root's.
+   * Null until a child map is created, and always null for root.
+   */
+  private HashTrie<K, V> trie;
+
+  /** Keys changed in trie since it was built, in order */
+  private final ArrayList<K> changes;
+
+  /** Parent's trie as of last sync(), null for root */
+  private HashTrie<K, V> parentSeen;
+
+  /** Number of parent's changes reflected in parentSeen */
+  private int parentChangesSeen;
+
+  /** Value of shared modification counter at last sync() */
+  private int validatedModCount;
+
+  /**
+   * Number of visible entries as of last sync().  Not used for root,
+   * which only sees its own entries.
+   */
+  private int size;
+
+  /**
+   * Root only: keys added to or removed from root since it got children,
+   * in order.  Null until then.
+   */
+  private ArrayList<K> rootChanges;
+
+  /** Root only: which of rootChanges were removals */
+  private BitSet rootRemovals;
+
+  /** Number of root's changes reflected in size */
+  private int rootChangesSeen;
+
   public HierarchicalMap() {
     this(null);
   }
@@ -39,33 +107,193 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
   private HierarchicalMap(HierarchicalMap<K, V> parent) {
     this.map = new HashMap<K, V>();
     this.parent = parent;
+    this.root = parent == null ? this : parent.root;
+    this.modCount = parent == null ? new ModCount() : parent.modCount;
+    this.trie = null;
+    this.changes = new ArrayList<K>();
+    if (parent != null) {
+      this.parentSeen = parent.trie();
+      this.parentChangesSeen = parent.changes.size();
+      this.validatedModCount = modCount.count;
+      this.size = parent.size();
+      this.rootChangesSeen = root.rootChangeCount();
+    }
   }
 
   public HierarchicalMap<K, V> makeChildMap() {
+    if (parent == null && rootChanges == null) {
+      rootChanges = new ArrayList<K>();
+      rootRemovals = new BitSet();
+    }
+    // Make sure trie is there for child lookups
+    trie();
     return new HierarchicalMap<K,V>(this);
   }
+
+  /**
+   * @return trie of visible entries except root's, built or updated if
+   *        needed
+   */
+  private HashTrie<K, V> trie() {
+    if (parent == null) {
+      return trie == null ? HashTrie.<K, V>empty() : trie;
+    }
+    sync();
+    if (trie == null) {
+      trie = parentSeen.plusAll(map);
+    }
+    return trie;
+  }
+
+  /**
+   * Catch up with changes made to ancestors since last called, updating
+   * trie, if built, and count of visible entries
+   */
+  private void sync() {
+    if (parent == null) {
+      return;
+    }
+    if (validatedModCount != modCount.count) {
+      HashTrie<K, V> parentTrie = parent.trie();
+      if (parent.root != root) {
+        // An ancestor was cleared, so root entries we counted are gone
+        applyParentChanges(parentTrie);
+        root = parent.root;
+        rootChangesSeen = root.rootChangeCount();
+        size = countVisible();
+      } else {
+        // Root changes are counted against old parent trie, then parent
+        // changes against new root
+        applyRootChanges();
+        applyParentChanges(parentTrie);
+      }
+      validatedModCount = modCount.count;
+    } else if (rootChangesSeen != root.rootChangeCount()) {
+      applyRootChanges();
+    }
+  }
+
+  /**
+   * Update parentSeen, trie and size with keys changed in parent
+   */
+  private void applyParentChanges(HashTrie<K, V> parentTrie) {
+    int parentChanges = parent.changes.size();
+    for (int i = parentChangesSeen; i < parentChanges; i++) {
+      K key = parent.changes.get(i);
+      boolean inParent = parentTrie.containsKey(key);
+      if (parentSeen.containsKey(key) != inParent) {
+        // Update as we go, since a key may be logged several times
+        parentSeen = inParent ? parentSeen.plus(key, parentTrie.get(key))
+                              : parentSeen.minus(key);
+        if (!map.containsKey(key) && !root.map.containsKey(key)) {
+          size += inParent ? 1 : -1;
+        }
+      }
+      if (!map.containsKey(key)) {
+        if (trie != null) {
+          HashTrie<K, V> updated;
+          if (inParent) {
+            updated = trie.plus(key, parentTrie.get(key));
+          } else {
+            updated = trie.minus(key);
+          }
+          if (updated != trie) {
+            trie = updated;
+            changes.add(key);
+          }
+        }
+      }
+    }
+    parentSeen = parentTrie;
+    parentChangesSeen = parentChanges;
+  }
+
+  /**
+   * Update size with keys added to or removed from root
+   */
+  private void applyRootChanges() {
+    int rootChangeCount = root.rootChangeCount();
+    for (int i = rootChangesSeen; i < rootChangeCount; i++) {
+      K key = root.rootChanges.get(i);
+      if (!map.containsKey(key) && !parentSeen.containsKey(key)) {
+        size += root.rootRemovals.get(i) ? -1 : 1;
+      }
+    }
+    rootChangesSeen = rootChangeCount;
+  }
+
+  private int rootChangeCount() {
+    return rootChanges == null ? 0 : rootChanges.size();
+  }
+
+  /**
+   * Record addition or removal of key at root, if children need to know
+   */
+  private void rootChanged(K key, boolean removed) {
+    if (rootChanges != null) {
+      if (removed) {
+        rootRemovals.set(rootChanges.size());
+      }
+      rootChanges.add(key);
+    }
+  }
+
+  /**
+   * @return number of visible entries, counted from scratch
+   */
+  private int countVisible() {
+    int count = 0;
+    for (EntryIterator it = new EntryIterator(); it.hasNext(); it.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Update trie after change to key at this level, if trie was built
+   */
+  private void updateTrie(K key, boolean removed) {
+    if (trie == null || parent == null) {
+      return;
+    }
+    HashTrie<K, V> old = trie();
+    HashTrie<K, V> updated;
+    if (removed) {
+      updated = old.minus(key);
+    } else {
+      updated = old.plus(key, map.get(key));
+    }
+    if (updated != old) {
+      trie = updated;
+      changes.add(key);
+      modCount.count++;
+      validatedModCount = modCount.count;
+    }
+  }
+
   @Override
   public boolean containsKey(Object key) {
-    HierarchicalMap<K, V> curr = this;
-    do {
-      if (curr.map.containsKey(key)) {
-        return true;
-      }
-      curr = curr.parent;
-    } while (curr != null);
-    return false;
+    if (map.containsKey(key)) {
+      return true;
+    } else if (parent == null) {
+      return false;
+    }
+    return parent.trie().containsKey(key) ||
+           parent.root.map.containsKey(key);
   }
 
   @Override
   public V get(Object key) {
-    HierarchicalMap<K, V> curr = this;
-    do {
-      if (curr.map.containsKey(key)) {
-        return curr.map.get(key);
-      }
-      curr = curr.parent;
-    } while (curr != null);
-    return null;
+    V val = map.get(key);
+    if (val != null || map.containsKey(key) || parent == null) {
+      return val;
+    }
+    HashTrie<K, V> parentTrie = parent.trie();
+    val = parentTrie.get(key);
+    if (val != null || parentTrie.containsKey(key)) {
+      return val;
+    }
+    return parent.root.map.get(key);
   }
 
   /**
@@ -87,18 +315,62 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
 
   @Override
   public V put(K key, V value) {
-    return map.put(key, value);
+    boolean added;
+    if (parent == null) {
+      added = !map.containsKey(key);
+      if (added) {
+        rootChanged(key, false);
+      }
+    } else {
+      sync();
+      added = !map.containsKey(key) && !visibleAbove(key);
+      if (added) {
+        size++;
+      }
+    }
+    V prev = map.put(key, value);
+    updateTrie(key, false);
+    return prev;
+  }
+
+  /**
+   * @return true if key is visible from parent, assuming synced
+   */
+  private boolean visibleAbove(Object key) {
+    return parentSeen.containsKey(key) || root.map.containsKey(key);
   }
 
   @Override
   public void putAll(Map<? extends K, ? extends V> m) {
-    map.putAll(m);
+    for (Entry<? extends K, ? extends V> e: m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
   }
 
   @Override
   public void clear() {
+    if (parent == null) {
+      for (K key: map.keySet()) {
+        rootChanged(key, true);
+      }
+    }
     map.clear();
     parent = null; // Don't modify parent
+    root = this;
+    parentSeen = null;
+    size = 0;
+    if (trie != null) {
+      // Children need to drop all entries they got from here
+      for (Entry<K, V> e: trie) {
+        changes.add(e.getKey());
+      }
+      trie = HashTrie.empty();
+      modCount.count++;
+      if (rootChanges == null) {
+        rootChanges = new ArrayList<K>();
+        rootRemovals = new BitSet();
+      }
+    }
   }
 
   @Override
@@ -106,40 +378,108 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
     throw new STCRuntimeError("not implemented");
   }
 
+  /**
+   * @return unmodifiable view of visible entries
+   */
   @Override
-  public HierarchicalSet<Entry<K, V>> entrySet() {
-    if (parent != null) {
-      return parent.entrySet().makeChild(this.map.entrySet());
-    } else {
-      return new HierarchicalSet<Entry<K,V>>(this.map.entrySet());
-    }
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        if (!(o instanceof Entry)) {
+          return false;
+        }
+        Entry<?, ?> e = (Entry<?, ?>)o;
+        if (!containsKey(e.getKey())) {
+          return false;
+        }
+        V val = get(e.getKey());
+        return val == null ? e.getValue() == null : val.equals(e.getValue());
+      }
+
+      @Override
+      public int size() {
+        return HierarchicalMap.this.size();
+      }
+    };
   }
 
   @Override
   public boolean isEmpty() {
-    HierarchicalMap<K, V> curr = this;
-    do {
-      if (!curr.map.isEmpty()) {
-        return false;
-      }
-      curr = curr.parent;
-    } while (curr != null);
-    return true;
+    if (!map.isEmpty()) {
+      return false;
+    } else if (parent == null) {
+      return true;
+    }
+    return parent.trie().isEmpty() && parent.root.map.isEmpty();
   }
 
+  /**
+   * @return unmodifiable view of visible keys
+   */
   @Override
-  public HierarchicalSet<K> keySet() {
-    if (parent != null) {
-      return parent.keySet().makeChild(this.map.keySet());
-    } else {
-      return new HierarchicalSet<K>(this.map.keySet());
-    }
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+      @Override
+      public Iterator<K> iterator() {
+        final EntryIterator it = new EntryIterator();
+        return new Iterator<K>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          @Override
+          public K next() {
+            return it.next().getKey();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+
+      @Override
+      public int size() {
+        return HierarchicalMap.this.size();
+      }
+    };
+  }
+
+  /**
+   * @return unmodifiable view of entries defined at this level only
+   */
+  public Map<K, V> localMap() {
+    return Collections.unmodifiableMap(map);
   }
 
+  @SuppressWarnings("unchecked")
   @Override
   public V remove(Object key) {
+    sync();
+    boolean local = map.containsKey(key);
     V removed = map.remove(key);
+    if (local) {
+      if (parent == null) {
+        rootChanged((K)key, true);
+      } else if (!visibleAbove(key)) {
+        size--;
+      }
+    }
     if (parent != null) {
+      // Ancestors' removals are counted when we next sync
       if (parent.containsKey(key)) {
         V parentRemoved = parent.remove(key);
         if (removed == null) {
@@ -147,13 +487,17 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
         }
       }
     }
+    updateTrie((K)key, true);
     return removed;
   }
 
   @Override
   public int size() {
-    int parentSize = parent == null ? 0 : parent.size();
-    return parentSize + map.size();
+    if (parent == null) {
+      return map.size();
+    }
+    sync();
+    return size;
   }
 
   @Override
@@ -165,18 +509,8 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("{");
-    int written = writeContents(sb, true);
-    HierarchicalMap<K, V> ancestor = parent;
-    while (ancestor != null) {
-      written += ancestor.writeContents(sb, written == 0);
-      ancestor = ancestor.parent;
-    }
-    sb.append("}");
-    return sb.toString();
-  }
-
-  private int writeContents(StringBuilder sb, boolean first) {
-    for (Entry<K, V> e: this.map.entrySet()) {
+    boolean first = true;
+    for (Entry<K, V> e: entrySet()) {
       if (first) {
         first = false;
       } else {
@@ -186,7 +520,71 @@ public class HierarchicalMap<K, V> implements Map<K, V> {
       sb.append(":");
       sb.append(e.getValue());
     }
-    return map.size();
+    sb.append("}");
+    return sb.toString();
+  }
+
+  /**
+   * Iterate over this map's entries, then parent's trie, then root,
+   * skipping shadowed keys
+   */
+  private class EntryIterator implements Iterator<Entry<K, V>> {
+    private final HashTrie<K, V> parentTrie;
+    private final Map<K, V> rootMap;
+    /** 0 for this map, 1 for parent's trie, 2 for root */
+    private int stage = 0;
+    private Iterator<Entry<K, V>> it;
+    private Entry<K, V> next;
+
+    EntryIterator() {
+      parentTrie = parent == null ? null : parent.trie();
+      rootMap = parent == null ? null : parent.root.localMap();
+      it = localMap().entrySet().iterator();
+      advance();
+    }
+
+    private void advance() {
+      while (true) {
+        while (it.hasNext()) {
+          Entry<K, V> e = it.next();
+          K key = e.getKey();
+          if (stage == 0 || (!map.containsKey(key) &&
+                       (stage == 1 || !parentTrie.containsKey(key)))) {
+            next = e;
+            return;
+          }
+        }
+        if (parentTrie == null || stage == 2) {
+          next = null;
+          return;
+        }
+        stage++;
+        it = stage == 1 ? parentTrie.iterator() : rootMap.entrySet().iterator();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> result = next;
+      advance();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 
-}
\ No newline at end of file
+  private static class ModCount {
+    int count = 0;
+  }
+}
@@ -16,37 +16,25 @@
 package exm.stc.common.util;
 
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
 import java.util.Set;
 
 import exm.stc.common.exceptions.STCRuntimeError;
 
 /**
  * An implementation of the set interface that allows cheap
- * creation of child maps.
+ * creation of child maps.  Backed by a HierarchicalMap, so membership
+ * tests don't depend on nesting depth.
  */
 public class HierarchicalSet<T> implements Set<T> {
-  private final HierarchicalSet<T> parent;
-  private final Set<T> set;
+  private final HierarchicalMap<T, Boolean> map;
 
-
-  private HierarchicalSet(HierarchicalSet<T> parent, Set<T> set) {
-    this.parent = parent;
-    if (set == null) {
-      this.set = new HashSet<T>();
-    } else {
-      this.set = set;
-    }
+  private HierarchicalSet(HierarchicalMap<T, Boolean> map) {
+    this.map = map;
   }
 
   public HierarchicalSet() {
-    this(null, null);
-  }
-
-  public HierarchicalSet(Set<T> innerSet) {
-    this(null, innerSet);
+    this(new HierarchicalMap<T, Boolean>());
   }
 
   /**
@@ -54,27 +42,23 @@ public class HierarchicalSet<T> implements Set<T> {
    * @return
    */
   public HierarchicalSet<T> makeChild() {
-    return new HierarchicalSet<T>(this, null);
-  }
-
-  /**
-   * Make a new hierarchical set with this as the parent,
-   * and innerSet as the backing set
-   * @param innerSet
-   * @return
-   */
-  public HierarchicalSet<T> makeChild(Set<T> innerSet) {
-    return new HierarchicalSet<T>(this, innerSet);
+    return new HierarchicalSet<T>(map.makeChildMap());
   }
 
   @Override
   public boolean add(T e) {
-    return set.add(e);
+    return map.put(e, Boolean.TRUE) == null;
   }
 
   @Override
   public boolean addAll(Collection<? extends T> c) {
-    return set.addAll(c);
+    boolean changed = false;
+    for (T e: c) {
+      if (add(e)) {
+        changed = true;
+      }
+    }
+    return changed;
   }
 
   @Override
@@ -84,14 +68,7 @@ public class HierarchicalSet<T> implements Set<T> {
 
   @Override
   public boolean contains(Object o) {
-    HierarchicalSet<T> curr = this;
-    while (curr != null) {
-      if (curr.set.contains(o)) {
-        return true;
-      }
-      curr = curr.parent;
-    }
-    return false;
+    return map.containsKey(o);
   }
 
 
@@ -102,19 +79,12 @@ public class HierarchicalSet<T> implements Set<T> {
 
   @Override
   public boolean isEmpty() {
-    HierarchicalSet<T> curr = this;
-    while (curr != null) {
-      if (!curr.set.isEmpty()) {
-        return false;
-      }
-      curr = curr.parent;
-    }
-    return true;
+    return map.isEmpty();
   }
 
   @Override
   public Iterator<T> iterator() {
-    return new HSIt();
+    return map.keySet().iterator();
   }
 
   @Override
@@ -134,8 +104,7 @@ public class HierarchicalSet<T> implements Set<T> {
 
   @Override
   public int size() {
-    int parentSize = parent == null ? 0 : parent.size();
-    return set.size() + parentSize;
+    return map.size();
   }
 
   @Override
@@ -150,75 +119,18 @@ public class HierarchicalSet<T> implements Set<T> {
 
   @Override
   public String toString() {
-    StringBuffer accum = new StringBuffer();
-    accum.append("{");
-    boolean wrote = false;
-    if (parent != null) {
-      wrote = parent.writeItems(accum, true);
-    }
-    wrote = wrote || this.writeItems(accum, !wrote);
-    accum.append("}");
-    return accum.toString();
-  }
-
-  private boolean writeItems(StringBuffer accum, boolean first) {
-    for (T i: set) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{");
+    boolean first = true;
+    for (T elem: this) {
       if (first) {
         first = false;
       } else {
-        accum.append(",");
+        sb.append(",");
       }
-      accum.append(i.toString());
+      sb.append(elem);
     }
-    return set.size() > 0;
+    sb.append("}");
+    return sb.toString();
   }
-
-  private final class HSIt implements Iterator<T> {
-
-    private HSIt() {
-      curr = HierarchicalSet.this;
-      currIt = curr.set.iterator();
-    }
-
-    HierarchicalSet<T> curr;
-    Iterator<T> currIt;
-
-    @Override
-    public boolean hasNext() {
-      if (currIt != null && currIt.hasNext()) {
-        return true;
-      }
-      return advance();
-    }
-
-    private boolean advance() {
-      if (currIt == null) {
-        return false;
-      }
-      while (!currIt.hasNext()) {
-        curr = curr.parent;
-        if (curr == null) {
-          currIt = null;
-          return false;
-        } else {
-          currIt = curr.set.iterator();
-        }
-      }
-      return true;
-    }
-
-    @Override
-    public T next() {
-      if (advance()) {
-        return currIt.next();
-      }
-      throw new NoSuchElementException();
-    }
-
-    @Override
-    public void remove() {
-      throw new STCRuntimeError("not implemented");
-    }
-  }
-
 }
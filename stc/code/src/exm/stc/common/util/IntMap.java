@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.common.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive int keys, using open addressing so that
+ * keys aren't boxed and there is no allocation per entry.
+ * Null values are not allowed.
+ *
+ * @param <V>
+ */
+public class IntMap<V> {
+  private static final int MIN_CAPACITY = 8;
+
+  private int keys[];
+  private Object values[];
+  private int size;
+
+  public IntMap() {
+    this.keys = new int[MIN_CAPACITY];
+    this.values = new Object[MIN_CAPACITY];
+    this.size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(int key) {
+    return values[find(key)] != null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    return (V)values[find(key)];
+  }
+
+  /**
+   * @param key
+   * @param value non-null value
+   * @return previous value, or null if none
+   */
+  @SuppressWarnings("unchecked")
+  public V put(int key, V value) {
+    assert(value != null);
+    int slot = find(key);
+    Object prev = values[slot];
+    keys[slot] = key;
+    values[slot] = value;
+    if (prev == null) {
+      size++;
+      if (size * 4 > values.length * 3) {
+        resize(values.length * 2);
+      }
+    }
+    return (V)prev;
+  }
+
+  /**
+   * @param key
+   * @return removed value, or null if not present
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int slot = find(key);
+    Object prev = values[slot];
+    if (prev == null) {
+      return null;
+    }
+    values[slot] = null;
+    size--;
+
+    // Shift back later entries in the probe sequence so lookups don't
+    // stop at the hole
+    int mask = values.length - 1;
+    int hole = slot;
+    int curr = (slot + 1) & mask;
+    while (values[curr] != null) {
+      int home = hash(keys[curr]) & mask;
+      if (((curr - home) & mask) >= ((curr - hole) & mask)) {
+        keys[hole] = keys[curr];
+        values[hole] = values[curr];
+        values[curr] = null;
+        hole = curr;
+      }
+      curr = (curr + 1) & mask;
+    }
+    return (V)prev;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /**
+   * @return array of keys in unspecified order
+   */
+  public int[] keys() {
+    int result[] = new int[size];
+    int pos = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        result[pos++] = keys[i];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return slot containing key, or empty slot where it would be inserted
+   */
+  private int find(int key) {
+    int mask = values.length - 1;
+    int slot = hash(key) & mask;
+    while (values[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize(int capacity) {
+    int oldKeys[] = keys;
+    Object oldValues[] = values;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Spread bits so that sequential keys don't cluster
+   */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    boolean first = true;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        if (first) {
+          first = false;
+        } else {
+          sb.append(", ");
+        }
+        sb.append(keys[i]).append('=').append(values[i]);
+      }
+    }
+    return sb.append('}').toString();
+  }
+}
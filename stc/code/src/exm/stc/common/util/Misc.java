@@ -16,8 +16,10 @@
 
 package exm.stc.common.util;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -41,7 +43,10 @@ public class Misc {
      @return Current time formatted as human-readable String
    */
   public static String timestamp() {
-    return df.format(new Date());
+    // Programs may be compiled concurrently, and DateFormat isn't thread-safe
+    synchronized (df) {
+      return df.format(new Date());
+    }
   }
 
   public static String stackTrace(Throwable e) {
@@ -51,6 +56,22 @@ public class Misc {
     return sw.toString();
   }
 
+  /**
+   * Identify the compiler build that a class was loaded from, for
+   * invalidating cached compiler output.  Uses the class file, or the
+   * jar containing it.
+   * @param cls
+   * @return
+   */
+  public static String buildStamp(Class<?> cls) {
+    URL location = cls.getResource(cls.getSimpleName() + ".class");
+    if (location == null || !location.getProtocol().equals("file")) {
+      location = cls.getProtectionDomain().getCodeSource().getLocation();
+    }
+    File f = new File(location.getPath());
+    return location + ":" + f.lastModified() + ":" + f.length();
+  }
+
   /**
    * Invert mapping, assuming surjective (i.e. each key maps to unique value)
    * @param m
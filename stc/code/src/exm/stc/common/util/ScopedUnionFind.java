@@ -3,6 +3,7 @@ package exm.stc.common.util;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -31,6 +32,11 @@ public class ScopedUnionFind<T> {
    */
   private final ScopedUnionFind<T> parent;
 
+  /**
+   * Number of ancestors
+   */
+  private final int depth;
+
   /**
    * Internal mapping from member to canonical.
    *
@@ -39,18 +45,43 @@ public class ScopedUnionFind<T> {
    */
   private final TwoWayMap<T, T> canonical;
 
+  /**
+   * Mapping from member to canonical for this and all ancestor scopes,
+   * so that lookups don't need to walk up the scopes.
+   */
+  private final HierarchicalMap<T, T> visibleCanonical;
 
   /**
-   * Children that we might need to propagate changes to
+   * Map from canonical to the nearest scope with members mapped to it
+   * in its canonical map, so that we only visit those scopes when
+   * finding members.
    */
-  private final SetMultimap<Pair<T, Boolean>, UnionFindSubscriber<T>> subscribed;
+  private final HierarchicalMap<T, ScopedUnionFind<T>> memberScopes;
+
+  /**
+   * Subscribers that we might need to propagate changes to, with the
+   * scope they subscribed to.  Shared by all scopes in the tree: a merge
+   * notifies subscribers of the scope it happens in and its descendants.
+   */
+  private final SetMultimap<Pair<T, Boolean>,
+              Pair<ScopedUnionFind<T>, UnionFindSubscriber<T>>> subscribed;
 
   private final Subscriber subscriber = new Subscriber();
 
   private ScopedUnionFind(ScopedUnionFind<T> parent) {
     this.parent = parent;
     this.canonical = TwoWayMap.create();
-    this.subscribed = HashMultimap.create();
+    if (parent == null) {
+      this.depth = 0;
+      this.visibleCanonical = new HierarchicalMap<T, T>();
+      this.memberScopes = new HierarchicalMap<T, ScopedUnionFind<T>>();
+      this.subscribed = HashMultimap.create();
+    } else {
+      this.depth = parent.depth + 1;
+      this.visibleCanonical = parent.visibleCanonical.makeChildMap();
+      this.memberScopes = parent.memberScopes.makeChildMap();
+      this.subscribed = parent.subscribed;
+    }
   }
 
   public static <T1> ScopedUnionFind<T1> createRoot() {
@@ -62,14 +93,9 @@ public class ScopedUnionFind<T> {
   }
 
   public T lookup(T x) {
-    ScopedUnionFind<T> curr = this;
-    while (curr != null) {
-      T canon = curr.canonical.get(x);
-      if (canon != null) {
-        return canon;
-      }
-
-      curr = curr.parent;
+    T canon = visibleCanonical.get(x);
+    if (canon != null) {
+      return canon;
     }
 
     // x is on its own
@@ -101,6 +127,10 @@ public class ScopedUnionFind<T> {
 
     for (T affectedMember: affectedMembers) {
       canonical.put(affectedMember, winnerCanon);
+      visibleCanonical.put(affectedMember, winnerCanon);
+    }
+    if (memberScopes.get(winnerCanon) != this) {
+      memberScopes.put(winnerCanon, this);
     }
 
     subscribeToParentUpdates(winnerCanon);
@@ -123,10 +153,10 @@ public class ScopedUnionFind<T> {
     Set<T> members = new HashSet<T>();
     members.add(canon);
 
-    ScopedUnionFind<T> curr = this;
+    ScopedUnionFind<T> curr = memberScopes.get(canon);
     while (curr != null) {
       members.addAll(curr.canonical.getByValue(canon));
-      curr = curr.parent;
+      curr = curr.parent == null ? null : curr.parent.memberScopes.get(canon);
     }
 
     return members;
@@ -150,20 +180,46 @@ public class ScopedUnionFind<T> {
    * @param subscriber
    */
   public void subscribe(T x, boolean before, UnionFindSubscriber<T> subscriber) {
-    ScopedUnionFind<T> curr = this;
-    while (curr != null) {
-      curr.subscribed.put(Pair.create(x, before), subscriber);
-      curr = curr.parent;
-    }
+    subscribed.put(Pair.create(x, before), Pair.create(this, subscriber));
   }
 
   private void notifyChanged(boolean before, T winnerCanon, T loserCanon) {
     Pair<T, Boolean> key = Pair.create(loserCanon, before);
-    for (UnionFindSubscriber<T> subscriber: subscribed.get(key)) {
+    Set<Pair<ScopedUnionFind<T>, UnionFindSubscriber<T>>> subs =
+                                                    subscribed.get(key);
+    if (subs.isEmpty()) {
+      return;
+    }
+
+    // Collect first: notified subscribers may subscribe again
+    Set<UnionFindSubscriber<T>> toNotify = null;
+    for (Pair<ScopedUnionFind<T>, UnionFindSubscriber<T>> sub: subs) {
+      if (sub.val1.isWithin(this)) {
+        if (toNotify == null) {
+          toNotify = new LinkedHashSet<UnionFindSubscriber<T>>();
+        }
+        toNotify.add(sub.val2);
+      }
+    }
+    if (toNotify == null) {
+      return;
+    }
+    for (UnionFindSubscriber<T> subscriber: toNotify) {
       subscriber.notifyMerge(winnerCanon, loserCanon);
     }
   }
 
+  /**
+   * @return true if this is scope or a descendant of scope
+   */
+  private boolean isWithin(ScopedUnionFind<T> scope) {
+    ScopedUnionFind<T> curr = this;
+    for (int i = depth; i > scope.depth; i--) {
+      curr = curr.parent;
+    }
+    return curr == scope;
+  }
+
   public Collection<Entry<T, T>> entries() {
     return Collections.unmodifiableMap(canonical).entrySet();
   }
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.frontend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import exm.stc.ast.FilePosition;
+import exm.stc.ast.FilePosition.LineMapping;
+import exm.stc.ast.SwiftAST;
+import exm.stc.ast.antlr.ExMParser;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.util.CacheDirs;
+import exm.stc.common.util.Misc;
+
+/**
+ * On-disk cache of parsed modules, so that the standard library modules
+ * imported by most programs need not be lexed and parsed on every
+ * compilation.
+ *
+ * Entries are keyed by a hash of the canonical module path, the file
+ * contents and the compiler build, so stale entries are never used and
+ * no invalidation is needed.  The directory is kept under a size limit
+ * by removing least recently used entries.  Any problem reading or
+ * writing the cache is logged and treated as a cache miss.
+ */
+public class ASTCache {
+
+  /** Change if serialized format changes */
+  private static final int FORMAT_MAGIC = 0x53544341;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String ENTRY_SUFFIX = ".ast";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File dir;
+  private final String stcVersion;
+  private final long maxBytes;
+  private final Logger logger;
+
+  private ASTCache(File dir, String stcVersion, long maxBytes,
+                   Logger logger) {
+    this.dir = dir;
+    this.stcVersion = stcVersion;
+    this.maxBytes = maxBytes;
+    this.logger = logger;
+  }
+
+  /**
+   * @return cache based on settings, or null if disabled
+   */
+  public static ASTCache fromOptions(CompilerOptions options) {
+    if (!options.getBoolean(Settings.AST_CACHE)) {
+      return null;
+    }
+    File dir = options.cacheDir(Settings.AST_CACHE_DIR, "ast");
+    return new ASTCache(dir, options.get(Settings.STC_VERSION),
+        options.getLong(Settings.AST_CACHE_MAX_MB) * CacheDirs.BYTES_PER_MB,
+        Logging.getSTCLogger());
+  }
+
+  /**
+   * Compute key for a module file.
+   * @param canonicalPath
+   * @param content contents of module file
+   * @return
+   */
+  public String key(String canonicalPath, byte[] content) {
+    Hasher h = Hashing.sha1().newHasher();
+    h.putInt(FORMAT_VERSION);
+    h.putString(String.valueOf(stcVersion), UTF8);
+    // Tree depends on the grammar
+    h.putString(Misc.buildStamp(ExMParser.class), UTF8);
+    h.putString(canonicalPath, UTF8);
+    h.putBytes(content);
+    return h.hash().toString();
+  }
+
+  /**
+   * @param key
+   * @param moduleName
+   * @param filePath
+   * @return cached module, or null if not present
+   */
+  public ParsedModule lookup(String key, String moduleName,
+                             String filePath) {
+    File entry = entryFile(key);
+    if (!entry.isFile()) {
+      logger.trace("AST cache miss for " + filePath);
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                         new FileInputStream(entry)));
+      try {
+        if (in.readInt() != FORMAT_MAGIC || in.readInt() != FORMAT_VERSION) {
+          logger.debug("Ignoring invalid AST cache entry " + entry);
+          return null;
+        }
+        LineMapping lineMapping = readLineMapping(in);
+        SwiftAST ast = readTree(in);
+        CacheDirs.touch(entry);
+        logger.trace("AST cache hit for " + filePath + ": " + entry);
+        // Entries with lexer errors aren't stored
+        return new ParsedModule(moduleName, filePath, ast, lineMapping,
+                                false);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Error reading AST cache entry " + entry + ": " +
+                   e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Add module to cache.  Written atomically, so concurrent compiler
+   * processes can share the cache.
+   * @param key
+   * @param module
+   */
+  public void store(String key, ParsedModule module) {
+    File entry = entryFile(key);
+    File tmp = null;
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Could not create " + dir);
+      }
+      tmp = File.createTempFile(key, CacheDirs.TMP_SUFFIX, dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                              new FileOutputStream(tmp)));
+      try {
+        out.writeInt(FORMAT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeLineMapping(out, module.lineMapping);
+        writeTree(out, module.ast);
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), entry.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      logger.trace("Stored " + module.inputFilePath + " in AST cache: " +
+                   entry);
+      CacheDirs.trim(dir, ENTRY_SUFFIX, maxBytes, logger);
+    } catch (IOException e) {
+      logger.debug("Could not store " + module.inputFilePath +
+                   " in AST cache: " + e.getMessage());
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private File entryFile(String key) {
+    return new File(dir, key + ENTRY_SUFFIX);
+  }
+
+  private static void writeLineMapping(DataOutputStream out,
+                             LineMapping lineMapping) throws IOException {
+    out.writeInt(lineMapping.entries().size());
+    for (Entry<Integer, FilePosition> e: lineMapping.entries()) {
+      out.writeInt(e.getKey());
+      writeString(out, e.getValue().file);
+      out.writeInt(e.getValue().line);
+    }
+  }
+
+  private static LineMapping readLineMapping(DataInputStream in)
+                                                  throws IOException {
+    LineMapping lineMapping = new LineMapping();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      int preprocLine = in.readInt();
+      String file = readString(in);
+      int line = in.readInt();
+      lineMapping.addPreprocInfo(preprocLine, file, line);
+    }
+    return lineMapping;
+  }
+
+  /**
+   * Write tree in preorder.  Uses explicit stack since trees for long
+   * programs can be deep.
+   */
+  private static void writeTree(DataOutputStream out, SwiftAST root)
+                                                      throws IOException {
+    List<SwiftAST> stack = new ArrayList<SwiftAST>();
+    stack.add(root);
+    while (!stack.isEmpty()) {
+      SwiftAST tree = stack.remove(stack.size() - 1);
+      Token tok = tree.getToken();
+      if (tok == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        out.writeInt(tok.getType());
+        writeString(out, tok.getText());
+        out.writeInt(tok.getLine());
+        out.writeInt(tok.getCharPositionInLine());
+      }
+      out.writeInt(tree.childCount());
+      for (int i = tree.childCount() - 1; i >= 0; i--) {
+        stack.add(tree.child(i));
+      }
+    }
+  }
+
+  private static SwiftAST readTree(DataInputStream in) throws IOException {
+    // Stack of nodes with number of children still to read
+    List<SwiftAST> parents = new ArrayList<SwiftAST>();
+    List<Integer> remaining = new ArrayList<Integer>();
+    SwiftAST root = null;
+    do {
+      Token tok = null;
+      if (in.readBoolean()) {
+        int type = in.readInt();
+        tok = new CommonToken(type, readString(in));
+        tok.setLine(in.readInt());
+        tok.setCharPositionInLine(in.readInt());
+      }
+      SwiftAST tree = new SwiftAST(tok);
+      int childCount = in.readInt();
+
+      if (root == null) {
+        root = tree;
+      } else {
+        int top = parents.size() - 1;
+        parents.get(top).addChild(tree);
+        remaining.set(top, remaining.get(top) - 1);
+      }
+      if (childCount > 0) {
+        parents.add(tree);
+        remaining.add(childCount);
+      }
+
+      // Pop completed parents
+      while (!parents.isEmpty() && remaining.get(remaining.size() - 1) == 0) {
+        parents.remove(parents.size() - 1);
+        remaining.remove(remaining.size() - 1);
+      }
+    } while (!parents.isEmpty());
+    return root;
+  }
+
+  /**
+   * Write string, allowing null and long strings (unlike writeUTF)
+   */
+  private static void writeString(DataOutputStream out, String s)
+                                                     throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte bytes[] = s.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte bytes[] = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+}
@@ -29,8 +29,12 @@ import org.apache.commons.lang3.StringUtils;
 
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
+import exm.stc.ast.SyntaxErrorListener;
 import exm.stc.ast.antlr.ExMParser;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
+import exm.stc.common.Profiler;
+import exm.stc.common.Profiler.Sample;
 import exm.stc.common.exceptions.DoubleDefineException;
 import exm.stc.common.exceptions.InvalidAnnotationException;
 import exm.stc.common.exceptions.InvalidConstructException;
@@ -136,10 +140,35 @@ public class ASTWalker {
     COMPILE_FUNCTIONS, // Compile functions
   }
 
-  public ASTWalker(STCMiddleEnd backend, ForeignFunctions foreignFuncs) {
+  private final CompilerOptions options;
+  private final Profiler profiler;
+
+  public ASTWalker(STCMiddleEnd backend, ForeignFunctions foreignFuncs,
+                   CompilerOptions options) {
+    this(backend, foreignFuncs, options, Profiler.DISABLED, null, null,
+         null);
+  }
+
+  /**
+   * @param backend
+   * @param foreignFuncs
+   * @param options settings for this compilation
+   * @param profiler records time taken by parsing and each frontend pass
+   * @param resolver if not null, provides source of imported modules
+   * @param errorListener if not null, receives syntax errors
+   * @param sharedModules if not null, parsed modules shared with other
+   *                      compilations
+   */
+  public ASTWalker(STCMiddleEnd backend, ForeignFunctions foreignFuncs,
+                   CompilerOptions options, Profiler profiler,
+                   ModuleResolver resolver, SyntaxErrorListener errorListener,
+                   ModuleCache sharedModules) {
     this.backend = backend;
     this.foreignFuncs = foreignFuncs;
-    this.modules = new LoadedModules();
+    this.options = options;
+    this.profiler = profiler;
+    this.modules = new LoadedModules(profiler, options, resolver,
+                                     errorListener, sharedModules);
     this.varCreator = new VarCreator(backend);
     this.wrapper = new WrapperGen(backend);
     this.exprWalker = new ExprWalker(wrapper, varCreator, backend, modules);
@@ -158,15 +187,21 @@ public class ASTWalker {
    */
   public void walk(String mainFilePath, String originalMainFilePath,
                  boolean preprocessed) throws UserException {
-
-    GlobalContext context = new GlobalContext(mainFilePath,
-                      Logging.getSTCLogger(), foreignFuncs);
-
     // Assume root module for now
     String mainModuleName =  FilenameUtils.getBaseName(originalMainFilePath);
-    LocatedModule mainModule = new LocatedModule(mainFilePath, mainModuleName,
-                                                 preprocessed);
-    LocatedModule builtins = LocatedModule.fromPath(context,
+    walk(new LocatedModule(mainFilePath, mainModuleName, preprocessed));
+  }
+
+  /**
+   * Walk the AST starting at the main module
+   * @param mainModule main module, which may be held in memory
+   * @throws UserException
+   */
+  public void walk(LocatedModule mainModule) throws UserException {
+    GlobalContext context = new GlobalContext(mainModule.filePath,
+                      Logging.getSTCLogger(), foreignFuncs, options);
+
+    LocatedModule builtins = modules.locate(context,
                           Arrays.asList("builtins"), false);
 
     /*
@@ -175,11 +210,31 @@ public class ASTWalker {
      * 2. compile top-level code, so that any variables can be referenced in funcitons
      * 3. compile functions
      */
+    Sample start = profiler.start();
     loadDefinitions(context, mainModule, builtins);
+    profiler.record(Profiler.FRONTEND, "definitions", -1, start);
 
+    start = profiler.start();
     compileTopLevel(context, mainModule, builtins);
+    profiler.record(Profiler.FRONTEND, "top-level", -1, start);
 
+    start = profiler.start();
     compileFunctions(context);
+    profiler.record(Profiler.FRONTEND, "functions", -1, start);
+  }
+
+  /**
+   * @return all modules loaded by walk, in order of inclusion
+   */
+  public List<LocatedModule> loadedModules() {
+    return modules.loadedModules();
+  }
+
+  /**
+   * @return true if lexer reported errors while loading modules
+   */
+  public boolean lexerErrors() {
+    return modules.anyLexerErrors();
   }
 
   private void loadDefinitions(GlobalContext context,
@@ -438,7 +493,7 @@ public class ASTWalker {
     // Only need to load on initial pass
     if (pass == FrontendPass.DEFINITIONS ||
         pass == FrontendPass.COMPILE_TOPLEVEL) {
-      LocatedModule module = LocatedModule.fromModuleNameAST(context,
+      LocatedModule module = modules.locate(context,
                                                     moduleID, false);
       loadModule(context, topLevelCx, pass, module);
     }
@@ -20,15 +20,14 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import exm.stc.ast.FilePosition;
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.exceptions.DoubleDefineException;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UndefinedExecContextException;
@@ -48,6 +47,7 @@ import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
 import exm.stc.common.lang.Var.SourceLoc;
 import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.util.HierarchicalMap;
 import exm.stc.common.util.StackLite;
 
 /**
@@ -70,23 +70,29 @@ public abstract class Context {
    */
   protected final Logger logger;
 
+  /*
+   * The maps below are scoped: a nested context's maps are children of
+   * its parent's, so lookups see all enclosing scopes of the function in
+   * one step.  Contexts directly under the global context start new
+   * hierarchies, and fall back to the global context.
+   */
+
   /**
      Map from variable name to Variable object
    */
-  protected final Map<String,Var> variables = new HashMap<String,Var>();
+  protected final HierarchicalMap<String,Var> variables;
 
   /**
    * Map from type name to the type object.  Most types are defined
    * in global context only, but we also have type variables with
    * restricted scope.
    */
-  protected final Map<String, Type> types = new HashMap<String, Type>();
+  protected final HierarchicalMap<String, Type> types;
 
   /**
    * Track all definitions (variables and types)
    */
-  protected final Map<String, DefInfo> allDefs =
-                                         new HashMap<String, DefInfo>();
+  protected final HierarchicalMap<String, DefInfo> allDefs;
 
   /**
    * Current input file
@@ -113,6 +119,15 @@ public abstract class Context {
     this.parent = parent;
     this.level = level;
     this.logger = logger;
+    if (parent == null || parent.parent == null) {
+      this.variables = new HierarchicalMap<String, Var>();
+      this.types = new HierarchicalMap<String, Type>();
+      this.allDefs = new HierarchicalMap<String, DefInfo>();
+    } else {
+      this.variables = parent.variables.makeChildMap();
+      this.types = parent.types.makeChildMap();
+      this.allDefs = parent.allDefs.makeChildMap();
+    }
   }
 
   /**
@@ -132,6 +147,11 @@ public abstract class Context {
    */
   public abstract ForeignFunctions getForeignFunctions();
 
+  /**
+   * @return settings for this compilation
+   */
+  public abstract CompilerOptions getOptions();
+
   /**
    * Lookup definition corresponding to name
    * @param name
@@ -441,7 +461,7 @@ public abstract class Context {
    * @return the variables which were declared in this scope
    */
   public Collection<Var> getScopeVariables() {
-    return Collections.unmodifiableCollection(variables.values());
+    return Collections.unmodifiableCollection(variables.localMap().values());
   }
 
   /**
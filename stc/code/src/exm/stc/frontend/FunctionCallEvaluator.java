@@ -339,7 +339,7 @@ public class FunctionCallEvaluator {
 
   private boolean omitFunctionCall(Context context, FnID id) {
     return context.getForeignFunctions().isAssertVariant(id) &&
-            Settings.getBooleanUnchecked(Settings.OPT_DISABLE_ASSERTS);
+            context.getOptions().getBoolean(Settings.OPT_DISABLE_ASSERTS);
   }
 
   /**
@@ -34,6 +34,7 @@ import org.apache.log4j.Logger;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.exceptions.DoubleDefineException;
 import exm.stc.common.exceptions.InvalidOverloadException;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -82,6 +83,8 @@ public class GlobalContext extends Context {
    */
   private final ForeignFunctions foreignFuncs;
 
+  private final CompilerOptions options;
+
   /**
    * Track name to exec target mapping
    * @param inputFile
@@ -93,10 +96,11 @@ public class GlobalContext extends Context {
   private final Counters<String> globalCounters = new Counters<String>();
 
   public GlobalContext(String inputFile, Logger logger,
-                        ForeignFunctions foreignFuncs) {
+                ForeignFunctions foreignFuncs, CompilerOptions options) {
     super(null, logger, 0);
     this.inputFile = inputFile;
     this.foreignFuncs = foreignFuncs;
+    this.options = options;
 
     // Add all predefined types into type name dict
     Map<String, Type> builtInTypes = Types.getBuiltInTypes();
@@ -305,6 +309,11 @@ public class GlobalContext extends Context {
     return foreignFuncs;
   }
 
+  @Override
+  public CompilerOptions getOptions() {
+    return options;
+  }
+
   @Override
   public Var lookupVarUnsafe(String variable) {
     return variables.get(variable);
@@ -312,7 +321,7 @@ public class GlobalContext extends Context {
 
   @Override
   public List<Var> getVisibleVariables() {
-    return new ArrayList<Var>(variables.values());
+    return new ArrayList<Var>(variables.localMap().values());
   }
 
   @Override
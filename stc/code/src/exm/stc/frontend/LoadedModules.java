@@ -12,8 +12,11 @@ import java.util.Set;
 
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
+import exm.stc.ast.SyntaxErrorListener;
 import exm.stc.ast.antlr.ExMParser;
-import exm.stc.common.Settings;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Profiler;
+import exm.stc.common.Profiler.Sample;
 import exm.stc.common.exceptions.InvalidSyntaxException;
 import exm.stc.common.exceptions.ModuleLoadException;
 import exm.stc.common.util.Pair;
@@ -22,6 +25,42 @@ import exm.stc.frontend.tree.Literals;
 
 public class LoadedModules {
 
+  private final Profiler profiler;
+
+  private final CompilerOptions options;
+
+  /** Cache for parsed modules, null if disabled */
+  private final ASTCache astCache;
+
+  /** Source for modules not on the search path, may be null */
+  private final ModuleResolver resolver;
+
+  /** Receives syntax errors, may be null to print them */
+  private final SyntaxErrorListener errorListener;
+
+  /** Modules shared with other compilations, may be null */
+  private final ModuleCache sharedModules;
+
+  /**
+   * @param profiler records time taken to parse each module
+   * @param options settings, including the module search path
+   * @param resolver if not null, consulted for module source before
+   *                 the module search path
+   * @param errorListener if not null, receives syntax errors
+   * @param sharedModules if not null, imported modules are looked up
+   *                 here before being parsed
+   */
+  public LoadedModules(Profiler profiler, CompilerOptions options,
+          ModuleResolver resolver, SyntaxErrorListener errorListener,
+          ModuleCache sharedModules) {
+    this.profiler = profiler;
+    this.options = options;
+    this.astCache = ASTCache.fromOptions(options);
+    this.resolver = resolver;
+    this.errorListener = errorListener;
+    this.sharedModules = sharedModules;
+  }
+
   /** Stack of input files.  Top of stack is one currently processed */
   private StackLite<ParsedModule> moduleStack = new StackLite<ParsedModule>();
 
@@ -40,6 +79,18 @@ public class LoadedModules {
     return Collections.unmodifiableList(loadedModules);
   }
 
+  /**
+   * @return true if the lexer reported errors for any loaded module
+   */
+  public boolean anyLexerErrors() {
+    for (ParsedModule parsed: loadedModuleMap.values()) {
+      if (parsed.lexerErrors) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    *
    * @param module
@@ -57,9 +108,10 @@ public class LoadedModules {
     } else {
       didLoad = true;
       // Load the file
+      Sample start = profiler.start();
       try {
-        parsed = ParsedModule.parse(module.canonicalName, module.filePath,
-                                    module.preprocessed);
+        parsed = parse(module);
+        profiler.record(Profiler.FRONTEND, "parse", -1, start);
       } catch (IOException e) {
         throw new ModuleLoadException(context, module.filePath, e);
       }
@@ -69,6 +121,20 @@ public class LoadedModules {
     return Pair.create(parsed, didLoad);
   }
 
+  private ParsedModule parse(final LocatedModule module) throws IOException {
+    ModuleCache.Parser parser = new ModuleCache.Parser() {
+      @Override
+      public ParsedModule parse() throws IOException {
+        return ParsedModule.parse(module.canonicalName, module.filePath,
+                module.source, module.preprocessed, astCache, errorListener);
+      }
+    };
+    if (sharedModules != null && ModuleCache.shareable(module)) {
+      return sharedModules.get(module, parser);
+    }
+    return parser.parse();
+  }
+
   public ParsedModule currentModule() {
     return moduleStack.peek();
   }
@@ -108,9 +174,27 @@ public class LoadedModules {
     return canonicalName;
   }
 
-  private static String locateModule(Context context, String moduleName,
+  private String locateModule(Context context, String moduleName,
                               List<String> modulePath) throws ModuleLoadException {
-    for (String searchDir: Settings.getModulePath()) {
+    String filePath = findModuleFile(options, modulePath);
+    if (filePath != null) {
+      LogHelper.debug(context, "Resolved " + moduleName + " to " + filePath);
+      return filePath;
+    }
+
+    throw new ModuleLoadException(context, "Could not find module " + moduleName +
+                  " in search path: " + options.getModulePath().toString());
+  }
+
+  /**
+   * Search for a module file in the module search path
+   * @param options settings with module search path
+   * @param modulePath components of module name
+   * @return path of first matching file, or null if not found
+   */
+  public static String findModuleFile(CompilerOptions options,
+                                      List<String> modulePath) {
+    for (String searchDir: options.getModulePath()) {
       if (searchDir.length() == 0) {
         continue;
       }
@@ -123,81 +207,115 @@ public class LoadedModules {
       String filePath = currDir + File.separator + fileName;
 
       if (new File(filePath).isFile()) {
-        LogHelper.debug(context, "Resolved " + moduleName + " to " + filePath);
         return filePath;
       }
     }
+    return null;
+  }
 
-    throw new ModuleLoadException(context, "Could not find module " + moduleName +
-                  " in search path: " + Settings.getModulePath().toString());
+
+
+  /**
+   * Create a module based on path.  This locates the module with the
+   * resolver, if any, then based on the name within the module search path
+   * @param context
+   * @param modulePath
+   * @return
+   * @throws ModuleLoadException
+   */
+  public LocatedModule locate(Context context, List<String> modulePath,
+      boolean preprocessed) throws ModuleLoadException {
+    String canonicalName = moduleCanonicalName(modulePath);
+    if (resolver != null) {
+      String source = resolver.findSource(modulePath);
+      if (source != null) {
+        LogHelper.debug(context, "Resolved " + canonicalName + " in memory");
+        return LocatedModule.fromSource(virtualPath(modulePath),
+                                        canonicalName, source);
+      }
+    }
+    String filePath = locateModule(context, canonicalName, modulePath);
+    return new LocatedModule(filePath, canonicalName, preprocessed);
   }
 
+  /**
+   * Extract a path from an AST with a module name (e.g. in an import
+   * statement), then locate the module.
+   * @param context
+   * @param moduleID
+   * @return
+   * @throws InvalidSyntaxException
+   * @throws ModuleLoadException
+   */
+  public LocatedModule locate(Context context, SwiftAST moduleID,
+      boolean preprocessed) throws InvalidSyntaxException, ModuleLoadException {
+    List<String> modulePath;
+    if (moduleID.getType() == ExMParser.STRING) {
+      // Forms:
+      //   module      => ./module.swift
+      //   pkg/module  => pkg/module.swift
+      // Implicit .swift extension added.  Relative to module search path
+      String path = Literals.extractLiteralString(context, moduleID);
+      modulePath = new ArrayList<String>();
+      for (String elem: path.split("/+")) {
+        modulePath.add(elem);
+      }
+    } else {
+      assert(moduleID.getType() == ExMParser.IMPORT_PATH);
+      // Forms:
+      // pkg        => ./module.swift
+      // pkg.module => pkg/module.swift
+      modulePath = new ArrayList<String>();
+      for (SwiftAST idT: moduleID.children()) {
+        assert(idT.getType() == ExMParser.ID);
+        modulePath.add(idT.getText());
+      }
+    }
+    return locate(context, modulePath, preprocessed);
+  }
 
+  /**
+   * Path used in error messages for module without a file
+   */
+  private static String virtualPath(List<String> modulePath) {
+    StringBuilder sb = new StringBuilder();
+    for (String component: modulePath) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(component);
+    }
+    return sb.append(".swift").toString();
+  }
 
   public static class LocatedModule {
     public final String filePath;
     public final String canonicalName;
     public final boolean preprocessed;
+    /** Source code of module if held in memory, otherwise null */
+    public final String source;
 
     public LocatedModule(String filePath, String canonicalName,
       boolean preprocessed) {
+      this(filePath, canonicalName, preprocessed, null);
+    }
+
+    private LocatedModule(String filePath, String canonicalName,
+        boolean preprocessed, String source) {
       this.filePath = filePath;
       this.canonicalName = canonicalName;
       this.preprocessed = preprocessed;
+      this.source = source;
     }
 
     /**
-     * Create a module based on path.  This locates the module based on
-     * the name within the module search path
-     * @param context
-     * @param modulePath
-     * @return
-     * @throws ModuleLoadException
+     * Module with source code in memory
+     * @param filePath path used in error messages
      */
-    public static LocatedModule fromPath(Context context, List<String> modulePath,
-        boolean preprocessed) throws ModuleLoadException {
-      String canonicalName = moduleCanonicalName(modulePath);
-      String filePath = locateModule(context, canonicalName, modulePath);
-      return new LocatedModule(filePath, canonicalName, preprocessed);
+    public static LocatedModule fromSource(String filePath,
+                          String canonicalName, String source) {
+      return new LocatedModule(filePath, canonicalName, false, source);
     }
-
-    /**
-     * Extract a path from an AST with a module name (e.g. in an import
-     * statement), then locate the module.
-     * @param context
-     * @param moduleID
-     * @return
-     * @throws InvalidSyntaxException
-     * @throws ModuleLoadException
-     */
-    public static LocatedModule fromModuleNameAST(Context context,
-        SwiftAST moduleID, boolean preprocessed)
-            throws InvalidSyntaxException, ModuleLoadException {
-      List<String> modulePath;
-      if (moduleID.getType() == ExMParser.STRING) {
-        // Forms:
-        //   module      => ./module.swift
-        //   pkg/module  => pkg/module.swift
-        // Implicit .swift extension added.  Relative to module search path
-        String path = Literals.extractLiteralString(context, moduleID);
-        modulePath = new ArrayList<String>();
-        for (String elem: path.split("/+")) {
-          modulePath.add(elem);
-        }
-      } else {
-        assert(moduleID.getType() == ExMParser.IMPORT_PATH);
-        // Forms:
-        // pkg        => ./module.swift
-        // pkg.module => pkg/module.swift
-        modulePath = new ArrayList<String>();
-        for (SwiftAST idT: moduleID.children()) {
-          assert(idT.getType() == ExMParser.ID);
-          modulePath.add(idT.getText());
-        }
-      }
-      return fromPath(context, modulePath, preprocessed);
-    }
-
   }
 
   public boolean needToCompileTopLevel(ParsedModule module) {
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.exceptions.DoubleDefineException;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UndefinedExecContextException;
@@ -99,7 +100,7 @@ public class LocalContext extends Context {
     if (result != null) {
       return result;
     } else {
-      return parent.lookupDef(name);
+      return globals.lookupDef(name);
     }
   }
 
@@ -109,7 +110,7 @@ public class LocalContext extends Context {
     result = variables.get(name);
     if (result != null)
       return result;
-    return parent.lookupVarUnsafe(name);
+    return globals.lookupVarUnsafe(name);
   }
 
   @Override
@@ -232,13 +233,18 @@ public class LocalContext extends Context {
     return globals.getForeignFunctions();
   }
 
+  @Override
+  public CompilerOptions getOptions() {
+    return globals.getOptions();
+  }
+
   @Override
   public List<Var> getVisibleVariables() {
     List<Var> result = new ArrayList<Var>();
 
     // All variable from parent visible, plus variables defined in this scope
     result.addAll(parent.getVisibleVariables());
-    result.addAll(variables.values());
+    result.addAll(variables.localMap().values());
 
     return result;
   }
@@ -255,7 +261,7 @@ public class LocalContext extends Context {
     if (t != null) {
       return t;
     } else {
-      return parent.lookupTypeUnsafe(typeName);
+      return globals.lookupTypeUnsafe(typeName);
     }
   }
 
@@ -16,7 +16,6 @@
 package exm.stc.frontend;
 
 import org.apache.log4j.Level;
-import org.apache.log4j.Logger;
 
 import exm.stc.ast.SwiftAST;
 import exm.stc.ast.antlr.ExMParser;
@@ -28,7 +27,6 @@ import exm.stc.common.Logging;
  *
  */
 public class LogHelper {
-  static final Logger logger = Logging.getSTCLogger();
   public static void logChildren(int indent, SwiftAST tree) {
     for (SwiftAST child: tree.children()) {
       trace(indent+2, child.getText());
@@ -100,7 +98,7 @@ public class LogHelper {
   }
 
   public static void log(int indent, Level level, String location, String msg) {
-    logger.log(level, logMsg(indent, location, msg));
+    Logging.getSTCLogger().log(level, logMsg(indent, location, msg));
   }
 
   private static String logMsg(int indent, String location, String msg) {
@@ -114,7 +112,7 @@ public class LogHelper {
   }
 
   public static void log(int indent, Level level, String msg) {
-    logger.log(level, logMsg(indent, msg));
+    Logging.getSTCLogger().log(level, logMsg(indent, msg));
   }
 
   private static String logMsg(int indent, String msg) {
@@ -126,10 +124,10 @@ public class LogHelper {
   }
 
   public static boolean isDebugEnabled() {
-    return logger.isDebugEnabled();
+    return Logging.getSTCLogger().isDebugEnabled();
   }
 
   public static boolean isTraceEnabled() {
-    return logger.isTraceEnabled();
+    return Logging.getSTCLogger().isTraceEnabled();
   }
 }
@@ -0,0 +1,125 @@
+package exm.stc.frontend;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.frontend.LoadedModules.LocatedModule;
+
+/**
+ * Parsed modules shared between compilations in the same JVM, so that
+ * modules imported by many programs, e.g. builtins, are only parsed once.
+ * Safe to use from concurrent compilations.
+ *
+ * The frontend annotates the tree while checking a module, so each
+ * compilation gets its own copy of the tree.  Only modules read from
+ * files without preprocessing are shared, and files are assumed not to
+ * change while the cache is in use.
+ */
+public class ModuleCache {
+
+  /** Map from canonical file path to module, or parse in progress */
+  private final ConcurrentMap<String, FutureTask<ParsedModule>> modules =
+                  new ConcurrentHashMap<String, FutureTask<ParsedModule>>();
+
+  public static interface Parser {
+    public ParsedModule parse() throws IOException;
+  }
+
+  /**
+   * @param module
+   * @return true if module can be shared
+   */
+  public static boolean shareable(LocatedModule module) {
+    return module.source == null && !module.preprocessed;
+  }
+
+  /**
+   * Get a copy of the module, parsing it first if it isn't cached.
+   * Modules that fail to parse or that have lexer errors are not kept,
+   * so that each compilation that loads them reports the errors.
+   * @param module a shareable module
+   * @param parser called to parse module if not cached
+   * @return
+   * @throws IOException
+   */
+  public ParsedModule get(LocatedModule module, final Parser parser)
+                                                   throws IOException {
+    assert(shareable(module));
+    String key = ParsedModule.getCanonicalFilePath(module.filePath);
+    FutureTask<ParsedModule> task = modules.get(key);
+    boolean owner = false;
+    if (task == null) {
+      FutureTask<ParsedModule> newTask = new FutureTask<ParsedModule>(
+          new Callable<ParsedModule>() {
+            @Override
+            public ParsedModule call() throws IOException {
+              return parser.parse();
+            }
+          });
+      task = modules.putIfAbsent(key, newTask);
+      if (task == null) {
+        task = newTask;
+        owner = true;
+        task.run();
+      }
+    }
+
+    ParsedModule parsed;
+    try {
+      parsed = getResult(task);
+    } catch (IOException e) {
+      modules.remove(key, task);
+      throw e;
+    } catch (STCFatal e) {
+      modules.remove(key, task);
+      if (!owner) {
+        // Errors were reported to other compilation: parse again
+        return parser.parse();
+      }
+      throw e;
+    }
+
+    if (parsed.lexerErrors) {
+      modules.remove(key, task);
+      if (!owner) {
+        return parser.parse();
+      }
+      return parsed;
+    }
+    return parsed.copy();
+  }
+
+  private static ParsedModule getResult(FutureTask<ParsedModule> task)
+                                                   throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new STCRuntimeError("Unexpected error parsing module", cause);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package exm.stc.frontend;
+
+import java.util.List;
+
+/**
+ * Provides source code for modules without reading it from the module
+ * search path, e.g. for programs generated in memory.
+ */
+public interface ModuleResolver {
+  /**
+   * @param modulePath components of module name, e.g. [pkg, module] for
+   *                   import pkg.module
+   * @return source code of module, or null to search the module path
+   */
+  public String findSource(List<String> modulePath);
+}
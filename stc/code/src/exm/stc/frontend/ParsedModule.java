@@ -1,5 +1,6 @@
 package exm.stc.frontend;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -11,13 +12,16 @@ import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTreeAdaptor;
+import org.apache.commons.io.IOUtils;
 
 import exm.stc.ast.FilePosition.LineMapping;
 import exm.stc.ast.SwiftAST;
+import exm.stc.ast.SyntaxErrorListener;
 import exm.stc.ast.antlr.ExMLexer;
 import exm.stc.ast.antlr.ExMParser;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.util.Pair;
 import exm.stc.ui.ExitCode;
 
 /**
@@ -26,11 +30,12 @@ import exm.stc.ui.ExitCode;
 public class ParsedModule {
 
   public ParsedModule(String moduleName, String filePath, SwiftAST ast,
-                      LineMapping lineMapping) {
+                      LineMapping lineMapping, boolean lexerErrors) {
     this.moduleName = moduleName;
     this.inputFilePath = filePath;
     this.ast = ast;
     this.lineMapping = lineMapping;
+    this.lexerErrors = lexerErrors;
   }
 
   /** Canonical name for module */
@@ -38,6 +43,17 @@ public class ParsedModule {
   public final String inputFilePath;
   public final SwiftAST ast;
   public final LineMapping lineMapping;
+  /** True if lexer reported errors that it recovered from */
+  public final boolean lexerErrors;
+
+  /**
+   * @return module with a copy of the tree, so that it can be annotated
+   *         separately
+   */
+  public ParsedModule copy() {
+    return new ParsedModule(moduleName, inputFilePath, ast.copyTree(),
+                            lineMapping, lexerErrors);
+  }
 
   /**
    * Parse the specified file and create a ParsedModule object
@@ -48,9 +64,41 @@ public class ParsedModule {
    */
   public static ParsedModule parse(String moduleName, String path,
                                    boolean preprocessed) throws IOException {
-    FileInputStream inputStream = setupInput(path);
+    return parse(moduleName, path, null, preprocessed, null, null);
+  }
+
+  /**
+   * Parse a module, reading it from memory if source is provided
+   * @param path file path for module, used in error messages
+   * @param source source code of module, or null to read path
+   * @param astCache if not null, cache to look up and store the tree in
+   * @param errorListener if not null, receives syntax errors instead of
+   *                      them being printed
+   * @return
+   * @throws IOException
+   */
+  public static ParsedModule parse(String moduleName, String path,
+          String source, boolean preprocessed, ASTCache astCache,
+          SyntaxErrorListener errorListener) throws IOException {
+    byte[] content = source != null ? source.getBytes("UTF-8")
+                                    : readInput(path);
+
+    // Preprocessor output is in a fresh temporary file every time,
+    // so there is no point caching it.  In-memory sources don't have
+    // a file to key the cache on.
+    ASTCache cache = (preprocessed || source != null) ? null : astCache;
+    String cacheKey = null;
+    if (cache != null) {
+      cacheKey = cache.key(getCanonicalFilePath(path), content);
+      ParsedModule cached = cache.lookup(cacheKey, moduleName, path);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
     /* Parse the input file and build AST */
-    ANTLRInputStream antlrInput = new ANTLRInputStream(inputStream);
+    ANTLRInputStream antlrInput = new ANTLRInputStream(
+                                    new ByteArrayInputStream(content));
     LineMapping lineMapping;
     if (preprocessed) {
       int startMark = antlrInput.mark();
@@ -60,9 +108,16 @@ public class ParsedModule {
       // Treat # lines as comments.  All input from same file
       lineMapping = LineMapping.makeSimple(path);
     }
-    SwiftAST tree = runANTLR(antlrInput, lineMapping);
+    Pair<SwiftAST, Boolean> parsed = runANTLR(antlrInput, lineMapping,
+                                              errorListener);
 
-    return new ParsedModule(moduleName, path, tree, lineMapping);
+    ParsedModule result = new ParsedModule(moduleName, path, parsed.val1,
+                                           lineMapping, parsed.val2);
+    // Don't cache if we would lose lexer error messages
+    if (cache != null && !result.lexerErrors) {
+      cache.store(cacheKey, result);
+    }
+    return result;
   }
   /**
    * @param filePath
@@ -78,7 +133,7 @@ public class ParsedModule {
     return this.moduleName;
   }
 
-  private static FileInputStream setupInput(String inputFilename) {
+  private static byte[] readInput(String inputFilename) throws IOException {
     FileInputStream input = null;
     try {
       input = new FileInputStream(inputFilename);
@@ -87,20 +142,27 @@ public class ParsedModule {
                                             e.getMessage());
       throw new STCFatal(ExitCode.ERROR_IO.code());
     }
-    return input;
+    try {
+      return IOUtils.toByteArray(input);
+    } finally {
+      input.close();
+    }
   }
 
   /**
      Use ANTLR to parse the input and get the Tree
-   * @throws IOException
+   * @return the tree, and true if the lexer reported errors
    */
-  private static SwiftAST runANTLR(ANTLRInputStream input, LineMapping lineMap) {
+  private static Pair<SwiftAST, Boolean> runANTLR(ANTLRInputStream input,
+                      LineMapping lineMap, SyntaxErrorListener errorListener) {
 
     ExMLexer lexer = new ExMLexer(input);
     lexer.lineMap = lineMap;
+    lexer.errorListener = errorListener;
     CommonTokenStream tokens = new CommonTokenStream(lexer);
     ExMParser parser = new ExMParser(tokens);
     parser.lineMap = lineMap;
+    parser.errorListener = errorListener;
     parser.setTreeAdaptor(new SwTreeAdaptor());
 
     // Launch parsing
@@ -124,7 +186,9 @@ public class ParsedModule {
      */
     if (parser.parserError) {
       // This is a user error
-      System.err.println("Error occurred during parsing.");
+      if (errorListener == null) {
+        System.err.println("Error occurred during parsing.");
+      }
       throw new STCFatal(ExitCode.ERROR_USER.code());
     }
 
@@ -135,7 +199,7 @@ public class ParsedModule {
 
     SwiftAST tree = (SwiftAST) program.getTree();
 
-    return tree;
+    return Pair.create(tree, lexer.lexerError);
   }
 
   /**
@@ -808,8 +808,7 @@ class VariableUsageAnalyzer {
     SwiftAST moduleID = tree.child(0);
 
     // Need to recurse right away to get statement order right
-    LocatedModule module = LocatedModule.fromModuleNameAST(context,
-                                                    moduleID, false);
+    LocatedModule module = modules.locate(context, moduleID, false);
 
     Pair<ParsedModule, Boolean> loaded = modules.loadIfNeeded(context, module);
     ParsedModule newModule = loaded.val1;
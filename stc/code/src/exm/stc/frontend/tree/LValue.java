@@ -267,7 +267,7 @@ public class LValue {
       return null;
     }
 
-    if (!Settings.getBooleanUnchecked(Settings.AUTO_DECLARE)) {
+    if (!context.getOptions().getBoolean(Settings.AUTO_DECLARE)) {
       throw UndefinedVarError.fromName(context, this.varName);
     }
 
@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -33,6 +32,7 @@ import exm.stc.common.lang.PassedVar;
 import exm.stc.common.lang.TaskProp.TaskPropKey;
 import exm.stc.common.lang.TaskProp.TaskProps;
 import exm.stc.common.lang.Var;
+import exm.stc.common.util.GapList;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.CleanupAction;
@@ -161,13 +161,20 @@ public class ICUtil {
    * @param replacements
    * @param vars
    */
-  public static void replaceVarsInList(Map<Var, Arg> replacements,
+  /**
+   * @return true if the list was changed
+   */
+  public static boolean replaceVarsInList(Map<Var, Arg> replacements,
       List<Var> vars, boolean removeDupes) {
-    replaceVarsInList(replacements, vars, removeDupes, true);
+    return replaceVarsInList(replacements, vars, removeDupes, true);
   }
 
-  public static void replaceVarsInList(Map<Var, Arg> replacements,
+  /**
+   * @return true if the list was changed
+   */
+  public static boolean replaceVarsInList(Map<Var, Arg> replacements,
         List<Var> vars, boolean removeDupes, boolean removeMapped) {
+    boolean changed = false;
     // Remove new duplicates
     ArrayList<Var> alreadySeen = null;
     if (removeDupes) {
@@ -182,8 +189,10 @@ public class ICUtil {
         if (oa.isVar()) {
           if (removeDupes &&  alreadySeen.contains(oa.getVar())) {
             it.remove();
+            changed = true;
           } else {
             it.set(oa.getVar());
+            changed = changed || oa.getVar() != v;
             if (removeDupes) {
               alreadySeen.add(oa.getVar());
             }
@@ -193,12 +202,14 @@ public class ICUtil {
         if (removeDupes) {
           if (alreadySeen.contains(v)) {
             it.remove();
+            changed = true;
           } else {
             alreadySeen.add(v);
           }
         }
       }
     }
+    return changed;
   }
 
   public static void removeDuplicates(List<Var> varList) {
@@ -214,16 +225,23 @@ public class ICUtil {
     }
   }
 
-  public static void replaceArgsInList(Map<Var, Arg> renames,
+  /**
+   * @return true if the list was changed
+   */
+  public static boolean replaceArgsInList(Map<Var, Arg> renames,
       List<Arg> args) {
-    replaceArgsInList(renames, args, false);
+    return replaceArgsInList(renames, args, false);
   }
 
-  public static void replaceArgsInList(Map<Var, Arg> renames,
+  /**
+   * @return true if the list was changed
+   */
+  public static boolean replaceArgsInList(Map<Var, Arg> renames,
       List<Arg> args, boolean nullsOk) {
     if (renames.isEmpty()) {
-      return;
+      return false;
     }
+    boolean changed = false;
     for (int i = 0; i < args.size(); i++) {
       Arg oa = args.get(i);
       if (oa == null) {
@@ -237,9 +255,11 @@ public class ICUtil {
         Arg val = renames.get(oa.getVar());
         if (val != null) {
           args.set(i, val);
+          changed = changed || argChanged(oa, val);
         }
       }
     }
+    return changed;
   }
 
   /**
@@ -265,20 +285,44 @@ public class ICUtil {
     return oa;
   }
 
-  public static <K> void replaceArgValsInMap(Map<Var, Arg> renames, Map<K, Arg> map) {
+  /**
+   * @return true if the map was changed
+   */
+  /**
+   * Check if replacing an argument changed it.  Variables are compared by
+   * identity, since variables with the same name may differ in other
+   * attributes.
+   * @return true if replacing oldArg with newArg changed it
+   */
+  public static boolean argChanged(Arg oldArg, Arg newArg) {
+    if (oldArg == null || newArg == null) {
+      return oldArg != newArg;
+    } else if (oldArg.isVar() || newArg.isVar()) {
+      return !oldArg.isVar() || !newArg.isVar() ||
+             oldArg.getVar() != newArg.getVar();
+    } else {
+      return !oldArg.equals(newArg);
+    }
+  }
+
+  public static <K> boolean replaceArgValsInMap(Map<Var, Arg> renames,
+                                                Map<K, Arg> map) {
+    boolean changed = false;
     for (Entry<K, Arg> e: map.entrySet()) {
       Arg val = e.getValue();
       if (val.isVar() && renames.containsKey(val.getVar())) {
         Arg newVal = renames.get(val.getVar());
         assert(newVal != null);
         e.setValue(newVal);
+        changed = changed || argChanged(val, newVal);
       }
     }
+    return changed;
   }
 
-  public static LinkedList<Statement> cloneStatements(
+  public static GapList<Statement> cloneStatements(
       List<Statement> stmts) {
-    LinkedList<Statement> output = new LinkedList<Statement>();
+    GapList<Statement> output = new GapList<Statement>(stmts.size());
     for (Statement stmt: stmts) {
       output.add(stmt.cloneStatement());
     }
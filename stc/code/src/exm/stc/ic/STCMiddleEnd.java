@@ -28,6 +28,8 @@ import com.google.common.collect.ArrayListMultimap;
 
 import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Profiler;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UndefinedTypeException;
 import exm.stc.common.exceptions.UserException;
@@ -108,14 +110,19 @@ public class STCMiddleEnd {
 //Place to log IC to (can be null for no output)
   private PrintStream icOutput;
 
+  private final Profiler profiler;
+
   private Block currBlock() {
     return blockStack.peek();
   }
 
-  public STCMiddleEnd(Logger logger, PrintStream icOutput, ForeignFunctions foreignFuncs) {
+  public STCMiddleEnd(Logger logger, PrintStream icOutput,
+                      Profiler profiler, ForeignFunctions foreignFuncs,
+                      CompilerOptions options) {
     this.logger = logger;
-    this.program = new Program(foreignFuncs);
+    this.program = new Program(foreignFuncs, options);
     this.icOutput = icOutput;
+    this.profiler = profiler;
 
     initDefaults();
   }
@@ -127,10 +134,17 @@ public class STCMiddleEnd {
 
   public void optimize() throws UserException {
     logger.debug("Optimising Swift IC");
-    this.program = ICOptimizer.optimize(logger, icOutput, program);
+    this.program = ICOptimizer.optimize(logger, icOutput, profiler, program);
     logger.debug("Optimisation done");
   }
 
+  /**
+   * @return the intermediate code for the program
+   */
+  public Program program() {
+    return program;
+  }
+
   /**
    * Recreate an equivalent series of calls that were used
    * to create the program
@@ -2,7 +2,6 @@ package exm.stc.ic.componentaliases;
 
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -16,7 +15,10 @@ import com.google.common.collect.ListMultimap;
 import exm.stc.common.Logging;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Var;
+import exm.stc.common.lang.VarIndex;
+import exm.stc.common.lang.VarSet;
 import exm.stc.common.util.HierarchicalSet;
+import exm.stc.common.util.IntMap;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
@@ -63,9 +65,14 @@ public class ComponentGraph {
   private int nextNodeID;
 
   /**
-   * Track existing nodes
+   * IDs for vars, shared with client
    */
-  private final Map<Var, Node> varNodes;
+  private final VarIndex varIndex;
+
+  /**
+   * Track existing nodes, keyed by var ID
+   */
+  private final IntMap<Node> varNodes;
 
   /**
    * Track existing anonymous nodes, identified by (parent, field)
@@ -76,9 +83,10 @@ public class ComponentGraph {
   private final ListMultimap<Node, Edge> children;
   private final ListMultimap<Node, Node> aliases;
 
-  public ComponentGraph() {
+  public ComponentGraph(VarIndex varIndex) {
     this.nextNodeID = 0;
-    this.varNodes = new HashMap<Var, Node>();
+    this.varIndex = varIndex;
+    this.varNodes = new IntMap<Node>();
     this.anonNodes = new HashMap<Pair<Node, Arg>, Node>();
     this.parents = ArrayListMultimap.create();
     this.children = ArrayListMultimap.create();
@@ -110,10 +118,11 @@ public class ComponentGraph {
    * @return
    */
   private Node getVarNode(Var var) {
-    Node node = varNodes.get(var);
+    int id = varIndex.id(var);
+    Node node = varNodes.get(id);
     if (node == null) {
       node = new Node(var, nextNodeID++);
-      varNodes.put(var, node);
+      varNodes.put(id, node);
     }
     return node;
   }
@@ -216,14 +225,15 @@ public class ComponentGraph {
    * @return
    */
   public Set<Var> findPotentialAliases(Component component) {
-    HashSet<Var> result = new HashSet<Var>();
+    VarSet result = new VarSet(varIndex);
     findPotentialAliases(component.var, component.key, result);
     return result;
   }
 
   public void findPotentialAliases(Var var, List<Arg> componentPath,
                                     Set<Var> results) {
-    Node node = varNodes.get(var);
+    int id = varIndex.find(var);
+    Node node = id < 0 ? null : varNodes.get(id);
 
     if (node != null) {
       // Setup stack with current path
@@ -238,15 +248,14 @@ public class ComponentGraph {
 
     // Iteratively check all results for more aliases so we don't miss any
     // TODO: not so elegant, can result in multiple visits to nodes
-    Set<Var> toProcess = new HashSet<Var>();
-    toProcess.addAll(results);
+    Set<Var> toProcess = new VarSet(varIndex, results);
 
     while (!toProcess.isEmpty()) {
-      Set<Var> newResults = new HashSet<Var>();
+      Set<Var> newResults = new VarSet(varIndex);
 
       for (Var processAlias: toProcess) {
         // Locate any additional aliases of newly added var
-        walkUpRec(varNodes.get(processAlias), newResults,
+        walkUpRec(varNodes.get(varIndex.id(processAlias)), newResults,
                   new StackLite<Pair<Node, Arg>>(),
                   new HierarchicalSet<Pair<Node, Integer>>());
       }
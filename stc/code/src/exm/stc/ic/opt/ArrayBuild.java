@@ -27,6 +27,7 @@ import exm.stc.common.util.Pair;
 import exm.stc.ic.aliases.AliasKey;
 import exm.stc.ic.aliases.AliasTracker;
 import exm.stc.ic.opt.InitVariables.InitState;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -42,7 +43,7 @@ import exm.stc.ic.tree.TurbineOp;
  * Try to merge multiple array inserts into a single build instruction.
  * TODO: optimise multisets
  */
-public class ArrayBuild implements OptimizerPass {
+public class ArrayBuild extends FunctionLocalPass {
 
   @Override
   public String getPassName() {
@@ -55,12 +56,10 @@ public class ArrayBuild implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) throws UserException {
-    Map<FnID, Function> funcMap = prog.getFunctionMap();
-    for (Function f: prog.functions()) {
-      ArrayInfo info = buildInfo(logger, funcMap, f);
-      optimize(logger, f, info);
-    }
+  public void optimize(Logger logger, Program prog, Function f)
+                                                throws UserException {
+    ArrayInfo info = buildInfo(logger, prog.getFunctionMap(), f);
+    optimize(logger, f, info);
   }
 
   private static class ArrayInfo {
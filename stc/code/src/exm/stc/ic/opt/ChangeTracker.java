@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
+import exm.stc.ic.tree.ICTree.BuiltinFunction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+
+/**
+ * Tracks which functions change in each optimizer iteration, so that
+ * function-local passes can skip functions they have already optimized.
+ *
+ * Functions are compared by a fingerprint of their intermediate code,
+ * computed at the start and end of each iteration.  If an iteration
+ * leaves a function unchanged, the passes run in that iteration are
+ * taken to have reached a fixpoint for the function: running a pass
+ * with the same configuration on the same code gives the same result.
+ * In later iterations each of those passes skips the function until
+ * something changes it.
+ *
+ * Function-local passes can read other functions' signatures and the
+ * global constants, so those are fingerprinted separately and any change
+ * to them invalidates all recorded fixpoints.
+ *
+ * Fingerprints are only recomputed at iteration boundaries and after
+ * passes that aren't function-local, since computing them after every
+ * pass costs more than is saved.
+ *
+ * Passes that opt in with {@link FunctionLocalPass#skipUnmodified()}
+ * are also skipped within and across iterations for functions where
+ * their last run made no change, if the function's modification epoch
+ * and the context are the same as then.  Only no-op runs are recorded,
+ * so passes don't need to reach a fixpoint in one run.  Here a missed
+ * epoch update can only cause a missed optimization, since skipping a
+ * function-local pass is always safe.  That isn't true of passes that
+ * remove code based on the {@link ProgramIndex}, so those rebuild the
+ * index from scratch first.
+ */
+public class ChangeTracker {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Fingerprints of functions at start of iteration.  Functions are
+   * compared by identity since some passes replace them.
+   */
+  private final Map<Function, Long> fingerprints =
+                              new IdentityHashMap<Function, Long>();
+
+  /** Fingerprint of program-wide state at start of iteration */
+  private long context;
+
+  /**
+   * Latest fingerprint of program-wide state.  Only kept up to date
+   * until the context changes in an iteration, then recomputed when
+   * needed.
+   */
+  private long currentContext;
+  private boolean currentContextKnown;
+
+  /**
+   * Functions that may have changed in this iteration.  Passes can't
+   * skip these for the rest of the iteration.
+   */
+  private final Set<Function> dirty = Collections.newSetFromMap(
+                              new IdentityHashMap<Function, Boolean>());
+
+  /** True if program-wide state may have changed in this iteration */
+  private boolean contextDirty;
+
+  /** Keys of passes run in this iteration */
+  private final Set<String> passesRun = new HashSet<String>();
+
+  /**
+   * For each pass configuration, functions the pass is at a fixpoint
+   * for, with the combined function and context fingerprints.
+   */
+  private final Map<String, Map<Function, Long>> fixpoints =
+                              new HashMap<String, Map<Function, Long>>();
+
+  /**
+   * For passes that skip unmodified functions, functions where the last
+   * run of the pass made no change, with the function epoch and context
+   * fingerprint at the time.
+   */
+  private final Map<String, Map<Function, NoopRun>> noopRuns =
+                              new HashMap<String, Map<Function, NoopRun>>();
+
+  /**
+   * Function epochs and context before the current pass was run, if it
+   * skips unmodified functions
+   */
+  private final Map<Function, Long> passStartEpochs =
+                              new IdentityHashMap<Function, Long>();
+  private long passStartContext;
+
+  /** Number of times passes were skipped because of epochs */
+  private long epochSkips = 0;
+
+  private static class NoopRun {
+    final long epoch;
+    final long context;
+
+    NoopRun(long epoch, long context) {
+      this.epoch = epoch;
+      this.context = context;
+    }
+  }
+
+  public void startIteration(Program program) {
+    context = contextFingerprint(program);
+    currentContext = context;
+    currentContextKnown = true;
+    fingerprints.keySet().retainAll(identitySet(program.functions()));
+    for (Function f: program.functions()) {
+      if (dirty.contains(f) || !fingerprints.containsKey(f)) {
+        fingerprints.put(f, fingerprint(f));
+      }
+    }
+    dirty.clear();
+    contextDirty = false;
+    passesRun.clear();
+  }
+
+  /**
+   * @return functions that the pass needs to be run on
+   */
+  public List<Function> functionsToOptimize(Program program,
+                                            FunctionLocalPass pass) {
+    String key = pass.getFixpointKey();
+    passesRun.add(key);
+
+    Map<Function, Long> passFixpoints = fixpoints.get(key);
+    Map<Function, NoopRun> passNoopRuns = noopRuns.get(key);
+    passStartEpochs.clear();
+    if (pass.skipUnmodified()) {
+      passStartContext = currentContext(program);
+    }
+    List<Function> result = new ArrayList<Function>();
+    for (Function f: program.functions()) {
+      if (contextDirty || dirty.contains(f) || passFixpoints == null ||
+          !isFixpoint(passFixpoints, f)) {
+        if (passNoopRuns != null && isUnmodified(passNoopRuns, f)) {
+          epochSkips++;
+        } else {
+          result.add(f);
+          if (pass.skipUnmodified()) {
+            passStartEpochs.put(f, f.modifiedEpoch());
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean isUnmodified(Map<Function, NoopRun> passNoopRuns,
+                               Function f) {
+    NoopRun run = passNoopRuns.get(f);
+    return run != null && run.context == passStartContext &&
+           !f.modifiedSince(run.epoch);
+  }
+
+  private long currentContext(Program program) {
+    if (!currentContextKnown) {
+      currentContext = contextFingerprint(program);
+      currentContextKnown = true;
+    }
+    return currentContext;
+  }
+
+  private boolean isFixpoint(Map<Function, Long> passFixpoints, Function f) {
+    Long fixpoint = passFixpoints.get(f);
+    Long fingerprint = fingerprints.get(f);
+    return fixpoint != null && fingerprint != null &&
+           fixpoint.longValue() == combine(fingerprint, context);
+  }
+
+  /**
+   * Must be called after a function-local pass is run
+   * @param optimized functions the pass was run on
+   */
+  public void passFinished(Program program, FunctionLocalPass pass,
+                           List<Function> optimized) {
+    dirty.addAll(optimized);
+    if (!optimized.isEmpty()) {
+      // Pass may have added global constants
+      checkContext(program);
+    }
+
+    if (pass.skipUnmodified()) {
+      String key = pass.getFixpointKey();
+      Map<Function, NoopRun> passNoopRuns = noopRuns.get(key);
+      if (passNoopRuns == null) {
+        passNoopRuns = new IdentityHashMap<Function, NoopRun>();
+        noopRuns.put(key, passNoopRuns);
+      }
+      for (Function f: optimized) {
+        long startEpoch = passStartEpochs.get(f);
+        if (f.modifiedSince(startEpoch)) {
+          passNoopRuns.remove(f);
+        } else {
+          passNoopRuns.put(f, new NoopRun(startEpoch, passStartContext));
+        }
+      }
+    }
+    passStartEpochs.clear();
+  }
+
+  /**
+   * @return number of times a pass was skipped for a function because
+   *         it was unmodified since the pass last made no change
+   */
+  public long epochSkips() {
+    return epochSkips;
+  }
+
+  /**
+   * Must be called after the program is modified other than by a
+   * function-local pass, since any function may have changed.
+   */
+  public void programModified(Program program) {
+    checkContext(program);
+    for (Function f: program.functions()) {
+      if (!dirty.contains(f)) {
+        Long fingerprint = fingerprints.get(f);
+        if (fingerprint == null || fingerprint.longValue() != fingerprint(f)) {
+          dirty.add(f);
+        }
+      }
+    }
+  }
+
+  private void checkContext(Program program) {
+    if (contextDirty) {
+      // Already know context changed, so defer until needed
+      currentContextKnown = false;
+    } else {
+      currentContext = contextFingerprint(program);
+      currentContextKnown = true;
+      contextDirty = currentContext != context;
+    }
+  }
+
+  /**
+   * Record fixpoints for functions unchanged in this iteration
+   * @return true if anything changed in this iteration
+   */
+  public boolean endIteration(Program program) {
+    checkContext(program);
+    boolean changed = contextDirty;
+    if (contextDirty) {
+      fixpoints.clear();
+    }
+
+    Set<Function> current = identitySet(program.functions());
+    if (!current.equals(fingerprints.keySet())) {
+      // Functions were added or removed
+      changed = true;
+    }
+    for (Map<Function, Long> passFixpoints: fixpoints.values()) {
+      passFixpoints.keySet().retainAll(current);
+    }
+    for (Map<Function, NoopRun> passNoopRuns: noopRuns.values()) {
+      passNoopRuns.keySet().retainAll(current);
+    }
+
+    for (Function f: program.functions()) {
+      Long oldFingerprint = fingerprints.get(f);
+      long fingerprint;
+      if (oldFingerprint != null && !dirty.contains(f)) {
+        fingerprint = oldFingerprint;
+      } else {
+        fingerprint = fingerprint(f);
+        fingerprints.put(f, fingerprint);
+      }
+
+      if (oldFingerprint == null || oldFingerprint.longValue() != fingerprint) {
+        changed = true;
+      } else if (!contextDirty) {
+        for (String key: passesRun) {
+          Map<Function, Long> passFixpoints = fixpoints.get(key);
+          if (passFixpoints == null) {
+            passFixpoints = new IdentityHashMap<Function, Long>();
+            fixpoints.put(key, passFixpoints);
+          }
+          passFixpoints.put(f, combine(fingerprint, context));
+        }
+      }
+    }
+
+    // Fingerprints are now up to date
+    dirty.clear();
+    return changed;
+  }
+
+  private static Set<Function> identitySet(List<Function> functions) {
+    Set<Function> result = Collections.newSetFromMap(
+                              new IdentityHashMap<Function, Boolean>());
+    result.addAll(functions);
+    return result;
+  }
+
+  private static long fingerprint(Function f) {
+    StringBuilder sb = new StringBuilder();
+    f.prettyPrint(sb);
+    sb.append(f.mode());
+    return hash(sb);
+  }
+
+  private static long contextFingerprint(Program program) {
+    StringBuilder sb = new StringBuilder();
+    Iterator<BuiltinFunction> builtins = program.builtinIterator();
+    while (builtins.hasNext()) {
+      builtins.next().prettyPrint(sb);
+    }
+    program.constants().prettyPrint(sb);
+    program.globalVars().prettyPrint(sb);
+    for (Function f: program.functions()) {
+      f.prettyPrintSignature(sb);
+      sb.append(f.mode());
+      sb.append("\n");
+    }
+    return hash(sb);
+  }
+
+  private static long hash(CharSequence s) {
+    return Hashing.murmur3_128().hashString(s, UTF8).asLong();
+  }
+
+  private static long combine(long fingerprint, long context) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putLong(fingerprint);
+    h.putLong(context);
+    return h.hash().asLong();
+  }
+}
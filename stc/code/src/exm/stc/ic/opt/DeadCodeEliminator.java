@@ -17,7 +17,6 @@ package exm.stc.ic.opt;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -32,12 +31,15 @@ import exm.stc.common.Settings;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Var;
+import exm.stc.common.lang.VarIndex;
+import exm.stc.common.lang.VarSet;
 import exm.stc.common.util.StackLite;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.componentaliases.Component;
 import exm.stc.ic.componentaliases.ComponentAlias;
 import exm.stc.ic.componentaliases.ComponentGraph;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
@@ -48,7 +50,7 @@ import exm.stc.ic.tree.ICTree.Statement;
 import exm.stc.ic.tree.ICTree.StatementType;
 import exm.stc.ic.tree.Opcode;
 
-public class DeadCodeEliminator implements OptimizerPass {
+public class DeadCodeEliminator extends FunctionLocalPass {
 
   @Override
   public String getPassName() {
@@ -60,11 +62,18 @@ public class DeadCodeEliminator implements OptimizerPass {
     return Settings.OPT_DEAD_CODE_ELIM;
   }
 
+  /**
+   * Only depends on function and global variables
+   */
   @Override
-  public void optimize(Logger logger, Program program) throws UserException {
-    for (Function f: program.functions()) {
-      eliminate(logger, f, program.globalVars());
-    }
+  public boolean skipUnmodified() {
+    return true;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program program, Function f)
+                                                    throws UserException {
+    eliminate(logger, f, program.globalVars());
   }
 
   /**
@@ -110,11 +119,14 @@ public class DeadCodeEliminator implements OptimizerPass {
    */
   private static boolean eliminateIter(Logger logger, Function f,
                                         GlobalVars globalVars) {
+    /* Dense IDs for vars, so that sets below are bitsets */
+    VarIndex varIndex = new VarIndex();
+
     /* All vars defined in function blocks that could possibly be eliminated */
-    HashSet<Var> removeCandidates = new HashSet<Var>();
+    VarSet removeCandidates = new VarSet(varIndex);
 
     /* Set of vars that are definitely required */
-    HashSet<Var> needed = new HashSet<Var>();
+    VarSet needed = new VarSet(varIndex);
     needed.addAll(globalVars.variables());
 
     /* List of vars that were written.  Need to ensure that all variables
@@ -127,7 +139,7 @@ public class DeadCodeEliminator implements OptimizerPass {
     ListMultimap<Var, Var> dependencyGraph = ArrayListMultimap.create();
 
     /* Track components so that we know if a write from A may flow to B*/
-    ComponentGraph components = new ComponentGraph();
+    ComponentGraph components = new ComponentGraph(varIndex);
 
     walkFunction(logger, f, removeCandidates, needed, dependencyGraph,
                  modifiedComponents, components);
@@ -208,7 +220,7 @@ public class DeadCodeEliminator implements OptimizerPass {
    * @param components
    */
   private static void walkFunction(Logger logger, Function f,
-      HashSet<Var> removeCandidates, HashSet<Var> needed,
+      VarSet removeCandidates, VarSet needed,
       ListMultimap<Var, Var> dependencyGraph, List<Component> modifiedComponents,
       ComponentGraph components) {
     StackLite<Block> workStack = new StackLite<Block>();
@@ -242,7 +254,7 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkInstructions(Logger logger,
-      Block block, HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
+      Block block, VarSet needed, ListMultimap<Var, Var> dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
     ListIterator<Statement> it = block.statementIterator();
     while (it.hasNext()) {
@@ -259,7 +271,7 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkInstruction(Logger logger, Instruction inst,
-      HashSet<Var> needed, ListMultimap<Var, Var> dependencyGraph,
+      VarSet needed, ListMultimap<Var, Var> dependencyGraph,
       List<Component> modifiedComponents, ComponentGraph components) {
     // If it has side-effects, need all inputs and outputs
     if (inst.hasSideEffects()) {
@@ -356,7 +368,7 @@ public class DeadCodeEliminator implements OptimizerPass {
   }
 
   private static void walkBlockVars(Block block,
-      HashSet<Var> removeCandidates, ListMultimap<Var, Var> dependencyGraph) {
+      VarSet removeCandidates, ListMultimap<Var, Var> dependencyGraph) {
     for (Var v: block.variables()) {
       if (!v.storage().isGlobal()) {
         removeCandidates.add(v);
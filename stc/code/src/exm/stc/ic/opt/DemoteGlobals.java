@@ -2,6 +2,7 @@ package exm.stc.ic.opt;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -15,10 +16,7 @@ import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
-import exm.stc.ic.tree.ICContinuations.Continuation;
-import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.Block;
-import exm.stc.ic.tree.ICTree.CleanupAction;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 import exm.stc.ic.tree.ICTree.RenameMode;
@@ -30,6 +28,15 @@ import exm.stc.ic.tree.ICTree.RenameMode;
  */
 public class DemoteGlobals implements OptimizerPass {
 
+  private final ProgramIndex index;
+
+  /**
+   * @param index index of program to be optimized
+   */
+  public DemoteGlobals(ProgramIndex index) {
+    this.index = index;
+  }
+
   @Override
   public String getPassName() {
     return "demote globals";
@@ -42,7 +49,14 @@ public class DemoteGlobals implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
+    assert(index.program() == program);
     Set<Var> globals = findGlobalsToDemote(logger, program);
+    if (!globals.isEmpty()) {
+      // Check with all functions walked again, since demoting a global
+      // still used elsewhere would give wrong code
+      index.reindexAll();
+      globals = findGlobalsToDemote(logger, program);
+    }
 
     demoteGlobals(logger, program, globals);
   }
@@ -50,54 +64,25 @@ public class DemoteGlobals implements OptimizerPass {
   private Set<Var> findGlobalsToDemote(Logger logger, Program program) {
     Set<Var> candidates = new HashSet<Var>(program.globalVars().variables());
 
-    for (Function f: program.functions()) {
-      if (!f.id().equals(FnID.ENTRY_FUNCTION)) {
-        TreeWalk.walk(logger, f, new DemoteGlobalsWalker(candidates));
-      }
-    }
-    return candidates;
-  }
-
-  private static class DemoteGlobalsWalker extends TreeWalker {
-
-    private final Set<Var> candidates;
-
-    @Override
-    public void visit(Logger logger, Function functionContext, Block block) {
-      /*
-       * Remove any variables referenced.
-       */
-      candidates.removeAll(block.variables());
-    }
-
-    @Override
-    public void visit(Logger logger, Function functionContext, Continuation cont) {
-      candidates.removeAll(cont.requiredVars(false));
-    }
-
-    @Override
-    public void visit(Logger logger, Function functionContext, Instruction inst) {
-      candidates.removeAll(inst.getOutputs());
-      for (Arg in: inst.getInputs()) {
-        if (in.isVar()) {
-          candidates.remove(in.getVar());
+    Iterator<Var> it = candidates.iterator();
+    while (it.hasNext()) {
+      Var global = it.next();
+      for (Function f: index.globalUsers(global)) {
+        if (!f.id().equals(FnID.ENTRY_FUNCTION)) {
+          // Referenced outside entry function
+          it.remove();
+          break;
         }
       }
     }
-
-    @Override
-    public void visit(Logger logger, Function functionContext,
-        CleanupAction cleanup) {
-      visit(logger, functionContext, cleanup.action());
-    }
-
-    public DemoteGlobalsWalker(Set<Var> candidates) {
-      this.candidates = candidates;
-    }
-
+    return candidates;
   }
 
   private void demoteGlobals(Logger logger, Program program, Set<Var> globals) {
+    if (globals.isEmpty()) {
+      // Avoid touching entry function so it isn't marked modified
+      return;
+    }
     Function entry = program.lookupFunction(FnID.ENTRY_FUNCTION);
     Map<Var, Arg> replacements = new HashMap<Var, Arg>();
 
@@ -30,6 +30,7 @@ import org.apache.log4j.Logger;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -41,10 +42,8 @@ import exm.stc.common.lang.PassedVar;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitMode;
 import exm.stc.common.lang.WaitVar;
-import exm.stc.common.util.Counters;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.StackLite;
-import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
@@ -86,14 +85,21 @@ public class FunctionInline implements OptimizerPass {
    */
   private final long alwaysInlineThreshold;
 
-  public FunctionInline() {
-    inlineThreshold = Settings.getLongUnchecked(
+  private final ProgramIndex index;
+
+  /**
+   * @param options
+   * @param index index of program to be optimized
+   */
+  public FunctionInline(CompilerOptions options, ProgramIndex index) {
+    this.index = index;
+    inlineThreshold = options.getLong(
         Settings.OPT_FUNCTION_INLINE_THRESHOLD);
-    alwaysInlineThreshold = Settings.getLongUnchecked(
+    alwaysInlineThreshold = options.getLong(
         Settings.OPT_FUNCTION_ALWAYS_INLINE_THRESHOLD);
   }
 
-  private static boolean isFunctionCall(Instruction inst) {
+  static boolean isFunctionCall(Instruction inst) {
     return inst.op == Opcode.CALL_CONTROL || inst.op == Opcode.CALL_LOCAL ||
            inst.op == Opcode.CALL_SYNC || inst.op == Opcode.CALL_LOCAL_CONTROL ||
            inst.op == Opcode.CALL_FOREIGN;
@@ -111,6 +117,7 @@ public class FunctionInline implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
+    assert(index.program() == program);
     inlineFunctions(logger, program);
   }
 
@@ -120,13 +127,16 @@ public class FunctionInline implements OptimizerPass {
     boolean changed;
     int i = 0;
     do {
-      FuncCallFinder finder = new FuncCallFinder();
-      TreeWalk.walk(logger, program, finder);
-
-      pruneBuiltins(logger, program, finder);
+      // Index only rescans functions changed by previous iteration, but
+      // functions and builtins are only removed once all functions are
+      // walked again and still have no calls to them
+      if (hasUnused(program, index)) {
+        index.reindexAll();
+      }
+      pruneBuiltins(logger, program, index);
 
       Pair<ListMultimap<FnID, FnID>, Set<FnID>> actions =
-                               selectInlineFunctions(program, finder);
+                               selectInlineFunctions(program, index);
       ListMultimap<FnID, FnID> inlineLocations = actions.val1;
       Set<FnID> toRemove = actions.val2;
 
@@ -140,46 +150,63 @@ public class FunctionInline implements OptimizerPass {
   }
 
   private void pruneBuiltins(Logger logger, Program program,
-      FuncCallFinder finder) {
-    ForeignFunctions foreignFuncs = program.foreignFunctions();
+      ProgramIndex index) {
     Iterator<BuiltinFunction> it = program.builtinIterator();
     while (it.hasNext()) {
       BuiltinFunction f = it.next();
-      List<FnID> usages = finder.functionUsages.get(f.id());
-      if (usages.size() == 0 && !foreignFuncs.hasOpEquiv(f.id()) &&
-          !foreignFuncs.isLocalImpl(f.id())) {
+      if (unusedBuiltin(program, index, f)) {
         logger.debug("Prune builtin: " + f.id());
         it.remove();
       }
     }
   }
 
+  private static boolean unusedBuiltin(Program program, ProgramIndex index,
+                                       BuiltinFunction f) {
+    ForeignFunctions foreignFuncs = program.foreignFunctions();
+    return index.callSites(f.id()).isEmpty() &&
+           !foreignFuncs.hasOpEquiv(f.id()) &&
+           !foreignFuncs.isLocalImpl(f.id());
+  }
+
+  /**
+   * @return true if index shows a function or builtin with no calls that
+   *         would be pruned
+   */
+  private static boolean hasUnused(Program program, ProgramIndex index) {
+    for (Function f: program.functions()) {
+      if (!f.id().equals(FnID.ENTRY_FUNCTION) &&
+          index.callSites(f.id()).isEmpty()) {
+        return true;
+      }
+    }
+    Iterator<BuiltinFunction> it = program.builtinIterator();
+    while (it.hasNext()) {
+      if (unusedBuiltin(program, index, it.next())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Choose which functions will be removed totally (and remove them now)
    * and calls to which function from where will be inlined.
    * Removes cycles from inlining graph
    * @param program
-   * @param finder
+   * @param index
    * @return Map of function -> caller functions determining which calls
    *        to inline
    */
   private Pair<ListMultimap<FnID, FnID>, Set<FnID>> selectInlineFunctions(
-      Program program, FuncCallFinder finder) {
-
-    // Map from caller to callee for IC functions only
-    Map<FnID, FnID> functionCalls = new HashMap<FnID, FnID>();
-    for (Function callee: program.functions()) {
-      for (FnID caller: finder.functionUsages.get(callee.id())) {
-        functionCalls.put(caller, callee.id());
-      }
-    }
+      Program program, ProgramIndex index) {
 
     ListMultimap<FnID, FnID> inlineCandidates = ArrayListMultimap.create();
     Set<FnID> toRemove = new HashSet<FnID>();
     // Narrow inline candidates by number of calls, remove unused functions
     for (Function f: program.functions()) {
-      List<FnID> callLocs = finder.functionUsages.get(f.id());
-      long functionSize = finder.getFunctionSize(f);
+      List<FnID> callLocs = index.callSites(f.id());
+      long functionSize = index.instructionCount(f);
       if (f.id().equals(FnID.ENTRY_FUNCTION)) {
         // Do nothing
       } else if (callLocs == null || callLocs.size() == 0) {
@@ -192,7 +219,7 @@ public class FunctionInline implements OptimizerPass {
       } else if (functionSize <= alwaysInlineThreshold &&
           callLocs.size() * functionSize  <= inlineThreshold) {
         inlineCandidates.putAll(f.id(), callLocs);
-        if (!functionCalls.containsKey(f.id())) {
+        if (!index.callsFunctions(f)) {
           // Doesn't call other functions, safe to inline always
           alwaysInline.add(f.id());
         }
@@ -311,10 +338,30 @@ public class FunctionInline implements OptimizerPass {
     }
   }
 
+  /**
+   * Inline all calls to functions.  The callers are found with all
+   * functions walked again, since a call left behind would refer to a
+   * function no longer in the program.
+   */
   public static void inlineAllOccurrences(Logger logger, Program prog,
-                                Map<FnID, Function> toInline) {
+                  ProgramIndex index, Map<FnID, Function> toInline) {
+    if (toInline.isEmpty()) {
+      return;
+    }
+    index.reindexAll();
+
+    // Only visit functions with calls to inline
+    Set<FnID> callers = new HashSet<FnID>();
+    for (FnID callee: toInline.keySet()) {
+      callers.addAll(index.callSites(callee));
+    }
+    if (callers.isEmpty()) {
+      return;
+    }
     for (Function f: prog.functions()) {
-      inlineAllOccurrences(logger, prog, f, toInline);
+      if (callers.contains(f.id())) {
+        inlineAllOccurrences(logger, prog, f, toInline);
+      }
     }
   }
 
@@ -559,35 +606,4 @@ public class FunctionInline implements OptimizerPass {
     logger.trace("Replace " + var + " with " + newVar
             + " for inline into function " + targetFunction.id());
   }
-
-  private static class FuncCallFinder extends TreeWalker {
-
-    /**
-     * Map of called function -> name of function in which call occurred.
-     * Context function may occur multiple times in the list
-     */
-    ListMultimap<FnID, FnID> functionUsages = ArrayListMultimap.create();
-
-    /**
-     * Function sizes in instructions
-     */
-    private Counters<FnID> functionSizes = new Counters<FnID>();
-
-    @Override
-    public void visit(Logger logger, Function functionContext,
-                                      Instruction inst) {
-      if (isFunctionCall(inst)) {
-        FnID calledFunction = ((FunctionCall)inst).functionID();
-        functionUsages.put(calledFunction, functionContext.id());
-      }
-
-      // Count number of instructions
-      functionSizes.increment(functionContext.id());
-    }
-
-    public long getFunctionSize(Function function) {
-      return functionSizes.getCount(function.id());
-    }
-
-  }
 }
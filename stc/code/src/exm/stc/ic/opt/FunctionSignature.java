@@ -39,6 +39,15 @@ import exm.stc.ic.tree.TurbineOp;
  */
 public class FunctionSignature implements OptimizerPass {
 
+  private final ProgramIndex index;
+
+  /**
+   * @param index index of program to be optimized
+   */
+  public FunctionSignature(ProgramIndex index) {
+    this.index = index;
+  }
+
   @Override
   public String getPassName() {
     return "Function signature changing";
@@ -59,6 +68,7 @@ public class FunctionSignature implements OptimizerPass {
    */
   @Override
   public void optimize(Logger logger, Program program) {
+    assert(index.program() == program);
     Set<FnID> usedFnIDs = new HashSet<FnID>(program.getFunctionMap().keySet());
     Map<FnID, Function> toInline = new HashMap<FnID, Function>();
     ListIterator<Function> fnIt = program.functionIterator();
@@ -77,7 +87,7 @@ public class FunctionSignature implements OptimizerPass {
     }
 
     // Inline all calls to the old function
-    FunctionInline.inlineAllOccurrences(logger, program, toInline);
+    FunctionInline.inlineAllOccurrences(logger, program, index, toInline);
   }
 
   private Function switchToValuePassing(Logger logger, ForeignFunctions foreignFuncs,
@@ -32,6 +32,7 @@ import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.HierarchicalMap;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICContinuations.WaitStatement;
@@ -54,7 +55,7 @@ import exm.stc.ic.tree.ICTree.Statement;
  *                                            output
  *
  */
-public class HoistLoops implements OptimizerPass {
+public class HoistLoops extends FunctionLocalPass {
 
   /**
    * If true, hoist array reads in such a way that could prevent
@@ -71,39 +72,51 @@ public class HoistLoops implements OptimizerPass {
     return "Loop hoisting";
   }
 
+  @Override
+  public String getFixpointKey() {
+    return getPassName() + " aggressive=" + aggressive;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_HOIST;
   }
 
+  /**
+   * Only depends on function and global variables.  A run may not hoist
+   * everything possible, but one that changes nothing has converged.
+   */
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      HoistTracking global = new HoistTracking();
-      // Global constants already written
-      for (Var gv: prog.allGlobals()) {
-        if (gv.storage().isConst()) {
-          // Constants are pre-written
-          global.write(gv, false);
-        }
-        global.declare(gv);
+  public boolean skipUnmodified() {
+    return true;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program prog, Function f) {
+    HoistTracking global = new HoistTracking();
+    // Global constants already written
+    for (Var gv: prog.allGlobals()) {
+      if (gv.storage().isConst()) {
+        // Constants are pre-written
+        global.write(gv, false);
       }
+      global.declare(gv);
+    }
 
-      // Set up map for top block of function
-      HoistTracking mainBlockState =
-          global.makeChild(f.mainBlock(), true, true,
-                           ExecContext.control(), 0, 0);
+    // Set up map for top block of function
+    HoistTracking mainBlockState =
+        global.makeChild(f.mainBlock(), true, true,
+                         ExecContext.control(), 0, 0);
 
-      // Inputs are written elsewhere
-      for (Var in: f.getInputList()) {
-        mainBlockState.write(in, false);
-        mainBlockState.declare(in);
-      }
-      for (Var out: f.getOutputList()) {
-        mainBlockState.declare(out);
-      }
-      hoistRec(logger, mainBlockState);
+    // Inputs are written elsewhere
+    for (Var in: f.getInputList()) {
+      mainBlockState.write(in, false);
+      mainBlockState.declare(in);
+    }
+    for (Var out: f.getOutputList()) {
+      mainBlockState.declare(out);
     }
+    hoistRec(logger, mainBlockState);
   }
 
   /**
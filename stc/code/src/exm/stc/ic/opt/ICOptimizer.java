@@ -16,9 +16,13 @@
 package exm.stc.ic.opt;
 
 import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Profiler;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.InvalidWriteException;
 import exm.stc.common.exceptions.UserException;
@@ -29,9 +33,30 @@ import exm.stc.ic.tree.ICTree.Program;
 public class ICOptimizer {
 
   /**
-   * If true, validate as frequently as possible
+   * How often to validate intermediate code between passes, set by
+   * Settings.OPT_VALIDATE.  The final form is always validated.
    */
-  public static final boolean SUPER_DEBUG = true;
+  public static enum ValidationPolicy {
+    /**
+     * After every pass.  Only functions that the pass may have changed
+     * are checked, so the whole program is only checked after passes
+     * that can change any function.
+     */
+    ALWAYS,
+    /** Whole program at end of each iteration */
+    ITERATION,
+    /** Only once optimization is finished */
+    FINAL;
+
+    public static ValidationPolicy fromOptions(CompilerOptions options) {
+      return valueOf(options.get(Settings.OPT_VALIDATE).toUpperCase());
+    }
+  }
+
+  /**
+   * Number of iterations after which iterative pass schedule repeats
+   */
+  private static final long SCHEDULE_PERIOD = 6;
 
   /**
    * Optimize the program and return a new one
@@ -39,23 +64,39 @@ public class ICOptimizer {
    * NOTE: the input might be modified in-place
    * @param icOutput where to log IC between optimiation steps.  Null for
    *              no output
+   * @param profiler records time taken by each pass
    * @return
    * @throws InvalidWriteException
    */
   public static Program optimize(Logger logger, PrintStream icOutput,
-                                 Program prog) throws UserException {
+                                 Profiler profiler, Program prog)
+                                     throws UserException {
     boolean logIC = icOutput != null;
     if (logIC) {
       prog.log(icOutput, "Initial IC before optimization");
     }
 
-    long nIterations = Settings.getLongUnchecked(Settings.OPT_MAX_ITERATIONS);
-
-    boolean debug = Settings.getBooleanUnchecked(Settings.COMPILER_DEBUG);
-
-    preprocess(icOutput, logger, debug, prog);
-    iterate(icOutput, logger, prog, debug, nIterations);
-    postprocess(icOutput, logger, debug, prog, nIterations);
+    CompilerOptions options = prog.options();
+    long nIterations = options.getLong(Settings.OPT_MAX_ITERATIONS);
+
+    boolean debug = options.getBoolean(Settings.COMPILER_DEBUG);
+
+    // Index is shared by interprocedural passes and kept up to date
+    // incrementally as the program changes
+    ProgramIndex index = new ProgramIndex(prog);
+
+    ExecutorService executor = createExecutor(options);
+    try {
+      preprocess(icOutput, logger, executor, profiler, debug, prog, index);
+      iterate(icOutput, logger, executor, profiler, prog, index, debug,
+              nIterations);
+      postprocess(icOutput, logger, executor, profiler, debug, prog, index,
+                  nIterations);
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
 
     if (logIC) {
       prog.log(icOutput, "Final optimized IC");
@@ -63,20 +104,42 @@ public class ICOptimizer {
     return prog;
   }
 
+  /**
+   * @return pool for running per-function passes in parallel, or null
+   *         if they should be run serially
+   */
+  private static ExecutorService createExecutor(CompilerOptions options) {
+    int threads = options.getInt(Settings.OPT_THREADS);
+    if (threads == 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    if (threads <= 1) {
+      return null;
+    }
+    return new ForkJoinPool(threads);
+  }
+
   /**
    * Do preprocessing optimizer steps
    * @param icOutput
    * @param logger
+   * @param executor
+   * @param profiler
    * @param debug
    * @param program
+   * @param index
    * @throws Exception
    */
   private static void preprocess(PrintStream icOutput, Logger logger,
-                         boolean debug, Program program) throws UserException {
-    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput);
+      ExecutorService executor, Profiler profiler, boolean debug,
+      Program program, ProgramIndex index) throws UserException {
+    OptimizerPipeline preprocess = new OptimizerPipeline(icOutput, executor,
+                                                         profiler);
+    if (debug)
+      preprocess.setIndexCheck(index);
 
     // Cut down size of IR right away
-    preprocess.addPass(new PruneFunctions());
+    preprocess.addPass(new PruneFunctions(index));
 
     // need variable names to be unique for rest of stages
     preprocess.addPass(new UniqueVarNames());
@@ -92,31 +155,65 @@ public class ICOptimizer {
    * Do one iteration of the iterative optimizer passes
    * @param icOutput
    * @param logger
+   * @param executor
+   * @param profiler
    * @param prog
+   * @param index
    * @param debug
    * @param iteration
    * @param nIterations
    * @throws Exception
    */
   private static void iterate(PrintStream icOutput, Logger logger,
-      Program prog, boolean debug, long nIterations) throws UserException {
+      ExecutorService executor, Profiler profiler, Program prog,
+      ProgramIndex index, boolean debug, long nIterations)
+          throws UserException {
 
     // FunctionInline is stateful
-    FunctionInline inliner = new FunctionInline();
+    CompilerOptions options = prog.options();
+    FunctionInline inliner = new FunctionInline(options, index);
     boolean canReorder = true;
 
+    // Iterations where passes are run once or pass settings change
+    long inlineIteration = 3;
+    long midIteration = nIterations / 2;
+    long waitMergeIteration = nIterations - (nIterations / 4) - 2;
+    long pipelineIteration = nIterations - (nIterations / 4) - 1;
+    long noReorderIteration = nIterations - 2;
+    long scheduleChanges[] = {inlineIteration, midIteration,
+          waitMergeIteration, pipelineIteration, noReorderIteration,
+          noReorderIteration + 1};
+
+    ValidationPolicy validation = ValidationPolicy.fromOptions(options);
+    // Validator is shared so it can skip functions checked in earlier
+    // iterations and not modified since
+    Validate validator = validation == ValidationPolicy.ALWAYS ?
+                         Validate.standardValidator() : null;
+
+    ChangeTracker changes = null;
+    if (options.getBoolean(Settings.OPT_SKIP_STABLE)) {
+      changes = new ChangeTracker();
+    }
+    long unchangedIterations = 0;
+
     for (long iteration = 0; iteration < nIterations; iteration++) {
-      OptimizerPipeline pipe = new OptimizerPipeline(icOutput);
-      if (SUPER_DEBUG) {
-        pipe.setValidator(Validate.standardValidator());
+      OptimizerPipeline pipe = new OptimizerPipeline(icOutput, executor,
+                                                     profiler);
+      pipe.setValidator(validator);
+      if (debug)
+        pipe.setIndexCheck(index);
+      if (changes != null) {
+        changes.startIteration(prog);
+        pipe.setChangeTracker(changes);
       }
 
       // First prune and inline any functions
-      if (iteration == nIterations / 2) {
+      if (iteration == midIteration) {
         // Only makes sense to do periodically
-        pipe.addPass(new PruneFunctions());
+        pipe.addPass(new PruneFunctions(index));
       }
-      if (iteration == 0 || iteration == 3 || iteration == nIterations - 2) {
+      if (iteration == 0 || iteration == inlineIteration ||
+          iteration == noReorderIteration) {
         pipe.addPass(inliner);
       }
 
@@ -129,7 +226,9 @@ public class ICOptimizer {
         // Try occasionally to unroll loops.  Don't do it on first iteration
         // so the code can be shrunk a little first
         pipe.addPass(new LoopUnroller());
-        pipe.addPass(Validate.standardValidator());
+        if (validation != ValidationPolicy.FINAL) {
+          pipe.addPass(Validate.standardValidator());
+        }
       }
 
       boolean lastHalf = iteration > nIterations * 2;
@@ -153,12 +252,12 @@ public class ICOptimizer {
         pipe.addPass(new PropagateAliases());
       }
 
-      if (iteration == nIterations - 2) {
+      if (iteration == noReorderIteration) {
         // Towards end, inline explicit waits and disallow reordering
         canReorder = false;
       }
       // ValueNumber is a key pass that reduces a lot of redundancy
-      pipe.addPass(new ValueNumber(canReorder));
+      pipe.addPass(new ValueNumber(options, canReorder));
 
       // This loop optimization depends on info updated by ValueNumber,
       // but can generate dead code
@@ -169,11 +268,11 @@ public class ICOptimizer {
 
       if (iteration % 3 == 0) {
         // Dead code eliminator will have just eliminated references
-        pipe.addPass(new DemoteGlobals());
+        pipe.addPass(new DemoteGlobals(index));
       }
 
       // ValueNumber adds blocking vars to function
-      pipe.addPass(new FunctionSignature());
+      pipe.addPass(new FunctionSignature(index));
 
       // Do this after forward dataflow to improve odds of fusing things
       // one common subexpression elimination has happened
@@ -181,43 +280,99 @@ public class ICOptimizer {
 
       // Can only run this pass once. Do it near end so that
       // results can be cleaned up by forward dataflow
-      if (iteration == nIterations - (nIterations / 4) - 1) {
+      if (iteration == pipelineIteration) {
         pipe.addPass(new Pipeline());
         if (debug)
           pipe.addPass(Validate.standardValidator());
       }
 
       // Expand ops about halfway through
-      boolean doInlineOps = iteration == nIterations / 2;
+      boolean doInlineOps = iteration == midIteration;
       if (doInlineOps) {
         pipe.addPass(new DataflowOpInline());
       }
 
       // Do merges near end since it can be detrimental to other optimizations
-      boolean doWaitMerges = (iteration >= nIterations - (nIterations / 4) - 2)
+      boolean doWaitMerges = (iteration >= waitMergeIteration)
                               && iteration % 2 == 0;
       pipe.addPass(new WaitCoalescer(doWaitMerges, canReorder));
 
-      if (debug)
+      if (debug || validation == ValidationPolicy.ITERATION)
         pipe.addPass(Validate.standardValidator());
 
       pipe.runPipeline(logger, prog, iteration);
 
       // Cleanup internal indices, etc.
       prog.cleanup();
+
+      if (changes != null) {
+        if (changes.endIteration(prog) ||
+            isScheduleChange(scheduleChanges, iteration)) {
+          // Only count iterations with current pass settings
+          unchangedIterations = 0;
+        } else {
+          unchangedIterations++;
+        }
+
+        if (unchangedIterations >= SCHEDULE_PERIOD) {
+          // Every pass in the repeating schedule has run without changing
+          // the program, so skip to the next change in the schedule
+          long next = nextScheduleChange(scheduleChanges, iteration,
+                                         nIterations);
+          logger.debug("Program unchanged after iteration " + iteration +
+                       ": skipping to iteration " + next);
+          iteration = next - 1;
+          unchangedIterations = 0;
+        }
+      }
+    }
+
+    if (changes != null) {
+      logger.debug("Skipped " + changes.epochSkips() + " function-local " +
+                   "pass runs on functions unmodified since last run");
+    }
+  }
+
+  private static boolean isScheduleChange(long scheduleChanges[],
+                                          long iteration) {
+    for (long change: scheduleChanges) {
+      if (change == iteration) {
+        return true;
+      }
     }
+    return false;
+  }
+
+  /**
+   * @return first iteration after the current one where the schedule
+   *         changes, or nIterations if none
+   */
+  private static long nextScheduleChange(long scheduleChanges[],
+                                         long iteration, long nIterations) {
+    long next = nIterations;
+    for (long change: scheduleChanges) {
+      if (change > iteration && change < next) {
+        next = change;
+      }
+    }
+    return next;
   }
 
   private static void postprocess(PrintStream icOutput, Logger logger,
-      boolean debug, Program prog, long nIterations) throws UserException {
-    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput);
+      ExecutorService executor, Profiler profiler, boolean debug,
+      Program prog, ProgramIndex index, long nIterations)
+          throws UserException {
+    OptimizerPipeline postprocess = new OptimizerPipeline(icOutput, executor,
+                                                          profiler);
+    if (debug)
+      postprocess.setIndexCheck(index);
 
     // Final dead code elimination to clean up any remaining dead code
     // (from last iteration or constant sharing)
     postprocess.addPass(new DeadCodeEliminator());
 
     // Final pruning to remove unused functions
-    postprocess.addPass(new PruneFunctions());
+    postprocess.addPass(new PruneFunctions(index));
 
     // Add in all the variable passing annotations now that instructions,
     // continuations and variables are fixed
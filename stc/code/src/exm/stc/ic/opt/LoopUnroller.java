@@ -22,12 +22,13 @@ import org.apache.log4j.Logger;
 
 import exm.stc.common.Settings;
 import exm.stc.common.util.Pair;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
-public class LoopUnroller implements OptimizerPass {
+public class LoopUnroller extends FunctionLocalPass {
   @Override
   public String getPassName() {
     return "Unroll loops";
@@ -39,14 +40,12 @@ public class LoopUnroller implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      logger.debug("looking to unroll loops in " + f.id());
-      if (unrollLoops(logger, prog, f, f.mainBlock())) {
-        // Unrolling can introduce duplicate vars
-        UniqueVarNames.makeVarNamesUnique(f, prog.allGlobals());
-        FlattenNested.flattenNestedBlocks(f.mainBlock());
-      }
+  public void optimize(Logger logger, Program prog, Function f) {
+    logger.debug("looking to unroll loops in " + f.id());
+    if (unrollLoops(logger, prog, f, f.mainBlock())) {
+      // Unrolling can introduce duplicate vars
+      UniqueVarNames.makeVarNamesUnique(f, prog.allGlobals());
+      FlattenNested.flattenNestedBlocks(f.mainBlock());
     }
   }
 
@@ -63,7 +62,7 @@ public class LoopUnroller implements OptimizerPass {
         unrolled = unrolled || res;
       }
       Pair<Boolean, List<Continuation>> cRes;
-      cRes = c.tryUnroll(logger, f.id(), block);
+      cRes = c.tryUnroll(logger, prog.options(), f.id(), block);
       if (cRes.val1) {
         unrolled = true;
         for (Continuation newC: cRes.val2) {
@@ -15,6 +15,8 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import exm.stc.common.exceptions.UserException;
@@ -33,15 +35,78 @@ public interface OptimizerPass {
   public abstract void optimize(Logger logger, Program program)
                                               throws UserException;
   
-  public static abstract class FunctionOptimizerPass implements OptimizerPass {
+  /**
+   * A pass that transforms each function separately.  It may read, but not
+   * modify, program-wide state and other functions, so that it can be run
+   * on different functions concurrently.
+   */
+  public static abstract class FunctionLocalPass implements OptimizerPass {
 
     @Override
     public void optimize(Logger logger, Program program) throws UserException {
-      for (Function f: program.functions()) {
-        optimize(logger, f);
+      optimize(logger, program, program.functions());
+    }
+
+    /**
+     * Optimize only the given functions
+     */
+    public void optimize(Logger logger, Program program,
+              List<Function> functions) throws UserException {
+      for (Function f: functions) {
+        optimize(logger, program, f);
+      }
+      for (Function f: functions) {
+        finishFunction(logger, program, f);
       }
     }
-    
+
+    public abstract void optimize(Logger logger, Program program, Function f)
+                                                      throws UserException;
+
+    /**
+     * Called for each function in program order once optimize has been
+     * called for all functions.  Any changes that affect other functions
+     * must be made here.
+     */
+    public void finishFunction(Logger logger, Program program, Function f)
+                                                      throws UserException {
+      // Do nothing by default
+    }
+
+    /**
+     * Passes with settings that affect their results must include them
+     * in the key.
+     * @return key identifying pass and settings.  Running a pass with the
+     *         same key on an unchanged function must give the same result.
+     */
+    public String getFixpointKey() {
+      return getPassName();
+    }
+
+    /**
+     * Passes that only depend on the function and program-wide state
+     * can return true to be skipped for functions they last left
+     * unchanged, if neither was modified since.  This is checked with
+     * modification epochs, so is cheaper and finer-grained than the
+     * per-iteration fixpoints.
+     * @return true if pass can skip unmodified functions
+     */
+    public boolean skipUnmodified() {
+      return false;
+    }
+  }
+
+  /**
+   * A pass that only needs to look at the function being transformed.
+   */
+  public static abstract class FunctionOptimizerPass extends FunctionLocalPass {
+
+    @Override
+    public void optimize(Logger logger, Program program, Function f)
+                                                      throws UserException {
+      optimize(logger, f);
+    }
+
     public abstract void optimize(Logger logger, Function f) throws UserException;
   }
 }
@@ -18,23 +18,56 @@ package exm.stc.ic.opt;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
-import exm.stc.common.Settings;
+import exm.stc.common.Profiler;
+import exm.stc.common.Profiler.Sample;
+import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
+import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
 
 
 public class OptimizerPipeline {
 
   public OptimizerPipeline(PrintStream icOutput) {
+    this(icOutput, null);
+  }
+
+  /**
+   * @param icOutput
+   * @param executor if not null, used to run function-local passes
+   *                 on different functions in parallel
+   */
+  public OptimizerPipeline(PrintStream icOutput, ExecutorService executor) {
+    this(icOutput, executor, Profiler.DISABLED);
+  }
+
+  /**
+   * @param icOutput
+   * @param executor
+   * @param profiler records time taken by each pass
+   */
+  public OptimizerPipeline(PrintStream icOutput, ExecutorService executor,
+                           Profiler profiler) {
     this.icOutput = icOutput;
+    this.executor = executor;
+    this.profiler = profiler;
   }
 
   private final List<OptimizerPass> passes = new ArrayList<OptimizerPass>();
   private final PrintStream icOutput;
+  private final ExecutorService executor;
+  private final Profiler profiler;
   private Validate validator = null;
+  private ChangeTracker changes = null;
+  private ProgramIndex checkedIndex = null;
 
   public void addPass(OptimizerPass pass) {
     passes.add(pass);
@@ -44,25 +77,152 @@ public class OptimizerPipeline {
     this.validator = validator;
   }
 
+  /**
+   * @param changes if not null, used to skip functions that function-local
+   *                passes have already left unchanged
+   */
+  public void setChangeTracker(ChangeTracker changes) {
+    this.changes = changes;
+  }
+
+  /**
+   * @param index if not null, checked against an index built from scratch
+   *              before each whole-program pass, since those passes trust
+   *              the index to be exact
+   */
+  public void setIndexCheck(ProgramIndex index) {
+    this.checkedIndex = index;
+  }
+
   public void runPipeline(Logger logger, Program program, long iteration) throws UserException {
     for (OptimizerPass pass: passes) {
-      if (passEnabled(pass)) {
+      if (passEnabled(program, pass)) {
         logger.debug("Iteration: " + iteration + " Pass: "
                    + pass.getPassName());
-        pass.optimize(logger, program);
+        long sizeBefore = profiler.enabled() ? programSize(program) : -1;
+        Sample start = profiler.start();
+        if (pass instanceof FunctionLocalPass) {
+          runFunctionLocal(logger, program, (FunctionLocalPass)pass);
+        } else {
+          if (checkedIndex != null && !(pass instanceof Validate)) {
+            checkedIndex.check();
+          }
+          pass.optimize(logger, program);
+          if (changes != null && !(pass instanceof Validate)) {
+            changes.programModified(program);
+          }
+        }
+        if (profiler.enabled()) {
+          profiler.record(Profiler.OPTIMIZER, pass.getPassName(), iteration,
+                          start, sizeBefore, programSize(program));
+        }
         if (icOutput != null) {
           program.log(icOutput, "Iteration " + iteration + " IC after " +
                                  pass.getPassName());
         }
-        if (validator != null) {
-          validator.optimize(logger, program);
+        if (validator != null && !(pass instanceof Validate)) {
+          Sample validateStart = profiler.start();
+          validator.validateModified(logger, program);
+          profiler.record(Profiler.OPTIMIZER, validator.getPassName(),
+                          iteration, validateStart);
         }
       }
     }
   }
 
-  public boolean passEnabled(OptimizerPass pass) {
+  private void runFunctionLocal(Logger logger, Program program,
+                  FunctionLocalPass pass) throws UserException {
+    List<Function> functions;
+    if (changes != null) {
+      functions = changes.functionsToOptimize(program, pass);
+      if (logger.isTraceEnabled()) {
+        logger.trace("Skipping " + pass.getPassName() + " for " +
+            (program.functions().size() - functions.size()) + "/" +
+            program.functions().size() + " unchanged functions");
+      }
+    } else {
+      functions = new ArrayList<Function>(program.functions());
+    }
+
+    if (executor != null) {
+      runParallel(logger, program, pass, functions);
+    } else {
+      pass.optimize(logger, program, functions);
+    }
+
+    if (changes != null) {
+      changes.passFinished(program, pass, functions);
+    }
+  }
+
+  /**
+   * Run pass on functions in parallel.  Other passes act as barriers,
+   * since they always run after all functions are finished.  The result
+   * doesn't depend on scheduling, since each function is optimized
+   * independently and changes that affect other functions are made
+   * in program order afterwards.
+   */
+  private void runParallel(final Logger logger, final Program program,
+                  final FunctionLocalPass pass, List<Function> functions)
+                      throws UserException {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (final Function f: functions) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws UserException {
+          pass.optimize(logger, program, f);
+          return null;
+        }
+      });
+    }
+
+    List<Future<Void>> results;
+    try {
+      results = executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      throw new STCRuntimeError("Interrupted while running " +
+                                pass.getPassName(), e);
+    }
+
+    // Report failures in program order so that errors are deterministic
+    for (Future<Void> result: results) {
+      try {
+        result.get();
+      } catch (InterruptedException e) {
+        throw new STCRuntimeError("Interrupted while running " +
+                                  pass.getPassName(), e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UserException) {
+          throw (UserException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new STCRuntimeError("Error in " + pass.getPassName(), cause);
+      }
+    }
+
+    for (Function f: functions) {
+      pass.finishFunction(logger, program, f);
+    }
+  }
+
+  /**
+   * @return number of instructions in program, used to see how much
+   *         each pass shrinks or grows the code
+   */
+  private static long programSize(Program program) {
+    long size = 0;
+    for (Function f: program.functions()) {
+      size += f.mainBlock().getInstructionCount();
+    }
+    return size;
+  }
+
+  public boolean passEnabled(Program program, OptimizerPass pass) {
     String key = pass.getConfigEnabledKey();
-    return key == null || Settings.getBooleanUnchecked(key);
+    return key == null || program.options().getBoolean(key);
   }
 }
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ic.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import exm.stc.common.Logging;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Var;
+import exm.stc.common.util.Counters;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.Builtin;
+import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.Opcode;
+
+/**
+ * Index of call sites, global variable uses and variable definitions and
+ * uses in the functions of a program, for interprocedural passes.
+ *
+ * The index is brought up to date when it is queried.  Only functions
+ * modified since they were last indexed, according to their modification
+ * epochs, are walked again, and the program-wide tables are updated with
+ * the difference.  The index relies on the same contract as epochs:
+ * code that modifies instructions in place must mark the block modified.
+ *
+ * A missed epoch update leaves the index out of date.  That is harmless
+ * when the index is only used to find optimization opportunities, but
+ * passes that remove functions, builtins or globals, or that rewrite all
+ * calls to a function, would give wrong code.  Those passes call
+ * {@link #reindexAll()} before acting on a decision to remove code and
+ * decide again with the rebuilt index, so they never depend only on
+ * epochs.  {@link #check()} compares the index with one built from
+ * scratch to find missed epoch updates; the optimizer calls it before
+ * each whole-program pass in debug mode.
+ *
+ * Variable references are only indexed once they are first queried,
+ * since most passes only need the call graph.  From then on they are
+ * indexed along with calls.
+ */
+public class ProgramIndex {
+
+  private final Program program;
+
+  /** Epoch at which index was last brought up to date */
+  private long indexedEpoch = -1;
+
+  /** Information about each function, by identity */
+  private final Map<Function, FunctionInfo> functions =
+                          new IdentityHashMap<Function, FunctionInfo>();
+
+  /** Information about each function, by ID */
+  private final Map<FnID, FunctionInfo> functionsByID =
+                          new HashMap<FnID, FunctionInfo>();
+
+  /** Map from called function to functions with call sites */
+  private final SetMultimap<FnID, Function> callers = HashMultimap.create();
+
+  /**
+   * Map from global variable to functions that reference it.  Only
+   * maintained once variable references are indexed for all functions.
+   */
+  private final SetMultimap<Var, Function> globalUsers =
+                                                  HashMultimap.create();
+
+  /** True if variable references are indexed for all functions */
+  private boolean allVarRefs = false;
+
+  public ProgramIndex(Program program) {
+    this.program = program;
+  }
+
+  /**
+   * @return program that this indexes
+   */
+  public Program program() {
+    return program;
+  }
+
+  /**
+   * Bring index up to date and check it against an index built from
+   * scratch.
+   * @throws STCRuntimeError if the index differs, which means that a
+   *         function was modified without marking its block modified
+   */
+  public void check() {
+    update();
+    ProgramIndex fresh = new ProgramIndex(program);
+    fresh.allVarRefs = allVarRefs;
+    fresh.update();
+
+    if (!functionsByID.keySet().equals(fresh.functionsByID.keySet())) {
+      throw new STCRuntimeError("Program index out of date: has functions " +
+          functionsByID.keySet() + " but expected " +
+          fresh.functionsByID.keySet());
+    }
+    for (Function f: program.functions()) {
+      FunctionInfo info = functions.get(f);
+      FunctionInfo expected = fresh.functions.get(f);
+      checkSame(f, "calls", info.calls.getCountMap(),
+                expected.calls.getCountMap());
+      checkSame(f, "dependencies", info.dependencies, expected.dependencies);
+      checkSame(f, "instruction count", info.instructions,
+                expected.instructions);
+      if (info.varRefs != null) {
+        VarRefs expectedRefs = fresh.varRefs(expected);
+        checkSame(f, "defined vars", info.varRefs.defined,
+                  expectedRefs.defined);
+        checkSame(f, "used vars", info.varRefs.used, expectedRefs.used);
+        checkSame(f, "globals", info.varRefs.globals, expectedRefs.globals);
+      }
+    }
+    if (!callers.equals(fresh.callers) ||
+        (allVarRefs && !globalUsers.equals(fresh.globalUsers))) {
+      throw new STCRuntimeError("Program index tables out of date " +
+                                "with function information");
+    }
+  }
+
+  private static void checkSame(Function f, String what, Object actual,
+                                Object expected) {
+    if (!actual.equals(expected)) {
+      throw new STCRuntimeError("Program index out of date for " +
+          f.id() + ": " + what + " is " + actual + " but expected " +
+          expected + ".  Code that modifies instructions in place must " +
+          "mark the block modified");
+    }
+  }
+
+  /**
+   * Rebuild the index by walking every function, whether or not its epoch
+   * shows it as modified.  Passes call this before removing code, when
+   * the cost of walking the whole program is worth paying.
+   */
+  public void reindexAll() {
+    functions.clear();
+    functionsByID.clear();
+    callers.clear();
+    globalUsers.clear();
+    indexedEpoch = -1;
+    update();
+  }
+
+  /**
+   * @param callee
+   * @return ID of calling function for each call site of callee, in
+   *         program order, with a caller repeated for each call in it
+   */
+  public List<FnID> callSites(FnID callee) {
+    update();
+    Set<Function> calling = callers.get(callee);
+    if (calling.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Function> sorted = new ArrayList<Function>(calling);
+    if (sorted.size() > 1) {
+      Collections.sort(sorted, new Comparator<Function>() {
+        @Override
+        public int compare(Function a, Function b) {
+          return Integer.compare(functions.get(a).position,
+                                 functions.get(b).position);
+        }
+      });
+    }
+    List<FnID> result = new ArrayList<FnID>();
+    for (Function caller: sorted) {
+      long count = functions.get(caller).calls.getCount(callee);
+      for (long i = 0; i < count; i++) {
+        result.add(caller.id());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param caller
+   * @return true if function has call sites for any function in program
+   */
+  public boolean callsFunctions(Function caller) {
+    update();
+    for (FnID callee: functions.get(caller).calls.keySet()) {
+      if (functionsByID.containsKey(callee)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param fnID
+   * @return functions and builtins that the function may call, including
+   *         builtins implementing async operations, possibly with
+   *         duplicates.  Empty if the function isn't in the program.
+   */
+  public List<FnID> dependencies(FnID fnID) {
+    update();
+    FunctionInfo info = functionsByID.get(fnID);
+    if (info == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(info.dependencies);
+  }
+
+  /**
+   * @param global
+   * @return functions that reference the global variable
+   */
+  public Set<Function> globalUsers(Var global) {
+    if (!allVarRefs) {
+      // Modified functions are now indexed in one walk
+      allVarRefs = true;
+      update();
+      for (FunctionInfo info: functions.values()) {
+        addGlobalUsers(info, varRefs(info));
+      }
+    } else {
+      update();
+    }
+    return Collections.unmodifiableSet(globalUsers.get(global));
+  }
+
+  /**
+   * @param function
+   * @return number of instructions in the function, excluding cleanups
+   */
+  public long instructionCount(Function function) {
+    update();
+    return functions.get(function).instructions;
+  }
+
+  /**
+   * @param function
+   * @return variables written by instructions in the function, once for
+   *         each definition
+   */
+  public List<Var> definedVars(Function function) {
+    update();
+    return Collections.unmodifiableList(varRefs(functions.get(function)).defined);
+  }
+
+  /**
+   * @param function
+   * @return variables read by instructions or continuations in the function,
+   *         once for each use
+   */
+  public List<Var> usedVars(Function function) {
+    update();
+    return Collections.unmodifiableList(varRefs(functions.get(function)).used);
+  }
+
+  /**
+   * Reindex functions added or modified since last update, and remove
+   * functions no longer in program.
+   */
+  private void update() {
+    long epoch = ICTree.currentEpoch();
+    if (epoch == indexedEpoch) {
+      return;
+    }
+
+    List<Function> current = program.functions();
+    if (current.size() != functions.size() ||
+        !functions.keySet().containsAll(current)) {
+      Set<Function> currentSet = Collections.newSetFromMap(
+                          new IdentityHashMap<Function, Boolean>());
+      currentSet.addAll(current);
+      Iterator<FunctionInfo> it = functions.values().iterator();
+      while (it.hasNext()) {
+        FunctionInfo info = it.next();
+        if (!currentSet.contains(info.function)) {
+          removeInfo(info);
+          it.remove();
+        }
+      }
+    }
+
+    Logger logger = Logging.getSTCLogger();
+    int reindexed = 0;
+    for (int i = 0; i < current.size(); i++) {
+      Function f = current.get(i);
+      FunctionInfo info = functions.get(f);
+      if (info == null || f.modifiedSince(info.epoch)) {
+        if (info != null) {
+          removeInfo(info);
+        }
+        info = new FunctionInfo(f, epoch);
+        if (allVarRefs) {
+          info.varRefs = new VarRefs();
+        }
+        TreeWalk.walk(logger, f, new IndexWalker(program.foreignFunctions(),
+                                                  info, info.varRefs));
+        addInfo(info);
+        functions.put(f, info);
+        reindexed++;
+      }
+      info.position = i;
+    }
+    if (logger.isTraceEnabled()) {
+      logger.trace("Program index: reindexed " + reindexed + "/" +
+                   current.size() + " functions");
+    }
+    indexedEpoch = epoch;
+  }
+
+  private void addInfo(FunctionInfo info) {
+    functionsByID.put(info.function.id(), info);
+    for (FnID callee: info.calls.keySet()) {
+      callers.put(callee, info.function);
+    }
+    if (info.varRefs != null) {
+      addGlobalUsers(info, info.varRefs);
+    }
+  }
+
+  private void addGlobalUsers(FunctionInfo info, VarRefs refs) {
+    for (Var global: refs.globals) {
+      globalUsers.put(global, info.function);
+    }
+  }
+
+  private void removeInfo(FunctionInfo info) {
+    if (functionsByID.get(info.function.id()) == info) {
+      functionsByID.remove(info.function.id());
+    }
+    for (FnID callee: info.calls.keySet()) {
+      callers.remove(callee, info.function);
+    }
+    if (info.varRefs != null) {
+      for (Var global: info.varRefs.globals) {
+        globalUsers.remove(global, info.function);
+      }
+    }
+  }
+
+  /**
+   * @return variable references for function, indexed if needed
+   */
+  private VarRefs varRefs(FunctionInfo info) {
+    if (info.varRefs == null) {
+      info.varRefs = new VarRefs();
+      TreeWalk.walk(Logging.getSTCLogger(), info.function,
+                    new IndexWalker(null, null, info.varRefs));
+    }
+    return info.varRefs;
+  }
+
+  private static class FunctionInfo {
+    final Function function;
+
+    /** Epoch at which function was indexed */
+    final long epoch;
+
+    /** Position in program function list */
+    int position;
+
+    /** Count of function call instructions for each called function */
+    final Counters<FnID> calls = new Counters<FnID>();
+
+    /** Functions that may be called, including async op implementations */
+    final List<FnID> dependencies = new ArrayList<FnID>();
+
+    /** Count of instructions, excluding cleanups */
+    long instructions = 0;
+
+    /** Variable references, null if not yet indexed */
+    VarRefs varRefs = null;
+
+    FunctionInfo(Function function, long epoch) {
+      this.function = function;
+      this.epoch = epoch;
+    }
+  }
+
+  private static class VarRefs {
+    final List<Var> defined = new ArrayList<Var>();
+
+    final List<Var> used = new ArrayList<Var>();
+
+    /** Global variables referenced */
+    final Set<Var> globals = new HashSet<Var>();
+  }
+
+  /**
+   * Walker that fills in calls in function info and variable references,
+   * skipping either if null.
+   */
+  private static class IndexWalker extends TreeWalker {
+    private final ForeignFunctions foreignFuncs;
+    private final FunctionInfo info;
+    private final VarRefs refs;
+
+    IndexWalker(ForeignFunctions foreignFuncs, FunctionInfo info,
+                VarRefs refs) {
+      this.foreignFuncs = foreignFuncs;
+      this.info = info;
+      this.refs = refs;
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      Instruction inst) {
+      if (info != null) {
+        addCalls(inst);
+      }
+      if (refs != null) {
+        addRefs(inst);
+      }
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      Continuation cont) {
+      if (refs != null) {
+        for (Var v: cont.requiredVars(false)) {
+          addUse(v);
+        }
+      }
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      CleanupAction cleanup) {
+      if (refs != null) {
+        addRefs(cleanup.action());
+      }
+    }
+
+    private void addCalls(Instruction inst) {
+      if (FunctionInline.isFunctionCall(inst)) {
+        info.calls.increment(((FunctionCall)inst).functionID());
+      }
+
+      if (inst instanceof CommonFunctionCall) {
+        info.dependencies.add(((CommonFunctionCall)inst).functionID());
+      } else if (inst.op == Opcode.ASYNC_OP) {
+        // Async ops can be implemented with builtins
+        List<FnID> fnIDs = foreignFuncs.findOpImpl(((Builtin)inst).subop);
+        if (fnIDs != null) {
+          info.dependencies.addAll(fnIDs);
+        }
+      }
+
+      info.instructions++;
+    }
+
+    private void addRefs(Instruction inst) {
+      for (Var out: inst.getOutputs()) {
+        refs.defined.add(out);
+        if (out.defType().isGlobal()) {
+          refs.globals.add(out);
+        }
+      }
+      for (Arg in: inst.getInputs()) {
+        if (in.isVar()) {
+          addUse(in.getVar());
+        }
+      }
+    }
+
+    private void addUse(Var v) {
+      refs.used.add(v);
+      if (v.defType().isGlobal()) {
+        refs.globals.add(v);
+      }
+    }
+  }
+}
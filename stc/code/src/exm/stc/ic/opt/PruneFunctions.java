@@ -1,8 +1,8 @@
 package exm.stc.ic.opt;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -14,20 +14,24 @@ import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.FnID;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.StackLite;
-import exm.stc.ic.opt.TreeWalk.TreeWalker;
-import exm.stc.ic.tree.ICInstructions.Builtin;
-import exm.stc.ic.tree.ICInstructions.CommonFunctionCall;
-import exm.stc.ic.tree.ICInstructions.Instruction;
 import exm.stc.ic.tree.ICTree.BuiltinFunction;
 import exm.stc.ic.tree.ICTree.Function;
 import exm.stc.ic.tree.ICTree.Program;
-import exm.stc.ic.tree.Opcode;
 
 /**
  * Remove unused functions to shrink IR tree
  */
 public class PruneFunctions implements OptimizerPass {
 
+  private final ProgramIndex index;
+
+  /**
+   * @param index index of program to be optimized
+   */
+  public PruneFunctions(ProgramIndex index) {
+    this.index = index;
+  }
+
   @Override
   public String getPassName() {
     return "Prune unused functions";
@@ -40,56 +44,34 @@ public class PruneFunctions implements OptimizerPass {
 
   @Override
   public void optimize(Logger logger, Program program) throws UserException {
+    assert(index.program() == program);
     ForeignFunctions foreignFuncs = program.foreignFunctions();
 
-    // Function a depends on function b
-    DepFinder deps = new DepFinder(foreignFuncs);
-    TreeWalk.walk(logger, program, deps);
-
-    addLocalImpls(foreignFuncs, deps);
+    // Calls are looked up in program index
+    ListMultimap<FnID, FnID> localImpls = ArrayListMultimap.create();
+    addLocalImpls(foreignFuncs, localImpls);
 
-    Set<FnID> needed = findNeeded(deps);
+    Set<FnID> needed = findNeeded(index, localImpls);
+    if (prunesAny(program, needed)) {
+      // Don't remove functions based only on epochs: a function modified
+      // without marking it would still be indexed with its old calls
+      index.reindexAll();
+      needed = findNeeded(index, localImpls);
+    }
 
     pruneFunctions(program, needed);
 
     pruneBuiltins(program, needed);
   }
 
-  /**
-   * Fill in dependency graph.
-   */
-  private static class DepFinder extends TreeWalker {
-    public DepFinder(ForeignFunctions foreignFuncs) {
-      super();
-      this.foreignFuncs = foreignFuncs;
-    }
-
-    final ForeignFunctions foreignFuncs;
-    final ListMultimap<FnID, FnID> depGraph = ArrayListMultimap.create();
-
-    @Override
-    public void visit(Logger logger, Function currFn, Instruction inst) {
-      if (inst instanceof CommonFunctionCall) {
-        CommonFunctionCall fnCall = (CommonFunctionCall)inst;
-        depGraph.put(currFn.id(), fnCall.functionID());
-      } else if (inst.op == Opcode.ASYNC_OP) {
-        // Async ops can be implemented with builtins
-        List<FnID> fnIDs = foreignFuncs.findOpImpl(((Builtin)inst).subop);
-        if (fnIDs != null) {
-          for (FnID fnID: fnIDs) {
-            depGraph.put(currFn.id(), fnID);
-          }
-        }
-      }
-    }
-  }
-
   /**
    * Find the set of needed functions given dependencies between functions
-   * @param deps
+   * @param index
+   * @param localImpls additional dependencies on local implementations
    * @return
    */
-  private Set<FnID> findNeeded(DepFinder deps) {
+  private Set<FnID> findNeeded(ProgramIndex index,
+                               ListMultimap<FnID, FnID> localImpls) {
     Set<FnID> needed = new HashSet<FnID>();
     StackLite<FnID> workQueue = new StackLite<FnID>();
 
@@ -98,19 +80,38 @@ public class PruneFunctions implements OptimizerPass {
 
     while (!workQueue.isEmpty()) {
       FnID curr = workQueue.pop();
-      List<FnID> fnIDs = deps.depGraph.removeAll(curr);
-      addFunctions(needed, workQueue, fnIDs);
+      addFunctions(needed, workQueue, index.dependencies(curr));
+      addFunctions(needed, workQueue, localImpls.get(curr));
     }
     return needed;
   }
 
+  /**
+   * @return true if any function or builtin in program isn't needed
+   */
+  private boolean prunesAny(Program program, Set<FnID> needed) {
+    for (Function f: program.functions()) {
+      if (!needed.contains(f.id())) {
+        return true;
+      }
+    }
+    Iterator<BuiltinFunction> bIt = program.builtinIterator();
+    while (bIt.hasNext()) {
+      if (!needed.contains(bIt.next().id())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Functions may be translated into local implementation
-   * @param deps
+   * @param localImpls
    */
-  private void addLocalImpls(ForeignFunctions foreignFuncs, DepFinder deps) {
+  private void addLocalImpls(ForeignFunctions foreignFuncs,
+                             ListMultimap<FnID, FnID> localImpls) {
     for (FnID func: foreignFuncs.getLocalImplKeys()) {
-      deps.depGraph.put(func, foreignFuncs.getLocalImpl(func));
+      localImpls.put(func, foreignFuncs.getLocalImpl(func));
     }
   }
 
@@ -124,7 +125,7 @@ public class PruneFunctions implements OptimizerPass {
   }
 
   private void addFunctions(Set<FnID> needed, StackLite<FnID> workQueue,
-      List<FnID> fnIDs) {
+      Collection<FnID> fnIDs) {
     for (FnID fnID: fnIDs) {
       addFunction(needed, workQueue, fnID);
     }
@@ -15,6 +15,9 @@
  */
 package exm.stc.ic.opt;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -32,11 +35,13 @@ import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.Semantics;
 import exm.stc.common.lang.Var;
 import exm.stc.common.util.HierarchicalSet;
+import exm.stc.ic.opt.FixupVariables.FixupVarMode;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.ICContinuations.ContVarDefType;
 import exm.stc.ic.tree.ICContinuations.Continuation;
 import exm.stc.ic.tree.ICContinuations.ContinuationType;
 import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree;
 import exm.stc.ic.tree.ICTree.Block;
 import exm.stc.ic.tree.ICTree.BlockType;
 import exm.stc.ic.tree.ICTree.CleanupAction;
@@ -58,6 +63,15 @@ public class Validate implements OptimizerPass {
   private final boolean noNestedBlocks;
   private final boolean checkExecContext;
 
+  /** Epoch at start of last validateModified call */
+  private long validatedEpoch = -1;
+
+  /** Functions checked by last validateModified call */
+  private final Set<Function> validated = Collections.newSetFromMap(
+                              new IdentityHashMap<Function, Boolean>());
+
+  /** Global variables at last validateModified call */
+  private List<Var> validatedGlobals = null;
 
   private Validate(boolean checkVarPassing,
                    boolean checkCleanups,
@@ -100,15 +114,69 @@ public class Validate implements OptimizerPass {
     }
 
     for (Function fn : program.functions()) {
-      checkParentLinks(logger, program, fn);
-      checkUniqueVarNames(logger, program.allGlobals(), fn);
-      InitVariables.checkVarInit(logger, fn);
-      if (checkExecContext) {
-        checkExecCx(logger, program, fn);
+      checkFunction(logger, program, fn);
+    }
+  }
+
+  /**
+   * Only check some functions of the program, e.g. those that a pass
+   * changed.  The checks on each function only depend on other functions'
+   * signatures and on global variables.
+   * @param functions
+   */
+  public void optimize(Logger logger, Program program,
+                       Collection<Function> functions) {
+    for (Function fn : functions) {
+      if (checkVarPassing) {
+        FixupVariables.fixupFunction(logger, program.allGlobals(), fn,
+                            new HashSet<Var>(), FixupVarMode.NO_UPDATE);
+      }
+      checkFunction(logger, program, fn);
+    }
+  }
+
+  /**
+   * Only check functions modified since the last call, using
+   * modification epochs maintained by the IC tree.  Everything is
+   * checked if functions or global variables were added or removed.
+   */
+  public void validateModified(Logger logger, Program program) {
+    long epoch = ICTree.currentEpoch();
+    List<Var> globals = new ArrayList<Var>();
+    for (Var global: program.allGlobals()) {
+      globals.add(global);
+    }
+    boolean checkAll = validatedGlobals == null ||
+                       !globals.equals(validatedGlobals) ||
+                       validated.size() != program.functions().size() ||
+                       !validated.containsAll(program.functions());
+
+    List<Function> toCheck = new ArrayList<Function>();
+    for (Function fn: program.functions()) {
+      if (checkAll || fn.modifiedSince(validatedEpoch)) {
+        toCheck.add(fn);
       }
-      checkDuplicateRefs(logger, fn);
     }
+    logger.trace("Validating " + toCheck.size() + "/" +
+                 program.functions().size() + " modified functions");
+    optimize(logger, program, toCheck);
+
+    validatedEpoch = epoch;
+    validatedGlobals = globals;
+    validated.clear();
+    validated.addAll(program.functions());
+  }
+
+  private void checkFunction(Logger logger, Program program, Function fn) {
+    checkParentLinks(logger, program, fn);
+    checkUniqueVarNames(logger, program.allGlobals(), fn);
+    InitVariables.checkVarInit(logger, fn);
+    if (checkExecContext) {
+      checkExecCx(logger, program, fn);
+    }
+    checkDuplicateRefs(logger, fn);
   }
+
   /**
    * Check that var names are unique within each function, and
    * that all references to variable have same attributes
@@ -119,29 +187,36 @@ public class Validate implements OptimizerPass {
    */
   private void checkUniqueVarNames(Logger logger, AllGlobals globals, Function fn) {
     Map<String, Var> declared = new HashMap<String, Var>();
+    // Declared vars that can't be passed to child tasks
+    List<Var> notPassable = new ArrayList<Var>();
     for (Var global: globals) {
       if (declared.containsKey(global.name())) {
         throw new STCRuntimeError("Duplicate global " + global.name());
       }
       declared.put(global.name(), global);
+      if (!Semantics.canPassToChildTask(global)) {
+        notPassable.add(global);
+      }
     }
 
     for (Var in: fn.getInputList()) {
-      checkVarUnique(logger, fn, declared, in);
+      checkVarUnique(logger, fn, declared, notPassable, in);
     }
 
     for (Var out: fn.getOutputList()) {
-      checkVarUnique(logger, fn, declared, out);
+      checkVarUnique(logger, fn, declared, notPassable, out);
     }
 
-    checkUniqueVarNames(logger, fn, fn.mainBlock(), declared, new HierarchicalSet<Var>());
+    checkUniqueVarNames(logger, fn, fn.mainBlock(), declared, notPassable,
+                        new HierarchicalSet<Var>());
   }
 
   private void checkUniqueVarNames(Logger logger,
       Function fn, Block block, Map<String, Var> declared,
+      List<Var> notPassable,
       HierarchicalSet<Var> unavailable) {
     for (Var v: block.variables()) {
-      checkVarUnique(logger, fn, declared, v);
+      checkVarUnique(logger, fn, declared, notPassable, v);
     }
 
     checkVarReferences(logger, fn, block, declared, unavailable);
@@ -150,30 +225,28 @@ public class Validate implements OptimizerPass {
       checkCleanups(logger, fn, block);
 
     for (Continuation c: block.allComplexStatements()) {
-      checkUniqueVarNamesContRec(logger, fn, declared, unavailable, c);
+      checkUniqueVarNamesContRec(logger, fn, declared, notPassable,
+                                 unavailable, c);
     }
   }
 
   private void checkUniqueVarNamesContRec(Logger logger, Function fn,
-      Map<String, Var> declared, HierarchicalSet<Var> unavailable,
-      Continuation c) {
+      Map<String, Var> declared, List<Var> notPassable,
+      HierarchicalSet<Var> unavailable, Continuation c) {
 
     for (Var v: c.constructDefinedVars(ContVarDefType.NEW_DEF)) {
-      checkVarUnique(logger, fn, declared, v);
+      checkVarUnique(logger, fn, declared, notPassable, v);
     }
 
     HierarchicalSet<Var> unavailChild = unavailable.makeChild();
     if (!c.variablePassing().isLocal()) {
       // Remove non-passable
-      for (Var v: declared.values()) {
-        if (!Semantics.canPassToChildTask(v)) {
-          unavailChild.add(v);
-        }
-      }
+      unavailChild.addAll(notPassable);
     }
 
     for (Block inner: c.getBlocks()) {
-      checkUniqueVarNames(logger, fn, inner, declared, unavailChild);
+      checkUniqueVarNames(logger, fn, inner, declared, notPassable,
+                          unavailChild);
     }
   }
 
@@ -283,7 +356,8 @@ public class Validate implements OptimizerPass {
   }
 
   private void checkVarUnique(Logger logger,
-          Function fn, Map<String, Var> declared, Var var) {
+          Function fn, Map<String, Var> declared, List<Var> notPassable,
+          Var var) {
     checkUsed(fn, var);
     if (var.defType().isGlobal()) {
       Var declaredGlobal = declared.get(var.name());
@@ -299,6 +373,9 @@ public class Validate implements OptimizerPass {
                 + var.name() + " in function " + fn.id());
     }
     declared.put(var.name(), var);
+    if (!Semantics.canPassToChildTask(var)) {
+      notPassable.add(var);
+    }
   }
 
   private void checkUsed(Function fn, Var var) {
@@ -28,7 +28,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -51,6 +51,7 @@ import exm.stc.common.util.Sets;
 import exm.stc.common.util.StackLite;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.opt.OptUtil.InstOrCont;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.opt.TreeWalk.TreeWalker;
 import exm.stc.ic.tree.Conditionals.Conditional;
 import exm.stc.ic.tree.ICContinuations.BlockingVar;
@@ -173,7 +174,7 @@ import exm.stc.ic.tree.ICTree.StatementType;
  * Go to all subblocks and do the same
  *
  */
-public class WaitCoalescer implements OptimizerPass {
+public class WaitCoalescer extends FunctionLocalPass {
   // If true, merge continuations
   private final boolean doMerges;
   // If true, retain explicit waits even if removing them is valid
@@ -189,17 +190,21 @@ public class WaitCoalescer implements OptimizerPass {
     return "Wait coalescing";
   }
 
+  @Override
+  public String getFixpointKey() {
+    return getPassName() + " doMerges=" + doMerges +
+                           " retainExplicit=" + retainExplicit;
+  }
+
   @Override
   public String getConfigEnabledKey() {
     return Settings.OPT_WAIT_COALESCE;
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) {
-    for (Function f: prog.functions()) {
-      logger.trace("Wait coalescer entering function " + f.id());
-      rearrangeWaits(logger, prog, f, f.mainBlock(), ExecContext.control());
-    }
+  public void optimize(Logger logger, Program prog, Function f) {
+    logger.trace("Wait coalescer entering function " + f.id());
+    rearrangeWaits(logger, prog, f, f.mainBlock(), ExecContext.control());
   }
 
   public boolean rearrangeWaits(Logger logger, Program prog, Function fn,
@@ -1090,8 +1095,9 @@ public class WaitCoalescer implements OptimizerPass {
 
   private static SetMultimap<Var, InstOrCont> buildWaiterMap(Program prog,
                                                           Block block) {
-    // Use linked list to support more efficient removal in middle of list
-    SetMultimap<Var, InstOrCont> waitMap = HashMultimap.create();
+    // Keep waiters in program order so that they are pushed down in the
+    // same order regardless of which thread runs the pass
+    SetMultimap<Var, InstOrCont> waitMap = LinkedHashMultimap.create();
     findRelocatableBlockingInstructions(prog, block, waitMap);
     findBlockingContinuations(block, waitMap);
     return waitMap;
@@ -9,7 +9,6 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.Logging;
-import exm.stc.common.Settings;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Operators.BuiltinOpcode;
 import exm.stc.common.lang.Var;
@@ -55,10 +54,6 @@ public class Algebra {
    */
   private static List<ArgCV> tryAlgebra(Congruences state,
           Opcode op, BuiltinOpcode subop, Arg in1, Arg in2) {
-    if (!Settings.getBooleanUnchecked(Settings.OPT_ALGEBRA)) {
-      return Collections.emptyList();
-    }
-
     Logger logger = Logging.getSTCLogger();
     if (logger.isTraceEnabled()) {
       logger.trace("tryAlgebra " + op + " " + subop + " "
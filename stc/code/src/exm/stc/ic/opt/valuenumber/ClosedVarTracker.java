@@ -1,20 +1,20 @@
 package exm.stc.ic.opt.valuenumber;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-
 import exm.stc.common.lang.Types;
 import exm.stc.common.lang.Var;
+import exm.stc.common.lang.VarIndex;
+import exm.stc.common.lang.VarSet;
+import exm.stc.common.util.IntMap;
 import exm.stc.common.util.StackLite;
 
 /**
@@ -28,15 +28,20 @@ public class ClosedVarTracker {
 
   private final ClosedVarTracker parent;
 
+  /**
+   * IDs for vars, shared by all scopes in function
+   */
+  private final VarIndex varIndex;
+
   /**
    * Index of this within parent statements.
    */
   private final int parentStmtIndex;
 
   /**
-   * variables which are closed in this scope
+   * variables which are closed in this scope, keyed by var ID
    * */
-  private final ListMultimap<Var, ClosedEntry> closed;
+  private final IntMap<List<ClosedEntry>> closed;
 
 
   /**
@@ -49,21 +54,23 @@ public class ClosedVarTracker {
    * will be closed if we block on a given variable
    * TODO: recursive dependencies?
    */
-  private final ListMultimap<Var, Var> dependsOn;
+  private final IntMap<List<Var>> dependsOn;
 
   private ClosedVarTracker(Logger logger, boolean useTransitiveDeps,
-      ClosedVarTracker parent, int parentStmtIndex) {
+      ClosedVarTracker parent, VarIndex varIndex, int parentStmtIndex) {
     assert(parentStmtIndex >= 0);
     this.logger = logger;
     this.useTransitiveDeps = useTransitiveDeps;
     this.parent = parent;
+    this.varIndex = varIndex;
     this.parentStmtIndex = parentStmtIndex;
-    this.closed = ArrayListMultimap.create();
-    this.dependsOn = ArrayListMultimap.create();
+    this.closed = new IntMap<List<ClosedEntry>>();
+    this.dependsOn = new IntMap<List<Var>>();
   }
 
-  public static ClosedVarTracker makeRoot(Logger logger, boolean reorderingAllowed) {
-    return new ClosedVarTracker(logger, reorderingAllowed, null, 0);
+  public static ClosedVarTracker makeRoot(Logger logger, boolean reorderingAllowed,
+                                          VarIndex varIndex) {
+    return new ClosedVarTracker(logger, reorderingAllowed, null, varIndex, 0);
   }
 
   public ClosedVarTracker enterContinuation(int parentStmtIndex) {
@@ -80,7 +87,8 @@ public class ClosedVarTracker {
    * copy aren't reflected in this one
    */
   private ClosedVarTracker makeChild(int parentStmtIndex) {
-    return new ClosedVarTracker(logger, useTransitiveDeps, this, parentStmtIndex);
+    return new ClosedVarTracker(logger, useTransitiveDeps, this, varIndex,
+                                parentStmtIndex);
   }
 
   /**
@@ -91,19 +99,22 @@ public class ClosedVarTracker {
    */
   public Set<Var> getScopeClosed(boolean recursiveOnly) {
     // TODO: Use transitive dependencies to expand set
-    if (recursiveOnly) {
-      // Extract only recursive
-      Set<Var> recClosed = new HashSet<Var>();
-      for (Entry<Var, ClosedEntry> e: closed.entries()) {
-        if (e.getValue().recursive) {
-          recClosed.add(e.getKey());
+    VarSet result = new VarSet(varIndex);
+    for (int id: closed.keys()) {
+      if (!recursiveOnly) {
+        // All closed vars count
+        result.addID(id);
+      } else {
+        // Extract only recursive
+        for (ClosedEntry ce: closed.get(id)) {
+          if (ce.recursive) {
+            result.addID(id);
+            break;
+          }
         }
       }
-      return recClosed;
-    } else {
-      // All closed vars count
-      return Collections.unmodifiableSet(closed.keySet());
     }
+    return result;
   }
 
 
@@ -147,14 +158,14 @@ public class ClosedVarTracker {
     }
 
     // Avoid visiting same variables multiple times
-    Set<Var> visited = new HashSet<Var>();
-    visited.add(var);
+    BitSet visited = new BitSet();
+    visited.set(varIndex.id(var));
     while (!depStack.isEmpty()) {
       Var predecessor = depStack.pop();
       if (logger.isTraceEnabled()) {
         logger.trace("Checking predecessor: " + predecessor);
       }
-      if (!visited.contains(predecessor)) {
+      if (!visited.get(varIndex.id(predecessor))) {
         List<Var> predAliases = aliases.getAliasesOf(predecessor);
         ClosedEntry predCE = getDirectClosedEntry(predAliases, false,
                                                   stmtIndex);
@@ -164,7 +175,7 @@ public class ClosedVarTracker {
             logger.trace("Inferred: " + predecessor + " closed => "
                          + var + " closed");
           }
-          closed.put(var, predCE);
+          close(var, predCE);
           return predCE;
         }
         for (Var predAlias: predAliases) {
@@ -181,10 +192,14 @@ public class ClosedVarTracker {
    * @return
    */
   private List<Var> directDeps(Var var) {
+    int id = varIndex.id(var);
     ClosedVarTracker curr = this;
     List<Var> res = new ArrayList<Var>();
     while (curr != null) {
-      res.addAll(curr.dependsOn.get(var));
+      List<Var> deps = curr.dependsOn.get(id);
+      if (deps != null) {
+        res.addAll(deps);
+      }
       curr = curr.parent;
     }
     return res;
@@ -200,12 +215,23 @@ public class ClosedVarTracker {
    */
   private ClosedEntry getDirectClosedEntry(Collection<Var> vars,
       boolean recursive, int stmtIndex) {
+    int ids[] = new int[vars.size()];
+    int i = 0;
+    for (Var var: vars) {
+      ids[i++] = varIndex.id(var);
+    }
+
     // Walk up to root, checking if this var is closed.
     ClosedVarTracker curr = this;
     int currStmtIndex = stmtIndex;
     while (curr != null) {
+      i = 0;
       for (Var var: vars) {
-        for (ClosedEntry ce: curr.closed.get(var)) {
+        List<ClosedEntry> entries = curr.closed.get(ids[i++]);
+        if (entries == null) {
+          continue;
+        }
+        for (ClosedEntry ce: entries) {
           logger.trace(var + " " + ce + " vs " + recursive + ", " + currStmtIndex);
           // Check that statement index and recursiveness is right
           if (ce.matches(recursive, currStmtIndex)) {
@@ -250,7 +276,13 @@ public class ClosedVarTracker {
     if (logger.isTraceEnabled())
       logger.trace(var + " is closed: " + ce);
 
-    closed.put(var, ce);
+    int id = varIndex.id(var);
+    List<ClosedEntry> entries = closed.get(id);
+    if (entries == null) {
+      entries = new ArrayList<ClosedEntry>(1);
+      closed.put(id, entries);
+    }
+    entries.add(ce);
   }
 
   /**
@@ -268,7 +300,13 @@ public class ClosedVarTracker {
     if (logger.isTraceEnabled()) {
       logger.trace("Set dependency: " + from + " => " + to);
     }
-    dependsOn.put(from, to);
+    int id = varIndex.id(from);
+    List<Var> deps = dependsOn.get(id);
+    if (deps == null) {
+      deps = new ArrayList<Var>(1);
+      dependsOn.put(id, deps);
+    }
+    deps.add(to);
   }
 
   public void printTraceInfo(Logger logger) {
@@ -278,8 +316,8 @@ public class ClosedVarTracker {
     while (curr != null) {
       logger.trace("Closed vars @ ancestor " + height +
           (curr == this ? "" : " Index " + parentIndex));
-      logger.trace("closed:" + curr.closed);
-      logger.trace("dependsOn: " + dependsOn);
+      logger.trace("closed:" + curr.byVar(curr.closed));
+      logger.trace("dependsOn: " + byVar(dependsOn));
 
       parentIndex = curr.parentStmtIndex;
       curr = curr.parent;
@@ -287,6 +325,17 @@ public class ClosedVarTracker {
     }
   }
 
+  /**
+   * Convert map to var keys for debug prints
+   */
+  private <T> Map<Var, T> byVar(IntMap<T> map) {
+    Map<Var, T> result = new HashMap<Var, T>();
+    for (int id: map.keys()) {
+      result.put(varIndex.var(id), map.get(id));
+    }
+    return result;
+  }
+
   public static class ClosedEntry {
     private ClosedEntry(int stmtIndex, boolean recursive) {
       this.stmtIndex = stmtIndex;
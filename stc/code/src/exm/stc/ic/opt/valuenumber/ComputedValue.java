@@ -138,9 +138,18 @@ public class ComputedValue<T> {
     return hashCode;
   }
 
+  /**
+   * Enums are hashed by ordinal, since identity hash codes depend on which
+   * thread computes them first and would make iteration order of hash
+   * maps differ between serial and parallel optimization.
+   */
   public int calcHashCode() {
-    int result = this.op.hashCode();
-    result = 37 * result + this.subop.hashCode();
+    int result = this.op.ordinal();
+    if (this.subop instanceof Enum) {
+      result = 37 * result + ((Enum<?>)this.subop).ordinal();
+    } else {
+      result = 37 * result + this.subop.hashCode();
+    }
     for (T o: this.inputs) {
       if (o == null) {
         throw new STCRuntimeError("Null input in " + this);
@@ -13,12 +13,15 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
+import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.VarIndex;
 import exm.stc.common.util.HierarchicalSet;
 import exm.stc.common.util.Pair;
 import exm.stc.common.util.TernaryLogic.Ternary;
@@ -76,6 +79,7 @@ public class Congruences implements AliasFinder {
   private final AliasTracker aliasTracker;
   private final HierarchicalSet<List<Arg>> maybeAssigned;
   private final boolean reorderingAllowed;
+  private final boolean algebraEnabled;
 
   private Congruences(Logger logger,
                         GlobalConstants consts,
@@ -85,7 +89,8 @@ public class Congruences implements AliasFinder {
                         CongruentSets byAlias,
                         AliasTracker aliasTracker,
                         HierarchicalSet<List<Arg>> maybeAssigned,
-                        boolean reorderingAllowed) {
+                        boolean reorderingAllowed,
+                        boolean algebraEnabled) {
     this.logger = logger;
     this.consts = consts;
     this.parent = parent;
@@ -95,17 +100,20 @@ public class Congruences implements AliasFinder {
     this.aliasTracker = aliasTracker;
     this.maybeAssigned = maybeAssigned;
     this.reorderingAllowed = reorderingAllowed;
+    this.algebraEnabled = algebraEnabled;
   }
 
   public Congruences(Logger logger, ForeignFunctions foreignFuncs,
-      GlobalConstants consts, boolean reorderingAllowed) {
+      CompilerOptions options, GlobalConstants consts,
+      boolean reorderingAllowed, VarIndex varIndex) {
     this(logger, consts, null,
-        ClosedVarTracker.makeRoot(logger, reorderingAllowed),
-        CongruentSets.makeRoot(foreignFuncs, CongruenceType.VALUE),
-         CongruentSets.makeRoot(foreignFuncs, CongruenceType.ALIAS),
+        ClosedVarTracker.makeRoot(logger, reorderingAllowed, varIndex),
+        CongruentSets.makeRoot(foreignFuncs, options, CongruenceType.VALUE),
+         CongruentSets.makeRoot(foreignFuncs, options, CongruenceType.ALIAS),
          new AliasTracker(),
          new HierarchicalSet<List<Arg>>(),
-         reorderingAllowed);
+         reorderingAllowed,
+         options.getBoolean(Settings.OPT_ALGEBRA));
   }
 
   public Congruences enterContBlock(boolean varsFromParent,
@@ -115,7 +123,7 @@ public class Congruences implements AliasFinder {
              byValue.makeChild(varsFromParent),
              byAlias.makeChild(varsFromParent),
              aliasTracker.makeChild(),
-             maybeAssigned.makeChild(), reorderingAllowed);
+             maybeAssigned.makeChild(), reorderingAllowed, algebraEnabled);
 
     /*
      * TODO: how to handle difference between information that is shared
@@ -1036,9 +1044,11 @@ public class Congruences implements AliasFinder {
       throws OptUnsafeError {
     if (canonVal.isCV()) {
       ArgCV cv = canonVal.cv();
-      for (ArgCV extra: Algebra.tryAlgebra(this, cv)) {
-        update(consts, errContext, canonLoc, extra, IsAssign.NO,
-               congruent, false, stmtIndex);
+      if (algebraEnabled) {
+        for (ArgCV extra: Algebra.tryAlgebra(this, cv)) {
+          update(consts, errContext, canonLoc, extra, IsAssign.NO,
+                 congruent, false, stmtIndex);
+        }
       }
       if (cv.isArrayMemberVal() || cv.isArrayMember()) {
         Var arr = cv.getInput(0).getVar();
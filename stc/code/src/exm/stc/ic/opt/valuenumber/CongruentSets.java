@@ -17,6 +17,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
@@ -51,6 +52,7 @@ class CongruentSets {
    * Data about defined foreign functions
    */
   private final ForeignFunctions foreignFuncs;
+  private final CompilerOptions options;
 
   private final CongruentSets parent;
 
@@ -109,9 +111,10 @@ class CongruentSets {
   public final CongruenceType congType;
 
   private CongruentSets(ForeignFunctions foreignFuncs,
-          CongruenceType congType, CongruentSets parent,
-          boolean varsFromParent) {
+          CompilerOptions options, CongruenceType congType,
+          CongruentSets parent, boolean varsFromParent) {
     this.foreignFuncs = foreignFuncs;
+    this.options = options;
     this.congType = congType;
     this.parent = parent;
     if (parent == null) {
@@ -130,9 +133,9 @@ class CongruentSets {
       this.constShareEnabled = parent.constShareEnabled;
       this.constFoldEnabled = parent.constFoldEnabled;
     } else {
-      this.constShareEnabled = Settings.getBooleanUnchecked(
+      this.constShareEnabled = options.getBoolean(
                                         Settings.OPT_SHARED_CONSTANTS);
-      this.constFoldEnabled = Settings.getBooleanUnchecked(
+      this.constFoldEnabled = options.getBoolean(
                                         Settings.OPT_CONSTANT_FOLD);
     }
   }
@@ -205,12 +208,13 @@ class CongruentSets {
   }
 
   public static CongruentSets makeRoot(ForeignFunctions foreignFuncs,
-                                       CongruenceType congType) {
-    return new CongruentSets(foreignFuncs, congType, null, true);
+              CompilerOptions options, CongruenceType congType) {
+    return new CongruentSets(foreignFuncs, options, congType, null, true);
   }
 
   public CongruentSets makeChild(boolean varsFromParent) {
-    return new CongruentSets(foreignFuncs, congType, this, varsFromParent);
+    return new CongruentSets(foreignFuncs, options, congType, this,
+                             varsFromParent);
   }
 
   private boolean isUnpassable(Arg arg) {
@@ -694,7 +698,8 @@ class CongruentSets {
   private ArgOrCV tryConstantFold(ArgCV val) {
     assert(constFoldEnabled);
     assert(this.congType == CongruenceType.VALUE);
-    return ConstantFolder.constantFold(logger, foreignFuncs, this, val);
+    return ConstantFolder.constantFold(logger, foreignFuncs, options, this,
+                                       val);
   }
 
   /**
@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.lang.OpEvaluator;
@@ -31,8 +32,8 @@ public class ConstantFolder {
    *         successful.
    */
   public static ArgOrCV constantFold(Logger logger,
-      ForeignFunctions foreignFuncs, CongruentSets sets,
-      ComputedValue<Arg> val) {
+      ForeignFunctions foreignFuncs, CompilerOptions options,
+      CongruentSets sets, ComputedValue<Arg> val) {
     switch (val.op) {
       case ASYNC_OP:
       case LOCAL_OP:
@@ -45,7 +46,7 @@ public class ConstantFolder {
       case CALL_LOCAL:
       case CALL_LOCAL_CONTROL:
       case CALL_SYNC:
-        return foldFunctionCall(logger, foreignFuncs, sets, val);
+        return foldFunctionCall(logger, foreignFuncs, options, sets, val);
       case GET_FILENAME_ALIAS:
         return foldGetFilename(logger, sets, val);
       default:
@@ -96,8 +97,8 @@ public class ConstantFolder {
 
 
   private static ArgOrCV foldFunctionCall(Logger logger,
-      ForeignFunctions foreignFuncs, CongruentSets sets,
-      ComputedValue<Arg> val) {
+      ForeignFunctions foreignFuncs, CompilerOptions options,
+      CongruentSets sets, ComputedValue<Arg> val) {
     List<Arg> inputs;
     if (!CommonFunctionCall.canConstantFold(foreignFuncs, val)) {
       return null;
@@ -109,7 +110,8 @@ public class ConstantFolder {
       inputs = findFutureValues(sets, val);
     }
     if (inputs != null) {
-      Arg result = CommonFunctionCall.tryConstantFold(foreignFuncs, val, inputs);
+      Arg result = CommonFunctionCall.tryConstantFold(foreignFuncs, options,
+                                                      val, inputs);
       if (result != null) {
         return valFromArg(!usesValues, result);
       }
@@ -24,9 +24,11 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
@@ -41,18 +43,19 @@ import exm.stc.common.lang.Var;
 import exm.stc.common.lang.Var.Alloc;
 import exm.stc.common.lang.Var.DefType;
 import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.lang.VarIndex;
 import exm.stc.common.lang.WaitMode;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.util.TernaryLogic.Ternary;
 import exm.stc.ic.ICUtil;
 import exm.stc.ic.WrapUtil;
 import exm.stc.ic.aliases.Alias;
-import exm.stc.ic.opt.ICOptimizer;
+import exm.stc.ic.opt.ICOptimizer.ValidationPolicy;
 import exm.stc.ic.opt.InitVariables;
 import exm.stc.ic.opt.InitVariables.InitState;
 import exm.stc.ic.opt.OptUtil;
 import exm.stc.ic.opt.OptUtil.OptVarCreator;
-import exm.stc.ic.opt.OptimizerPass;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
 import exm.stc.ic.opt.ProgressOpcodes;
 import exm.stc.ic.opt.ProgressOpcodes.Category;
 import exm.stc.ic.opt.TreeWalk;
@@ -103,25 +106,42 @@ import exm.stc.ic.tree.TurbineOp;
  * of dead code, which can be cleaned up in a pass of the dead code eliminator.
  *
  */
-public class ValueNumber implements OptimizerPass {
+public class ValueNumber extends FunctionLocalPass {
 
   private Logger logger;
 
+  /**
+   * Constants created for each function when functions are optimized
+   * separately
+   */
+  private final Map<Function, GlobalConstants> forkedConstants =
+                    new ConcurrentHashMap<Function, GlobalConstants>();
+
   /**
    * True if this pass is allowed to reorder instructions. If false, guarantees
    * that future passes won't try reordering.
    */
   private boolean reorderingAllowed;
 
+  private final CompilerOptions options;
+
   /**
    * True if we should try to infer which variables are closed/finalized
    */
-  private boolean finalizedVarEnabled;
+  private final boolean finalizedVarEnabled;
+
+  /**
+   * True if we should check internal state after each block
+   */
+  private final boolean validateState;
 
-  public ValueNumber(boolean reorderingAllowed) {
+  public ValueNumber(CompilerOptions options, boolean reorderingAllowed) {
+    this.options = options;
     this.reorderingAllowed = reorderingAllowed;
 
-    finalizedVarEnabled = Settings.getBooleanUnchecked(Settings.OPT_FINALIZED_VAR);
+    finalizedVarEnabled = options.getBoolean(Settings.OPT_FINALIZED_VAR);
+    validateState = ValidationPolicy.fromOptions(options) ==
+                                          ValidationPolicy.ALWAYS;
   }
 
   @Override
@@ -135,27 +155,57 @@ public class ValueNumber implements OptimizerPass {
   }
 
   @Override
-  public void optimize(Logger logger, Program prog) throws UserException {
+  public String getFixpointKey() {
+    return getPassName() + " reorderingAllowed=" + reorderingAllowed;
+  }
+
+  @Override
+  public void optimize(Logger logger, Program prog, List<Function> functions)
+                                                      throws UserException {
     this.logger = logger;
-    for (Function f: prog.functions()) {
-      runPass(prog, f);
+    for (Function f: functions) {
+      runPass(prog, prog.constants(), f);
       liftWaitRec(logger, prog, f, f.mainBlock());
     }
   }
 
-  private void runPass(Program prog, Function f) {
+  /**
+   * Run value numbering on a function in isolation.  New constants are
+   * created in a fork of the program's constants.  Merging them and
+   * lifting waits, which changes the function's calling convention, are
+   * left for finishFunction.
+   */
+  @Override
+  public void optimize(Logger logger, Program prog, Function f) {
+    this.logger = logger;
+    GlobalConstants consts = prog.constants().fork();
+    runPass(prog, consts, f);
+    forkedConstants.put(f, consts);
+  }
+
+  @Override
+  public void finishFunction(Logger logger, Program prog, Function f) {
+    GlobalConstants consts = forkedConstants.remove(f);
+    Map<Var, Arg> renames = prog.constants().mergeFork(consts);
+    if (!renames.isEmpty()) {
+      f.mainBlock().renameVars(f.id(), renames, RenameMode.REPLACE_VAR, true);
+    }
+    liftWaitRec(logger, prog, f, f.mainBlock());
+  }
+
+  private void runPass(Program prog, GlobalConstants consts, Function f) {
     logger.trace("Optimizing function @" + f.id());
     try {
       // First pass finds all congruence classes and expands some instructions
       Map<Block, Congruences> congMap;
-      congMap = findCongruences(prog, f, ExecContext.control());
+      congMap = findCongruences(prog, consts, f, ExecContext.control());
 
       // Second pass replaces values based on congruence classes
-      replaceVals(prog.constants(), f.id(), f.mainBlock(), congMap,
+      replaceVals(consts, f.id(), f.mainBlock(), congMap,
                   InitState.enterFunction(f));
 
       // Third pass inlines continuations
-      inlinePass(prog.constants(), f.mainBlock(), congMap);
+      inlinePass(consts, f.mainBlock(), congMap);
     } catch (OptUnsafeError e) {
       logger.debug("Optimization cancelled for function " + f.id());
     }
@@ -164,8 +214,8 @@ public class ValueNumber implements OptimizerPass {
   private Congruences initFuncState(Logger logger,
       ForeignFunctions foreignFuncs, GlobalConstants constants,
       Function f) throws OptUnsafeError {
-    Congruences congruent = new Congruences(logger, foreignFuncs, constants,
-                                            reorderingAllowed);
+    Congruences congruent = new Congruences(logger, foreignFuncs, options,
+                              constants, reorderingAllowed, new VarIndex());
     for (Var v: constants.vars()) {
       // First, all constants can be treated as being set
       assert(v.storage() == Alloc.GLOBAL_CONST);
@@ -371,16 +421,19 @@ public class ValueNumber implements OptimizerPass {
    *      for this function.
    */
   private Map<Block, Congruences> findCongruences(Program program,
-          Function f, ExecContext execCx) throws OptUnsafeError {
+          GlobalConstants consts, Function f, ExecContext execCx)
+              throws OptUnsafeError {
     Map<Block, Congruences> result = new HashMap<Block, Congruences>();
     Congruences initState = initFuncState(logger, program.foreignFunctions(),
-                                          program.constants(), f);
-    findCongruencesRec(program, f, f.mainBlock(), execCx, initState, result);
+                                          consts, f);
+    findCongruencesRec(program, consts, f, f.mainBlock(), execCx, initState,
+                       result);
     return result;
   }
 
-  private void findCongruencesRec(Program program, Function f, Block block,
-      ExecContext execCx, Congruences state, Map<Block, Congruences> result)
+  private void findCongruencesRec(Program program, GlobalConstants consts,
+      Function f, Block block, ExecContext execCx, Congruences state,
+      Map<Block, Congruences> result)
           throws OptUnsafeError {
     result.put(block, state);
 
@@ -394,7 +447,7 @@ public class ValueNumber implements OptimizerPass {
 
         Instruction inst = stmt.instruction();
         if (logger.isTraceEnabled() && inst.op != Opcode.COMMENT) {
-          state.printTraceInfo(logger, program.constants());
+          state.printTraceInfo(logger, consts);
           logger.trace("-----------------------------");
           logger.trace("At instruction: " + inst);
         }
@@ -407,31 +460,32 @@ public class ValueNumber implements OptimizerPass {
            */
           continue;
         }
-        findCongruencesInst(program, f, execCx, block, stmts, inst, stmtIndex,
-                            state);
+        findCongruencesInst(program, consts, f, execCx, block, stmts, inst,
+                            stmtIndex, state);
       } else {
         assert (stmt.type() == StatementType.CONDITIONAL);
         // handle situations like:
         // all branches assign future X a local values v1,v2,v3,etc.
         // in this case should try to create another local value outside of
         // conditional z which has the value from all branches stored
-        UnifiedValues unified = findCongruencesContRec(program, f, execCx,
-                            stmt.conditional(), stmtIndex, state, result);
-        state.addUnifiedValues(program.constants(), f.id().uniqueName(),
+        UnifiedValues unified = findCongruencesContRec(program, consts, f,
+                        execCx, stmt.conditional(), stmtIndex, state, result);
+        state.addUnifiedValues(consts, f.id().uniqueName(),
                               stmtIndex, unified);
       }
     }
 
     int stmtCount = block.getStatements().size();
     for (Continuation cont: block.getContinuations()) {
-      findCongruencesContRec(program, f, execCx, cont, stmtCount,
+      findCongruencesContRec(program, consts, f, execCx, cont, stmtCount,
                              state, result);
     }
 
-    validateState(program.constants(), state);
+    validateState(consts, state);
   }
 
-  private void findCongruencesInst(Program prog, Function f,
+  private void findCongruencesInst(Program prog, GlobalConstants consts,
+      Function f,
       ExecContext execCx, Block block, ListIterator<Statement> stmts,
       Instruction inst, int stmtIndex, Congruences state) throws OptUnsafeError {
 
@@ -441,7 +495,7 @@ public class ValueNumber implements OptimizerPass {
      * NOTE: we don't delete any instructions on this pass, but rather rely on
      * dead code elim to later clean up unneeded instructions instead.
      */
-    updateCongruent(logger, prog.constants(), f, inst, stmtIndex, state);
+    updateCongruent(logger, consts, f, inst, stmtIndex, state);
 
 
     if (finalizedVarEnabled) {
@@ -457,7 +511,7 @@ public class ValueNumber implements OptimizerPass {
   }
 
   private UnifiedValues findCongruencesContRec(Program prog,
-      Function fn, ExecContext execCx, Continuation cont,
+      GlobalConstants consts, Function fn, ExecContext execCx, Continuation cont,
       int stmtIndex, Congruences state, Map<Block, Congruences> result)
           throws OptUnsafeError {
     logger.trace("Recursing on continuation " + cont.getType());
@@ -477,15 +531,17 @@ public class ValueNumber implements OptimizerPass {
 
     // Try to avoid going down invalid branches
     if (cont.isConditional()) {
-      return tryUnifyBranches(prog, fn, execCx, cont, stmtIndex, state, result);
+      return tryUnifyBranches(prog, consts, fn, execCx, cont, stmtIndex,
+                              state, result);
     } else {
-      findCongruencesBranchesRec(prog, fn, execCx, cont, stmtIndex, state, result,
-                                 cont.getBlocks(), null);
+      findCongruencesBranchesRec(prog, consts, fn, execCx, cont, stmtIndex,
+                                 state, result, cont.getBlocks(), null);
       return UnifiedValues.EMPTY;
     }
   }
 
-  private UnifiedValues tryUnifyBranches(Program prog, Function fn,
+  private UnifiedValues tryUnifyBranches(Program prog,
+      GlobalConstants consts, Function fn,
       ExecContext execCx, Continuation cont, int stmtIndex, Congruences state,
       Map<Block, Congruences> result)
       throws OptUnsafeError {
@@ -513,11 +569,11 @@ public class ValueNumber implements OptimizerPass {
     List<Congruences> branchStates = unifyBranches ?
                       new ArrayList<Congruences>() : null;
 
-    findCongruencesBranchesRec(prog, fn, execCx, cont, stmtIndex, state, result,
-                                branchBlocks, branchStates);
+    findCongruencesBranchesRec(prog, consts, fn, execCx, cont, stmtIndex,
+                               state, result, branchBlocks, branchStates);
 
     if (unifyBranches) {
-      return UnifiedValues.unify(logger, prog.constants(), fn,
+      return UnifiedValues.unify(logger, consts, fn,
                     reorderingAllowed, stmtIndex, state, cont,
                               branchStates, branchBlocks);
     } else {
@@ -525,7 +581,8 @@ public class ValueNumber implements OptimizerPass {
     }
   }
 
-  private void findCongruencesBranchesRec(Program prog, Function fn,
+  private void findCongruencesBranchesRec(Program prog,
+      GlobalConstants consts, Function fn,
       ExecContext execCx, Continuation cont, int stmtIndex, Congruences state,
       Map<Block, Congruences> result,
       List<Block> branchBlocks, List<Congruences> branchStates)
@@ -555,8 +612,8 @@ public class ValueNumber implements OptimizerPass {
           blockState.markClosedBlockStart(bv.var, bv.recursive);
         }
       }
-      findCongruencesRec(prog, fn, contBlock, cont.childContext(execCx),
-                         blockState, result);
+      findCongruencesRec(prog, consts, fn, contBlock,
+                         cont.childContext(execCx), blockState, result);
 
       if (branchStates != null) {
         branchStates.add(blockState);
@@ -591,7 +648,10 @@ public class ValueNumber implements OptimizerPass {
       if (stmt.type() == StatementType.INSTRUCTION) {
         // Replace vars in instruction
         Instruction inst = stmt.instruction();
-        replaceCongruent(function, inst, state, init);
+        if (replaceCongruent(function, inst, state, init)) {
+          // Instruction was modified in place
+          block.markModified();
+        }
 
         if (!inst.hasSideEffects() && inst.getOutputs().size() == 1) {
           Var output = inst.getOutput(0);
@@ -602,15 +662,19 @@ public class ValueNumber implements OptimizerPass {
               Arg val = state.findRetrieveResult(output, false);
               if (val != null && init.isInitialized(val, false)) {
                 Instruction futureSet = TurbineOp.storePrim(output, val);
-                stmtIt.set(futureSet);
-                logger.trace("Replaced with " + futureSet);
+                if (!sameOpAndInputs(inst, futureSet)) {
+                  stmtIt.set(futureSet);
+                  logger.trace("Replaced with " + futureSet);
+                }
               }
             } else if (Types.isScalarValue(output)) {
               Arg val = state.findValue(output);
               if (val != null && val.isConst()) {
                 Instruction valueSet = ICInstructions.valueSet(output, val);
-                stmtIt.set(valueSet);
-                logger.trace("Replaced with " + valueSet);
+                if (!sameOpAndInputs(inst, valueSet)) {
+                  stmtIt.set(valueSet);
+                  logger.trace("Replaced with " + valueSet);
+                }
               }
             }
           }
@@ -804,19 +868,75 @@ public class ValueNumber implements OptimizerPass {
     }
   }
 
-  private void replaceCongruent(FnID function, Instruction inst,
+  /**
+   * @return true if any variables in the instruction may have been replaced
+   */
+  private boolean replaceCongruent(FnID function, Instruction inst,
                                 Congruences congruent, InitState init) {
     assert(congruent != null);
 
     if (logger.isTraceEnabled()) {
       logger.trace("Instruction before replacement: " + inst);
     }
+    boolean replaced = false;
     for (RenameMode mode: RENAME_MODES) {
-      inst.renameVars(function, congruent.replacements(mode, init), mode);
+      Map<Var, Arg> renames = congruent.replacements(mode, init);
+      replaced = replaced || renamesApply(inst, renames);
+      inst.renameVars(function, renames, mode);
     }
     if (logger.isTraceEnabled()) {
       logger.trace("Instruction after replacement: " + inst);
     }
+    return replaced;
+  }
+
+  /**
+   * Check if replacing instruction with same output would be a no-op,
+   * to avoid marking the block modified
+   */
+  private static boolean sameOpAndInputs(Instruction inst,
+                                         Instruction replacement) {
+    if (inst.op != replacement.op) {
+      return false;
+    }
+    List<Arg> inputs = inst.getInputs();
+    List<Arg> replacementInputs = replacement.getInputs();
+    if (inputs.size() != replacementInputs.size()) {
+      return false;
+    }
+    for (int i = 0; i < inputs.size(); i++) {
+      if (ICUtil.argChanged(inputs.get(i), replacementInputs.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean renamesApply(Instruction inst,
+                                      Map<Var, Arg> renames) {
+    if (renames.isEmpty()) {
+      return false;
+    }
+    for (Arg in: inst.getInputs()) {
+      if (in.isVar() && renamesVar(renames, in.getVar())) {
+        return true;
+      }
+    }
+    for (Var out: inst.getOutputs()) {
+      if (renamesVar(renames, out)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if var is replaced with something other than itself
+   */
+  private static boolean renamesVar(Map<Var, Arg> renames, Var v) {
+    Arg replacement = renames.get(v);
+    return replacement != null &&
+        ICUtil.argChanged(v.asArg(), replacement);
   }
 
   private static void replaceCleanupCongruent(FnID function, Block block,
@@ -1027,7 +1147,7 @@ public class ValueNumber implements OptimizerPass {
    * Do any validations of the state of things
    */
   private void validateState(GlobalConstants consts, Congruences state) {
-    if (ICOptimizer.SUPER_DEBUG) {
+    if (validateState) {
       state.validate(consts);
     }
   }
@@ -17,6 +17,7 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 
 import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
@@ -63,9 +64,11 @@ public class RCPlacer {
 
   private final Logger logger = Logging.getSTCLogger();
   private final Map<FnID, Function> functionMap;
+  private final CompilerOptions options;
 
-  public RCPlacer(Map<FnID, Function> functionMap) {
+  public RCPlacer(Map<FnID, Function> functionMap, CompilerOptions options) {
     this.functionMap = functionMap;
+    this.options = options;
   }
 
 
@@ -246,7 +249,7 @@ public class RCPlacer {
    */
   private void cancelIncrements(Logger logger, Function fn, Block block,
       RCTracker tracker, RefCountType rcType) {
-    if (!RCUtil.cancelEnabled()) {
+    if (!RCUtil.cancelEnabled(options)) {
       return;
     }
 
@@ -485,8 +488,8 @@ public class RCPlacer {
   private void piggybackDecrementsOnDeclarations(Logger logger,
       GlobalVars globals, Function fn, Block block,
       RCTracker tracker, RefCountType rcType) {
-    if (!RCUtil.piggybackEnabled() ||
-        !RCUtil.cancelEnabled()) {
+    if (!RCUtil.piggybackEnabled(options) ||
+        !RCUtil.cancelEnabled(options)) {
       // Don't support if no cancelling - can lead to double piggyback
       return;
     }
@@ -562,7 +565,7 @@ public class RCPlacer {
    */
   private void piggybackOnStatements(Logger logger, Function fn,
       Block block, RCTracker tracker, RCDir dir, RefCountType rcType) {
-    if (!RCUtil.piggybackEnabled()) {
+    if (!RCUtil.piggybackEnabled(options)) {
       return;
     }
 
@@ -846,7 +849,7 @@ public class RCPlacer {
    */
   private void batchDecrementsForeach(Block block,
       RCTracker increments, RefCountType rcType) {
-    if (!RCUtil.batchEnabled()) {
+    if (!RCUtil.batchEnabled(options)) {
       return;
     }
 
@@ -1048,7 +1051,7 @@ public class RCPlacer {
    */
   private void piggybackIncrementsOnDeclarations(GlobalVars globals,
       Function fn, Block block, RCTracker increments, RefCountType rcType) {
-    if (!RCUtil.piggybackEnabled()) {
+    if (!RCUtil.piggybackEnabled(options)) {
       return;
     }
 
@@ -2,6 +2,7 @@ package exm.stc.ic.refcount;
 
 import java.util.Map.Entry;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Settings;
 import exm.stc.common.lang.RefCounting.RefCountType;
 import exm.stc.common.lang.Var;
@@ -36,24 +37,24 @@ public class RCUtil {
         && !cont.constructDefinedVars().contains(var);
   }
 
-  static boolean mergeEnabled() {
-    return Settings.getBooleanUnchecked(Settings.OPT_MERGE_REFCOUNTS);
+  static boolean mergeEnabled(CompilerOptions options) {
+    return options.getBoolean(Settings.OPT_MERGE_REFCOUNTS);
   }
 
-  static boolean cancelEnabled() {
-    return Settings.getBooleanUnchecked(Settings.OPT_CANCEL_REFCOUNTS);
+  static boolean cancelEnabled(CompilerOptions options) {
+    return options.getBoolean(Settings.OPT_CANCEL_REFCOUNTS);
   }
 
-  static boolean piggybackEnabled() {
-    return Settings.getBooleanUnchecked(Settings.OPT_PIGGYBACK_REFCOUNTS);
+  static boolean piggybackEnabled(CompilerOptions options) {
+    return options.getBoolean(Settings.OPT_PIGGYBACK_REFCOUNTS);
   }
 
-  static boolean batchEnabled() {
-    return Settings.getBooleanUnchecked(Settings.OPT_BATCH_REFCOUNTS);
+  static boolean batchEnabled(CompilerOptions options) {
+    return options.getBoolean(Settings.OPT_BATCH_REFCOUNTS);
   }
 
-  static boolean hoistEnabled() {
-    return Settings.getBooleanUnchecked(Settings.OPT_HOIST_REFCOUNTS);
+  static boolean hoistEnabled(CompilerOptions options) {
+    return options.getBoolean(Settings.OPT_HOIST_REFCOUNTS);
   }
 
   /**
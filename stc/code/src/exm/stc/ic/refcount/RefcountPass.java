@@ -13,6 +13,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -68,6 +69,9 @@ public class RefcountPass implements OptimizerPass {
 
   private RCPlacer placer = null;
 
+  /** Options of program being processed, set while pass runs */
+  private CompilerOptions options = null;
+
   @Override
   public String getPassName() {
     return "Refcount adding";
@@ -83,7 +87,8 @@ public class RefcountPass implements OptimizerPass {
     this.logger = logger;
 
     functionMap = program.getFunctionMap();
-    placer = new RCPlacer(functionMap);
+    options = program.options();
+    placer = new RCPlacer(functionMap, options);
 
     for (Function f: program.functions()) {
       logger.trace("Entering function " + f.id());
@@ -93,6 +98,7 @@ public class RefcountPass implements OptimizerPass {
 
     this.functionMap = null;
     this.placer = null;
+    this.options = null;
   }
 
   private void recurseOnBlock(Logger logger, GlobalVars globals, Function f,
@@ -169,7 +175,7 @@ public class RefcountPass implements OptimizerPass {
 
     countBlockDecrements(fn, block, increments);
 
-    if (RCUtil.mergeEnabled()) {
+    if (RCUtil.mergeEnabled(options)) {
       // Second put saved refcounts back into IC
       placeRefcounts(logger, globals, fn, block, increments,
                       parentInfo.initAliasVars);
@@ -204,7 +210,7 @@ public class RefcountPass implements OptimizerPass {
       }
     }
 
-    if (RCUtil.batchEnabled()) {
+    if (RCUtil.batchEnabled(options)) {
       // Optionally try to batch increments from body
       removeIncrementsForeachBody(loop, readIncrs, writeIncrs);
     }
@@ -301,13 +307,13 @@ public class RefcountPass implements OptimizerPass {
           throw new STCRuntimeError("Unknown statement type " + stmt.type());
       }
 
-      if (!RCUtil.mergeEnabled()) {
+      if (!RCUtil.mergeEnabled(options)) {
         placer.dumpIncrements(stmt, block, stmtIt, increments);
       }
     }
     for (Continuation cont: block.getContinuations()) {
       updateIncrementsPassIntoCont(cont, increments);
-      if (!RCUtil.mergeEnabled()) {
+      if (!RCUtil.mergeEnabled(options)) {
         placer.dumpIncrements(null, block, block.statementEndIterator(),
             increments);
       }
@@ -384,7 +390,7 @@ public class RefcountPass implements OptimizerPass {
       }
     }
 
-    if (!RCUtil.mergeEnabled()) {
+    if (!RCUtil.mergeEnabled(options)) {
       placer.dumpDecrements(block, increments);
     }
   }
@@ -513,7 +519,7 @@ public class RefcountPass implements OptimizerPass {
    * @param rootBlock if this is the root block we're pulling increments into
    */
   private void pullUpRefIncrements(Block rootBlock, RCTracker increment) {
-    if (!RCUtil.hoistEnabled()) {
+    if (!RCUtil.hoistEnabled(options)) {
       return;
     }
 
@@ -181,9 +181,11 @@ public class Conditionals {
     }
 
     @Override
-    protected void replaceConstructVars(Map<Var, Arg> renames,
+    protected boolean replaceConstructVars(Map<Var, Arg> renames,
                                        RenameMode mode) {
+      Arg oldCondition = condition;
       condition = ICUtil.replaceArg(renames, condition, false);
+      return ICUtil.argChanged(oldCondition, condition);
     }
 
     @Override
@@ -348,9 +350,11 @@ public class Conditionals {
     }
 
     @Override
-    public void replaceConstructVars(Map<Var, Arg> renames,
+    public boolean replaceConstructVars(Map<Var, Arg> renames,
                                      RenameMode mode) {
+      Arg oldSwitchVar = switchVar;
       switchVar = ICUtil.replaceArg(renames, switchVar, false);
+      return ICUtil.argChanged(oldSwitchVar, switchVar);
     }
 
     @Override
@@ -17,6 +17,7 @@ import com.google.common.collect.ListMultimap;
 
 import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.RefCount;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Settings;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Arg.ArgKind;
@@ -102,15 +103,21 @@ public class ForeachLoops {
       return Collections.unmodifiableList(startIncrements);
     }
 
+    /**
+     * Iterator that may modify increments, so marks loop modified
+     */
     public ListIterator<RefCount> startIncrementIterator() {
+      markModified();
       return startIncrements.listIterator();
     }
 
     public void addStartIncrement(RefCount incr) {
       startIncrements.add(incr);
+      markModified();
     }
 
     public void addConstantStartIncrement(Var v, RefCountType t, Arg amount) {
+      markModified();
       // Check to see if already present
       List<RefCount> prev = constStartIncrements.get(v);
       ListIterator<RefCount> it = prev.listIterator();
@@ -134,6 +141,7 @@ public class ForeachLoops {
 
     public void addEndDecrement(RefCount decr) {
       endDecrements.add(decr);
+      markModified();
     }
 
     public void prettyPrintIncrs(StringBuilder sb) {
@@ -344,8 +352,11 @@ public class ForeachLoops {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Var oldContainer = container;
+      Var oldLoopVar = loopVar;
+      Var oldLoopCounterVar = loopCounterVar;
       if (renames.containsKey(container)) {
         container = renames.get(container).getVar();
       }
@@ -359,6 +370,8 @@ public class ForeachLoops {
           loopCounterVar = renames.get(loopCounterVar).getVar();
         }
       }
+      return container != oldContainer || loopVar != oldLoopVar ||
+             loopCounterVar != oldLoopCounterVar;
     }
 
     @Override
@@ -574,8 +587,13 @@ public class ForeachLoops {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Arg oldStart = start;
+      Arg oldEnd = end;
+      Arg oldIncrement = increment;
+      Var oldLoopVar = loopVar;
+      Var oldLoopCounterVar = loopCounterVar;
       start = renameRangeArg(start, renames);
       end = renameRangeArg(end, renames);
       increment = renameRangeArg(increment, renames);
@@ -588,6 +606,10 @@ public class ForeachLoops {
           loopCounterVar = renames.get(loopCounterVar).getVar();
         }
       }
+      return ICUtil.argChanged(oldStart, start) ||
+             ICUtil.argChanged(oldEnd, end) ||
+             ICUtil.argChanged(oldIncrement, increment) ||
+             loopVar != oldLoopVar || loopCounterVar != oldLoopCounterVar;
     }
 
     private Arg renameRangeArg(Arg val, Map<Var, Arg> renames) {
@@ -763,10 +785,10 @@ public class ForeachLoops {
                                   Pair.create(false, Collections.<Continuation>emptyList());
     @Override
     public Pair<Boolean, List<Continuation>> tryUnroll(Logger logger,
-        FnID function, Block outerBlock) {
+        CompilerOptions options, FnID function, Block outerBlock) {
       logger.trace("DesiredUnroll for " + loopName + ": " + desiredUnroll);
-      boolean expandLoops = isExpandLoopsEnabled();
-      boolean fullUnroll = isFullUnrollEnabled();
+      boolean expandLoops = options.getBoolean(Settings.OPT_EXPAND_LOOPS);
+      boolean fullUnroll = options.getBoolean(Settings.OPT_FULL_UNROLL);
 
       if (!Types.isIntVal(start)) {
         /*
@@ -795,9 +817,9 @@ public class ForeachLoops {
 
         if (expandLoops && iterCount >= 0) {
           // See if the loop has a small number of iterations, could just expand;
-          if (iterCount <= getUnrollMaxIters(true)) {
+          if (iterCount <= getUnrollMaxIters(options, true)) {
             long extraInstructions = instCount * (iterCount - 1);
-            if (extraInstructions <= getUnrollMaxExtraInsts(true)) {
+            if (extraInstructions <= getUnrollMaxExtraInsts(options, true)) {
               return Pair.create(true, doUnroll(logger, function, outerBlock,
                                  (int)iterCount));
             }
@@ -813,8 +835,8 @@ public class ForeachLoops {
           return NO_UNROLL;
         }
         // Finally, maybe unroll a few iterations
-        long threshold = getUnrollMaxExtraInsts(false);
-        long unrollFactor = Math.min(getUnrollMaxIters(false),
+        long threshold = getUnrollMaxExtraInsts(options, false);
+        long unrollFactor = Math.min(getUnrollMaxIters(options, false),
                                      (threshold / instCount) + 1);
         if (unrollFactor > 1) {
           return Pair.create(true, doUnroll(logger, function, outerBlock,
@@ -824,28 +846,21 @@ public class ForeachLoops {
       return NO_UNROLL;
     }
 
-    private boolean isExpandLoopsEnabled() {
-      return Settings.getBooleanUnchecked(Settings.OPT_EXPAND_LOOPS);
-    }
-
-    private boolean isFullUnrollEnabled() {
-      return Settings.getBooleanUnchecked(Settings.OPT_FULL_UNROLL);
-    }
-
-
-    private int getUnrollMaxIters(boolean fullExpand) {
+    private static int getUnrollMaxIters(CompilerOptions options,
+                                         boolean fullExpand) {
       if (fullExpand) {
-        return Settings.getIntUnchecked(Settings.OPT_EXPAND_LOOP_THRESHOLD_ITERS);
+        return options.getInt(Settings.OPT_EXPAND_LOOP_THRESHOLD_ITERS);
       } else {
-        return Settings.getIntUnchecked(Settings.OPT_UNROLL_LOOP_THRESHOLD_ITERS);
+        return options.getInt(Settings.OPT_UNROLL_LOOP_THRESHOLD_ITERS);
       }
     }
 
-    private int getUnrollMaxExtraInsts(boolean fullExpand) {
+    private static int getUnrollMaxExtraInsts(CompilerOptions options,
+                                              boolean fullExpand) {
       if (fullExpand) {
-        return Settings.getIntUnchecked(Settings.OPT_EXPAND_LOOP_THRESHOLD_INSTS);
+        return options.getInt(Settings.OPT_EXPAND_LOOP_THRESHOLD_INSTS);
       } else {
-        return Settings.getIntUnchecked(Settings.OPT_UNROLL_LOOP_THRESHOLD_INSTS);
+        return options.getInt(Settings.OPT_UNROLL_LOOP_THRESHOLD_INSTS);
       }
     }
 
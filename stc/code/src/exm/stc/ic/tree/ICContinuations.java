@@ -29,7 +29,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.CompilerBackend;
-import exm.stc.common.Settings;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.Arg.ArgKind;
@@ -82,6 +82,15 @@ public class ICContinuations {
 
     public abstract ContinuationType getType();
 
+    /**
+     * Record modification of this continuation in the enclosing block
+     */
+    protected void markModified() {
+      if (parent != null) {
+        parent.markModified();
+      }
+    }
+
     public Block parent() {
       return this.parent;
     }
@@ -133,7 +142,9 @@ public class ICContinuations {
       if (recursive) {
         this.replaceVarsInBlocks(function, renames, mode);
       }
-      this.replaceConstructVars(renames, mode);
+      if (this.replaceConstructVars(renames, mode)) {
+        markModified();
+      }
     }
 
     /**
@@ -146,8 +157,12 @@ public class ICContinuations {
       renameVars(function, renames, mode, true);
     }
 
-    protected abstract void replaceConstructVars(Map<Var, Arg> renames,
-                                                 RenameMode mode);
+    /**
+     * Rename variables in construct, not including nested blocks
+     * @return true if anything was changed
+     */
+    protected abstract boolean replaceConstructVars(Map<Var, Arg> renames,
+                                                    RenameMode mode);
 
     /**
      * For the case where a consturct redefines a variable
@@ -314,13 +329,14 @@ public class ICContinuations {
      * nested blocks (so long as they don't shadow each other) - a
      * subsequent pass will make those names unique
      * @param logger
+     * @param options settings controlling how much to unroll
      * @param function
      * @param outerBlock
      * @return true if change made, also any additional continuations to be
      *        added by caller to outerBlock
      */
     public Pair<Boolean, List<Continuation>> tryUnroll(Logger logger,
-                                FnID function, Block outerBlock) {
+        CompilerOptions options, FnID function, Block outerBlock) {
       // default: do nothing
       return Pair.create(false, Collections.<Continuation>emptyList());
     }
@@ -367,6 +383,7 @@ public class ICContinuations {
     private boolean runLast = false;
     public void setRunLast(boolean val) {
       runLast = val;
+      markModified();
     }
     public boolean runLast() {
       return runLast;
@@ -513,12 +530,14 @@ public class ICContinuations {
     public void setPassedVars(Collection<PassedVar> passedVars) {
       this.passedVars.clear();
       this.passedVars.addAll(passedVars);
+      markModified();
     }
 
     @Override
     public void setKeepOpenVars(Collection<Var> keepOpenVars) {
       this.keepOpenVars.clear();
       this.keepOpenVars.addAll(keepOpenVars);
+      markModified();
     }
 
     @Override
@@ -531,13 +550,13 @@ public class ICContinuations {
      * @param renames
      * @param mode
      */
-    public abstract void replaceConstructVars_(Map<Var, Arg> renames,
+    public abstract boolean replaceConstructVars_(Map<Var, Arg> renames,
                   RenameMode mode);
 
     @Override
-    public final void replaceConstructVars(Map<Var, Arg> renames,
+    public final boolean replaceConstructVars(Map<Var, Arg> renames,
                                             RenameMode mode) {
-      this.replaceConstructVars_(renames, mode);
+      return this.replaceConstructVars_(renames, mode);
     }
 
     /**
@@ -549,6 +568,7 @@ public class ICContinuations {
     public final void removeVars(Set<Var> removeVars) {
       removeVars_(removeVars);
       removeVarsInBlocks(removeVars);
+      markModified();
     }
 
     @Override
@@ -779,10 +799,12 @@ public class ICContinuations {
 
     public void setLoopBreak(LoopBreak loopBreak) {
       this.loopBreak = loopBreak;
+      markModified();
     }
 
     public void setLoopContinue(LoopContinue loopContinue) {
       this.loopContinue = loopContinue;
+      markModified();
     }
 
     @Override
@@ -876,12 +898,13 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
-      ICUtil.replaceArgsInList(renames, initVals, false);
+      boolean changed = ICUtil.replaceArgsInList(renames, initVals, false);
       if (mode == RenameMode.REPLACE_VAR) {
-        ICUtil.replaceVarsInList(renames, loopVars, false);
+        changed |= ICUtil.replaceVarsInList(renames, loopVars, false);
       }
+      return changed;
     }
 
     @Override
@@ -1082,6 +1105,7 @@ public class ICContinuations {
       int index = initVals.indexOf(initVal);
       assert(index >= 0) : initVal;
       closedInitVals.set(index, true);
+      markModified();
     }
 
     @Override
@@ -1244,9 +1268,10 @@ public class ICContinuations {
     }
 
     @Override
-    protected void replaceConstructVars(Map<Var, Arg> renames,
+    protected boolean replaceConstructVars(Map<Var, Arg> renames,
                                         RenameMode mode) {
       // Do nothing
+      return false;
     }
 
     @Override
@@ -1390,11 +1415,12 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
-      WaitVar.replaceVars(waitVars, renames);
+      boolean changed = WaitVar.replaceVars(waitVars, renames);
 
-      ICUtil.replaceArgValsInMap(renames, props);
+      changed |= ICUtil.replaceArgValsInMap(renames, props);
+      return changed;
     }
 
 
@@ -1420,10 +1446,12 @@ public class ICContinuations {
     public void setTarget(ExecTarget target) {
       assert(target.isAsync());
       this.target = target;
+      markModified();
     }
 
     public void setMode(WaitMode mode) {
       this.mode = mode;
+      markModified();
     }
 
     @Override
@@ -1487,15 +1515,12 @@ public class ICContinuations {
 
     @Override
     public List<PassedVar> getMustPassVars() {
-      if (Settings.getBooleanUnchecked(Settings.MUST_PASS_WAIT_VARS)) {
-        List<PassedVar> res = new ArrayList<PassedVar>();
-        for (WaitVar wv: waitVars) {
-          res.add(new PassedVar(wv.var, false));
-        }
-        return res;
-      } else {
-        return PassedVar.NONE;
+      // All current targets need waited-on vars passed into block
+      List<PassedVar> res = new ArrayList<PassedVar>();
+      for (WaitVar wv: waitVars) {
+        res.add(new PassedVar(wv.var, false));
       }
+      return res;
     }
 
     public List<WaitVar> getWaitVars() {
@@ -1505,6 +1530,7 @@ public class ICContinuations {
     public void addWaitVars(Collection<WaitVar> vars) {
       this.waitVars.addAll(vars);
       WaitVar.removeDuplicates(this.waitVars);
+      markModified();
     }
 
     @Override
@@ -1539,6 +1565,7 @@ public class ICContinuations {
         } else if ((closedVars.contains(wv.var) && !recursionRequired(wv.var))
             || recClosedVars.contains(wv.var)) {
           it.remove();
+          markModified();
         } else {
           varsLeft = true;
         }
@@ -1571,6 +1598,7 @@ public class ICContinuations {
       }
 
       updateRecursive();
+      markModified();
     }
 
     /**
@@ -1763,17 +1791,20 @@ public class ICContinuations {
     }
 
     @Override
-    public void replaceConstructVars_(Map<Var, Arg> renames,
+    public boolean replaceConstructVars_(Map<Var, Arg> renames,
                                       RenameMode mode) {
+      Arg oldCmdName = cmdName;
       cmdName = ICUtil.replaceArg(renames, cmdName, false);
+      boolean changed = ICUtil.argChanged(oldCmdName, cmdName);
 
       if (mode == RenameMode.REFERENCE ||
           mode == RenameMode.REPLACE_VAR)
       {
-        ICUtil.replaceVarsInList(renames, taskOutputs, false);
+        changed |= ICUtil.replaceVarsInList(renames, taskOutputs, false);
       }
-      ICUtil.replaceArgsInList(renames, taskArgs, false);
-      ICUtil.replaceArgValsInMap(renames, taskProps);
+      changed |= ICUtil.replaceArgsInList(renames, taskArgs, false);
+      changed |= ICUtil.replaceArgValsInMap(renames, taskProps);
+      return changed;
     }
     @Override
     public ContinuationType getType() {
@@ -28,10 +28,10 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import exm.stc.common.CompilerBackend;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.Arg;
-import exm.stc.common.lang.CompileTimeArgs;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecTarget;
 import exm.stc.common.lang.FnID;
@@ -1131,12 +1131,12 @@ public class ICInstructions {
      * @return a value arg if successful, null if not
      */
     public static Arg tryConstantFold(ForeignFunctions foreignFuncs,
-        ComputedValue<?> cv, List<Arg> inputs) {
+        CompilerOptions options, ComputedValue<?> cv, List<Arg> inputs) {
       FnID id = (FnID)cv.subop();
       if (isImpl(foreignFuncs, id, SpecialFunction.ARGV)) {
         Arg argName = inputs.get(0);
         if (argName.isString()) {
-          String val = CompileTimeArgs.lookup(argName.getString());
+          String val = options.getCompileTimeArg(argName.getString());
           if (val != null) {
             // Success!
             return Arg.newString(val);
@@ -23,13 +23,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +39,7 @@ import com.google.common.collect.Iterables;
 import exm.stc.common.CompilerBackend;
 import exm.stc.common.CompilerBackend.CodeGenOptions;
 import exm.stc.common.CompilerBackend.VarDecl;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.exceptions.UserException;
@@ -62,6 +63,7 @@ import exm.stc.common.lang.Var.DefType;
 import exm.stc.common.lang.Var.VarProvenance;
 import exm.stc.common.lang.WaitVar;
 import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.GapList;
 import exm.stc.common.util.MultiCollection;
 import exm.stc.common.util.StackLite;
 import exm.stc.common.util.TwoWayMap;
@@ -94,6 +96,31 @@ public class ICTree {
 
   public static final String indent = ICUtil.indent;
 
+  /**
+   * Source of modification epochs.  Each change to a block takes a new
+   * epoch, higher than any before, and records it in the block, the
+   * blocks enclosing it and the function.  Passes can then check whether
+   * code changed since an earlier epoch without walking it.
+   *
+   * Changes made through Block and Continuation methods and through the
+   * iterators returned by Block are recorded automatically.  Code that
+   * modifies instructions in place must call Block.markModified().
+   * Adding or removing functions in a program also takes a new epoch.
+   */
+  private static final AtomicLong epochs = new AtomicLong();
+
+  /**
+   * @return latest modification epoch.  Anything modified after this is
+   *         called will have a higher epoch.
+   */
+  public static long currentEpoch() {
+    return epochs.get();
+  }
+
+  private static long nextEpoch() {
+    return epochs.incrementAndGet();
+  }
+
   public static class Program {
 
     private final GlobalConstants constants = new GlobalConstants();
@@ -102,6 +129,8 @@ public class ICTree {
 
     private final ForeignFunctions foreignFunctions;
 
+    private final CompilerOptions options;
+
     private final ArrayList<Function> functions = new ArrayList<Function>();
     private final Map<FnID, Function> functionsByID =
                                         new HashMap<FnID, Function>();
@@ -120,8 +149,10 @@ public class ICTree {
      */
     private boolean checkpointRequired = false;
 
-    public Program(ForeignFunctions foreignFunctions) {
+    public Program(ForeignFunctions foreignFunctions,
+                   CompilerOptions options) {
       this.foreignFunctions = foreignFunctions;
+      this.options = options;
     }
 
     public void generate(Logger logger, CompilerBackend gen)
@@ -205,6 +236,7 @@ public class ICTree {
     public void addFunction(Function fn) {
       this.functions.add(fn);
       this.functionsByID.put(fn.id(), fn);
+      nextEpoch();
     }
 
     public void addFunctions(Collection<Function> c) {
@@ -242,12 +274,14 @@ public class ICTree {
           internal.set(e);
           functionsByID.remove(lastReturned.id());
           functionsByID.put(e.id(), e);
+          nextEpoch();
         }
 
         @Override
         public void remove() {
           internal.remove();
           functionsByID.remove(lastReturned);
+          nextEpoch();
         }
 
         @Override
@@ -288,6 +322,7 @@ public class ICTree {
         public void add(Function e) {
           internal.add(e);
           functionsByID.put(e.id(), e);
+          nextEpoch();
         }
       };
     }
@@ -319,6 +354,13 @@ public class ICTree {
       return foreignFunctions;
     }
 
+    /**
+     * @return settings for the compilation this program is part of
+     */
+    public CompilerOptions options() {
+      return options;
+    }
+
     /**
      * Should be called if a function uses checkpointing
      */
@@ -391,6 +433,12 @@ public class ICTree {
   }
 
   public static class GlobalConstants {
+    /**
+     * Constants this was forked from, or null if this is the program's
+     * constants
+     */
+    private final GlobalConstants parent;
+
     /**
      * Use treemap to keep them in alpha order
      */
@@ -398,16 +446,69 @@ public class ICTree {
                     new TreeMap<Var, Arg>(), ArrayListMultimap.<Arg, Var>create());
     private final HashSet<String> usedNames = new HashSet<String>();
 
+    /** Constants added to fork, in order */
+    private final List<Var> forkAdded;
+
+    public GlobalConstants() {
+      this(null);
+    }
+
+    private GlobalConstants(GlobalConstants parent) {
+      this.parent = parent;
+      this.forkAdded = parent == null ? null : new ArrayList<Var>();
+    }
+
+    /**
+     * Create a view of these constants where any new constants are only
+     * added to the view, so that constants can be created for different
+     * functions concurrently.  These constants must not be modified until
+     * all forks are merged back with {@link #mergeFork}.
+     * @return
+     */
+    public GlobalConstants fork() {
+      return new GlobalConstants(this);
+    }
+
+    /**
+     * Add constants created in a fork, reusing any existing constants with
+     * the same value.  Names are assigned as if the constants had been
+     * created directly in this.
+     * @param fork
+     * @return replacements for any constants from the fork that were
+     *         merged with another constant or renamed
+     */
+    public Map<Var, Arg> mergeFork(GlobalConstants fork) {
+      assert(fork.parent == this);
+      Map<Var, Arg> renames = new HashMap<Var, Arg>();
+      for (Var var: fork.forkAdded) {
+        Arg val = fork.globalConsts.get(var);
+        if (val == null) {
+          // Was removed
+          continue;
+        }
+        Var merged = getOrCreateByVal(val);
+        if (!merged.identical(var)) {
+          renames.put(var, merged.asArg());
+        }
+      }
+      return renames;
+    }
+
     public void add(Var var, Arg val) {
       assert(var.storage() == Alloc.GLOBAL_CONST);
       assert(var.defType() == DefType.GLOBAL_CONST);
       assert(var.type().getImplType().equals(val.futureType().getImplType()));
+      assert(parent == null || parent.lookupByVar(var) == null) :
+          new STCRuntimeError("Overwriting global constant " + var.name());
 
       Arg prevVal = globalConsts.put(var, val);
       assert(prevVal == null) :
           new STCRuntimeError("Overwriting global constant " + var.name());
 
       usedNames.add(var.name());
+      if (forkAdded != null) {
+        forkAdded.add(var);
+      }
     }
 
     /**
@@ -428,7 +529,7 @@ public class ICTree {
       String origname = Var.generateGlobalConstName(val);
       String name = origname;
       int seq = 0;
-      while (usedNames.contains(name)) {
+      while (nameUsed(name)) {
         seq++;
         name = origname + "-" + seq;
       }
@@ -438,25 +539,48 @@ public class ICTree {
       return var;
     }
 
+    private boolean nameUsed(String name) {
+      return usedNames.contains(name) ||
+             (parent != null && parent.nameUsed(name));
+    }
+
     public void remove(Var unused) {
+      assert(parent == null || parent.lookupByVar(unused) == null);
       globalConsts.remove(unused);
     }
 
     public Collection<Var> lookupByValue(Arg val) {
-      return this.globalConsts.getByValue(val);
+      if (parent == null) {
+        return this.globalConsts.getByValue(val);
+      }
+      // Existing constants take precedence
+      List<Var> result = new ArrayList<Var>(parent.lookupByValue(val));
+      result.addAll(this.globalConsts.getByValue(val));
+      return result;
     }
 
     public Arg lookupByVar(Var var) {
-      return this.globalConsts.get(var);
-
+      Arg val = this.globalConsts.get(var);
+      if (val == null && parent != null) {
+        val = parent.lookupByVar(var);
+      }
+      return val;
     }
 
     public Map<Var, Arg> map() {
-      return Collections.unmodifiableMap(globalConsts);
+      if (parent == null) {
+        return Collections.unmodifiableMap(globalConsts);
+      }
+      Map<Var, Arg> result = new TreeMap<Var, Arg>(parent.map());
+      result.putAll(globalConsts);
+      return Collections.unmodifiableMap(result);
     }
 
     public Collection<Var> vars() {
-      return globalConsts.keySet();
+      if (parent == null) {
+        return globalConsts.keySet();
+      }
+      return map().keySet();
     }
 
     public void generate(Logger logger, CompilerBackend gen) {
@@ -740,6 +864,9 @@ public class ICTree {
 
     private final HashSet<String> usedVarNames;
 
+    /** Epoch of last modification to function or its code */
+    private long modifiedEpoch = nextEpoch();
+
     public Function(FnID id, List<Var> iList,
         List<Var> oList, ExecTarget mode) {
       this(id, iList, Collections.<WaitVar>emptyList(), oList,
@@ -812,6 +939,7 @@ public class ICTree {
       Var output = oList.get(i);
       if (!oListWriteOnly.contains(output)) {
         oListWriteOnly.add(output);
+        markModified();
       }
     }
 
@@ -837,9 +965,32 @@ public class ICTree {
       Block old = this.mainBlock;
       this.mainBlock = newBlock;
       this.mainBlock.setParent(this, false);
+      markModified();
       return old;
     }
 
+    /**
+     * @return epoch of last modification to the function, see
+     *         {@link ICTree#currentEpoch()}
+     */
+    public long modifiedEpoch() {
+      return modifiedEpoch;
+    }
+
+    /**
+     * @return true if function was modified after the epoch
+     */
+    public boolean modifiedSince(long epoch) {
+      return modifiedEpoch > epoch;
+    }
+
+    /**
+     * Record that the function was modified
+     */
+    public void markModified() {
+      modifiedEpoch = nextEpoch();
+    }
+
 
     public void generate(Logger logger, CompilerBackend gen, GenInfo info)
         throws UserException {
@@ -851,6 +1002,16 @@ public class ICTree {
     }
 
     public void prettyPrint(StringBuilder sb) {
+      prettyPrintSignature(sb);
+      sb.append(" {\n");
+      mainBlock.prettyPrint(sb, indent);
+      sb.append("}\n");
+    }
+
+    /**
+     * Print the parts of the function visible to callers
+     */
+    public void prettyPrintSignature(StringBuilder sb) {
       ICUtil.prettyPrintFormalArgs(sb, this.oList);
       sb.append(" @" + id + " ");
       ICUtil.prettyPrintFormalArgs(sb, this.iList);
@@ -866,9 +1027,6 @@ public class ICTree {
         ICUtil.prettyPrintVarList(sb, this.oListWriteOnly);
         sb.append("]");
       }
-      sb.append(" {\n");
-      mainBlock.prettyPrint(sb, indent);
-      sb.append("}\n");
     }
 
     @Override
@@ -895,11 +1053,13 @@ public class ICTree {
           // already there
           if (newWaitVar.explicit && !i.explicit) {
             it.set(newWaitVar);
+            markModified();
           }
           return;
         }
       }
       blockingInputs.add(newWaitVar);
+      markModified();
     }
 
     public ExecTarget mode() {
@@ -981,6 +1141,7 @@ public class ICTree {
         }
 
         WaitVar.replaceVars(blockingInputs, renames);
+        markModified();
       }
 
       if (recursive) {
@@ -1068,7 +1229,7 @@ public class ICTree {
     }
 
     private Block(BlockType type, Continuation parentCont, Function parentFunction) {
-      this(type, parentCont, parentFunction, true, new LinkedList<Statement>(),
+      this(type, parentCont, parentFunction, true, new GapList<Statement>(),
           new Variables(), new ArrayList<Continuation>(), new ArrayList<CleanupAction>());
     }
 
@@ -1081,7 +1242,7 @@ public class ICTree {
     private Block(BlockType type,
         Continuation parentCont, Function parentFunction,
         boolean emptyBlock,
-        LinkedList<Statement> instructions,
+        GapList<Statement> instructions,
         Variables variables,
         ArrayList<Continuation> conds,
         ArrayList<CleanupAction> cleanupActions) {
@@ -1194,7 +1355,11 @@ public class ICTree {
       return type;
     }
 
-    private final LinkedList<Statement> statements;
+    /**
+     * Statements in order.  Array-backed so that access by index is cheap,
+     * and edits through iterators don't shift the whole list.
+     */
+    private final GapList<Statement> statements;
 
     private final ArrayList<CleanupAction> cleanupActions;
 
@@ -1203,9 +1368,55 @@ public class ICTree {
     /** conditional statements for block */
     private final ArrayList<Continuation> continuations;
 
+    /**
+     * Epoch of last modification to this block or any block nested in it
+     */
+    private long modifiedEpoch = nextEpoch();
+
+    /**
+     * @return epoch of last modification to this block or any block
+     *         nested in it, see {@link ICTree#currentEpoch()}
+     */
+    public long modifiedEpoch() {
+      return modifiedEpoch;
+    }
+
+    /**
+     * @return true if this block or any block nested in it was modified
+     *         after the epoch
+     */
+    public boolean modifiedSince(long epoch) {
+      return modifiedEpoch > epoch;
+    }
+
+    /**
+     * Record that this block was modified.  This also updates the
+     * enclosing blocks and function.
+     */
+    public void markModified() {
+      long epoch = nextEpoch();
+      Block curr = this;
+      while (true) {
+        curr.modifiedEpoch = epoch;
+        if (curr.parentCont == null) {
+          if (curr.parentFunction != null) {
+            curr.parentFunction.modifiedEpoch = epoch;
+          }
+          return;
+        }
+        Block next = curr.parentCont.parent();
+        if (next == null) {
+          // Not yet linked up
+          return;
+        }
+        curr = next;
+      }
+    }
+
     public void addStatement(Statement st) {
       st.setParent(this);
       statements.add(st);
+      markModified();
     }
 
     public void addInstruction(Instruction e) {
@@ -1213,7 +1424,8 @@ public class ICTree {
     }
 
     public void addInstructionFront(Instruction e) {
-      statements.addFirst(e);
+      statements.add(0, e);
+      markModified();
     }
 
     public void addInstructions(List<Instruction> instructions) {
@@ -1221,15 +1433,26 @@ public class ICTree {
     }
 
     public void addStatements(List<? extends Statement> stmts) {
+      addStatements(statements.size(), stmts);
+    }
+
+    /**
+     * Insert statements before the statement at index
+     * @param index
+     * @param stmts
+     */
+    public void addStatements(int index, List<? extends Statement> stmts) {
       for (Statement stmt: stmts) {
         stmt.setParent(this);
       }
-      this.statements.addAll(stmts);
+      this.statements.addAll(index, stmts);
+      markModified();
     }
 
     public void addContinuation(Continuation c) {
       c.setParent(this);
       this.continuations.add(c);
+      markModified();
     }
 
     public List<Continuation> getContinuations() {
@@ -1242,6 +1465,7 @@ public class ICTree {
 
     public void removeContinuation(int i) {
       continuations.remove(i);
+      markModified();
     }
 
     public List<Var> variables() {
@@ -1364,11 +1588,13 @@ public class ICTree {
       public void set(Continuation e) {
         e.setParent(Block.this);
         it.set(e);
+        markModified();
       }
 
       @Override
       public void remove() {
         it.remove();
+        markModified();
       }
 
       @Override
@@ -1405,6 +1631,65 @@ public class ICTree {
       public void add(Continuation e) {
         it.add(e);
         e.setParent(Block.this);
+        markModified();
+      }
+    }
+
+    /**
+     * Wrapper around ListIterator to record modifications to block
+     */
+    private final class ModifyIt<T> implements ListIterator<T> {
+      private ModifyIt(ListIterator<T> it) {
+        this.it = it;
+      }
+
+      final ListIterator<T> it;
+      @Override
+      public void set(T e) {
+        it.set(e);
+        markModified();
+      }
+
+      @Override
+      public void remove() {
+        it.remove();
+        markModified();
+      }
+
+      @Override
+      public int previousIndex() {
+        return it.previousIndex();
+      }
+
+      @Override
+      public T previous() {
+        return it.previous();
+      }
+
+      @Override
+      public int nextIndex() {
+        return it.nextIndex();
+      }
+
+      @Override
+      public T next() {
+        return it.next();
+      }
+
+      @Override
+      public boolean hasPrevious() {
+        return it.hasPrevious();
+      }
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public void add(T e) {
+        it.add(e);
+        markModified();
       }
     }
 
@@ -1485,27 +1770,31 @@ public class ICTree {
     }
 
     public ListIterator<Var> variableIterator() {
-      return variables.variableIterator();
+      return new ModifyIt<Var>(variables.variableIterator());
     }
 
     public List<Statement> getStatements() {
       return Collections.unmodifiableList(statements);
     }
 
+    /**
+     * @return an iterator over statements.  Modifications through iterator
+     * are recorded in the block's modification epoch
+     */
     public ListIterator<Statement> statementIterator() {
-      return statements.listIterator();
+      return new ModifyIt<Statement>(statements.listIterator());
     }
 
     public ListIterator<Statement> statementIterator(int i) {
-      return statements.listIterator(i);
+      return new ModifyIt<Statement>(statements.listIterator(i));
     }
 
     public ListIterator<Statement> statementEndIterator() {
-      return statements.listIterator(statements.size());
+      return statementIterator(statements.size());
     }
 
     public ListIterator<CleanupAction> cleanupIterator() {
-      return cleanupActions.listIterator();
+      return new ModifyIt<CleanupAction>(cleanupActions.listIterator());
     }
 
     public List<CleanupAction> getCleanups() {
@@ -1514,6 +1803,7 @@ public class ICTree {
 
     public void addCleanup(Var var, Instruction action) {
       this.cleanupActions.add(new CleanupAction(var, action));
+      markModified();
     }
 
     // Remove cleanup actions for variable
@@ -1527,6 +1817,7 @@ public class ICTree {
         CleanupAction ca = it.next();
         if (ca.var().equals(var)) {
           it.remove();
+          markModified();
           if (target != null) {
             target.addCleanup(ca.var, ca.action);
           }
@@ -1548,6 +1839,7 @@ public class ICTree {
         return;
       renameInDefs(renames, mode);
       renameInCode(id, renames, mode, recursive);
+      markModified();
     }
 
     private void renameInDefs(Map<Var, Arg> renames, RenameMode mode) {
@@ -1591,9 +1883,13 @@ public class ICTree {
 
     public void renameCleanupActions(FnID id, Map<Var, Arg> renames,
                                      RenameMode mode) {
+      if (renames.isEmpty() || cleanupActions.isEmpty()) {
+        return;
+      }
       for (CleanupAction a: cleanupActions) {
         a.renameVars(id, renames, mode);
       }
+      markModified();
     }
 
     /**
@@ -1644,11 +1940,13 @@ public class ICTree {
       for (Continuation c: continuations) {
         c.removeVars(removeVars);
       }
+      markModified();
     }
 
 
     public void addVariables(List<Var> variables) {
       this.variables.addAllVariables(variables);
+      markModified();
       if (this.parentFunction != null) {
         this.parentFunction.addUsedVarNames(variables);
       }
@@ -1660,6 +1958,7 @@ public class ICTree {
 
     public void addVariable(Var variable, boolean atTop) {
       this.variables.addVariable(variable, atTop);
+      markModified();
       if (this.parentFunction != null) {
         parentFunction.addUsedVarName(variable);
       }
@@ -1691,11 +1990,13 @@ public class ICTree {
 
     public void removeContinuation(Continuation c) {
       this.continuations.remove(c);
+      markModified();
     }
 
     public void removeContinuations(
                     Collection<? extends Continuation> c) {
       this.continuations.removeAll(c);
+      markModified();
     }
 
     /**
@@ -1748,6 +2049,7 @@ public class ICTree {
         }
       }
       this.cleanupActions.addAll(b.cleanupActions);
+      markModified();
     }
 
     public void insertInline(Block b) {
@@ -1756,6 +2058,7 @@ public class ICTree {
 
     public void removeVarDeclarations(Set<Var> vars) {
       variables.removeAllVariables(vars);
+      markModified();
       ListIterator<CleanupAction> it = cleanupActions.listIterator();
       while (it.hasNext()) {
         CleanupAction a = it.next();
@@ -1783,12 +2086,8 @@ public class ICTree {
      * @param stmts
      */
     public void removeStatements(Set<? extends Statement> stmts) {
-      ListIterator<Statement> it = this.statementIterator();
-      while (it.hasNext()) {
-        Statement stmt = it.next();
-        if (stmts.contains(stmt)) {
-          it.remove();
-        }
+      if (statements.removeAll(stmts)) {
+        markModified();
       }
     }
 
@@ -1799,6 +2098,7 @@ public class ICTree {
     public void replaceStatements(List<Statement> newStatements) {
       this.statements.clear();
       this.statements.addAll(newStatements);
+      markModified();
     }
 
     @Override
@@ -1882,11 +2182,13 @@ public class ICTree {
     public void modifyInitRefcount(Var blockVar, RefCountType rcType,
                                    long incr) {
       variables.modifyInitRefcount(blockVar, rcType, incr);
+      markModified();
     }
 
     public void setInitRefcount(Var blockVar, RefCountType rcType,
                                    long val) {
       variables.setInitRefcount(blockVar, rcType, val);
+      markModified();
     }
 
   }
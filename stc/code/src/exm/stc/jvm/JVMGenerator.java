@@ -0,0 +1,2268 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.SourceVersion;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ListMultimap;
+
+import exm.stc.common.CompilerBackend;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.TypeMismatchException;
+import exm.stc.common.exceptions.UnsupportedFeatureException;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.AsyncExecutor;
+import exm.stc.common.lang.ExecContext.WorkContext;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.LocalForeignFunction;
+import exm.stc.common.lang.Operators.BuiltinOpcode;
+import exm.stc.common.lang.Operators.UpdateMode;
+import exm.stc.common.lang.PassedVar;
+import exm.stc.common.lang.Redirects;
+import exm.stc.common.lang.RefCounting;
+import exm.stc.common.lang.RefCounting.RefCountType;
+import exm.stc.common.lang.RequiredPackage;
+import exm.stc.common.lang.TaskProp.TaskPropKey;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Types.FunctionType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.Typed;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.SourceLoc;
+import exm.stc.common.lang.WrappedForeignFunction;
+import exm.stc.common.util.StackLite;
+import exm.stc.ic.tree.TurbineOp.RefCountOp.RCDir;
+import exm.stc.ui.ExitCode;
+
+/**
+ * Generates a Java class from the intermediate representation.  The class
+ * runs the program on the in-process dataflow runtime in
+ * exm.stc.jvm.runtime, so no Turbine installation is needed.
+ *
+ * The structure of the generated code follows the Turbine backend:
+ * Swift functions become static methods, wait statements and split loops
+ * become tasks, and non-simple loops become methods that are re-invoked
+ * for each iteration.  Variables passed into a task are copied to final
+ * temporaries and bound to their usual names inside the task, so code in
+ * the task body is generated the same way as elsewhere.
+ *
+ * Only write refcounts are used: read refcounts are ignored since data is
+ * reclaimed by the garbage collector.  Files, blobs, bags, updateables,
+ * checkpointing and external executables are not supported.
+ */
+public class JVMGenerator implements CompilerBackend {
+
+  private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+
+  /** Name of runtime instance in generated code */
+  private static final String RT = "rt";
+
+  private static final String ENTRY_METHOD = "swift_main";
+
+  /** Method that runs program and returns exit code */
+  public static final String RUN_METHOD = "run";
+  private static final String VOID_VALUE = "Vars.VOID";
+
+  /** Names of temporaries for simple loops */
+  private static final String LOOP_COND = "t$cond";
+  private static final String NEXT_ITER_PREFIX = "t$next_";
+
+  /** Prefixes to avoid clashes with Java keywords and generated names */
+  private static final String VAR_PREFIX = "v_";
+  private static final String FUNCTION_PREFIX = "f_";
+  private static final String PROC_PREFIX = "p_";
+  private static final String STRUCT_PREFIX = "S_";
+
+  /**
+   * Foreign functions implemented in exm.stc.jvm.runtime.Builtins, by
+   * Swift name
+   */
+  private static final Map<String, String> BUILTIN_FUNCTIONS =
+                                            new HashMap<String, String>();
+  static {
+    BUILTIN_FUNCTIONS.put("assert", "assertTrue");
+    BUILTIN_FUNCTIONS.put("assertEqual", "assertEqual");
+    BUILTIN_FUNCTIONS.put("assertLT", "assertLT");
+    BUILTIN_FUNCTIONS.put("assertLTE", "assertLTE");
+    BUILTIN_FUNCTIONS.put("trace", "trace");
+    BUILTIN_FUNCTIONS.put("printf", "printf");
+    BUILTIN_FUNCTIONS.put("sprintf", "sprintf");
+    BUILTIN_FUNCTIONS.put("strcat", "strcat");
+    BUILTIN_FUNCTIONS.put("strlen", "strlen");
+    BUILTIN_FUNCTIONS.put("length", "strlen");
+    BUILTIN_FUNCTIONS.put("substring", "substring");
+    BUILTIN_FUNCTIONS.put("split", "split");
+    BUILTIN_FUNCTIONS.put("find", "find");
+    BUILTIN_FUNCTIONS.put("isint", "isint");
+    BUILTIN_FUNCTIONS.put("trim", "trim");
+    BUILTIN_FUNCTIONS.put("toUpper", "toUpper");
+    BUILTIN_FUNCTIONS.put("toLower", "toLower");
+    BUILTIN_FUNCTIONS.put("boolean2string", "boolToString");
+    BUILTIN_FUNCTIONS.put("bool2string", "boolToString");
+    BUILTIN_FUNCTIONS.put("string2bool", "parseBool");
+    BUILTIN_FUNCTIONS.put("string2boolean", "parseBool");
+    BUILTIN_FUNCTIONS.put("range", "range");
+    BUILTIN_FUNCTIONS.put("range_step", "range");
+    BUILTIN_FUNCTIONS.put("range_float", "rangeFloat");
+    BUILTIN_FUNCTIONS.put("range_float_step", "rangeFloat");
+    BUILTIN_FUNCTIONS.put("log", "log");
+    BUILTIN_FUNCTIONS.put("ln", "log");
+    BUILTIN_FUNCTIONS.put("blob_from_string", "blobFromString");
+    BUILTIN_FUNCTIONS.put("string2blob", "blobFromString");
+    BUILTIN_FUNCTIONS.put("string_from_blob", "stringFromBlob");
+    BUILTIN_FUNCTIONS.put("blob2string", "stringFromBlob");
+    BUILTIN_FUNCTIONS.put("blob_size", "blobSize");
+    BUILTIN_FUNCTIONS.put("blob_null", "blobNull");
+    BUILTIN_FUNCTIONS.put("getenv", "getenv");
+    BUILTIN_FUNCTIONS.put("clock_seconds", "clockSeconds");
+    BUILTIN_FUNCTIONS.put("clock", "clock");
+    BUILTIN_FUNCTIONS.put("turbine_workers", "workers");
+    BUILTIN_FUNCTIONS.put("sleep", "sleep");
+  }
+
+  /** Foreign functions with same name and signature in java.lang.Math */
+  private static final List<String> MATH_FUNCTIONS = Arrays.asList(
+      "floor", "ceil", "exp", "sqrt", "cbrt", "log10", "sin", "cos", "tan",
+      "asin", "acos", "atan", "atan2");
+
+  private final Logger logger;
+  private final String timestamp;
+  private final String className;
+  private final CompilerOptions options;
+
+  /** Sections of generated class */
+  private final JavaBlock structDecls = new JavaBlock();
+  private final JavaBlock globalDecls = new JavaBlock();
+  private final JavaBlock methods = new JavaBlock();
+
+  /** Stack of blocks that code is being added to */
+  private final StackLite<JavaBlock> pointStack = new StackLite<JavaBlock>();
+
+  private final StackLite<EnclosingLoop> loopStack =
+                                        new StackLite<EnclosingLoop>();
+
+  private final Set<String> usedMethodNames = new HashSet<String>();
+
+  /**
+   * Vars already declared by enclosing constructs, e.g. loop variables,
+   * that shouldn't be declared again
+   */
+  private final Set<Var> predeclared = new HashSet<Var>();
+
+  private int nextTmp = 0;
+
+  /** Function being generated, or null if at global scope */
+  private FnID currentFunction = null;
+
+  /**
+   * Most recent source location seen in generated code, used to
+   * locate errors.  Null if not yet known.
+   */
+  private SourceLoc currentLoc = null;
+
+  public JVMGenerator(Logger logger, String timestamp,
+                      CompilerOptions options) {
+    this.logger = logger;
+    this.timestamp = timestamp;
+    this.options = options;
+    this.className = classNameFor(options);
+  }
+
+  /**
+   * Class is named after output file, or input file if output not set
+   */
+  public static String classNameFor(CompilerOptions options) {
+    String file = options.get(Settings.OUTPUT_FILENAME);
+    if (file == null || file.length() == 0) {
+      file = options.get(Settings.INPUT_FILENAME);
+    }
+    String name = new File(file).getName();
+    int dot = name.indexOf('.');
+    if (dot >= 0) {
+      name = name.substring(0, dot);
+    }
+    return javaClassName(name);
+  }
+
+  public static String javaClassName(String name) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+    }
+    if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))
+        || SourceVersion.isKeyword(sb)) {
+      // E.g. output to /dev/null would give a class named null
+      sb.insert(0, "Swift_");
+    }
+    return sb.toString();
+  }
+
+  public String className() {
+    return className;
+  }
+
+  @Override
+  public void initialize(CodeGenOptions options,
+                         ForeignFunctions foreignFuncs) {
+    if (options.checkpointRequired()) {
+      throw unsupported("Checkpointing");
+    }
+  }
+
+  @Override
+  public void finalize() {
+    // Nothing to do: main method added on output
+  }
+
+  @Override
+  public void generate(OutputStream output) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(output),
+                                  OUTPUT_BUFFER_SIZE);
+    try {
+      JavaBlock file = buildFile();
+      file.appendTo(w, 0);
+    } catch (RuntimeException e) {
+      System.out.println("CODE GENERATOR INTERNAL ERROR");
+      System.out.println(e.getMessage());
+      e.printStackTrace();
+      System.out.println("exiting");
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+    w.flush();
+  }
+
+  private JavaBlock buildFile() {
+    JavaBlock file = new JavaBlock();
+    File inputFile = new File(options.get(Settings.INPUT_FILENAME));
+    file.add("// Generated by stc version " +
+             options.get(Settings.STC_VERSION));
+    file.add("// date                    : " + timestamp);
+    file.add("// Input filename          : " + inputFile.getAbsolutePath());
+    file.add("// Compile and run with stc.jar and log4j on the classpath");
+    file.add("");
+    file.add("import java.util.List;");
+    file.add("import java.util.Map;");
+    file.add("");
+    file.add("import exm.stc.jvm.runtime.BlockingTask;");
+    file.add("import exm.stc.jvm.runtime.Builtins;");
+    file.add("import exm.stc.jvm.runtime.JVMRuntime;");
+    file.add("import exm.stc.jvm.runtime.JVMRuntime.ForeachBody;");
+    file.add("import exm.stc.jvm.runtime.JVMRuntime.RangeBody;");
+    file.add("import exm.stc.jvm.runtime.Task;");
+    file.add("import exm.stc.jvm.runtime.Vars;");
+    file.add("import exm.stc.jvm.runtime.Vars.ArrayVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.BagVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.BaseVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.FloatVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.IntVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.ScalarVar;");
+    file.add("import exm.stc.jvm.runtime.Vars.StructType;");
+    file.add("import exm.stc.jvm.runtime.Vars.StructVar;");
+    file.add("");
+    file.add("@SuppressWarnings(\"unchecked\")");
+    JavaBlock body = file.addBlock("class " + className + " {", "}");
+    body.add("static final JVMRuntime " + RT + " = new JVMRuntime();");
+    body.add("");
+    body.addAll(structDecls);
+    body.addAll(globalDecls);
+    body.add("");
+    body.addAll(methods);
+
+    JavaBlock run = body.addBlock(
+        "static int " + RUN_METHOD + "() {", "}");
+    JavaBlock task = run.addBlock(
+        "return " + RT + ".run(new Task() {", "});");
+    task.add("@Override");
+    task.addBlock("public void run() {", "}").add(ENTRY_METHOD + "();");
+    body.add("");
+
+    JavaBlock main = body.addBlock(
+        "public static void main(String[] args) {", "}");
+    main.add("System.exit(" + RUN_METHOD + "());");
+    return file;
+  }
+
+  @Override
+  public void requirePackage(RequiredPackage pkg) {
+    // Turbine library functions are implemented by runtime
+    logger.debug("Ignoring required package: " + pkg);
+  }
+
+  @Override
+  public void declareStructType(StructType st) {
+    List<String> names = new ArrayList<String>();
+    List<String> nested = new ArrayList<String>();
+    for (StructField f: st.fields()) {
+      names.add(stringLiteral(f.name()));
+      if (Types.isStruct(f.type()) || Types.isStructLocal(f.type())) {
+        nested.add(structTypeName(f.type()));
+      } else {
+        nested.add("null");
+      }
+    }
+    structDecls.add("static final StructType " + structTypeName(st) +
+        " = new StructType(" + stringLiteral(st.getStructTypeName()) +
+        ", new String[] {" + join(names) + "}, new StructType[] {" +
+        join(nested) + "});");
+  }
+
+  @Override
+  public void declareWorkType(WorkContext workType) {
+    // All tasks run on the same pool of threads
+    logger.debug("Ignoring work type: " + workType);
+  }
+
+  @Override
+  public void addGlobalConst(Var var, Arg val) {
+    assert(var.storage() == Alloc.GLOBAL_CONST);
+    if (!Types.isScalarFuture(var)) {
+      throw unsupported("Global constant of type " + var.type());
+    }
+    globalDecls.add("static final ScalarVar " + name(var) + " = " +
+                    scalarClass(var.type()) + ".closed(" + argExpr(val) + ");");
+  }
+
+  @Override
+  public void declareGlobalVars(List<VarDecl> vars) {
+    for (VarDecl decl: vars) {
+      globalDecls.add("static final " + javaType(decl.var) + " " +
+          name(decl.var) + " = " + newVarExpr(decl.var, decl.initWriters) +
+          ";");
+    }
+  }
+
+  @Override
+  public void defineForeignFunction(FnID id, FunctionType type,
+        LocalForeignFunction localImpl, WrappedForeignFunction wrappedImpl) {
+    // Check for implementation when called
+  }
+
+  @Override
+  public void startFunction(FnID id, List<Var> outArgs, List<Var> inArgs,
+                            ExecTarget mode) {
+    List<String> params = new ArrayList<String>();
+    for (Var v: outArgs) {
+      params.add(javaType(v) + " " + name(v));
+    }
+    for (Var v: inArgs) {
+      params.add(javaType(v) + " " + name(v));
+    }
+    currentFunction = id;
+    currentLoc = null;
+    updateLoc(outArgs);
+    updateLoc(inArgs);
+    String methodName = functionName(id);
+    usedMethodNames.add(methodName);
+    // Var names are only unique within function
+    predeclared.clear();
+    methods.add("// " + id.originalName());
+    JavaBlock body = methods.addBlock("static void " + methodName + "(" +
+                                      join(params) + ") {", "}");
+    methods.add("");
+    pointPush(body);
+  }
+
+  @Override
+  public void endFunction() {
+    pointPop();
+    currentFunction = null;
+  }
+
+  @Override
+  public void declare(List<VarDecl> decls) {
+    for (VarDecl decl: decls) {
+      Var var = decl.var;
+      updateLoc(var);
+      if (var.storage().isGlobal() || predeclared.contains(var)) {
+        continue;
+      }
+      String type = javaType(var);
+      String init;
+      if (var.storage() != Alloc.ALIAS && isSharedVar(var)) {
+        init = newVarExpr(var, decl.initWriters);
+      } else {
+        // Assigned later
+        init = defaultValue(type);
+      }
+      pointAdd(type + " " + name(var) + " = " + init + ";");
+    }
+  }
+
+  @Override
+  public void startNestedBlock() {
+    pointPush(point().addBlock("{", "}"));
+  }
+
+  @Override
+  public void endNestedBlock() {
+    pointPop();
+  }
+
+  @Override
+  public void addComment(String comment) {
+    for (String line: comment.split("\n")) {
+      pointAdd("// " + line);
+    }
+  }
+
+  @Override
+  public void startIfStatement(Arg condition, boolean hasElse) {
+    String cond;
+    if (condition.isImmInt()) {
+      cond = argExpr(condition) + " != 0";
+    } else {
+      assert(condition.type().assignableTo(Types.V_BOOL)) : condition;
+      cond = argExpr(condition);
+    }
+    JavaBlock curr = point();
+    JavaBlock thenBlock;
+    if (hasElse) {
+      thenBlock = curr.addBlock("if (" + cond + ") {", "} else {");
+      JavaBlock elseBlock = curr.addBlock();
+      curr.add("}");
+      pointPush(elseBlock);
+    } else {
+      thenBlock = curr.addBlock("if (" + cond + ") {", "}");
+    }
+    pointPush(thenBlock);
+  }
+
+  @Override
+  public void startElseBlock() {
+    pointPop();
+  }
+
+  @Override
+  public void endIfStatement() {
+    pointPop();
+  }
+
+  @Override
+  public void startSwitch(Arg switchVar, List<Integer> caseLabels,
+                          boolean hasDefault) {
+    assert(switchVar.isImmInt()) : switchVar;
+    String value = argExpr(switchVar);
+    JavaBlock curr = point();
+    // Chain of ifs since Java can't switch on long
+    List<JavaBlock> bodies = new ArrayList<JavaBlock>();
+    for (int i = 0; i < caseLabels.size(); i++) {
+      String test = "(" + value + " == " + caseLabels.get(i) + "L) {";
+      curr.add(i == 0 ? "if " + test : "} else if " + test);
+      bodies.add(curr.addBlock());
+    }
+    if (hasDefault) {
+      curr.add(caseLabels.isEmpty() ? "{" : "} else {");
+      bodies.add(curr.addBlock());
+    }
+    if (!bodies.isEmpty()) {
+      curr.add("}");
+    }
+
+    // Push in reverse order so first case is on top
+    for (int i = bodies.size() - 1; i >= 0; i--) {
+      pointPush(bodies.get(i));
+    }
+  }
+
+  @Override
+  public void endCase() {
+    pointPop();
+  }
+
+  @Override
+  public void endSwitch() {
+    // Cases already popped
+  }
+
+  @Override
+  public void startForeachLoop(String loopName, Var container,
+      Var memberVar, Var loopCountVar, int splitDegree, int leafDegree,
+      boolean arrayClosed, List<PassedVar> passedVars,
+      List<RefCount> perIterIncrs, ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> perIterDecrs) {
+    boolean bag = Types.isBag(container) || Types.isBagLocal(container);
+    if (!bag && !Types.isArray(container) && !Types.isArrayLocal(container)) {
+      throw unsupported("Foreach loop over " + container.type());
+    }
+    if (!arrayClosed) {
+      throw new STCRuntimeError("Loops over open containers not yet supported");
+    }
+
+    // Bags are enumerated as elements, arrays as key/value entries
+    String elemType = bag ? "Object" : "Map.Entry<Object, Object>";
+    String entry = newTmp();
+    String entryLoop = "for (" + elemType + " " + entry + ": ";
+    if (Types.isArrayLocal(container) || Types.isBagLocal(container)) {
+      if (splitDegree > 0) {
+        throw new STCRuntimeError(
+            "Can't do async foreach with local container currently;");
+      }
+      if (!perIterIncrs.isEmpty()) {
+        handleRefcounts(constIncrs, perIterIncrs,
+                        name(container) + ".size()", false);
+      }
+      pointPush(point().addBlock(entryLoop + name(container) +
+                                 (bag ? "" : ".entrySet()") + ") {", "}"));
+    } else {
+      String entries = newTmp();
+      pointAdd("List<" + elemType + "> " + entries + " = " +
+               name(container) + (bag ? ".elements();" : ".entries();"));
+      if (!perIterIncrs.isEmpty()) {
+        handleRefcounts(constIncrs, perIterIncrs, entries + ".size()",
+                        false);
+      }
+      if (splitDegree > 0) {
+        String chunk = newTmp();
+        JavaBlock body = startClosure(RT + ".foreach(" + entries + ", " +
+            splitDegree + ", " + leafDegree + ", ",
+            "ForeachBody<" + elemType + ">", "List<" + elemType + "> " + chunk,
+            splitPassedVars(passedVars, perIterDecrs));
+        pointPush(body);
+        splitIters.push(chunk + ".size()");
+        entries = chunk;
+      }
+      pointPush(point().addBlock(entryLoop + entries + ") {", "}"));
+    }
+
+    if (loopCountVar != null) {
+      assert(!bag) : "Bags have no keys";
+      predeclared.add(loopCountVar);
+      pointAdd(javaType(loopCountVar) + " " + name(loopCountVar) + " = " +
+               castExpr(javaType(loopCountVar), entry + ".getKey()") + ";");
+    }
+    predeclared.add(memberVar);
+    pointAdd(javaType(memberVar) + " " + name(memberVar) + " = " +
+             castExpr(javaType(memberVar),
+                      bag ? entry : entry + ".getValue()") + ";");
+  }
+
+  /** Expressions for iteration count of split loops being generated */
+  private final StackLite<String> splitIters = new StackLite<String>();
+
+  @Override
+  public void endForeachLoop(int splitDegree, boolean arrayClosed,
+                             List<RefCount> perIterDecrs) {
+    pointPop(); // Loop body
+    if (splitDegree > 0) {
+      endSplit(perIterDecrs);
+    }
+  }
+
+  /**
+   * Vars to pass into body of split loop: includes vars to decrement
+   */
+  private List<Var> splitPassedVars(List<PassedVar> passedVars,
+                                    List<RefCount> perIterDecrs) {
+    List<Var> result = new ArrayList<Var>(PassedVar.extractVars(passedVars));
+    result.addAll(RefCount.extractVars(perIterDecrs));
+    return result;
+  }
+
+  /**
+   * Decrement refcounts for iterations in split, then finish split body
+   */
+  private void endSplit(List<RefCount> perIterDecrs) {
+    String iters = splitIters.pop();
+    if (!perIterDecrs.isEmpty()) {
+      handleRefcounts(null, perIterDecrs, iters, true);
+    }
+    pointPop();
+  }
+
+  @Override
+  public void startRangeLoop(String loopName, Var loopVar, Var countVar,
+      Arg start, Arg end, Arg increment, int splitDegree, int leafDegree,
+      List<PassedVar> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+    if (countVar != null) {
+      throw new STCRuntimeError("Backend doesn't support counter var in " +
+                                "range loop yet");
+    }
+    predeclared.add(loopVar);
+
+    String startE = argExpr(start);
+    String endE = argExpr(end);
+    String incrE = argExpr(increment);
+    if (start.isImmInt()) {
+      assert(end.isImmInt() && increment.isImmInt());
+      startIntRangeLoop(name(loopVar), startE, endE, incrE, splitDegree,
+          leafDegree, PassedVar.extractVars(passedVars), perIterIncrs,
+          constIncrs, perIterDecrs);
+    } else {
+      assert(start.isImmFloat() && end.isImmFloat() &&
+             increment.isImmFloat()) : "Invalid range loop type " +
+                                       start.type();
+      // Iterate over integers to get the index of each float
+      String iterMax = newTmp();
+      pointAdd("long " + iterMax + " = JVMRuntime.floatRangeIters(" +
+               startE + ", " + endE + ", " + incrE + ") - 1;");
+      String dummyLoopVar = newTmp();
+
+      // Variables used in calculation must be passed
+      Set<Var> passed = new LinkedHashSet<Var>(
+                                  PassedVar.extractVars(passedVars));
+      for (Arg arg: new Arg[] {start, increment}) {
+        if (arg.isVar()) {
+          passed.add(arg.getVar());
+        }
+      }
+      startIntRangeLoop(dummyLoopVar, "0L", iterMax, "1L", splitDegree,
+          leafDegree, passed, perIterIncrs, constIncrs, perIterDecrs);
+      pointAdd("double " + name(loopVar) + " = " + startE + " + " +
+               incrE + " * " + dummyLoopVar + ";");
+    }
+  }
+
+  private void startIntRangeLoop(String loopVarName, String startE,
+      String endE, String incrE, int splitDegree, int leafDegree,
+      Collection<Var> passedVars, List<RefCount> perIterIncrs,
+      ListMultimap<Var, RefCount> constIncrs, List<RefCount> perIterDecrs) {
+    if (!perIterIncrs.isEmpty()) {
+      // Increment references by # of iterations
+      String itersTotal = newTmp();
+      pointAdd("long " + itersTotal + " = JVMRuntime.rangeIters(" + startE +
+               ", " + endE + ", " + incrE + ");");
+      handleRefcounts(constIncrs, perIterIncrs, itersTotal, false);
+    }
+
+    if (splitDegree > 0) {
+      String lo = newTmp(), hi = newTmp(), inc = newTmp();
+      List<Var> passIn = new ArrayList<Var>(passedVars);
+      passIn.addAll(RefCount.extractVars(perIterDecrs));
+      JavaBlock body = startClosure(RT + ".range(" + startE + ", " + endE +
+          ", " + incrE + ", " + splitDegree + ", " + leafDegree + ", ",
+          "RangeBody", "long " + lo + ", long " + hi + ", long " + inc,
+          passIn);
+      pointPush(body);
+      splitIters.push("JVMRuntime.rangeIters(" + lo + ", " + hi + ", " +
+                      inc + ")");
+      startE = lo;
+      endE = hi;
+      incrE = inc;
+    }
+    pointPush(point().addBlock("for (long " + loopVarName + " = " + startE +
+        "; " + loopVarName + " <= " + endE + "; " + loopVarName + " += " +
+        incrE + ") {", "}"));
+  }
+
+  @Override
+  public void endRangeLoop(int splitDegree, List<RefCount> perIterDecrs) {
+    pointPop(); // Loop body
+    if (splitDegree > 0) {
+      endSplit(perIterDecrs);
+    }
+  }
+
+  /**
+   * Generate refcounting code from RefCount list
+   * @param constIncrs constant increments.  Assume that every constant incr
+   *            has a corresponding multipled one.  This can be null
+   * @param multipliedIncrs
+   * @param multiplier expression to multiply all refcounts by
+   * @param decrement if true, generate decrements instead
+   */
+  private void handleRefcounts(ListMultimap<Var, RefCount> constIncrs,
+      List<RefCount> multipliedIncrs, String multiplier, boolean decrement) {
+    for (RefCount refCount: multipliedIncrs) {
+      if (refCount.type != RefCountType.WRITERS ||
+          !RefCounting.trackWriteRefCount(refCount.var)) {
+        continue;
+      }
+      StringBuilder amount = new StringBuilder();
+      if (refCount.amount.equals(Arg.ONE)) {
+        amount.append(multiplier);
+      } else {
+        amount.append(argExpr(refCount.amount) + " * " + multiplier);
+      }
+      if (constIncrs != null) {
+        for (RefCount constRC: constIncrs.get(refCount.var)) {
+          if (constRC.type == refCount.type) {
+            amount.append(" + " + argExpr(constRC.amount));
+          }
+        }
+      }
+      pointAdd(name(refCount.var) + "." +
+               (decrement ? "decrWriters" : "incrWriters") +
+               "((int)(" + amount + "));");
+    }
+  }
+
+  @Override
+  public void startWaitStatement(String procName, List<Var> waitVars,
+      List<Var> passIn, boolean recursive, ExecTarget target,
+      TaskProps props) {
+    // Tasks dispatched to workers run leaf work, like apps, that may block
+    boolean blocking = target.isDispatched() &&
+                       target.targetContext().isAnyWorkContext();
+    pointPush(startTask(waitVars, recursive, passIn, props, blocking));
+  }
+
+  @Override
+  public void endWaitStatement() {
+    pointPop();
+  }
+
+  private JavaBlock startTask(List<Var> waitVars, boolean recursive,
+                              Collection<Var> passIn, TaskProps props) {
+    return startTask(waitVars, recursive, passIn, props, false);
+  }
+
+  /**
+   * Start task that runs once all waitVars are closed
+   * @param props task properties: only priority is used
+   * @param blocking if task may block, so should run outside workers
+   * @return block for task body
+   */
+  private JavaBlock startTask(List<Var> waitVars, boolean recursive,
+                              Collection<Var> passIn, TaskProps props,
+                              boolean blocking) {
+    Arg priority = props == null ? null : props.get(TaskPropKey.PRIORITY);
+    String priorityArg = priority == null ? "" : intExpr(priority) + ", ";
+    String launch;
+    if (waitVars.isEmpty()) {
+      launch = RT + ".spawn(" + priorityArg;
+    } else {
+      launch = RT + "." + (recursive ? "ruleRecursive" : "rule") + "(" +
+               varArray(waitVars) + ", " + priorityArg;
+    }
+    return startClosure(launch, blocking ? "BlockingTask" : "Task", "",
+                        passIn);
+  }
+
+  /**
+   * Create anonymous class instance passed as last argument of launch
+   * call.  Variables passed in are copied to final temporaries, then
+   * rebound to their usual names in the run method.
+   * @param launch start of launch call, up to last argument
+   * @param iface interface implemented by anonymous class
+   * @param params parameters of run method
+   * @param passIn variables used in body
+   * @return body of run method
+   */
+  private JavaBlock startClosure(String launch, String iface,
+                              String params, Collection<Var> passIn) {
+    JavaBlock curr = point();
+    List<String> rebind = new ArrayList<String>();
+    for (Var v: new LinkedHashSet<Var>(passIn)) {
+      if (v.storage().isGlobal()) {
+        continue;
+      }
+      String tmp = newTmp();
+      String type = javaType(v);
+      curr.add("final " + type + " " + tmp + " = " + name(v) + ";");
+      rebind.add(type + " " + name(v) + " = " + tmp + ";");
+    }
+    JavaBlock anon = curr.addBlock(launch + "new " + iface + "() {", "});");
+    anon.add("@Override");
+    JavaBlock body = anon.addBlock("public void run(" + params + ") {", "}");
+    for (String line: rebind) {
+      body.add(line);
+    }
+    return body;
+  }
+
+  /**
+   * Call method in task once waitVars are closed
+   * @param types Java types of args
+   * @param args Java expressions for args
+   */
+  private void ruleCall(List<Var> waitVars, String method,
+                        List<String> types, List<String> args,
+                        TaskProps props) {
+    JavaBlock curr = point();
+    List<String> tmps = new ArrayList<String>();
+    for (int i = 0; i < args.size(); i++) {
+      String tmp = newTmp();
+      curr.add("final " + types.get(i) + " " + tmp + " = " + args.get(i) +
+               ";");
+      tmps.add(tmp);
+    }
+    JavaBlock body = startTask(waitVars, false, new ArrayList<Var>(), props);
+    body.add(method + "(" + join(tmps) + ");");
+  }
+
+  @Override
+  public void startAsyncExec(String procName, List<Var> passIn,
+      AsyncExecutor executor, Arg cmdName, List<Var> taskOutputs,
+      List<Arg> taskArgs, Map<String, Arg> taskProps,
+      boolean hasContinuation) {
+    throw unsupported("Async executor " + executor);
+  }
+
+  @Override
+  public void endAsyncExec(boolean hasContinuation) {
+    throw unsupported("Async executors");
+  }
+
+  @Override
+  public void startLoop(String loopName, List<Var> loopVars,
+      List<Arg> initVals, List<Var> usedVariables, List<Var> initWaitVars,
+      boolean simpleLoop) {
+    assert(initWaitVars.isEmpty() || !simpleLoop) : initWaitVars;
+    // Don't pass loop vars twice
+    List<Var> usedVars = new ArrayList<Var>();
+    for (Var v: new LinkedHashSet<Var>(usedVariables)) {
+      if (!loopVars.contains(v) && !v.storage().isGlobal()) {
+        usedVars.add(v);
+      }
+    }
+
+    List<String> params = new ArrayList<String>();
+    List<String> types = new ArrayList<String>();
+    List<String> firstIterArgs = new ArrayList<String>();
+    for (int i = 0; i < loopVars.size(); i++) {
+      Var loopVar = loopVars.get(i);
+      types.add(javaType(loopVar));
+      params.add(javaType(loopVar) + " " + name(loopVar));
+      firstIterArgs.add(argExpr(initVals.get(i)));
+    }
+    for (Var uv: usedVars) {
+      types.add(javaType(uv));
+      params.add(javaType(uv) + " " + name(uv));
+      firstIterArgs.add(name(uv));
+    }
+
+    String methodName = uniqueMethodName(PROC_PREFIX + mangle(loopName));
+    ruleCall(initWaitVars, methodName, types, firstIterArgs, null);
+
+    JavaBlock loopMethod = methods.addBlock("static void " + methodName +
+                                        "(" + join(params) + ") {", "}");
+    methods.add("");
+
+    if (simpleLoop) {
+      // Implement execution of loop body immediately with while loop
+      loopMethod.add("boolean " + LOOP_COND + " = true;");
+      for (Var loopVar: loopVars) {
+        String type = javaType(loopVar);
+        loopMethod.add(type + " " + NEXT_ITER_PREFIX + name(loopVar) +
+                       " = " + defaultValue(type) + ";");
+      }
+      JavaBlock whileBody = loopMethod.addBlock("while (" + LOOP_COND +
+                                                ") {", "}");
+      JavaBlock iterBody = whileBody.addBlock();
+
+      // Update loop variables for next iteration
+      JavaBlock updateVars = whileBody.addBlock("if (" + LOOP_COND + ") {",
+                                                "}");
+      for (Var loopVar: loopVars) {
+        updateVars.add(name(loopVar) + " = " + NEXT_ITER_PREFIX +
+                       name(loopVar) + ";");
+      }
+      pointPush(iterBody);
+    } else {
+      pointPush(loopMethod);
+    }
+    loopStack.push(new EnclosingLoop(methodName, simpleLoop, loopVars,
+                                     usedVars));
+  }
+
+  @Override
+  public void loopContinue(List<Arg> newVals, List<Var> usedVariables,
+                           List<Boolean> blockingVars) {
+    EnclosingLoop context = loopStack.peek();
+    assert(context.loopVars.size() == newVals.size());
+    if (context.simpleLoop) {
+      assert(blockingVars.indexOf(true) == -1) : newVals + " " + blockingVars;
+      // Just assign variables for next iteration
+      for (int i = 0; i < context.loopVars.size(); i++) {
+        pointAdd(NEXT_ITER_PREFIX + name(context.loopVars.get(i)) + " = " +
+                 argExpr(newVals.get(i)) + ";");
+      }
+    } else {
+      // Call loop method in task to execute next iteration later
+      List<String> types = new ArrayList<String>();
+      List<String> args = new ArrayList<String>();
+      List<Var> waitVars = new ArrayList<Var>();
+      for (int i = 0; i < newVals.size(); i++) {
+        Arg newVal = newVals.get(i);
+        types.add(javaType(context.loopVars.get(i)));
+        args.add(argExpr(newVal));
+        if (blockingVars.get(i) && newVal.isVar()) {
+          waitVars.add(newVal.getVar());
+        }
+      }
+      for (Var v: context.usedVars) {
+        types.add(javaType(v));
+        args.add(name(v));
+      }
+      ruleCall(waitVars, context.methodName, types, args, null);
+    }
+  }
+
+  @Override
+  public void loopBreak(List<Var> loopUsedVars, List<Var> keepOpenVars) {
+    EnclosingLoop context = loopStack.peek();
+    if (context.simpleLoop) {
+      // Break out of while loop after cleanups execute
+      pointAdd(LOOP_COND + " = false;");
+    } else {
+      // Nothing: will fall out of method
+    }
+  }
+
+  @Override
+  public void endLoop() {
+    pointPop();
+    loopStack.pop();
+  }
+
+  @Override
+  public void modifyRefCounts(List<DirRefCount> refcounts) {
+    for (DirRefCount rc: refcounts) {
+      // Only writers are tracked: readers are garbage collected
+      if (rc.type == RefCountType.WRITERS &&
+          RefCounting.trackWriteRefCount(rc.var)) {
+        pointAdd(name(rc.var) + "." +
+            (rc.dir == RCDir.INCR ? "incrWriters" : "decrWriters") +
+            "(" + intExpr(rc.amount) + ");");
+      }
+    }
+  }
+
+  @Override
+  public void localOp(BuiltinOpcode op, Var out, List<Arg> in) {
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      args.add(argExpr(a));
+    }
+    opImpl(point(), op, out, args, false);
+  }
+
+  @Override
+  public void asyncOp(BuiltinOpcode op, Var out, List<Arg> in,
+                      TaskProps props) {
+    List<Var> waitVars = new ArrayList<Var>();
+    List<String> args = new ArrayList<String>();
+    for (Arg a: in) {
+      if (a.isVar()) {
+        waitVars.add(a.getVar());
+        args.add(retrieveExpr(a.getVar()));
+      } else {
+        args.add(argExpr(a));
+      }
+    }
+    List<Var> passIn = new ArrayList<Var>(waitVars);
+    if (out != null) {
+      passIn.add(out);
+    }
+    opImpl(startTask(waitVars, false, passIn, props), op, out, args, true);
+  }
+
+  /**
+   * Generate code for operation
+   * @param future if true, out is a future, otherwise a value
+   */
+  private void opImpl(JavaBlock block, BuiltinOpcode op, Var out,
+                      List<String> args, boolean future) {
+    String result;
+    if (op == BuiltinOpcode.ASSERT) {
+      block.add("Builtins.assertTrue(" + join(args) + ");");
+      result = VOID_VALUE;
+    } else if (op == BuiltinOpcode.ASSERT_EQ) {
+      block.add("Builtins.assertEqual(" + join(args) + ");");
+      result = VOID_VALUE;
+    } else {
+      result = opExpr(op, args);
+    }
+    if (out != null) {
+      if (future) {
+        block.add(name(out) + ".set(" + result + ");");
+      } else {
+        block.add(name(out) + " = " + result + ";");
+      }
+    }
+  }
+
+  private static String opExpr(BuiltinOpcode op, List<String> in) {
+    switch (op) {
+      case PLUS_INT:
+      case PLUS_FLOAT:
+        return binOp(in, "+");
+      case MINUS_INT:
+      case MINUS_FLOAT:
+        return binOp(in, "-");
+      case MULT_INT:
+      case MULT_FLOAT:
+        return binOp(in, "*");
+      case DIV_INT:
+      case DIV_FLOAT:
+        // Java's truncating integer division matches Swift semantics
+        return binOp(in, "/");
+      case MOD_INT:
+        return binOp(in, "%");
+      case NEGATE_INT:
+      case NEGATE_FLOAT:
+        return "(- " + in.get(0) + ")";
+      case POW_INT:
+        return call("Builtins.powInt", in);
+      case POW_FLOAT:
+        return call("Math.pow", in);
+      case MAX_INT:
+      case MAX_FLOAT:
+        return call("Math.max", in);
+      case MIN_INT:
+      case MIN_FLOAT:
+        return call("Math.min", in);
+      case ABS_INT:
+      case ABS_FLOAT:
+        return call("Math.abs", in);
+      case EQ_INT:
+      case EQ_FLOAT:
+      case EQ_BOOL:
+        return binOp(in, "==");
+      case NEQ_INT:
+      case NEQ_FLOAT:
+      case NEQ_BOOL:
+      case XOR:
+        return binOp(in, "!=");
+      case GT_INT:
+      case GT_FLOAT:
+        return binOp(in, ">");
+      case LT_INT:
+      case LT_FLOAT:
+        return binOp(in, "<");
+      case GTE_INT:
+      case GTE_FLOAT:
+        return binOp(in, ">=");
+      case LTE_INT:
+      case LTE_FLOAT:
+        return binOp(in, "<=");
+      case EQ_STRING:
+        return in.get(0) + ".equals(" + in.get(1) + ")";
+      case NEQ_STRING:
+        return "!" + in.get(0) + ".equals(" + in.get(1) + ")";
+      case NOT:
+        return "(!" + in.get(0) + ")";
+      case AND:
+        return binOp(in, "&&");
+      case OR:
+        return binOp(in, "||");
+      case STRCAT:
+        return call("Builtins.strcat", in);
+      case DIRCAT:
+        return call("Builtins.dircat", in);
+      case SUBSTRING:
+        return call("Builtins.substring", in);
+      case COPY_INT:
+      case COPY_FLOAT:
+      case COPY_BOOL:
+      case COPY_STRING:
+      case COPY_VOID:
+        return in.get(0);
+      case FLOOR:
+        return call("Math.floor", in);
+      case CEIL:
+        return call("Math.ceil", in);
+      case ROUND:
+        return call("Builtins.round", in);
+      case INTTOFLOAT:
+        return "((double) " + in.get(0) + ")";
+      case FLOATTOINT:
+        return "((long) Math.floor(" + in.get(0) + "))";
+      case PARSE_INT:
+        return call("Builtins.parseInt", in);
+      case PARSE_FLOAT:
+        return call("Builtins.parseFloat", in);
+      case INTTOSTR:
+        return call("String.valueOf", in);
+      case FLOATTOSTR:
+        return call("Builtins.formatFloat", in);
+      case LOG:
+        return call("Math.log", in);
+      case EXP:
+        return call("Math.exp", in);
+      case SQRT:
+        return call("Math.sqrt", in);
+      case IS_NAN:
+        return call("Double.isNaN", in);
+      case SPRINTF:
+        return call("Builtins.sprintf", in);
+      default:
+        throw unsupported("Builtin operation " + op);
+    }
+  }
+
+  private static String binOp(List<String> in, String op) {
+    assert(in.size() == 2) : in;
+    return "(" + in.get(0) + " " + op + " " + in.get(1) + ")";
+  }
+
+  private static String call(String fn, List<String> args) {
+    return fn + "(" + join(args) + ")";
+  }
+
+  @Override
+  public void callForeignFunctionLocal(FnID id, List<Var> outputs,
+                                       List<Arg> inputs) {
+    updateLoc(outputs);
+    List<String> args = new ArrayList<String>();
+    for (Arg in: inputs) {
+      args.add(argExpr(in));
+    }
+    String impl = builtinFunction(id, outputs);
+    if (outputs.isEmpty()) {
+      pointAdd(call(impl, args) + ";");
+    } else if (Types.isVoidVal(outputs.get(0))) {
+      pointAdd(call(impl, args) + ";");
+      pointAdd(name(outputs.get(0)) + " = " + VOID_VALUE + ";");
+    } else {
+      pointAdd(name(outputs.get(0)) + " = " + call(impl, args) + ";");
+    }
+  }
+
+  @Override
+  public void callForeignFunctionWrapped(FnID id, List<Var> outputs,
+                                  List<Arg> inputs, TaskProps props) {
+    updateLoc(outputs);
+    String impl = builtinFunction(id, outputs);
+    List<Var> waitVars = new ArrayList<Var>();
+    List<String> args = new ArrayList<String>();
+    for (Arg in: inputs) {
+      if (in.isVar()) {
+        waitVars.add(in.getVar());
+        args.add(retrieveExpr(in.getVar()));
+      } else {
+        args.add(argExpr(in));
+      }
+    }
+    List<Var> passIn = new ArrayList<Var>(waitVars);
+    passIn.addAll(outputs);
+    JavaBlock body = startTask(waitVars, false, passIn, props);
+    if (outputs.isEmpty()) {
+      body.add(call(impl, args) + ";");
+    } else if (Types.isVoid(outputs.get(0))) {
+      body.add(call(impl, args) + ";");
+      body.add(name(outputs.get(0)) + ".set(" + VOID_VALUE + ");");
+    } else {
+      body.add(assignStmt(outputs.get(0), call(impl, args), "1"));
+    }
+  }
+
+  private static String builtinFunction(FnID id, List<Var> outputs) {
+    String name = id.originalName();
+    if (outputs.size() > 1) {
+      throw unsupported("Multiple outputs for " + name);
+    }
+    String impl = BUILTIN_FUNCTIONS.get(name);
+    if (impl != null) {
+      return "Builtins." + impl;
+    } else if (MATH_FUNCTIONS.contains(name)) {
+      return "Math." + name;
+    }
+    throw unsupported("Foreign function " + name);
+  }
+
+  @Override
+  public void functionCall(FnID id, List<Var> outputs, List<Arg> inputs,
+      List<Boolean> blockOn, ExecTarget mode, TaskProps props) {
+    List<String> types = new ArrayList<String>();
+    List<String> args = new ArrayList<String>();
+    for (Var out: outputs) {
+      types.add(javaType(out));
+      args.add(name(out));
+    }
+    List<Var> waitVars = new ArrayList<Var>();
+    for (int i = 0; i < inputs.size(); i++) {
+      Arg in = inputs.get(i);
+      types.add(in.isVar() ? javaType(in.getVar()) : javaType(in.type()));
+      args.add(argExpr(in));
+      if (in.isVar() && blockOn.get(i)) {
+        waitVars.add(in.getVar());
+      }
+    }
+
+    if (mode.isAsync()) {
+      ruleCall(waitVars, functionName(id), types, args, props);
+    } else {
+      // Calling synchronously, can't guarantee anything blocks
+      assert(waitVars.isEmpty()) : id + ": " + waitVars;
+      pointAdd(call(functionName(id), args) + ";");
+    }
+  }
+
+  @Override
+  public void execExternal(Arg cmd, List<Arg> args, List<Var> outFiles,
+      List<Arg> inFiles, Redirects<Arg> redirects, boolean hasSideEffects,
+      boolean deterministic) {
+    for (Var file: outFiles) {
+      if (!Types.isVoidVal(file)) {
+        throw unsupported("App file arguments");
+      }
+    }
+    for (Arg file: inFiles) {
+      if (file.isVar() && !Types.isVoidVal(file.getVar())) {
+        throw unsupported("App file arguments");
+      }
+    }
+    if (!redirects.redirections(true, true).isEmpty()) {
+      throw unsupported("App redirections");
+    }
+    List<String> exprs = new ArrayList<String>();
+    exprs.add(argExpr(cmd));
+    for (Arg arg: args) {
+      exprs.add(argExpr(arg));
+    }
+    pointAdd(call("Builtins.exec", exprs) + ";");
+  }
+
+  @Override
+  public void assignScalar(Var dst, Arg src) {
+    assert(Types.isScalarFuture(dst));
+    assert(Types.isScalarValue(src));
+    pointAdd(name(dst) + ".set(" + argExpr(src) + ");");
+  }
+
+  @Override
+  public void retrieveScalar(Var dst, Var src, Arg decr) {
+    assert(Types.isScalarValue(dst));
+    assert(Types.isScalarFuture(src));
+    pointAdd(name(dst) + " = " + retrieveExpr(src) + ";");
+  }
+
+  @Override
+  public void assignFile(Var dst, Arg src, Arg setFilename) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void retrieveFile(Var dst, Var src, Arg decr) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void assignReference(Var dst, Var src, long readRefs,
+                              long writeRefs) {
+    assert(Types.isRef(dst));
+    pointAdd(name(dst) + ".set(" + name(src) + ");");
+    if (writeRefs > 0) {
+      // Release write refcounts once reference is unreachable
+      pointAdd(RT + ".holdWriters(" + name(dst) + ", " + name(src) + ", " +
+               writeRefs + ");");
+    }
+  }
+
+  @Override
+  public void retrieveReference(Var dst, Var src, Arg acquireRead,
+                                Arg acquireWrite, Arg decr) {
+    assert(Types.isRef(src));
+    pointAdd(name(dst) + " = " + retrieveExpr(src) + ";");
+    if (acquireWrite.isVar() || acquireWrite.getInt() > 0) {
+      pointAdd(name(dst) + ".incrWriters(" + intExpr(acquireWrite) + ");");
+    }
+  }
+
+  @Override
+  public void assignArray(Var dst, Arg src) {
+    assert(Types.isArray(dst));
+    assert(Types.isArrayLocal(src));
+    pointAdd(name(dst) + ".storeAll(" + argExpr(src) + ", 1);");
+  }
+
+  @Override
+  public void retrieveArray(Var dst, Var src, Arg decr) {
+    assert(Types.isArray(src));
+    assert(Types.isArrayLocal(dst));
+    pointAdd(name(dst) + " = " + retrieveExpr(src) + ";");
+  }
+
+  @Override
+  public void assignBag(Var dst, Arg src) {
+    assert(Types.isBag(dst));
+    assert(Types.isBagLocal(src));
+    pointAdd(name(dst) + ".insertAll(" + argExpr(src) + ", 1);");
+  }
+
+  @Override
+  public void retrieveBag(Var dst, Var src, Arg decr) {
+    assert(Types.isBag(src));
+    assert(Types.isBagLocal(dst));
+    pointAdd(name(dst) + " = " + retrieveExpr(src) + ";");
+  }
+
+  @Override
+  public void assignStruct(Var dst, Arg src) {
+    assert(Types.isStruct(dst));
+    assert(Types.isStructLocal(src));
+    // Decrement refcounts not explicitly tracked since assigning in whole
+    long writeDecr = RefCounting.baseStructWriteRefCount(dst.type(),
+                                          dst.defType(), false, true);
+    pointAdd(name(dst) + ".storeAll(" + argExpr(src) + ", " + writeDecr +
+             ");");
+  }
+
+  @Override
+  public void retrieveStruct(Var dst, Var src, Arg decr) {
+    assert(Types.isStruct(src));
+    assert(Types.isStructLocal(dst));
+    pointAdd(name(dst) + " = " + retrieveExpr(src) + ";");
+  }
+
+  @Override
+  public void assignArrayRecursive(Var dst, Arg src) {
+    assert(Types.isArray(dst));
+    assert(Types.isArrayLocal(src));
+    long writeDecr = RefCounting.baseWriteRefCount(dst, true, true);
+    pointAdd("JVMRuntime.assignRecursive(" + name(dst) + ", " +
+             argExpr(src) + ", " + nestedArrayDepth(dst.type()) + ", " +
+             writeDecr + ");");
+  }
+
+  /**
+   * @return number of levels of arrays nested inside array
+   */
+  private static int nestedArrayDepth(Type arrayType) {
+    int depth = 0;
+    Type elem = Types.containerElemType(arrayType);
+    while (true) {
+      if (Types.isRef(elem)) {
+        elem = elem.memberType();
+      }
+      if (!Types.isArray(elem)) {
+        break;
+      }
+      depth++;
+      elem = Types.containerElemType(elem);
+    }
+    if (!Types.isScalarFuture(elem) && !Types.isPrimValue(elem)) {
+      throw unsupported("Recursive assignment of " + arrayType);
+    }
+    return depth;
+  }
+
+  @Override
+  public void assignStructRecursive(Var dst, Arg src) {
+    assert(Types.isStruct(dst));
+    if (hasRefFields(dst.type())) {
+      throw unsupported("Recursive assignment of " + dst.type());
+    }
+    assignStruct(dst, src);
+  }
+
+  private static boolean hasRefFields(Type structType) {
+    for (StructField f: ((StructType)structType.getImplType()).fields()) {
+      if (Types.isStruct(f.type())) {
+        if (hasRefFields(f.type())) {
+          return true;
+        }
+      } else if (!Types.isScalarFuture(f.type())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void assignBagRecursive(Var dst, Arg src) {
+    Type elem = Types.containerElemType(dst);
+    if (!Types.isScalarFuture(elem) && !Types.isPrimValue(elem)) {
+      throw unsupported("Recursive assignment of " + dst.type());
+    }
+    assignBag(dst, src);
+  }
+
+  @Override
+  public void retrieveArrayRecursive(Var dst, Var src, Arg decr) {
+    assert(Types.isArray(src));
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst),
+             "JVMRuntime.retrieveRecursive(" + name(src) + ")") + ";");
+  }
+
+  @Override
+  public void retrieveStructRecursive(Var dst, Var src, Arg decr) {
+    assert(Types.isStruct(src));
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst),
+             "JVMRuntime.retrieveRecursive(" + name(src) + ")") + ";");
+  }
+
+  @Override
+  public void retrieveBagRecursive(Var dst, Var src, Arg decr) {
+    assert(Types.isBag(src));
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst),
+             "JVMRuntime.retrieveRecursive(" + name(src) + ")") + ";");
+  }
+
+  @Override
+  public void unpackArrayToFlat(Var flatLocalArray, Arg inputArray) {
+    assert(Types.isArray(inputArray));
+    assert(Types.isArrayLocal(flatLocalArray));
+    pointAdd(name(flatLocalArray) + " = JVMRuntime.unpackArray(" +
+             argExpr(inputArray) + ");");
+  }
+
+  @Override
+  public void dereferenceScalar(Var dst, Var src) {
+    pointAdd(RT + ".dereference(" + name(dst) + ", " + name(src) + ");");
+  }
+
+  @Override
+  public void dereferenceFile(Var dst, Var src) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void makeAlias(Var dst, Var src) {
+    assert(src.type().equals(dst.type()));
+    assert(dst.storage() == Alloc.ALIAS);
+    pointAdd(name(dst) + " = " + name(src) + ";");
+  }
+
+  @Override
+  public void asyncCopy(Var dst, Var src) {
+    long writeDecr = RefCounting.baseWriteRefCount(dst, true, true);
+    pointAdd(RT + ".copy(" + name(dst) + ", " + name(src) + ", " +
+             writeDecr + ");");
+  }
+
+  @Override
+  public void syncCopy(Var dst, Var src) {
+    long writeDecr = RefCounting.baseWriteRefCount(dst, true, true);
+    pointAdd("JVMRuntime.assign(" + name(dst) + ", JVMRuntime.retrieve(" +
+             name(src) + "), " + writeDecr + ");");
+  }
+
+  @Override
+  public void buildStructLocal(Var struct, List<List<String>> fieldPaths,
+                               List<Arg> fieldVals) {
+    List<String> paths = new ArrayList<String>();
+    List<String> vals = new ArrayList<String>();
+    for (int i = 0; i < fieldPaths.size(); i++) {
+      paths.add("{" + join(fieldIndices(struct.type(), fieldPaths.get(i))) +
+                "}");
+      vals.add(argExpr(fieldVals.get(i)));
+    }
+    pointAdd(name(struct) + " = " + structTypeName(struct.type()) +
+        ".build(new int[][] {" + join(paths) + "}, new Object[] {" +
+        join(vals) + "});");
+  }
+
+  @Override
+  public void decrLocalFileRefCount(Var fileVal) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void freeBlob(Var blobval) {
+    // Blob values are garbage collected
+  }
+
+  @Override
+  public void getFileNameAlias(Var filename, Var file) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void copyInFilename(Var file, Var filename) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void getLocalFileName(Var filename, Var file) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void isMapped(Var isMapped, Var file) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void chooseTmpFilename(Var filenameVal) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void initLocalOutputFile(Var localFile, Arg filenameVal,
+                                  Arg isMapped) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void getFilenameVal(Var filenameVal, Var file) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void setFilenameVal(Var file, Arg filenameVal) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void copyFileContents(Var dst, Var src) {
+    throw unsupported("Files");
+  }
+
+  @Override
+  public void structCreateAlias(Var dst, Var struct, List<String> fields) {
+    if (!Types.isStruct(dst) && !Types.isScalarFuture(dst)) {
+      throw unsupported("Alias to struct field of type " + dst.type());
+    }
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst), name(struct) +
+             ".field(" + structPath(struct.type(), fields) + ")") + ";");
+  }
+
+  @Override
+  public void structRetrieveSub(Var dst, Var struct, List<String> fields,
+                                Arg decr) {
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst), name(struct) +
+             ".get(" + structPath(struct.type(), fields) + ")") + ";");
+  }
+
+  @Override
+  public void structCopyOut(Var dst, Var struct, List<String> fields) {
+    long writeDecr = RefCounting.baseRefCount(dst.type(),
+        DefType.LOCAL_COMPILER, RefCountType.WRITERS, false, true);
+    pointAdd(RT + ".structCopyOut(" + name(dst) + ", " + name(struct) +
+        ", " + structPath(struct.type(), fields) + ", " + writeDecr + ");");
+  }
+
+  @Override
+  public void structRefCopyOut(Var dst, Var struct, List<String> fields) {
+    long writeDecr = RefCounting.baseRefCount(dst.type(),
+        DefType.LOCAL_COMPILER, RefCountType.WRITERS, false, true);
+    pointAdd(RT + ".structRefCopyOut(" + name(dst) + ", " + name(struct) +
+        ", " + structPath(Types.retrievedType(struct), fields) + ", " +
+        writeDecr + ");");
+  }
+
+  @Override
+  public void structStore(Var struct, List<String> fields, Arg src) {
+    pointAdd(name(struct) + ".store(" + structPath(struct.type(), fields) +
+        ", " + argExpr(src) + ", " + fieldWriteDecr(struct, fields) + ");");
+  }
+
+  @Override
+  public void structCopyIn(Var struct, List<String> fields, Var src) {
+    pointAdd(RT + ".structCopyIn(" + name(struct) + ", " +
+        structPath(struct.type(), fields) + ", " + name(src) + ", " +
+        fieldWriteDecr(struct, fields) + ");");
+  }
+
+  @Override
+  public void structRefStoreSub(Var structRef, List<String> fields,
+                                Arg src) {
+    pointAdd(RT + ".structRefStore(" + name(structRef) + ", " +
+        structPath(Types.retrievedType(structRef), fields) + ", " +
+        argExpr(src) + ", " + fieldWriteDecr(structRef, fields) + ");");
+  }
+
+  @Override
+  public void structRefCopyIn(Var structRef, List<String> fields, Var src) {
+    pointAdd(RT + ".structRefCopyIn(" + name(structRef) + ", " +
+        structPath(Types.retrievedType(structRef), fields) + ", " +
+        name(src) + ", " + fieldWriteDecr(structRef, fields) + ");");
+  }
+
+  /**
+   * @return writers to decrement from struct when field is assigned
+   */
+  private static long fieldWriteDecr(Var struct, List<String> fields) {
+    Type fieldType;
+    try {
+      fieldType = Types.structFieldType(struct, fields);
+    } catch (TypeMismatchException e) {
+      throw new STCRuntimeError(e.getMessage());
+    }
+    return RefCounting.baseRefCount(fieldType, DefType.LOCAL_COMPILER,
+                                    RefCountType.WRITERS, true, true);
+  }
+
+  @Override
+  public void structCreateNested(Var result, Var struct,
+      List<String> fields, Arg callerReadRefs, Arg callerWriteRefs,
+      Arg readDecr, Arg writeDecr) {
+    pointAdd(name(result) + " = " + castExpr(javaType(result),
+        name(struct) + ".createNested(" + structPath(struct.type(), fields) +
+        ", " + varFactory(result.type()) + ", " +
+        intExpr(callerWriteRefs) + ", " + intExpr(writeDecr) + ")") + ";");
+  }
+
+  @Override
+  public void arrayCreateAlias(Var dst, Var array, Arg key) {
+    if (!Types.isScalarFuture(dst) && !Types.isRef(dst)) {
+      throw unsupported("Alias to array member of type " + dst.type());
+    }
+    pointAdd(name(dst) + " = " + name(array) + ".slot(" + argExpr(key) +
+             ");");
+  }
+
+  @Override
+  public void arrayRetrieve(Var dst, Var array, Arg key, Arg decr,
+                            Arg acquire) {
+    pointAdd(name(dst) + " = " + castExpr(javaType(dst), name(array) +
+             ".get(" + argExpr(key) + ")") + ";");
+  }
+
+  @Override
+  public void arrayCopyOutImm(Var dst, Var array, Arg key) {
+    pointAdd(RT + ".arrayCopyOut(" + name(dst) + ", " + name(array) + ", " +
+             argExpr(key) + ", " + copyOutWriteDecr(dst) + ");");
+  }
+
+  @Override
+  public void arrayCopyOutFuture(Var dst, Var array, Var key) {
+    pointAdd(RT + ".arrayCopyOut(" + name(dst) + ", " + name(array) + ", " +
+             name(key) + ", " + copyOutWriteDecr(dst) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyOutImm(Var dst, Var array, Arg key) {
+    pointAdd(RT + ".arrayRefCopyOut(" + name(dst) + ", " + name(array) +
+             ", " + argExpr(key) + ", " + copyOutWriteDecr(dst) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyOutFuture(Var dst, Var array, Var key) {
+    pointAdd(RT + ".arrayRefCopyOut(" + name(dst) + ", " + name(array) +
+             ", " + name(key) + ", " + copyOutWriteDecr(dst) + ");");
+  }
+
+  /**
+   * @return writers to decrement from copy destination
+   */
+  private static long copyOutWriteDecr(Var dst) {
+    return RefCounting.baseRefCount(dst.type(), DefType.LOCAL_COMPILER,
+                                    RefCountType.WRITERS, false, true);
+  }
+
+  @Override
+  public void arrayContains(Var dst, Var array, Arg key) {
+    pointAdd(name(dst) + " = " + name(array) + ".contains(" + argExpr(key) +
+             ");");
+  }
+
+  @Override
+  public void arrayLocalContains(Var dst, Var array, Arg key) {
+    pointAdd(name(dst) + " = " + name(array) + ".containsKey(" +
+             argExpr(key) + ");");
+  }
+
+  @Override
+  public void containerSize(Var dst, Var container) {
+    if (!Types.isArray(container) && !Types.isBag(container)) {
+      throw unsupported("Size of " + container.type());
+    }
+    pointAdd(name(dst) + " = " + name(container) + ".size();");
+  }
+
+  @Override
+  public void containerLocalSize(Var dst, Var container) {
+    if (!Types.isArrayLocal(container) && !Types.isBagLocal(container)) {
+      throw unsupported("Size of " + container.type());
+    }
+    pointAdd(name(dst) + " = " + name(container) + ".size();");
+  }
+
+  @Override
+  public void arrayStore(Var array, Arg key, Arg member, Arg writeDecr) {
+    pointAdd(name(array) + ".store(" + argExpr(key) + ", " +
+             argExpr(member) + ", " + intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayStoreFuture(Var array, Var key, Arg member,
+                               Arg writeDecr) {
+    pointAdd(RT + ".arrayStore(" + name(array) + ", " + name(key) + ", " +
+             argExpr(member) + ", " + intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayCopyInImm(Var array, Arg key, Var member, Arg writeDecr) {
+    pointAdd(RT + ".arrayCopyIn(" + name(array) + ", " + argExpr(key) +
+             ", " + name(member) + ", " + intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayCopyInFuture(Var array, Var key, Var member,
+                                Arg writeDecr) {
+    pointAdd(RT + ".arrayCopyIn(" + name(array) + ", " + name(key) + ", " +
+             name(member) + ", " + intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void arrayRefStoreImm(Var array, Arg key, Arg member) {
+    pointAdd(RT + ".arrayRefStore(" + name(array) + ", " + argExpr(key) +
+             ", " + argExpr(member) + ");");
+  }
+
+  @Override
+  public void arrayRefStoreFuture(Var array, Var key, Arg member) {
+    pointAdd(RT + ".arrayRefStore(" + name(array) + ", " + name(key) +
+             ", " + argExpr(member) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyInImm(Var array, Arg key, Var member) {
+    pointAdd(RT + ".arrayRefCopyIn(" + name(array) + ", " + argExpr(key) +
+             ", " + name(member) + ");");
+  }
+
+  @Override
+  public void arrayRefCopyInFuture(Var array, Var key, Var member) {
+    pointAdd(RT + ".arrayRefCopyIn(" + name(array) + ", " + name(key) +
+             ", " + name(member) + ");");
+  }
+
+  @Override
+  public void arrayBuild(Var array, List<Arg> keys, List<Arg> vals) {
+    assert(keys.size() == vals.size());
+    for (int i = 0; i < keys.size(); i++) {
+      pointAdd(name(array) + ".store(" + argExpr(keys.get(i)) + ", " +
+               argExpr(vals.get(i)) + ", 0);");
+    }
+    pointAdd(name(array) + ".decrWriters(1);");
+  }
+
+  @Override
+  public void arrayCreateNestedImm(Var result, Var array, Arg key,
+      Arg callerReadRefs, Arg callerWriteRefs, Arg readDecr,
+      Arg writeDecr) {
+    pointAdd(name(result) + " = " + castExpr(javaType(result),
+        name(array) + ".createNested(" + argExpr(key) + ", " +
+        varFactory(result.type()) + ", " + intExpr(callerWriteRefs) + ", " +
+        intExpr(writeDecr) + ")") + ";");
+  }
+
+  @Override
+  public void arrayCreateNestedFuture(Var result, Var array, Var key) {
+    pointAdd(RT + ".arrayCreateNested(" + name(result) + ", " +
+        name(array) + ", " + name(key) + ", " +
+        varFactory(Types.retrievedType(result)) + ");");
+  }
+
+  @Override
+  public void arrayRefCreateNestedImm(Var result, Var array, Arg key) {
+    pointAdd(RT + ".arrayRefCreateNested(" + name(result) + ", " +
+        name(array) + ", " + argExpr(key) + ", " +
+        varFactory(Types.retrievedType(result)) + ");");
+  }
+
+  @Override
+  public void arrayRefCreateNestedFuture(Var result, Var array, Var key) {
+    pointAdd(RT + ".arrayRefCreateNested(" + name(result) + ", " +
+        name(array) + ", " + name(key) + ", " +
+        varFactory(Types.retrievedType(result)) + ");");
+  }
+
+  @Override
+  public void bagInsert(Var bag, Arg value, Arg writeDecr) {
+    pointAdd(name(bag) + ".insert(" + argExpr(value) + ", " +
+             intExpr(writeDecr) + ");");
+  }
+
+  @Override
+  public void initScalarUpdateable(Var updateable, Arg val) {
+    throw unsupported("Updateables");
+  }
+
+  @Override
+  public void latestValue(Var result, Var updateable) {
+    throw unsupported("Updateables");
+  }
+
+  @Override
+  public void updateScalarFuture(Var updateable, UpdateMode updateMode,
+                                 Var val) {
+    throw unsupported("Updateables");
+  }
+
+  @Override
+  public void updateScalarImm(Var updateable, UpdateMode updateMode,
+                              Arg val) {
+    throw unsupported("Updateables");
+  }
+
+  @Override
+  public void checkpointLookupEnabled(Var out) {
+    pointAdd(name(out) + " = false;");
+  }
+
+  @Override
+  public void checkpointWriteEnabled(Var out) {
+    pointAdd(name(out) + " = false;");
+  }
+
+  @Override
+  public void writeCheckpoint(Arg key, Arg val) {
+    throw unsupported("Checkpointing");
+  }
+
+  @Override
+  public void lookupCheckpoint(Var checkpointExists, Var val, Arg key) {
+    throw unsupported("Checkpointing");
+  }
+
+  @Override
+  public void packValues(Var packed, List<Arg> unpacked) {
+    throw unsupported("Packing values");
+  }
+
+  @Override
+  public void unpackValues(List<Var> unpacked, Arg packed) {
+    throw unsupported("Packing values");
+  }
+
+  private JavaBlock point() {
+    return pointStack.peek();
+  }
+
+  private void pointPush(JavaBlock block) {
+    pointStack.push(block);
+  }
+
+  private void pointPop() {
+    pointStack.pop();
+  }
+
+  private void pointAdd(String line) {
+    point().add(line);
+  }
+
+  private String newTmp() {
+    return "t$" + (nextTmp++);
+  }
+
+  private String uniqueMethodName(String name) {
+    String unique = name;
+    int next = 1;
+    while (usedMethodNames.contains(unique)) {
+      unique = name + "_" + next;
+      next++;
+    }
+    usedMethodNames.add(unique);
+    return unique;
+  }
+
+  private static String functionName(FnID id) {
+    if (id.equals(FnID.ENTRY_FUNCTION)) {
+      return ENTRY_METHOD;
+    }
+    return FUNCTION_PREFIX + mangle(id.uniqueName());
+  }
+
+  private static String name(Var var) {
+    return VAR_PREFIX + mangle(var.name());
+  }
+
+  private static String structTypeName(Type type) {
+    StructType st = (StructType)type.getImplType();
+    return STRUCT_PREFIX + mangle(st.getStructTypeName());
+  }
+
+  /**
+   * Escape characters not valid in Java identifiers
+   */
+  private static String mangle(String name) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '_') {
+        sb.append(c);
+      } else if (c == ':') {
+        // Common in compiler-generated names, can't occur in Swift names
+        sb.append('$');
+      } else {
+        sb.append('$').append(Integer.toHexString(c)).append('$');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String join(List<String> items) {
+    StringBuilder sb = new StringBuilder();
+    for (String item: items) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(item);
+    }
+    return sb.toString();
+  }
+
+  private static String varArray(List<Var> vars) {
+    List<String> names = new ArrayList<String>();
+    for (Var v: vars) {
+      names.add(name(v));
+    }
+    return "new BaseVar[] {" + join(names) + "}";
+  }
+
+  private static UnsupportedFeature unsupported(String feature) {
+    return new UnsupportedFeature(feature);
+  }
+
+  /**
+   * Thrown from backend methods when the program uses a feature this
+   * backend doesn't implement.  Converted to a user error with
+   * {@link #unsupportedError(UnsupportedFeature)}, since the backend
+   * interface doesn't allow checked exceptions.
+   */
+  public static class UnsupportedFeature extends RuntimeException {
+    public UnsupportedFeature(String feature) {
+      super(feature + " not supported by JVM backend");
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * @return user error for unsupported feature, located at the last
+   *        known source position
+   */
+  public UnsupportedFeatureException unsupportedError(UnsupportedFeature e) {
+    String msg = e.getMessage();
+    if (currentFunction != null &&
+        currentFunction.equals(FnID.ENTRY_FUNCTION)) {
+      msg += " (in main program)";
+    } else if (currentFunction != null) {
+      msg += " (in function " + currentFunction.originalName() + ")";
+    }
+    if (currentLoc == null || currentLoc.file == null) {
+      return new UnsupportedFeatureException(msg);
+    }
+    return new UnsupportedFeatureException(currentLoc.file, currentLoc.line,
+                                           currentLoc.column, msg);
+  }
+
+  private void updateLoc(List<Var> vars) {
+    for (Var v: vars) {
+      updateLoc(v);
+    }
+  }
+
+  private void updateLoc(Var v) {
+    SourceLoc loc = v.provenance().sourceLoc;
+    if (loc != null && loc.file != null) {
+      currentLoc = loc;
+    }
+  }
+
+  /**
+   * @return Java type used to represent variables of type
+   */
+  private static String javaType(Typed t) {
+    if (Types.isFile(t) || Types.isFileVal(t) || Types.isFileRef(t)) {
+      throw unsupported("Files");
+    } else if (Types.isScalarUpdateable(t)) {
+      throw unsupported("Updateables");
+    } else if (Types.isScalarFuture(t) || Types.isRef(t)) {
+      return "ScalarVar";
+    } else if (Types.isArray(t)) {
+      return "ArrayVar";
+    } else if (Types.isBag(t)) {
+      return "BagVar";
+    } else if (Types.isStruct(t)) {
+      return "StructVar";
+    } else if (Types.isArrayLocal(t)) {
+      return "Map<Object, Object>";
+    } else if (Types.isBagLocal(t)) {
+      return "List<Object>";
+    } else if (Types.isStructLocal(t)) {
+      return "Object[]";
+    } else if (Types.isPrimValue(t)) {
+      switch (t.type().getImplType().primType()) {
+        case INT:
+          return "long";
+        case FLOAT:
+          return "double";
+        case STRING:
+          return "String";
+        case BOOL:
+          return "boolean";
+        case BLOB:
+          return "byte[]";
+        case VOID:
+          return "Object";
+        default:
+          break;
+      }
+    }
+    throw unsupported("Type " + t.type());
+  }
+
+  /**
+   * @return class of ScalarVar to create for scalar future or reference:
+   *    ints and floats are stored unboxed
+   */
+  private static String scalarClass(Typed t) {
+    if (Types.isScalarFuture(t)) {
+      switch (t.type().getImplType().primType()) {
+        case INT:
+          return "IntVar";
+        case FLOAT:
+          return "FloatVar";
+        default:
+          break;
+      }
+    }
+    return "ScalarVar";
+  }
+
+  private static boolean isSharedVar(Typed t) {
+    String type = javaType(t);
+    return type.equals("ScalarVar") || type.equals("ArrayVar") ||
+           type.equals("BagVar") || type.equals("StructVar");
+  }
+
+  private static String defaultValue(String javaType) {
+    if (javaType.equals("long")) {
+      return "0L";
+    } else if (javaType.equals("double")) {
+      return "0.0";
+    } else if (javaType.equals("boolean")) {
+      return "false";
+    } else {
+      return "null";
+    }
+  }
+
+  /**
+   * Cast expression of type Object to Java type
+   */
+  private static String castExpr(String javaType, String expr) {
+    String boxed;
+    if (javaType.equals("long")) {
+      boxed = "Long";
+    } else if (javaType.equals("double")) {
+      boxed = "Double";
+    } else if (javaType.equals("boolean")) {
+      boxed = "Boolean";
+    } else if (javaType.equals("Object")) {
+      return expr;
+    } else {
+      boxed = javaType;
+    }
+    return "((" + boxed + ") " + expr + ")";
+  }
+
+  private static String newVarExpr(Var var, Arg writers) {
+    String writersE = writers == null ? "1" : intExpr(writers);
+    String javaType = javaType(var);
+    if (javaType.equals("StructVar")) {
+      return "new StructVar(" + structTypeName(var.type()) + ", " +
+             writersE + ")";
+    } else if (javaType.equals("ScalarVar")) {
+      javaType = scalarClass(var);
+    }
+    return "new " + javaType + "(" + writersE + ")";
+  }
+
+  /**
+   * @return expression for VarFactory creating vars of type
+   */
+  private static String varFactory(Type type) {
+    String javaType = javaType(type);
+    if (javaType.equals("StructVar")) {
+      return structTypeName(type);
+    } else if (javaType.equals("ScalarVar")) {
+      return scalarClass(type) + ".FACTORY";
+    } else if (javaType.equals("ArrayVar") || javaType.equals("BagVar")) {
+      return javaType + ".FACTORY";
+    }
+    throw unsupported("Creating " + type);
+  }
+
+  /**
+   * @return expression to get value of closed var
+   */
+  private static String retrieveExpr(Var var) {
+    if (Types.isScalarFuture(var)) {
+      switch (var.type().getImplType().primType()) {
+        case INT:
+          return name(var) + ".getInt()";
+        case FLOAT:
+          return name(var) + ".getFloat()";
+        case STRING:
+          return name(var) + ".getString()";
+        case BOOL:
+          return name(var) + ".getBool()";
+        case BLOB:
+          return castExpr("byte[]", name(var) + ".get()");
+        case VOID:
+          return name(var) + ".get()";
+        default:
+          throw unsupported("Type " + var.type());
+      }
+    } else if (Types.isRef(var)) {
+      return castExpr(javaType(var.type().memberType()), name(var) +
+                      ".get()");
+    } else if (Types.isArray(var)) {
+      return name(var) + ".snapshot()";
+    } else if (Types.isBag(var)) {
+      return name(var) + ".elements()";
+    } else if (Types.isStruct(var)) {
+      return name(var) + ".retrieve()";
+    }
+    throw unsupported("Retrieving " + var.type());
+  }
+
+  /**
+   * @return statement to assign local value to var
+   */
+  private static String assignStmt(Var var, String value, String writersDecr) {
+    String scalarClass = scalarClass(var);
+    if (scalarClass.equals("IntVar")) {
+      return name(var) + ".setInt(" + value + ");";
+    } else if (scalarClass.equals("FloatVar")) {
+      return name(var) + ".setFloat(" + value + ");";
+    } else if (Types.isScalarFuture(var) || Types.isRef(var)) {
+      return name(var) + ".set(" + value + ");";
+    } else {
+      return "JVMRuntime.assign(" + name(var) + ", " + value + ", " +
+             writersDecr + ");";
+    }
+  }
+
+  /**
+   * @return Java expression for argument
+   */
+  private static String argExpr(Arg arg) {
+    switch (arg.getKind()) {
+      case INTVAL:
+        if (arg.getInt() == Long.MIN_VALUE) {
+          return "Long.MIN_VALUE";
+        }
+        return arg.getInt() + "L";
+      case FLOATVAL: {
+        double f = arg.getFloat();
+        if (Double.isNaN(f)) {
+          return "Double.NaN";
+        } else if (Double.isInfinite(f)) {
+          return f > 0 ? "Double.POSITIVE_INFINITY" :
+                         "Double.NEGATIVE_INFINITY";
+        }
+        return Double.toString(f);
+      }
+      case STRINGVAL:
+        return stringLiteral(arg.getString());
+      case BOOLVAL:
+        return arg.getBool() ? "true" : "false";
+      case VAR:
+        return name(arg.getVar());
+      default:
+        throw new STCRuntimeError("Unknown arg kind: " + arg.getKind());
+    }
+  }
+
+  /**
+   * @return int expression for refcount or similar
+   */
+  private static String intExpr(Arg arg) {
+    if (arg.isInt()) {
+      return Long.toString(arg.getInt());
+    }
+    return "(int) " + argExpr(arg);
+  }
+
+  private static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * @return expression for array of field indices
+   */
+  private static String structPath(Type structType, List<String> fields) {
+    return "new int[] {" + join(fieldIndices(structType, fields)) + "}";
+  }
+
+  private static List<String> fieldIndices(Type structType,
+                                           List<String> fields) {
+    List<String> indices = new ArrayList<String>();
+    Type curr = structType;
+    for (String field: fields) {
+      StructType st = (StructType)curr.getImplType();
+      int ix = st.fieldIndexByName(field);
+      if (ix < 0) {
+        throw new STCRuntimeError("No field " + field + " in " + st);
+      }
+      indices.add(Integer.toString(ix));
+      curr = st.fields().get(ix).type();
+    }
+    return indices;
+  }
+
+  private static class EnclosingLoop {
+    private EnclosingLoop(String methodName, boolean simpleLoop,
+                          List<Var> loopVars, List<Var> usedVars) {
+      this.methodName = methodName;
+      this.simpleLoop = simpleLoop;
+      this.loopVars = loopVars;
+      this.usedVars = usedVars;
+    }
+
+    private final String methodName;
+    private final boolean simpleLoop;
+    private final List<Var> loopVars;
+    /** Vars passed to each iteration after loop vars */
+    private final List<Var> usedVars;
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.common.exceptions.STCRuntimeError;
+
+/**
+ * Run a program in this JVM, straight from the Java code generated by
+ * JVMGenerator.  The code is compiled and loaded in memory, then run on
+ * the in-process runtime, so no files are written and no other processes
+ * are started.
+ *
+ * Compiling needs the system Java compiler, so the compiler must be
+ * running on a JDK: callers should check compilerAvailable() first and
+ * report a JRE as a user error.
+ */
+public class JVMRunner {
+
+  /**
+   * @return false if running on a JRE without a Java compiler, in which
+   *         case programs can't be run
+   */
+  public static boolean compilerAvailable() {
+    return ToolProvider.getSystemJavaCompiler() != null;
+  }
+
+  /**
+   * Compile and run generated program
+   * @param className name of generated class
+   * @param source generated Java source
+   * @return exit code of program
+   */
+  public static int run(Logger logger, String className, String source) {
+    Class<?> cls = load(logger, className, source);
+    try {
+      Method run = cls.getDeclaredMethod(JVMGenerator.RUN_METHOD);
+      // Generated class isn't public
+      run.setAccessible(true);
+      return (Integer)run.invoke(null);
+    } catch (InvocationTargetException e) {
+      throw new STCRuntimeError("Error running " + className + ": " +
+                                e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new STCRuntimeError("Could not run " + className + ": " + e);
+    }
+  }
+
+  private static Class<?> load(Logger logger, String className,
+                               String source) {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null) {
+      throw new STCRuntimeError("No Java compiler available: running " +
+                                "programs needs a JDK");
+    }
+
+    DiagnosticCollector<JavaFileObject> diagnostics =
+                              new DiagnosticCollector<JavaFileObject>();
+    MemoryFileManager files = new MemoryFileManager(
+              javac.getStandardFileManager(diagnostics, null, null));
+    List<String> options = Arrays.asList("-nowarn", "-classpath",
+                                   System.getProperty("java.class.path"));
+    JavaFileObject sourceFile = new SourceFile(className, source);
+
+    long start = System.nanoTime();
+    boolean ok = javac.getTask(null, files, diagnostics, options, null,
+                               Arrays.asList(sourceFile)).call();
+    logger.debug("Compiled " + className + " in " +
+                 (System.nanoTime() - start) / 1000000 + "ms");
+    if (!ok) {
+      StringBuilder sb = new StringBuilder();
+      for (Diagnostic<? extends JavaFileObject> d:
+                                          diagnostics.getDiagnostics()) {
+        if (d.getKind() == Diagnostic.Kind.ERROR) {
+          sb.append("\n").append(d.getLineNumber()).append(": ")
+            .append(d.getMessage(null));
+        }
+      }
+      throw new STCRuntimeError("Generated Java for " + className +
+                                " did not compile:" + sb);
+    }
+
+    try {
+      return new MemoryClassLoader(files.classes).loadClass(className);
+    } catch (ClassNotFoundException e) {
+      throw new STCRuntimeError("Generated class not found: " + className);
+    }
+  }
+
+  private static class SourceFile extends SimpleJavaFileObject {
+    private final String source;
+
+    SourceFile(String className, String source) {
+      super(URI.create("string:///" + className + Kind.SOURCE.extension),
+            Kind.SOURCE);
+      this.source = source;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return source;
+    }
+  }
+
+  private static class ClassFile extends SimpleJavaFileObject {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    ClassFile(String className) {
+      super(URI.create("mem:///" + className.replace('.', '/') +
+                       Kind.CLASS.extension), Kind.CLASS);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return bytes;
+    }
+  }
+
+  /**
+   * Keep compiled classes in memory, including those for anonymous
+   * classes
+   */
+  private static class MemoryFileManager
+                  extends ForwardingJavaFileManager<JavaFileManager> {
+    final Map<String, ClassFile> classes = new HashMap<String, ClassFile>();
+
+    MemoryFileManager(JavaFileManager fileManager) {
+      super(fileManager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location,
+        String className, Kind kind, FileObject sibling) {
+      ClassFile file = new ClassFile(className);
+      classes.put(className, file);
+      return file;
+    }
+  }
+
+  private static class MemoryClassLoader extends ClassLoader {
+    private final Map<String, ClassFile> classes;
+
+    MemoryClassLoader(Map<String, ClassFile> classes) {
+      super(JVMRunner.class.getClassLoader());
+      this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      ClassFile file = classes.get(name);
+      if (file == null) {
+        throw new ClassNotFoundException(name);
+      }
+      byte[] b = file.bytes.toByteArray();
+      return defineClass(name, b, 0, b.length);
+    }
+  }
+}
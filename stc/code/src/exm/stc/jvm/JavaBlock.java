@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.jvm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Block of generated Java source code.  Contains lines and nested blocks,
+ * which are indented one level further.  Nested blocks can be added to
+ * after following lines have been added, so code can be generated out of
+ * order.
+ */
+class JavaBlock {
+  private static final String INDENT = "  ";
+
+  /** Contents: Strings for lines, or JavaBlocks */
+  private final List<Object> items = new ArrayList<Object>();
+
+  public void add(String line) {
+    items.add(line);
+  }
+
+  /**
+   * Append nested block
+   * @return the new block
+   */
+  public JavaBlock addBlock() {
+    JavaBlock block = new JavaBlock();
+    items.add(block);
+    return block;
+  }
+
+  /**
+   * Append contents of other block at same indentation level
+   */
+  public void addAll(JavaBlock other) {
+    items.addAll(other.items);
+  }
+
+  /**
+   * Append header line, nested block and footer line
+   * @return the nested block
+   */
+  public JavaBlock addBlock(String header, String footer) {
+    add(header);
+    JavaBlock block = addBlock();
+    add(footer);
+    return block;
+  }
+
+  public boolean isEmpty() {
+    return items.isEmpty();
+  }
+
+  public void appendTo(Writer out, int indent) throws IOException {
+    for (Object item: items) {
+      if (item instanceof JavaBlock) {
+        ((JavaBlock)item).appendTo(out, indent + 1);
+      } else {
+        String line = (String)item;
+        if (line.length() > 0) {
+          for (int i = 0; i < indent; i++) {
+            out.write(INDENT);
+          }
+          out.write(line);
+        }
+        out.write('\n');
+      }
+    }
+  }
+}
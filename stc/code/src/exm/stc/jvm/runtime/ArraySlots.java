@@ -0,0 +1,204 @@
+package exm.stc.jvm.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent storage for the slots of an array, indexed by key.
+ *
+ * Integer keys from zero up to DENSE_LIMIT are stored in a two-level
+ * table of fixed-size segments, so that the common case of arrays indexed
+ * by small integers needs no boxing or hashing.  Other keys go in a
+ * sorted map.  Slots are only updated with compare-and-swap, and the
+ * table only locks when adding a segment.
+ *
+ * Enumeration visits keys in order for arrays with integer keys or with
+ * keys of any other single comparable type.
+ */
+class ArraySlots {
+  private static final int SEGMENT_BITS = 6;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+  private static final int MAX_SEGMENTS = 1 << 16;
+
+  /** Integer keys below this are stored in the dense table */
+  static final long DENSE_LIMIT = (long)MAX_SEGMENTS << SEGMENT_BITS;
+
+  private static final AtomicReferenceArray<AtomicReferenceArray<Object>>
+    NO_SEGMENTS = new AtomicReferenceArray<AtomicReferenceArray<Object>>(0);
+
+  /**
+   * Segments of dense table, null if not yet allocated.  Replaced with a
+   * larger copy when a segment past the end is needed.  Segment
+   * references are only written while holding lock on this.
+   */
+  private volatile AtomicReferenceArray<AtomicReferenceArray<Object>>
+    segments = NO_SEGMENTS;
+
+  /** Slots for other keys, created on demand */
+  private volatile ConcurrentSkipListMap<Object, Object> sparse = null;
+
+  public interface SlotVisitor {
+    public void visit(Object key, Object slot);
+  }
+
+  static boolean isDense(long key) {
+    return key >= 0 && key < DENSE_LIMIT;
+  }
+
+  static boolean isDense(Object key) {
+    return key instanceof Long && isDense(((Long)key).longValue());
+  }
+
+  /**
+   * @return contents of slot, or null if empty
+   */
+  public Object get(long key) {
+    if (!isDense(key)) {
+      return getSparse(key);
+    }
+    AtomicReferenceArray<AtomicReferenceArray<Object>> segs = segments;
+    int segIx = (int)(key >>> SEGMENT_BITS);
+    if (segIx >= segs.length()) {
+      return null;
+    }
+    AtomicReferenceArray<Object> seg = segs.get(segIx);
+    if (seg == null) {
+      return null;
+    }
+    return seg.get((int)key & (SEGMENT_SIZE - 1));
+  }
+
+  public Object get(Object key) {
+    if (isDense(key)) {
+      return get(((Long)key).longValue());
+    }
+    return getSparse(key);
+  }
+
+  private Object getSparse(Object key) {
+    ConcurrentSkipListMap<Object, Object> m = sparse;
+    return m == null ? null : m.get(key);
+  }
+
+  /**
+   * Atomically update slot if it has expected contents
+   * @param expect expected contents, null if empty
+   * @param update new contents, not null
+   * @return true if updated
+   */
+  public boolean compareAndSet(long key, Object expect, Object update) {
+    if (!isDense(key)) {
+      return compareAndSetSparse(key, expect, update);
+    }
+    return segment(key).compareAndSet((int)key & (SEGMENT_SIZE - 1),
+                                      expect, update);
+  }
+
+  public boolean compareAndSet(Object key, Object expect, Object update) {
+    if (isDense(key)) {
+      return compareAndSet(((Long)key).longValue(), expect, update);
+    }
+    return compareAndSetSparse(key, expect, update);
+  }
+
+  private boolean compareAndSetSparse(Object key, Object expect,
+                                      Object update) {
+    ConcurrentSkipListMap<Object, Object> m = sparseMap();
+    if (expect == null) {
+      return m.putIfAbsent(key, update) == null;
+    }
+    return m.replace(key, expect, update);
+  }
+
+  /**
+   * @return segment for dense key, allocating if needed
+   */
+  private AtomicReferenceArray<Object> segment(long key) {
+    int segIx = (int)(key >>> SEGMENT_BITS);
+    AtomicReferenceArray<AtomicReferenceArray<Object>> segs = segments;
+    if (segIx < segs.length()) {
+      AtomicReferenceArray<Object> seg = segs.get(segIx);
+      if (seg != null) {
+        return seg;
+      }
+    }
+    synchronized (this) {
+      segs = segments;
+      if (segIx >= segs.length()) {
+        int len = Math.max(1, segs.length());
+        while (len <= segIx) {
+          len *= 2;
+        }
+        AtomicReferenceArray<AtomicReferenceArray<Object>> grown =
+            new AtomicReferenceArray<AtomicReferenceArray<Object>>(len);
+        for (int i = 0; i < segs.length(); i++) {
+          grown.lazySet(i, segs.get(i));
+        }
+        // Volatile write publishes copied segments
+        segments = grown;
+        segs = grown;
+      }
+      AtomicReferenceArray<Object> seg = segs.get(segIx);
+      if (seg == null) {
+        seg = new AtomicReferenceArray<Object>(SEGMENT_SIZE);
+        segs.set(segIx, seg);
+      }
+      return seg;
+    }
+  }
+
+  private ConcurrentSkipListMap<Object, Object> sparseMap() {
+    ConcurrentSkipListMap<Object, Object> m = sparse;
+    if (m == null) {
+      synchronized (this) {
+        m = sparse;
+        if (m == null) {
+          m = new ConcurrentSkipListMap<Object, Object>();
+          sparse = m;
+        }
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Visit non-empty slots in key order
+   */
+  public void visit(SlotVisitor visitor) {
+    ConcurrentSkipListMap<Object, Object> m = sparse;
+    if (m != null && !m.isEmpty() && !(m.firstKey() instanceof Long)) {
+      // No dense keys with non-integer keys
+      visitMap(m, visitor);
+      return;
+    }
+
+    if (m != null) {
+      visitMap(m.headMap(0L), visitor);
+    }
+    AtomicReferenceArray<AtomicReferenceArray<Object>> segs = segments;
+    for (int i = 0; i < segs.length(); i++) {
+      AtomicReferenceArray<Object> seg = segs.get(i);
+      if (seg == null) {
+        continue;
+      }
+      long base = (long)i << SEGMENT_BITS;
+      for (int j = 0; j < SEGMENT_SIZE; j++) {
+        Object slot = seg.get(j);
+        if (slot != null) {
+          visitor.visit(base + j, slot);
+        }
+      }
+    }
+    if (m != null) {
+      visitMap(m.tailMap(DENSE_LIMIT), visitor);
+    }
+  }
+
+  private static void visitMap(Map<Object, Object> m,
+                               SlotVisitor visitor) {
+    for (Map.Entry<Object, Object> e: m.entrySet()) {
+      visitor.visit(e.getKey(), e.getValue());
+    }
+  }
+}
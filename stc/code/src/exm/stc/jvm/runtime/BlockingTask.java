@@ -0,0 +1,10 @@
+package exm.stc.jvm.runtime;
+
+/**
+ * Task that may block for a long time without using the CPU, for example
+ * waiting for an external process.  The runtime runs these outside the
+ * worker threads so that workers stay busy with other tasks.  Generated
+ * code and callers use it in place of Task as a closure.
+ */
+public abstract class BlockingTask implements Task {
+}
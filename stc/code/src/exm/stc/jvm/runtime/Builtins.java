@@ -0,0 +1,504 @@
+package exm.stc.jvm.runtime;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementations of builtin operations and standard library functions
+ * for programs compiled by the JVM backend.  Formatting follows the Tcl
+ * implementations in Turbine so that output matches.
+ */
+public class Builtins {
+
+  /**
+   * Format value as Turbine would: booleans are integers, floats use
+   * Tcl's shortest representation
+   */
+  public static String toString(Object value) {
+    if (value instanceof Double) {
+      return formatFloat((Double)value);
+    } else if (value instanceof Boolean) {
+      return ((Boolean)value) ? "1" : "0";
+    }
+    return String.valueOf(value);
+  }
+
+  public static String formatFloat(double x) {
+    if (Double.isNaN(x)) {
+      return "NaN";
+    } else if (Double.isInfinite(x)) {
+      return x > 0 ? "Inf" : "-Inf";
+    } else if (x == 0.0) {
+      return (1.0 / x < 0) ? "-0.0" : "0.0";
+    }
+    BigDecimal d = new BigDecimal(Double.toString(x)).stripTrailingZeros();
+    String digits = d.unscaledValue().abs().toString();
+    int exponent = digits.length() - 1 - d.scale();
+    if (exponent < -4 || exponent >= 17) {
+      StringBuilder sb = new StringBuilder();
+      if (x < 0) {
+        sb.append('-');
+      }
+      sb.append(digits.charAt(0));
+      if (digits.length() > 1) {
+        sb.append('.').append(digits, 1, digits.length());
+      }
+      sb.append(exponent < 0 ? "e-" : "e+");
+      int absExp = Math.abs(exponent);
+      if (absExp < 10) {
+        sb.append('0');
+      }
+      sb.append(absExp);
+      return sb.toString();
+    }
+    String s = d.toPlainString();
+    if (s.indexOf('.') < 0) {
+      s += ".0";
+    }
+    return s;
+  }
+
+  public static String strcat(Object... args) {
+    StringBuilder sb = new StringBuilder();
+    for (Object arg: args) {
+      sb.append(toString(arg));
+    }
+    return sb.toString();
+  }
+
+  public static String dircat(String a, String b) {
+    return a + "/" + b;
+  }
+
+  /**
+   * Integer power: negative exponents give fractional result
+   */
+  public static double powInt(long base, long exponent) {
+    if (exponent < 0) {
+      return Math.pow(base, exponent);
+    }
+    long result = 1;
+    for (long i = 0; i < exponent; i++) {
+      result *= base;
+    }
+    return result;
+  }
+
+  /**
+   * Round half away from zero, like Tcl
+   */
+  public static double round(double x) {
+    return Math.signum(x) * Math.floor(Math.abs(x) + 0.5);
+  }
+
+  /**
+   * Substring of length n starting at i, clamped to string bounds
+   */
+  public static String substring(String s, long i, long n) {
+    long first = Math.max(0, i);
+    long last = Math.min(s.length() - 1, i + n - 1);
+    if (first > last) {
+      return "";
+    }
+    return s.substring((int)first, (int)last + 1);
+  }
+
+  public static long parseInt(String s, long base) {
+    try {
+      return Long.parseLong(s.trim(), (int)base);
+    } catch (NumberFormatException e) {
+      throw new LogicException("string2int(): could not convert string '"
+                               + s + "' to integer");
+    }
+  }
+
+  public static double parseFloat(String s) {
+    try {
+      return Double.parseDouble(s.trim());
+    } catch (NumberFormatException e) {
+      throw new LogicException("string2float(): could not convert string '"
+                               + s + "' to float");
+    }
+  }
+
+  public static boolean parseBool(String s) {
+    String t = s.trim().toLowerCase();
+    if (t.equals("true") || t.equals("yes") || t.equals("on")) {
+      return true;
+    } else if (t.equals("false") || t.equals("no") || t.equals("off")) {
+      return false;
+    }
+    try {
+      return Double.parseDouble(t) != 0.0;
+    } catch (NumberFormatException e) {
+      throw new LogicException("string2bool(): expected boolean value " +
+                               "but got \"" + s + "\"");
+    }
+  }
+
+  public static String boolToString(boolean b) {
+    return b ? "true" : "false";
+  }
+
+  public static void assertTrue(boolean cond, String msg) {
+    if (!cond) {
+      throw new LogicException("Assertion failed!: " + msg);
+    }
+  }
+
+  public static void assertEqual(Object a, Object b, String msg) {
+    boolean equal;
+    if (a instanceof Number && b instanceof Number) {
+      equal = ((Number)a).doubleValue() == ((Number)b).doubleValue();
+    } else {
+      equal = toString(a).equals(toString(b));
+    }
+    if (!equal) {
+      throw new LogicException("Assertion failed " + toString(a) + " != " +
+                               toString(b) + ": " + msg);
+    }
+  }
+
+  public static void assertLT(Object a, Object b, String msg) {
+    if (compare(a, b) >= 0) {
+      throw new LogicException("Assertion failed " + toString(a) + " >= " +
+                               toString(b) + ": " + msg);
+    }
+  }
+
+  public static void assertLTE(Object a, Object b, String msg) {
+    if (compare(a, b) > 0) {
+      throw new LogicException("Assertion failed " + toString(a) + " > " +
+                               toString(b) + ": " + msg);
+    }
+  }
+
+  private static int compare(Object a, Object b) {
+    return Double.compare(((Number)a).doubleValue(),
+                          ((Number)b).doubleValue());
+  }
+
+  public static double log(double x) {
+    return Math.log(x);
+  }
+
+  public static double log(double x, double base) {
+    return Math.log(x) / Math.log(base);
+  }
+
+  /**
+   * Format string with Tcl format conventions
+   */
+  public static String sprintf(String fmt, Object... args) {
+    StringBuilder result = new StringBuilder();
+    int argPos = 0;
+    int i = 0;
+    while (i < fmt.length()) {
+      char c = fmt.charAt(i);
+      if (c != '%') {
+        result.append(c);
+        i++;
+        continue;
+      }
+      // Find end of conversion specifier
+      int start = i;
+      i++;
+      while (i < fmt.length() && "-+ #0123456789.lh".indexOf(fmt.charAt(i)) >= 0) {
+        i++;
+      }
+      if (i >= fmt.length()) {
+        throw new LogicException("sprintf(): format string ended in " +
+                                 "middle of specifier: \"" + fmt + "\"");
+      }
+      char conv = fmt.charAt(i);
+      String spec = javaSpec(fmt.substring(start, i));
+      i++;
+      if (conv == '%') {
+        result.append('%');
+        continue;
+      }
+      if (argPos >= args.length) {
+        throw new LogicException("sprintf(): not enough arguments for " +
+                                 "format string: \"" + fmt + "\"");
+      }
+      Object arg = args[argPos++];
+      switch (conv) {
+        case 'd':
+        case 'i':
+        case 'u':
+          result.append(String.format(spec + "d", intArg(arg)));
+          break;
+        case 'x':
+        case 'X':
+        case 'o':
+          result.append(String.format(spec + conv, intArg(arg)));
+          break;
+        case 'c':
+          result.append(String.format(spec + "c", (char)intArg(arg)));
+          break;
+        case 'f':
+        case 'e':
+        case 'E':
+        case 'g':
+        case 'G':
+          result.append(String.format(spec + conv, floatArg(arg)));
+          break;
+        case 's':
+          result.append(String.format(spec + "s", toString(arg)));
+          break;
+        default:
+          throw new LogicException("sprintf(): bad conversion '" + conv +
+                                   "' in format string: \"" + fmt + "\"");
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Convert flags, width and precision of C format specifier to Java:
+   * drop length modifiers, and drop padding flags if no width given,
+   * since Java rejects them
+   */
+  private static String javaSpec(String spec) {
+    spec = spec.replace("l", "").replace("h", "");
+    int flagsEnd = 1;
+    while (flagsEnd < spec.length() &&
+           "-+ #0".indexOf(spec.charAt(flagsEnd)) >= 0) {
+      flagsEnd++;
+    }
+    String rest = spec.substring(flagsEnd);
+    if (rest.length() > 0 && Character.isDigit(rest.charAt(0))) {
+      return spec;
+    }
+    String flags = spec.substring(1, flagsEnd).replace("-", "")
+                                              .replace("0", "");
+    return "%" + flags + rest;
+  }
+
+  private static long intArg(Object arg) {
+    if (arg instanceof Long) {
+      return (Long)arg;
+    } else if (arg instanceof Boolean) {
+      return ((Boolean)arg) ? 1 : 0;
+    }
+    throw new LogicException("sprintf(): expected integer but got \"" +
+                             toString(arg) + "\"");
+  }
+
+  private static double floatArg(Object arg) {
+    if (arg instanceof Number) {
+      return ((Number)arg).doubleValue();
+    } else if (arg instanceof Boolean) {
+      return ((Boolean)arg) ? 1 : 0;
+    }
+    throw new LogicException("sprintf(): expected float but got \"" +
+                             toString(arg) + "\"");
+  }
+
+  public static void printf(String fmt, Object... args) {
+    String s = sprintf(fmt, args);
+    synchronized (System.out) {
+      System.out.println(s);
+    }
+  }
+
+  public static void trace(Object... args) {
+    StringBuilder sb = new StringBuilder("trace: ");
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(toString(args[i]));
+    }
+    synchronized (System.out) {
+      System.out.println(sb);
+    }
+  }
+
+  public static long strlen(String s) {
+    return s.length();
+  }
+
+  public static String trim(String s) {
+    return s.trim();
+  }
+
+  public static String toUpper(String s) {
+    return s.toUpperCase();
+  }
+
+  public static String toLower(String s) {
+    return s.toLowerCase();
+  }
+
+  public static boolean isint(String s) {
+    try {
+      Long.parseLong(s.trim());
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Index of substring between start and end index, or -1
+   */
+  public static long find(String s, String sub, long start, long end) {
+    if (end == -1) {
+      end = s.length();
+    }
+    int ix = s.indexOf(sub, (int)Math.max(0, start));
+    if (ix < 0 || ix + sub.length() > end) {
+      return -1;
+    }
+    return ix;
+  }
+
+  public static Map<Object, Object> split(String s, String delimiter) {
+    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+    long i = 0;
+    int start = 0;
+    for (int pos = 0; pos < s.length(); pos++) {
+      // Like Tcl split, any delimiter char splits
+      if (delimiter.indexOf(s.charAt(pos)) >= 0) {
+        result.put(i++, s.substring(start, pos));
+        start = pos + 1;
+      }
+    }
+    result.put(i, s.substring(start));
+    return result;
+  }
+
+  public static Map<Object, Object> range(long start, long end) {
+    return range(start, end, 1);
+  }
+
+  public static Map<Object, Object> range(long start, long end, long step) {
+    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+    long k = 0;
+    for (long i = start; i <= end; i += step) {
+      result.put(k++, i);
+    }
+    return result;
+  }
+
+  public static Map<Object, Object> rangeFloat(double start, double end) {
+    return rangeFloat(start, end, 1.0);
+  }
+
+  public static Map<Object, Object> rangeFloat(double start, double end,
+                                               double step) {
+    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+    long iters = JVMRuntime.floatRangeIters(start, end, step);
+    for (long k = 0; k < iters; k++) {
+      result.put(k, start + k * step);
+    }
+    return result;
+  }
+
+  /**
+   * Blobs made from strings include a null terminator, as in Turbine
+   */
+  public static byte[] blobFromString(String s) {
+    byte[] chars = s.getBytes(StandardCharsets.UTF_8);
+    return Arrays.copyOf(chars, chars.length + 1);
+  }
+
+  public static String stringFromBlob(byte[] b) {
+    int len = 0;
+    while (len < b.length && b[len] != 0) {
+      len++;
+    }
+    return new String(b, 0, len, StandardCharsets.UTF_8);
+  }
+
+  public static long blobSize(byte[] b) {
+    return b.length;
+  }
+
+  public static byte[] blobNull() {
+    return new byte[0];
+  }
+
+  public static String getenv(String key) {
+    String value = System.getenv(key);
+    return value == null ? "" : value;
+  }
+
+  public static long clockSeconds() {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  public static double clock() {
+    return System.currentTimeMillis() / 1000.0;
+  }
+
+  public static long workers() {
+    return JVMRuntime.defaultThreads();
+  }
+
+  public static void sleep(double seconds) {
+    try {
+      Thread.sleep((long)(seconds * 1000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Run external program for app function and wait for it to finish.
+   * Arrays and bags in arguments are expanded into their elements, in key
+   * order for arrays.  The program shares this process's standard streams.
+   * @throws LogicException if program could not be run or failed
+   */
+  public static void exec(String cmd, Object... args) {
+    List<String> cmdLine = new ArrayList<String>();
+    cmdLine.add(cmd);
+    for (Object arg: args) {
+      addCmdLineArgs(cmdLine, arg);
+    }
+    ProcessBuilder pb = new ProcessBuilder(cmdLine);
+    pb.redirectInput(Redirect.INHERIT);
+    pb.redirectOutput(Redirect.INHERIT);
+    pb.redirectError(Redirect.INHERIT);
+
+    // Keep our output ordered before program's
+    System.out.flush();
+    int exitCode;
+    try {
+      exitCode = pb.start().waitFor();
+    } catch (IOException e) {
+      throw new LogicException("App execution failed: " + cmdLine + ": " +
+                               e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LogicException("App execution interrupted: " + cmdLine);
+    }
+    if (exitCode != 0) {
+      throw new LogicException("App execution failed with exit code " +
+                               exitCode + ": " + cmdLine);
+    }
+  }
+
+  private static void addCmdLineArgs(List<String> cmdLine, Object arg) {
+    if (arg instanceof Map) {
+      for (Object elem: ((Map<?, ?>)arg).values()) {
+        addCmdLineArgs(cmdLine, elem);
+      }
+    } else if (arg instanceof Collection) {
+      for (Object elem: (Collection<?>)arg) {
+        addCmdLineArgs(cmdLine, elem);
+      }
+    } else {
+      cmdLine.add(toString(arg));
+    }
+  }
+}
@@ -1,10 +1,1079 @@
 package exm.stc.jvm.runtime;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.apache.log4j.Logger;
 
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BagVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.ScalarVar;
+import exm.stc.jvm.runtime.Vars.StructVar;
+import exm.stc.jvm.runtime.Vars.VarFactory;
+
+/**
+ * In-process dataflow runtime for programs compiled by the JVM backend.
+ *
+ * Tasks run on a pool of worker threads that share a work-stealing
+ * TaskQueue.  Rules run a task once all variables it waits for are
+ * closed.  The program is finished once the queue is quiescent: no
+ * tasks are queued or running.
+ *
+ * Blocking tasks, such as app executions, run outside the workers so
+ * that they don't idle CPUs while waiting: on a virtual thread each where
+ * the JVM supports them, otherwise on an elastic pool of threads.
+ *
+ * Only writer counts are tracked: variables are reclaimed by the garbage
+ * collector rather than by counting readers.  Write references held by
+ * references are released once the reference is garbage collected.
+ */
 public class JVMRuntime {
 
+  /** System property and environment variable for number of threads */
+  public static final String THREADS_PROPERTY = "swift.jvm.threads";
+  public static final String THREADS_ENV = "SWIFT_JVM_THREADS";
+
+  /** System property and environment variable for blocking mode */
+  public static final String BLOCKING_PROPERTY = "swift.jvm.blocking";
+  public static final String BLOCKING_ENV = "SWIFT_JVM_BLOCKING";
+
+  /**
+   * Where to run blocking tasks
+   */
+  public static enum BlockingMode {
+    /** Virtual thread per task, or POOL if the JVM lacks them */
+    VIRTUAL,
+    /** Elastic pool of threads that grows to match blocked tasks */
+    POOL,
+    /** Worker threads, like other tasks */
+    WORKERS,
+  }
+
+  /**
+   * System property and environment variable: if true, print counts of
+   * tasks and the critical path length once the program finishes
+   */
+  public static final String STATS_PROPERTY = "swift.jvm.stats";
+  public static final String STATS_ENV = "SWIFT_JVM_STATS";
+
+  /** Idle time before elastic pool threads exit */
+  private static final long POOL_KEEP_ALIVE_SECONDS = 30;
+
+  /** Times to collect garbage looking for released refs before giving up */
+  private static final int MAX_GC_ATTEMPTS = 10;
+
   public static Logger getLogger() {
     return Logger.getLogger(JVMRuntime.class);
   }
+
+  private final TaskQueue queue;
+  private final Thread[] workers;
+
+  /** Thread releasing writers held by collected references */
+  private final Thread releaser;
+
+  /** Executor for blocking tasks, or null to run them on workers */
+  private final ExecutorService blockingExecutor;
+
+  /** Blocking tasks spawned and not finished, guarded by blockingLock */
+  private final Object blockingLock = new Object();
+  private int blockingTasks = 0;
+  private long blockingDone = 0;
+
+  /** Number of rules waiting for data */
+  private final LongAdder waiting = new LongAdder();
+
+  /** Task statistics, or null if not enabled */
+  private final TaskStats stats;
+
+  /** First error in a task, or null */
+  private volatile Throwable error = null;
+
+  /** Write refcounts held by reference variables */
+  private final ReferenceQueue<ScalarVar> releasedRefs =
+                                    new ReferenceQueue<ScalarVar>();
+  private final Set<HeldWriters> heldWriters = Collections.newSetFromMap(
+                          new ConcurrentHashMap<HeldWriters, Boolean>());
+
+  public JVMRuntime() {
+    this(defaultThreads());
+  }
+
+  public JVMRuntime(int threads) {
+    this(threads, defaultBlockingMode());
+  }
+
+  public JVMRuntime(int threads, BlockingMode blockingMode) {
+    this.blockingExecutor = createBlockingExecutor(blockingMode);
+    this.stats = statsEnabled() ? new TaskStats() : null;
+    this.queue = new TaskQueue(threads);
+    this.workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int threadNum = i;
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          workerLoop(threadNum);
+        }
+      }, "swift-worker-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+
+    this.releaser = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        releaseLoop();
+      }
+    }, "swift-ref-release");
+    releaser.setDaemon(true);
+    releaser.start();
+  }
+
+  /**
+   * @return number of threads from property or environment, or number of
+   *         processors by default
+   */
+  public static int defaultThreads() {
+    String s = System.getProperty(THREADS_PROPERTY);
+    if (s == null) {
+      s = System.getenv(THREADS_ENV);
+    }
+    if (s != null && s.length() > 0) {
+      try {
+        int threads = Integer.parseInt(s.trim());
+        if (threads > 0) {
+          return threads;
+        }
+      } catch (NumberFormatException e) {
+        // Fall through
+      }
+      getLogger().warn("Invalid thread count: " + s);
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return blocking mode from property or environment, or VIRTUAL by
+   *         default
+   */
+  public static BlockingMode defaultBlockingMode() {
+    String s = System.getProperty(BLOCKING_PROPERTY);
+    if (s == null) {
+      s = System.getenv(BLOCKING_ENV);
+    }
+    if (s != null && s.length() > 0) {
+      try {
+        return BlockingMode.valueOf(s.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        getLogger().warn("Invalid blocking mode: " + s);
+      }
+    }
+    return BlockingMode.VIRTUAL;
+  }
+
+  private static boolean statsEnabled() {
+    String s = System.getProperty(STATS_PROPERTY);
+    if (s == null) {
+      s = System.getenv(STATS_ENV);
+    }
+    return s != null && Boolean.parseBoolean(s.trim());
+  }
+
+  private static ExecutorService createBlockingExecutor(BlockingMode mode) {
+    if (mode == BlockingMode.WORKERS) {
+      return null;
+    }
+    if (mode == BlockingMode.VIRTUAL) {
+      /*
+       * Look up by reflection so that the runtime still builds and runs on
+       * JVMs before virtual threads were added.
+       */
+      try {
+        return (ExecutorService)Executors.class.getMethod(
+                      "newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        getLogger().debug("Virtual threads not available, using pool");
+      }
+    }
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+        POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "swift-blocking-" +
+                                     count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Run program until all tasks finish.
+   * @param main first task
+   * @return exit code
+   */
+  public int run(Task main) {
+    long start = System.nanoTime();
+    spawn(main);
+    int gcAttempts = 0;
+    while (true) {
+      waitIdle();
+      if (error != null || waiting.sum() == 0) {
+        break;
+      }
+      /*
+       * Rules are still waiting: references holding write refcounts may
+       * have to be collected to close the data.
+       */
+      if (heldWriters.isEmpty() || gcAttempts >= MAX_GC_ATTEMPTS) {
+        break;
+      }
+      int held = heldWriters.size();
+      System.gc();
+      sleep(10 * (gcAttempts + 1));
+      if (heldWriters.size() < held || !queue.isQuiescent()) {
+        gcAttempts = 0;
+      } else {
+        gcAttempts++;
+      }
+    }
+    queue.shutdown();
+    releaser.interrupt();
+    if (blockingExecutor != null) {
+      blockingExecutor.shutdown();
+    }
+    if (stats != null) {
+      System.out.flush();
+      stats.report(System.err, System.nanoTime() - start);
+    }
+
+    if (error != null) {
+      reportError(error);
+      return 1;
+    } else if (waiting.sum() > 0) {
+      System.err.println("Deadlock: " + waiting.sum() + " tasks are " +
+                         "waiting for data that will never be assigned");
+      return 1;
+    }
+    System.out.flush();
+    return 0;
+  }
+
+  /**
+   * Wait until no tasks are queued or running, including blocking tasks.
+   * Blocking tasks and workers can spawn work for each other, so we check
+   * that no blocking task ran or finished while the queue was found to
+   * be quiescent.
+   */
+  private void waitIdle() {
+    try {
+      while (true) {
+        queue.awaitQuiescence();
+        long done;
+        synchronized (blockingLock) {
+          while (blockingTasks > 0) {
+            blockingLock.wait();
+          }
+          done = blockingDone;
+        }
+        if (queue.isQuiescent()) {
+          synchronized (blockingLock) {
+            if (blockingTasks == 0 && blockingDone == done) {
+              return;
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void workerLoop(int threadNum) {
+    Task task;
+    while ((task = queue.getTask(threadNum)) != null) {
+      // Drain remaining tasks without running after error
+      if (error == null) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          fail(t);
+        }
+      }
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void reportError(Throwable t) {
+    System.out.flush();
+    if (t instanceof LogicException) {
+      System.err.println(t.getMessage());
+    } else {
+      t.printStackTrace();
+    }
+  }
+
+  private synchronized void fail(Throwable t) {
+    if (error == null) {
+      error = t;
+    }
+  }
+
+  /**
+   * Run task on a worker thread, or blocking task on the blocking
+   * executor
+   */
+  public void spawn(Task task) {
+    if (blockingExecutor != null && task instanceof BlockingTask) {
+      spawnBlocking(task);
+    } else {
+      queue.add(stats == null ? task : stats.track(task));
+    }
+  }
+
+  /**
+   * Run task on a worker thread.  Priority comes before the task so that
+   * generated code can pass the task as an anonymous class last.
+   * @param priority higher priority tasks are run first.  Blocking tasks
+   *                 start immediately, so priority doesn't apply.
+   */
+  public void spawn(int priority, Task task) {
+    if (blockingExecutor != null && task instanceof BlockingTask) {
+      spawnBlocking(task);
+    } else {
+      queue.add(stats == null ? task : stats.track(task), priority);
+    }
+  }
+
+  private void spawnBlocking(Task blockingTask) {
+    final Task task = stats == null ? blockingTask :
+                                      stats.track(blockingTask);
+    synchronized (blockingLock) {
+      blockingTasks++;
+    }
+    try {
+      blockingExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (error == null) {
+              task.run();
+            }
+          } catch (Throwable t) {
+            fail(t);
+          } finally {
+            blockingFinished();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      fail(e);
+      blockingFinished();
+    }
+  }
+
+  private void blockingFinished() {
+    synchronized (blockingLock) {
+      blockingTasks--;
+      blockingDone++;
+      blockingLock.notifyAll();
+    }
+  }
+
+  /**
+   * Spawn task once all vars are closed
+   */
+  public void rule(BaseVar[] waitFor, Task task) {
+    rule(waitFor, TaskQueue.DEFAULT_PRIORITY, task);
+  }
+
+  /**
+   * Spawn task with priority once all vars are closed
+   */
+  public void rule(BaseVar[] waitFor, int priority, Task task) {
+    if (stats != null) {
+      stats.ruleCreated();
+    }
+    if (waitFor.length == 0) {
+      spawn(priority, task);
+      return;
+    }
+    waiting.increment();
+    // Extra count so rule doesn't fire until all subscribed
+    Rule rule = new Rule(task, priority, waitFor.length + 1);
+    for (BaseVar v: waitFor) {
+      if (!v.subscribe(rule)) {
+        rule.notifyFinal(v);
+      }
+    }
+    rule.notifyFinal(null);
+  }
+
+  private class Rule implements NotifyTarget {
+    private final Task task;
+    private final int priority;
+    private final AtomicInteger remaining;
+
+    Rule(Task task, int priority, int count) {
+      this.task = task;
+      this.priority = priority;
+      this.remaining = new AtomicInteger(count);
+    }
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      if (remaining.decrementAndGet() == 0) {
+        spawn(priority, task);
+        waiting.decrement();
+      }
+    }
+  }
+
+  /**
+   * Spawn task once all vars are closed, along with any data they refer
+   * to, recursively.
+   */
+  public void ruleRecursive(BaseVar[] waitFor, Task task) {
+    ruleRecursive(waitFor, TaskQueue.DEFAULT_PRIORITY, task);
+  }
+
+  public void ruleRecursive(BaseVar[] waitFor, int priority, Task task) {
+    if (stats != null) {
+      stats.ruleCreated();
+    }
+    waiting.increment();
+    RecursiveRule rule = new RecursiveRule(task, priority);
+    for (BaseVar v: waitFor) {
+      rule.add(v);
+    }
+    rule.notifyFinal(null);
+  }
+
+  private class RecursiveRule implements NotifyTarget {
+    private final Task task;
+    private final int priority;
+    private final AtomicInteger remaining = new AtomicInteger(1);
+
+    RecursiveRule(Task task, int priority) {
+      this.task = task;
+      this.priority = priority;
+    }
+
+    void add(BaseVar v) {
+      remaining.incrementAndGet();
+      if (!v.subscribe(this)) {
+        notifyFinal(v);
+      }
+    }
+
+    private void addContents(Object value) {
+      if (value instanceof BaseVar) {
+        add((BaseVar)value);
+      } else if (value instanceof Map) {
+        for (Object member: ((Map<?, ?>)value).values()) {
+          addContents(member);
+        }
+      } else if (value instanceof List) {
+        for (Object elem: (List<?>)value) {
+          addContents(elem);
+        }
+      } else if (value instanceof Object[]) {
+        for (Object field: (Object[])value) {
+          addContents(field);
+        }
+      }
+    }
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      if (var != null) {
+        // Wait for any data referred to
+        addContents(retrieve(var));
+      }
+      if (remaining.decrementAndGet() == 0) {
+        spawn(priority, task);
+        waiting.decrement();
+      }
+    }
+  }
+
+  /**
+   * Run task once var is closed: immediately if already closed, otherwise
+   * in a new task
+   */
+  private void whenClosed(BaseVar var, Task task) {
+    waiting.increment();
+    if (!var.subscribe(new Trigger(task))) {
+      waiting.decrement();
+      task.run();
+    }
+  }
+
+  /**
+   * Run task once key of array is assigned
+   */
+  private void whenKey(ArrayVar array, Object key, Task task) {
+    waiting.increment();
+    if (!array.subscribeKey(key, array, new Trigger(task))) {
+      waiting.decrement();
+      task.run();
+    }
+  }
+
+  /**
+   * Run task once field of struct is assigned
+   */
+  private void whenField(StructVar struct, int[] path, Task task) {
+    waiting.increment();
+    if (!struct.subscribeField(path, struct, new Trigger(task))) {
+      waiting.decrement();
+      task.run();
+    }
+  }
+
+  private class Trigger implements NotifyTarget {
+    private final Task task;
+
+    Trigger(Task task) {
+      this.task = task;
+    }
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      spawn(task);
+      waiting.decrement();
+    }
+  }
+
+  /**
+   * Hold write refcount of target until ref is garbage collected.
+   */
+  public void holdWriters(ScalarVar ref, BaseVar target, long writers) {
+    if (writers > 0) {
+      heldWriters.add(new HeldWriters(ref, target, (int)writers,
+                                      releasedRefs));
+    }
+  }
+
+  private static class HeldWriters extends PhantomReference<ScalarVar> {
+    final BaseVar target;
+    final int writers;
+
+    HeldWriters(ScalarVar ref, BaseVar target, int writers,
+                ReferenceQueue<ScalarVar> queue) {
+      super(ref, queue);
+      this.target = target;
+      this.writers = writers;
+    }
+  }
+
+  private void releaseLoop() {
+    while (true) {
+      Reference<? extends ScalarVar> ref;
+      try {
+        ref = releasedRefs.remove();
+      } catch (InterruptedException e) {
+        return;
+      }
+      final HeldWriters held = (HeldWriters)ref;
+      // Release in task, queued before removal from heldWriters so that
+      // runtime waits for it
+      spawn(new Task() {
+        @Override
+        public void run() {
+          held.target.decrWriters(held.writers);
+        }
+      });
+      heldWriters.remove(held);
+    }
+  }
+
+  /**
+   * @return local representation of closed var
+   */
+  public static Object retrieve(BaseVar var) {
+    if (var instanceof ScalarVar) {
+      return ((ScalarVar)var).get();
+    } else if (var instanceof ArrayVar) {
+      return ((ArrayVar)var).snapshot();
+    } else if (var instanceof BagVar) {
+      return ((BagVar)var).elements();
+    } else if (var instanceof StructVar) {
+      return ((StructVar)var).retrieve();
+    } else {
+      throw new IllegalArgumentException("Can't retrieve " + var);
+    }
+  }
+
+  /**
+   * Retrieve value, following references to build a local representation
+   * of all data referred to.
+   */
+  public static Object retrieveRecursive(Object value) {
+    if (value instanceof BaseVar) {
+      return retrieveRecursive(retrieve((BaseVar)value));
+    } else if (value instanceof Map) {
+      Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+      for (Map.Entry<?, ?> e: ((Map<?, ?>)value).entrySet()) {
+        result.put(e.getKey(), retrieveRecursive(e.getValue()));
+      }
+      return result;
+    } else if (value instanceof List) {
+      List<Object> result = new ArrayList<Object>();
+      for (Object elem: (List<?>)value) {
+        result.add(retrieveRecursive(elem));
+      }
+      return result;
+    } else if (value instanceof Object[]) {
+      Object[] fields = ((Object[])value).clone();
+      for (int i = 0; i < fields.length; i++) {
+        fields[i] = retrieveRecursive(fields[i]);
+      }
+      return fields;
+    }
+    return value;
+  }
+
+  /**
+   * Flatten closed nested array into local array of the leaf values, in
+   * key order, with keys counting up from zero
+   */
+  public static Map<Object, Object> unpackArray(BaseVar array) {
+    Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+    unpackArray(retrieve(array), result);
+    return result;
+  }
+
+  private static void unpackArray(Object value, Map<Object, Object> result) {
+    if (value instanceof BaseVar) {
+      unpackArray(retrieve((BaseVar)value), result);
+    } else if (value instanceof Map) {
+      for (Object member: ((Map<?, ?>)value).values()) {
+        unpackArray(member, result);
+      }
+    } else {
+      result.put((long)result.size(), value);
+    }
+  }
+
+  /**
+   * Assign var from local representation
+   * @param writersDecr writers to decrement for compound vars
+   */
+  @SuppressWarnings("unchecked")
+  public static void assign(BaseVar var, Object value, int writersDecr) {
+    if (var instanceof ScalarVar) {
+      ((ScalarVar)var).set(value);
+    } else if (var instanceof ArrayVar) {
+      ((ArrayVar)var).storeAll((Map<Object, Object>)value, writersDecr);
+    } else if (var instanceof BagVar) {
+      ((BagVar)var).insertAll((List<Object>)value, writersDecr);
+    } else if (var instanceof StructVar) {
+      ((StructVar)var).storeAll((Object[])value, writersDecr);
+    } else {
+      throw new IllegalArgumentException("Can't assign " + var);
+    }
+  }
+
+  /**
+   * Assign array from nested local arrays, creating closed arrays for
+   * the inner levels
+   * @param depth number of nested array levels inside array
+   */
+  public static void assignRecursive(ArrayVar array, Map<?, ?> value,
+                                     int depth, int writersDecr) {
+    for (Map.Entry<?, ?> e: value.entrySet()) {
+      Object member = e.getValue();
+      if (depth > 0) {
+        ArrayVar inner = new ArrayVar(1);
+        assignRecursive(inner, (Map<?, ?>)member, depth - 1, 1);
+        member = inner;
+      }
+      array.store(e.getKey(), member, 0);
+    }
+    array.decrWriters(writersDecr);
+  }
+
+  /**
+   * Copy member of compound data to var.  Compound members are copied
+   * once closed.
+   */
+  private void copyMember(BaseVar dst, Object member, int writersDecr) {
+    if (member instanceof BaseVar && !(dst instanceof ScalarVar)) {
+      copy(dst, (BaseVar)member, writersDecr);
+    } else {
+      assign(dst, member, writersDecr);
+    }
+  }
+
+  /**
+   * @return value to store for var in compound data
+   */
+  private static Object memberValue(BaseVar var) {
+    if (var instanceof ScalarVar) {
+      return ((ScalarVar)var).get();
+    } else if (var instanceof StructVar) {
+      // Struct members are stored by value
+      return ((StructVar)var).retrieve();
+    }
+    return var;
+  }
+
+  /**
+   * Copy contents of src to dst once src is closed
+   */
+  public void copy(final BaseVar dst, final BaseVar src,
+                   final int writersDecr) {
+    whenClosed(src, new Task() {
+      @Override
+      public void run() {
+        assign(dst, retrieve(src), writersDecr);
+      }
+    });
+  }
+
+  /**
+   * Copy referenced scalar to dst once assigned
+   */
+  public void dereference(final ScalarVar dst, final ScalarVar ref) {
+    whenClosed(ref, new Task() {
+      @Override
+      public void run() {
+        copy(dst, (BaseVar)ref.get(), 1);
+      }
+    });
+  }
+
+  public void arrayCopyOut(final BaseVar dst, final ArrayVar array,
+                           final Object key, final int writersDecr) {
+    whenKey(array, key, new Task() {
+      @Override
+      public void run() {
+        copyMember(dst, array.get(key), writersDecr);
+      }
+    });
+  }
+
+  public void arrayCopyOut(final BaseVar dst, final ArrayVar array,
+                           final ScalarVar key, final int writersDecr) {
+    whenClosed(key, new Task() {
+      @Override
+      public void run() {
+        arrayCopyOut(dst, array, key.get(), writersDecr);
+      }
+    });
+  }
+
+  public void arrayRefCopyOut(final BaseVar dst, final ScalarVar arrayRef,
+                              final Object key, final int writersDecr) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        arrayCopyOut(dst, (ArrayVar)arrayRef.get(), key, writersDecr);
+      }
+    });
+  }
+
+  public void arrayRefCopyOut(final BaseVar dst, final ScalarVar arrayRef,
+                              final ScalarVar key, final int writersDecr) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        arrayCopyOut(dst, (ArrayVar)arrayRef.get(), key, writersDecr);
+      }
+    });
+  }
+
+  public void arrayStore(final ArrayVar array, final ScalarVar key,
+                         final Object member, final int writersDecr) {
+    whenClosed(key, new Task() {
+      @Override
+      public void run() {
+        array.store(key.get(), member, writersDecr);
+      }
+    });
+  }
+
+  public void arrayCopyIn(final ArrayVar array, final Object key,
+                          final BaseVar member, final int writersDecr) {
+    whenClosed(member, new Task() {
+      @Override
+      public void run() {
+        array.store(key, memberValue(member), writersDecr);
+      }
+    });
+  }
+
+  public void arrayCopyIn(final ArrayVar array, final ScalarVar key,
+                          final BaseVar member, final int writersDecr) {
+    whenClosed(key, new Task() {
+      @Override
+      public void run() {
+        arrayCopyIn(array, key.get(), member, writersDecr);
+      }
+    });
+  }
+
+  public void arrayRefStore(final ScalarVar arrayRef, final Object key,
+                            final Object member) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        ((ArrayVar)arrayRef.get()).store(key, member, 0);
+      }
+    });
+  }
+
+  public void arrayRefStore(final ScalarVar arrayRef, final ScalarVar key,
+                            final Object member) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        arrayStore((ArrayVar)arrayRef.get(), key, member, 0);
+      }
+    });
+  }
+
+  public void arrayRefCopyIn(final ScalarVar arrayRef, final Object key,
+                             final BaseVar member) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        arrayCopyIn((ArrayVar)arrayRef.get(), key, member, 0);
+      }
+    });
+  }
+
+  public void arrayRefCopyIn(final ScalarVar arrayRef, final ScalarVar key,
+                             final BaseVar member) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        arrayCopyIn((ArrayVar)arrayRef.get(), key, member, 0);
+      }
+    });
+  }
+
+  /**
+   * Create nested datum once key is assigned, and set result to refer to
+   * it.  Result holds a write refcount for the nested datum.
+   */
+  public void arrayCreateNested(final ScalarVar result,
+      final ArrayVar array, final ScalarVar key, final VarFactory factory) {
+    whenClosed(key, new Task() {
+      @Override
+      public void run() {
+        BaseVar nested = array.createNested(key.get(), factory, 1, 1);
+        result.set(nested);
+        holdWriters(result, nested, 1);
+      }
+    });
+  }
+
+  public void arrayRefCreateNested(final ScalarVar result,
+      final ScalarVar arrayRef, final Object key, final VarFactory factory) {
+    whenClosed(arrayRef, new Task() {
+      @Override
+      public void run() {
+        ArrayVar array = (ArrayVar)arrayRef.get();
+        BaseVar nested = array.createNested(key, factory, 1, 0);
+        result.set(nested);
+        holdWriters(result, nested, 1);
+      }
+    });
+  }
+
+  public void arrayRefCreateNested(final ScalarVar result,
+      final ScalarVar arrayRef, final ScalarVar key,
+      final VarFactory factory) {
+    whenClosed(key, new Task() {
+      @Override
+      public void run() {
+        arrayRefCreateNested(result, arrayRef, key.get(), factory);
+      }
+    });
+  }
+
+  public void structCopyOut(final BaseVar dst, final StructVar struct,
+                            final int[] path, final int writersDecr) {
+    whenField(struct, path, new Task() {
+      @Override
+      public void run() {
+        copyMember(dst, struct.get(path), writersDecr);
+      }
+    });
+  }
+
+  public void structRefCopyOut(final BaseVar dst, final ScalarVar structRef,
+                               final int[] path, final int writersDecr) {
+    whenClosed(structRef, new Task() {
+      @Override
+      public void run() {
+        structCopyOut(dst, (StructVar)structRef.get(), path, writersDecr);
+      }
+    });
+  }
+
+  public void structCopyIn(final StructVar struct, final int[] path,
+                           final BaseVar member, final int writersDecr) {
+    whenClosed(member, new Task() {
+      @Override
+      public void run() {
+        struct.store(path, memberValue(member), writersDecr);
+      }
+    });
+  }
+
+  public void structRefStore(final ScalarVar structRef, final int[] path,
+                             final Object value, final int writersDecr) {
+    whenClosed(structRef, new Task() {
+      @Override
+      public void run() {
+        ((StructVar)structRef.get()).store(path, value, writersDecr);
+      }
+    });
+  }
+
+  public void structRefCopyIn(final ScalarVar structRef, final int[] path,
+                              final BaseVar member, final int writersDecr) {
+    whenClosed(structRef, new Task() {
+      @Override
+      public void run() {
+        structCopyIn((StructVar)structRef.get(), path, member, writersDecr);
+      }
+    });
+  }
+
+  /**
+   * Body of a split foreach loop, run for a chunk of array entries or
+   * bag elements
+   */
+  public static interface ForeachBody<T> {
+    public void run(List<T> entries);
+  }
+
+  /**
+   * Body of a split range loop, run for an inclusive range
+   */
+  public static interface RangeBody {
+    public void run(long lo, long hi, long inc);
+  }
+
+  /**
+   * Run loop body over entries in parallel chunks of up to leafDegree
+   * entries.  Large loops are recursively split splitDegree ways so that
+   * chunks are spawned in parallel.
+   */
+  public <T> void foreach(final List<T> entries,
+                          final int splitDegree, final int leafDegree,
+                          final ForeachBody<T> body) {
+    final int leaf = Math.max(1, leafDegree);
+    if (entries.size() <= leaf) {
+      if (!entries.isEmpty()) {
+        body.run(entries);
+      }
+      return;
+    }
+    int parts = Math.max(2, splitDegree);
+    int chunk = Math.max(leaf, (entries.size() - 1) / parts + 1);
+    for (int lo = 0; lo < entries.size(); lo += chunk) {
+      final List<T> split =
+          entries.subList(lo, Math.min(entries.size(), lo + chunk));
+      spawn(new Task() {
+        @Override
+        public void run() {
+          foreach(split, splitDegree, leafDegree, body);
+        }
+      });
+    }
+  }
+
+  /**
+   * Run loop body over inclusive range in parallel chunks, splitting
+   * like foreach.
+   */
+  public void range(long lo, long hi, final long inc,
+                    final int splitDegree, final int leafDegree,
+                    final RangeBody body) {
+    if (inc <= 0) {
+      throw new LogicException("Range loop increment must be positive: "
+                               + inc);
+    }
+    if (lo > hi) {
+      return;
+    }
+    long iters = (hi - lo) / inc + 1;
+    long leaf = Math.max(1, leafDegree);
+    if (iters <= leaf) {
+      body.run(lo, hi, inc);
+      return;
+    }
+    long parts = Math.max(2, splitDegree);
+    long chunk = Math.max(leaf, (iters - 1) / parts + 1);
+    for (long start = lo; start <= hi; start += chunk * inc) {
+      final long splitLo = start;
+      final long splitHi = Math.min(hi, start + (chunk - 1) * inc);
+      spawn(new Task() {
+        @Override
+        public void run() {
+          range(splitLo, splitHi, inc, splitDegree, leafDegree, body);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return number of iterations in inclusive range
+   */
+  public static long rangeIters(long lo, long hi, long inc) {
+    if (lo > hi) {
+      return 0;
+    }
+    return (hi - lo) / inc + 1;
+  }
+
+  /**
+   * @return number of iterations for float range loop
+   */
+  public static long floatRangeIters(double lo, double hi, double inc) {
+    return Math.max(0, (long)Math.floor((hi - lo + inc) / inc));
+  }
+
+  /**
+   * Report feature that isn't supported at runtime
+   */
+  public static void unsupported(String feature) {
+    throw new UnsupportedOperationException(feature +
+                          " is not supported by JVM runtime");
+  }
 }
@@ -1,12 +1,13 @@
 package exm.stc.jvm.runtime;
 
 /**
- * Exception caused by logic error in program
+ * Exception caused by logic error in program.  Unchecked so that it can
+ * propagate out of tasks to the runtime, which reports it.
  * @author tim armstrong
  *
  */
 @SuppressWarnings("serial")
-public class LogicException extends Exception {
+public class LogicException extends RuntimeException {
   public LogicException(String msg) {
     super(msg);
   }
@@ -1,81 +1,495 @@
 package exm.stc.jvm.runtime;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The global task queue
- * TODO: priorities
+ * Work-stealing task queue shared by a fixed set of worker threads.
  *
+ * Each worker has a lock-free deque: tasks spawned by the worker are
+ * pushed and popped at the bottom, so recently created tasks run first
+ * while their data is in cache, and idle workers steal the oldest tasks
+ * from the top of a randomly chosen victim.  Tasks added from other
+ * threads go into a shared FIFO queue.  Each worker also has a FIFO
+ * queue of tasks targeted to it, which are run before any other tasks.
+ *
+ * Tasks have integer priorities, default 0, which are bucketed into
+ * levels.  Each worker has a deque per level and takes tasks from the
+ * highest non-empty level, and steals from the highest levels of its
+ * victims.  Workers also advertise levels above the default in a shared
+ * set of hints, so that any worker looking for work takes high priority
+ * tasks queued elsewhere before its own lower priority ones.  Priorities
+ * are best-effort: tasks in the shared queue are run in FIFO order and a
+ * running task is never preempted.
+ *
+ * Workers that find no work after a few rounds of stealing register
+ * themselves as idle and park.  Adding a task wakes an idle worker.
+ * The queue is quiescent once all workers are idle and no tasks are
+ * queued, which callers can wait for with {@link #awaitQuiescence()}.
  */
 public class TaskQueue {
-  
-  /**
-   * TODO: allow passing in of queues so that each thread
-   * can have in own local heap
-   * @param numThreads
-   */
+
+  /** Rounds of stealing attempts before parking */
+  private static final int STEAL_ROUNDS = 64;
+
+  public static final int DEFAULT_PRIORITY = 0;
+
+  /** Number of priority levels, with default priority in middle */
+  static final int LEVELS = 17;
+  static final int DEFAULT_LEVEL = LEVELS / 2;
+
   public TaskQueue(int numThreads) {
+    assert(numThreads > 0);
     this.numThreads = numThreads;
-    this.targeted = new ArrayList<ConcurrentLinkedDeque<Task>>(numThreads);
-    this.regular = new ArrayList<ArrayDeque<Task>>(numThreads);
+    this.workers = new Worker[numThreads];
     for (int i = 0; i < numThreads; i++) {
-      this.targeted.add(new ConcurrentLinkedDeque<Task>());
-      this.regular.add(new ArrayDeque<Task>());
+      workers[i] = new Worker(this, i);
     }
   }
-  
+
   private final int numThreads;
-  
+
+  private final Worker[] workers;
+
+  /** Tasks added by threads other than workers */
+  private final ConcurrentLinkedQueue<Task> injected =
+                                      new ConcurrentLinkedQueue<Task>();
+
+  /**
+   * Bit set of levels above default that may have tasks in some worker's
+   * deque.  Set when pushing, cleared when a search finds nothing.
+   */
+  private final AtomicInteger levelHints = new AtomicInteger();
+
+  /** Workers that are parked or about to park */
+  private final ConcurrentLinkedQueue<Worker> idle =
+                                      new ConcurrentLinkedQueue<Worker>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /**
+   * Incremented whenever a worker stops being idle, so that quiescence
+   * checks can detect workers that woke up while checking queues
+   */
+  private final AtomicLong wakeups = new AtomicLong();
+
+  /** Lock notified when the last worker goes idle */
+  private final Object quiescenceLock = new Object();
+
+  private volatile boolean shutdown = false;
+
+  /**
+   * State of a worker thread.  The worker thread must call
+   * {@link TaskQueue#getTask(int)} with its own number only.
+   */
+  private static class Worker {
+    final TaskQueue queue;
+    final int threadNum;
+    /** Deque for each priority level, created by owner when first used */
+    final AtomicReferenceArray<WorkDeque> deques =
+                              new AtomicReferenceArray<WorkDeque>(LEVELS);
+    /**
+     * Bit set of levels that may have tasks.  Only written by the owner,
+     * which is the only thread that adds to the deques.
+     */
+    volatile int levels = 0;
+    final ConcurrentLinkedQueue<Task> targeted =
+                                      new ConcurrentLinkedQueue<Task>();
+    /** Seed for victim selection */
+    int seed;
+    volatile Thread thread;
+    volatile boolean parked = false;
+
+    Worker(TaskQueue queue, int threadNum) {
+      this.queue = queue;
+      this.threadNum = threadNum;
+      this.seed = 0x9E3779B9 * (threadNum + 1);
+      deques.set(DEFAULT_LEVEL, new WorkDeque());
+    }
+
+    void push(Task task, int level) {
+      WorkDeque deque = deques.get(level);
+      if (deque == null) {
+        deque = new WorkDeque();
+        deques.set(level, deque);
+      }
+      deque.push(task);
+      int bit = 1 << level;
+      if ((levels & bit) == 0) {
+        levels |= bit;
+      }
+    }
+
+    /**
+     * Pop newest task from highest level.  Must only be called by owner.
+     */
+    Task pop() {
+      int mask = levels;
+      while (mask != 0) {
+        int level = 31 - Integer.numberOfLeadingZeros(mask);
+        Task task = deques.get(level).pop();
+        if (task != null) {
+          return task;
+        }
+        // Empty: only owner adds tasks, so stays empty until next push
+        mask &= ~(1 << level);
+        levels = mask;
+      }
+      return null;
+    }
+
+    /**
+     * Steal oldest task from highest level at or above minLevel
+     */
+    Task steal(int minLevel) {
+      int mask = levels & (-1 << minLevel);
+      while (mask != 0) {
+        int level = 31 - Integer.numberOfLeadingZeros(mask);
+        Task task = deques.get(level).steal();
+        if (task != null) {
+          return task;
+        }
+        mask &= ~(1 << level);
+      }
+      return null;
+    }
+
+    boolean isEmpty() {
+      int mask = levels;
+      while (mask != 0) {
+        int level = 31 - Integer.numberOfLeadingZeros(mask);
+        if (!deques.get(level).isEmpty()) {
+          return false;
+        }
+        mask &= ~(1 << level);
+      }
+      return true;
+    }
+
+    int size() {
+      int size = 0;
+      for (int level = 0; level < LEVELS; level++) {
+        WorkDeque deque = deques.get(level);
+        if (deque != null) {
+          size += deque.size();
+        }
+      }
+      return size;
+    }
+
+    int nextVictim(int numThreads) {
+      // Xorshift: cheap and good enough to spread out steals
+      int x = seed;
+      x ^= x << 13;
+      x ^= x >>> 17;
+      x ^= x << 5;
+      seed = x;
+      return (x & Integer.MAX_VALUE) % numThreads;
+    }
+  }
+
+  /** Worker of current thread, if any */
+  private static final ThreadLocal<Worker> currentWorker =
+                                              new ThreadLocal<Worker>();
+
+  public int numThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Map priority to level.  Levels above and below the default cover
+   * exponentially growing ranges of priorities, so that large priorities
+   * are distinguished coarsely.
+   */
+  static int level(int priority) {
+    if (priority == DEFAULT_PRIORITY) {
+      return DEFAULT_LEVEL;
+    } else if (priority > 0) {
+      int bits = 32 - Integer.numberOfLeadingZeros(priority);
+      return DEFAULT_LEVEL + Math.min(bits, DEFAULT_LEVEL);
+    } else {
+      int bits = 32 - Integer.numberOfLeadingZeros(~priority);
+      return DEFAULT_LEVEL - Math.min(bits + 1, DEFAULT_LEVEL);
+    }
+  }
+
+  /**
+   * Add a task with default priority
+   */
+  public void add(Task task) {
+    add(task, DEFAULT_PRIORITY);
+  }
+
   /**
-   * Targeted task queues (one per thread)
+   * Add a task.  Tasks added by a worker of this queue go on that worker's
+   * deque for the priority, others go on the shared queue.
+   * @param priority higher priority tasks are run first
    */
-  private final ArrayList<ConcurrentLinkedDeque<Task>> targeted;
-  
+  public void add(Task task, int priority) {
+    Worker w = currentWorker.get();
+    if (w != null && w.queue == this) {
+      int level = level(priority);
+      w.push(task, level);
+      if (level > DEFAULT_LEVEL) {
+        int bit = 1 << level;
+        if ((levelHints.get() & bit) == 0) {
+          setHint(bit);
+        }
+      }
+    } else {
+      injected.add(task);
+    }
+    signalWork();
+  }
+
+  private void setHint(int bit) {
+    while (true) {
+      int hints = levelHints.get();
+      if ((hints & bit) != 0 ||
+          levelHints.compareAndSet(hints, hints | bit)) {
+        return;
+      }
+    }
+  }
+
+  private void clearHint(int bit) {
+    while (true) {
+      int hints = levelHints.get();
+      if ((hints & bit) == 0 ||
+          levelHints.compareAndSet(hints, hints & ~bit)) {
+        return;
+      }
+    }
+  }
+
   /**
-   * Personal non-targeted task queue (one per thread) 
-   * TODO: priorities
+   * Add a task that must run on the given worker.  Targeted tasks are run
+   * in the order they were added, before any other tasks.
    */
-  private final ArrayList<ArrayDeque<Task>> regular;
-  
-  
+  public void addTargeted(int threadNum, Task task) {
+    Worker w = workers[threadNum];
+    w.targeted.add(task);
+    if (w.parked && idle.remove(w)) {
+      wake(w);
+    }
+  }
+
   /**
-   * TODO: each thread should hold local reference to own deque
-   * @return a task, or null if nothing available
+   * Get next task for worker, waiting if needed.  Must be called from
+   * worker's thread.
+   * @return a task, or null once the queue is shut down
    */
   public Task getTask(int threadNum) {
+    Worker w = workers[threadNum];
+    if (w.thread == null) {
+      w.thread = Thread.currentThread();
+      currentWorker.set(w);
+    }
+    assert(w.thread == Thread.currentThread());
+
+    int rounds = 0;
+    while (!shutdown) {
+      Task task = findTask(w);
+      if (task != null) {
+        return task;
+      }
+      if (rounds < STEAL_ROUNDS) {
+        rounds++;
+        Thread.yield();
+      } else {
+        park(w);
+        rounds = 0;
+      }
+    }
+    return null;
+  }
+
+  private Task findTask(Worker w) {
     // Targeted have highest priority
-    Task res = targeted.get(threadNum).pollLast();
-    if (res != null)
-      return res;
-    
-    // Next, try to see if something in local deque
-    ArrayDeque<Task> myDeque = regular.get(threadNum);
-    synchronized (myDeque) {
-      res = myDeque.pollLast();
-    }
-    if (res != null)
-      return res;
-    
-    // Finally, search other deques to steal work
-    // TODO: exit condition - detect idle, or go to sleep
-    Random r = new Random();
-    while (true) {
-      int deque = r.nextInt(numThreads - 1);
-      if (deque >= threadNum)
-        deque++;
-      
-      ArrayDeque<Task> otherDeque = regular.get(threadNum);
-      // Task from other end
-      synchronized (otherDeque) {
-        res = otherDeque.pollFirst();
+    Task task = w.targeted.poll();
+    if (task != null) {
+      return task;
+    }
+
+    // Next, high priority tasks advertised by other workers
+    int ownTop = 31 - Integer.numberOfLeadingZeros(w.levels);
+    int hints = levelHints.get() & (-1 << (ownTop + 1));
+    while (hints != 0) {
+      int level = 31 - Integer.numberOfLeadingZeros(hints);
+      task = stealAtLevel(w, level);
+      if (task != null) {
+        return task;
+      }
+      clearHint(1 << level);
+      hints &= ~(1 << level);
+    }
+
+    // Next, newest task in local deque
+    task = w.pop();
+    if (task != null) {
+      return task;
+    }
+
+    task = injected.poll();
+    if (task != null) {
+      return task;
+    }
+
+    // Finally, steal oldest task from other deques, starting at random
+    int start = w.nextVictim(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      Worker victim = workers[(start + i) % numThreads];
+      if (victim == w) {
+        continue;
+      }
+      task = victim.steal(0);
+      if (task != null) {
+        if (!victim.isEmpty()) {
+          // Wake another worker to help with remaining tasks
+          signalWork();
+        }
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Steal task at exactly level from any other worker
+   */
+  private Task stealAtLevel(Worker w, int level) {
+    for (Worker victim: workers) {
+      if (victim != w && (victim.levels & (1 << level)) != 0) {
+        Task task = victim.deques.get(level).steal();
+        if (task != null) {
+          return task;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if any tasks are queued that worker could run
+   */
+  private boolean hasWork(Worker w) {
+    if (!w.targeted.isEmpty() || !injected.isEmpty()) {
+      return true;
+    }
+    for (Worker other: workers) {
+      if (!other.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Park worker until woken up by new work.  The worker registers as idle
+   * before checking queues a final time, so a task added concurrently
+   * either is seen by the check or sees the idle worker and wakes it.
+   */
+  private void park(Worker w) {
+    w.parked = true;
+    idle.add(w);
+    int nowIdle = idleCount.incrementAndGet();
+
+    if (hasWork(w) || shutdown) {
+      // Cancel, unless another thread already woke us
+      if (idle.remove(w)) {
+        wakeups.incrementAndGet();
+        idleCount.decrementAndGet();
+        w.parked = false;
+      }
+    } else if (nowIdle == numThreads) {
+      synchronized (quiescenceLock) {
+        quiescenceLock.notifyAll();
       }
-      if (res != null)
-        return res;      
     }
+
+    while (w.parked && !shutdown) {
+      LockSupport.park(this);
+    }
+  }
+
+  /**
+   * Wake an idle worker, if there are any
+   */
+  private void signalWork() {
+    if (idleCount.get() > 0) {
+      Worker w = idle.poll();
+      if (w != null) {
+        wake(w);
+      }
+    }
+  }
+
+  /**
+   * Wake worker that was removed from idle list
+   */
+  private void wake(Worker w) {
+    wakeups.incrementAndGet();
+    idleCount.decrementAndGet();
+    w.parked = false;
+    LockSupport.unpark(w.thread);
+  }
+
+  /**
+   * @return true if all workers are idle and no tasks are queued
+   */
+  public boolean isQuiescent() {
+    long before = wakeups.get();
+    if (idleCount.get() < numThreads || !injected.isEmpty()) {
+      return false;
+    }
+    for (Worker w: workers) {
+      if (!w.isEmpty() || !w.targeted.isEmpty()) {
+        return false;
+      }
+    }
+    // Check no worker woke up and took a task while checking
+    return wakeups.get() == before;
+  }
+
+  /**
+   * Wait until all tasks have run, and no more tasks are queued
+   */
+  public void awaitQuiescence() throws InterruptedException {
+    synchronized (quiescenceLock) {
+      while (!isQuiescent() && !shutdown) {
+        quiescenceLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Make getTask return null in all workers
+   */
+  public void shutdown() {
+    shutdown = true;
+    for (Worker w: workers) {
+      Thread t = w.thread;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+    }
+    synchronized (quiescenceLock) {
+      quiescenceLock.notifyAll();
+    }
+  }
+
+  /**
+   * @return number of tasks queued for each worker, for debugging
+   */
+  public List<Integer> queueSizes() {
+    List<Integer> sizes = new ArrayList<Integer>(numThreads);
+    for (Worker w: workers) {
+      sizes.add(w.size() + w.targeted.size());
+    }
+    return sizes;
   }
-  
-  
 }
@@ -0,0 +1,77 @@
+package exm.stc.jvm.runtime;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of tasks and rules run by the runtime, and the length of the
+ * critical path through the tasks.
+ *
+ * The depth of a task is one more than the depth of the task that spawned
+ * it.  A rule's task is spawned by whichever task closed the last variable
+ * it waited for, so the maximum depth is the length of the longest chain
+ * of dependent tasks.
+ */
+class TaskStats {
+  private final LongAdder tasks = new LongAdder();
+  private final LongAdder blockingTasks = new LongAdder();
+  private final LongAdder rules = new LongAdder();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+
+  /** Depth of task running on this thread, 0 outside tasks */
+  private final ThreadLocal<int[]> currentDepth = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  /**
+   * Count task when spawned
+   * @return task that records its depth when run
+   */
+  Task track(final Task task) {
+    tasks.increment();
+    if (task instanceof BlockingTask) {
+      blockingTasks.increment();
+    }
+    final int depth = currentDepth.get()[0] + 1;
+    return new Task() {
+      @Override
+      public void run() {
+        int[] curr = currentDepth.get();
+        int prev = curr[0];
+        curr[0] = depth;
+        updateMaxDepth(depth);
+        try {
+          task.run();
+        } finally {
+          curr[0] = prev;
+        }
+      }
+    };
+  }
+
+  void ruleCreated() {
+    rules.increment();
+  }
+
+  private void updateMaxDepth(int depth) {
+    int max;
+    while ((max = maxDepth.get()) < depth) {
+      if (maxDepth.compareAndSet(max, depth)) {
+        return;
+      }
+    }
+  }
+
+  void report(PrintStream out, long elapsedNanos) {
+    long taskCount = tasks.sum();
+    int depth = maxDepth.get();
+    out.println(String.format("Tasks: %d (%d blocking)  Rules: %d  " +
+        "Critical path: %d tasks  Parallelism: %.1f  Time: %.3fs",
+        taskCount, blockingTasks.sum(), rules.sum(), depth,
+        depth == 0 ? 0.0 : (double)taskCount / depth, elapsedNanos / 1e9));
+  }
+}
@@ -1,64 +1,219 @@
 package exm.stc.jvm.runtime;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Shared dataflow variables.
+ *
+ * Each variable has a count of writers and is closed once the count
+ * reaches zero, at which point subscribed targets are notified.
+ * Values are boxed: Long, Double, String, Boolean, byte[] or VOID for
+ * scalars, and the referenced variable for references.  IntVar and
+ * FloatVar store their values unboxed, but can also be accessed as boxed
+ * values through the ScalarVar interface.
+ */
 public class Vars {
+
+  /** States of primitive futures */
+  private static final int UNSET = 0;
+  private static final int SETTING = 1;
+  private static final int SET = 2;
+
+  /** Value of void futures */
+  public static final Object VOID = new Object() {
+    @Override
+    public String toString() {
+      return "void";
+    }
+  };
+
   public static abstract class BaseVar {
-    private final AtomicInteger writers;
-    
+    private static final AtomicReferenceFieldUpdater<BaseVar, Object>
+        VAR_STATE = AtomicReferenceFieldUpdater.newUpdater(BaseVar.class,
+                                                Object.class, "varState");
+
+    /**
+     * Writers count and subscribed targets, only updated together with
+     * compare-and-swap: either a State, or a NotifyTarget standing for one
+     * writer and that one subscribed target, the usual case for
+     * single-assignment vars.  Subscribed targets are dropped once closed.
+     */
+    private volatile Object varState;
+
     public BaseVar(int writers) {
-      this.writers = new AtomicInteger(writers);
+      this.varState = State.of(writers, null);
+    }
+
+    public boolean isClosed() {
+      return writers(varState) <= 0;
     }
-    
-    public void incrWriters(String fn, String varName, int amount) 
-        throws DoubleWriteException {
-      if (amount == 0)
+
+    public void incrWriters(int amount) {
+      if (amount == 0) {
+        return;
+      } else if (amount < 0) {
+        decrWriters(-amount);
         return;
-      long prev = writers.getAndAdd(amount);
-      if (prev <= 0) {
-        throw new DoubleWriteException("Variable " + varName + 
-            " written after close in function " + fn + "!");
       }
-      long curr = prev - amount;
-      if (curr < 0) {
-        JVMRuntime.getLogger().warn("Decremented " + varName + " below 0 "
-                    + " in function " + fn + " " + prev + " - " + amount);
+      while (true) {
+        Object s = varState;
+        int prev = writers(s);
+        if (prev <= 0) {
+          throw new DoubleWriteException(this + " written after close");
+        }
+        if (VAR_STATE.compareAndSet(this, s,
+                                    makeState(prev + amount, waiters(s)))) {
+          return;
+        }
+      }
+    }
+
+    public void decrWriters(int amount) {
+      if (amount == 0) {
+        return;
+      } else if (amount < 0) {
+        incrWriters(-amount);
+        return;
       }
-      if (curr <= 0) {
-        notifyWaiters();
+      while (true) {
+        Object s = varState;
+        int prev = writers(s);
+        if (prev <= 0) {
+          throw new DoubleWriteException(this + " written after close");
+        }
+        int curr = prev - amount;
+        if (curr > 0) {
+          if (VAR_STATE.compareAndSet(this, s, makeState(curr, waiters(s)))) {
+            return;
+          }
+        } else if (VAR_STATE.compareAndSet(this, s, State.of(curr, null))) {
+          // Only one thread sees count go from positive to non-positive
+          if (curr < 0) {
+            JVMRuntime.getLogger().warn("Decremented " + this +
+                                  " below 0: " + prev + " - " + amount);
+          }
+          closed();
+          notifyWaiters(waiters(s));
+          return;
+        }
       }
     }
 
-    // TODO: more memory-efficient way?
-    // TODO: lock-free way?  AtomicReference?
-    ArrayList<NotifyTarget> notifications = null;
     /**
-     * 
+     * Called once when closed, before waiters are notified
+     */
+    protected void closed() {
+      // Nothing by default
+    }
+
+    /**
+     *
      * @param target
      * @return true if subscribed, false if closed
      */
-    public synchronized boolean subscribe(NotifyTarget target) {
-      // TODO: I think this avoids race condition with notifications
-      if (writers.get() <= 0) {
-        return false;
+    public boolean subscribe(NotifyTarget target) {
+      while (true) {
+        Object s = varState;
+        int writers = writers(s);
+        if (writers <= 0) {
+          return false;
+        }
+        Object head = waiters(s);
+        Object newHead = head == null ? target : new WaiterNode(target, head);
+        if (VAR_STATE.compareAndSet(this, s, makeState(writers, newHead))) {
+          // If we lost a race with close, the closing thread will notify
+          return true;
+        }
+      }
+    }
+
+    private void notifyWaiters(Object head) {
+      while (head instanceof WaiterNode) {
+        WaiterNode node = (WaiterNode)head;
+        node.target.notifyFinal(this);
+        head = node.next;
+      }
+      if (head != null) {
+        ((NotifyTarget)head).notifyFinal(this);
       }
-      
-      if (notifications == null)
-        notifications = new ArrayList<NotifyTarget>();
-      notifications.add(target);
-      
-      return true;
     }
-    
-    private synchronized void notifyWaiters() {
-      for (NotifyTarget t: notifications)
-        t.notifyFinal(this);
-      
-      notifications = null;
+
+    private static int writers(Object state) {
+      return state instanceof State ? ((State)state).writers : 1;
+    }
+
+    private static Object waiters(Object state) {
+      return state instanceof State ? ((State)state).waiters : state;
+    }
+
+    private static Object makeState(int writers, Object waiters) {
+      if (writers == 1 && waiters instanceof NotifyTarget) {
+        return waiters;
+      }
+      return State.of(writers, waiters);
+    }
+
+    @Override
+    public String toString() {
+      return "<" + getClass().getSimpleName() + "@" +
+             Integer.toHexString(System.identityHashCode(this)) + ">";
+    }
+  }
+
+  /**
+   * Immutable state of a var.  States without waiters are shared for
+   * small writer counts so that updating the count doesn't allocate.
+   */
+  private static final class State {
+    private static final State[] UNWAITED = new State[8];
+    static {
+      for (int i = 0; i < UNWAITED.length; i++) {
+        UNWAITED[i] = new State(i, null);
+      }
+    }
+
+    final int writers;
+    /** null, a NotifyTarget, or a WaiterNode stack */
+    final Object waiters;
+
+    private State(int writers, Object waiters) {
+      this.writers = writers;
+      this.waiters = waiters;
+    }
+
+    static State of(int writers, Object waiters) {
+      if (waiters == null && writers >= 0 && writers < UNWAITED.length) {
+        return UNWAITED[writers];
+      }
+      return new State(writers, waiters);
     }
   }
-  
+
+  /**
+   * Link in stack of waiters.  The last link's next is the first target
+   * to subscribe, stored without a node.
+   */
+  private static class WaiterNode {
+    final NotifyTarget target;
+    /** Next WaiterNode, or a NotifyTarget at the bottom of the stack */
+    final Object next;
+
+    WaiterNode(NotifyTarget target, Object next) {
+      this.target = target;
+      this.next = next;
+    }
+  }
+
   public static interface NotifyTarget {
     /**
      * Notify that var has been finalized
@@ -66,57 +221,1142 @@ public class Vars {
      */
     public void notifyFinal(BaseVar var);
   }
-  
-  public abstract static class ScalarVar extends BaseVar {
-    public ScalarVar(int writers, boolean isSet) {
+
+  /**
+   * Create new variables with an initial writers count
+   */
+  public static interface VarFactory {
+    public BaseVar create(int writers);
+  }
+
+  /**
+   * Single-assignment future holding a scalar value or a reference.
+   * Closed when assigned.
+   */
+  public static class ScalarVar extends BaseVar {
+    private static final AtomicReferenceFieldUpdater<ScalarVar, Object>
+        VALUE = AtomicReferenceFieldUpdater.newUpdater(ScalarVar.class,
+                                                    Object.class, "value");
+
+    public static final VarFactory FACTORY = new VarFactory() {
+      @Override
+      public BaseVar create(int writers) {
+        return new ScalarVar(writers);
+      }
+    };
+
+    /** Value, or null if not set */
+    private volatile Object value = null;
+
+    public ScalarVar() {
+      this(1);
+    }
+
+    public ScalarVar(int writers) {
       super(writers);
-      this.isSet = isSet;
     }
-    
+
     /**
-     * Whether value is available
+     * @return a closed var with the value
      */
-    protected boolean isSet = false;
+    public static ScalarVar closed(Object value) {
+      ScalarVar v = new ScalarVar(1);
+      v.set(value);
+      return v;
+    }
+
+    public boolean isSet() {
+      return value != null;
+    }
+
+    public Object get() {
+      // Should subscribe before reading, creating memory barrier
+      Object v = value;
+      if (v == null) {
+        throw new InvalidReadException(this + " was read before writing");
+      }
+      return v;
+    }
+
+    public long getInt() {
+      return (Long)get();
+    }
+
+    public double getFloat() {
+      return (Double)get();
+    }
+
+    public String getString() {
+      return (String)get();
+    }
+
+    public boolean getBool() {
+      return (Boolean)get();
+    }
+
+    public void setInt(long value) {
+      set(value);
+    }
+
+    public void setFloat(double value) {
+      set(value);
+    }
+
+    public void set(Object value) {
+      if (value == null) {
+        throw new IllegalArgumentException("Null value for " + this);
+      }
+      if (!VALUE.compareAndSet(this, null, value)) {
+        throw new DoubleWriteException(this + " was assigned twice");
+      }
+      decrWriters(1);
+    }
   }
-  
+
+  /**
+   * Integer future storing its value unboxed
+   */
   public static class IntVar extends ScalarVar {
+    private static final AtomicIntegerFieldUpdater<IntVar> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(IntVar.class, "state");
+
+    public static final VarFactory FACTORY = new VarFactory() {
+      @Override
+      public BaseVar create(int writers) {
+        return new IntVar(writers);
+      }
+    };
+
+    /** UNSET, SETTING while value is written, then SET */
+    private volatile int state = UNSET;
+    /** Published by write to state */
+    private long value;
+
+    public IntVar() {
+      this(1);
+    }
+
     public IntVar(int writers) {
-      super(writers, false);
+      super(writers);
+    }
+
+    public static IntVar closed(long value) {
+      IntVar v = new IntVar(1);
+      v.setInt(value);
+      return v;
+    }
+
+    @Override
+    public boolean isSet() {
+      return state == SET;
+    }
+
+    @Override
+    public Object get() {
+      return getInt();
+    }
+
+    @Override
+    public long getInt() {
+      if (state != SET) {
+        throw new InvalidReadException(this + " was read before writing");
+      }
+      return value;
+    }
+
+    @Override
+    public void set(Object value) {
+      if (value == null) {
+        throw new IllegalArgumentException("Null value for " + this);
+      }
+      setInt((Long)value);
     }
-    
-    public IntVar(int writers, long value) {
-      super(writers, true);
+
+    @Override
+    public void setInt(long value) {
+      if (!STATE.compareAndSet(this, UNSET, SETTING)) {
+        throw new DoubleWriteException(this + " was assigned twice");
+      }
       this.value = value;
+      state = SET;
+      decrWriters(1);
     }
+  }
 
-    private long value;
-    
-    public long get(String fn, String varName) throws InvalidReadException {
-      // Should subscribe before reading, creating memory barrier
-      if (isSet) {
-        return value;
-      } else {
-        throw new InvalidReadException(varName + " was read before writing " 
-            + " in function " + fn);
+  /**
+   * Float future storing its value unboxed
+   */
+  public static class FloatVar extends ScalarVar {
+    private static final AtomicIntegerFieldUpdater<FloatVar> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(FloatVar.class, "state");
+
+    public static final VarFactory FACTORY = new VarFactory() {
+      @Override
+      public BaseVar create(int writers) {
+        return new FloatVar(writers);
+      }
+    };
+
+    /** UNSET, SETTING while value is written, then SET */
+    private volatile int state = UNSET;
+    /** Published by write to state */
+    private double value;
+
+    public FloatVar() {
+      this(1);
+    }
+
+    public FloatVar(int writers) {
+      super(writers);
+    }
+
+    public static FloatVar closed(double value) {
+      FloatVar v = new FloatVar(1);
+      v.setFloat(value);
+      return v;
+    }
+
+    @Override
+    public boolean isSet() {
+      return state == SET;
+    }
+
+    @Override
+    public Object get() {
+      return getFloat();
+    }
+
+    @Override
+    public double getFloat() {
+      if (state != SET) {
+        throw new InvalidReadException(this + " was read before writing");
+      }
+      return value;
+    }
+
+    @Override
+    public void set(Object value) {
+      if (value == null) {
+        throw new IllegalArgumentException("Null value for " + this);
       }
+      setFloat((Double)value);
+    }
+
+    @Override
+    public void setFloat(double value) {
+      if (!STATE.compareAndSet(this, UNSET, SETTING)) {
+        throw new DoubleWriteException(this + " was assigned twice");
+      }
+      this.value = value;
+      state = SET;
+      decrWriters(1);
+    }
+  }
+
+  /**
+   * Future referring to a member of an array, which is set by inserting
+   * into the array.
+   */
+  public static class MemberSlot extends ScalarVar {
+    private final ArrayVar array;
+    private final Object key;
+
+    public MemberSlot(ArrayVar array, Object key) {
+      super(0);
+      this.array = array;
+      this.key = key;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return array.contains(key);
+    }
+
+    @Override
+    public boolean isSet() {
+      return array.contains(key);
+    }
+
+    @Override
+    public Object get() {
+      return array.get(key);
+    }
+
+    @Override
+    public void set(Object value) {
+      array.store(key, value, 1);
+    }
+
+    @Override
+    public boolean subscribe(NotifyTarget target) {
+      return array.subscribeKey(key, this, target);
+    }
+
+    @Override
+    public String toString() {
+      return array + "[" + key + "]";
+    }
+  }
+
+  /**
+   * Associative array with sorted keys.  Members are values, or
+   * variables for nested compound data.
+   *
+   * Slots are updated with compare-and-swap: an empty slot can hold a
+   * stack of waiters for the key, which is replaced by the value when
+   * stored.  Overloads taking long keys avoid boxing integer keys when
+   * reading.  Stores take boxed keys like their values, since long
+   * overloads would be ambiguous for boxed values.
+   */
+  public static class ArrayVar extends BaseVar {
+    public static final VarFactory FACTORY = new VarFactory() {
+      @Override
+      public BaseVar create(int writers) {
+        return new ArrayVar(writers);
+      }
+    };
+
+    private final ArraySlots slots = new ArraySlots();
+
+    /** Number of members stored */
+    private final LongAdder size = new LongAdder();
+
+    /** Number of keys with waiters but no value yet */
+    private final AtomicInteger waitingKeys = new AtomicInteger();
+
+    /** Nested data created by array, released on close.  Guarded by this */
+    private List<BaseVar> nested = null;
+
+    public ArrayVar() {
+      this(1);
+    }
+
+    public ArrayVar(int writers) {
+      super(writers);
+    }
+
+    /*
+     * Slot operations.  Each takes either an object key, or a null object
+     * key and an integer key.
+     */
+    private Object getSlot(Object key, long ikey) {
+      return key == null ? slots.get(ikey) : slots.get(key);
+    }
+
+    private boolean casSlot(Object key, long ikey, Object expect,
+                            Object update) {
+      return key == null ? slots.compareAndSet(ikey, expect, update) :
+                           slots.compareAndSet(key, expect, update);
+    }
+
+    private static Object keyObj(Object key, long ikey) {
+      return key == null ? Long.valueOf(ikey) : key;
+    }
+
+    private static boolean isValue(Object slot) {
+      return slot != null && !(slot instanceof KeyWaiter);
     }
-    
+
     /**
-     * 
-     * @param fn
-     * @param varName
+     * Insert into array
+     * @param key
      * @param value
-     * @throws DoubleWriteException 
+     * @param writersDecr writers count to decrement
      */
-    public void set(String fn, String varName, long value)
-                                      throws DoubleWriteException {
-      set(fn, varName, value, 1);
+    public void store(Object key, Object value, int writersDecr) {
+      store(key, 0, value, writersDecr);
     }
 
-    public void set(String fn, String varName, long value,
-                     int writersDecr) throws DoubleWriteException {
-      this.value = value;
-      this.incrWriters(fn, varName, -1 * writersDecr);
+    private void store(Object key, long ikey, Object value,
+                       int writersDecr) {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserting " + keyObj(key, ikey) +
+                                       " into " + this + " after close");
+      }
+      while (true) {
+        Object slot = getSlot(key, ikey);
+        if (isValue(slot)) {
+          throw new DoubleWriteException("Key " + keyObj(key, ikey) +
+                                " of " + this + " was assigned twice");
+        }
+        if (casSlot(key, ikey, slot, value)) {
+          size.increment();
+          notifyKey((KeyWaiter)slot);
+          break;
+        }
+      }
+      decrWriters(writersDecr);
+    }
+
+    /**
+     * Store all values from local array representation
+     */
+    public void storeAll(Map<?, ?> values, int writersDecr) {
+      for (Map.Entry<?, ?> e: values.entrySet()) {
+        store(e.getKey(), e.getValue(), 0);
+      }
+      decrWriters(writersDecr);
+    }
+
+    /**
+     * Store values with consecutive integer keys
+     * @param firstKey key of values[0]
+     */
+    public void storeRange(long firstKey, Object[] values,
+                           int writersDecr) {
+      for (int i = 0; i < values.length; i++) {
+        store(null, firstKey + i, values[i], 0);
+      }
+      decrWriters(writersDecr);
+    }
+
+    public boolean contains(Object key) {
+      return isValue(slots.get(key));
+    }
+
+    public boolean contains(long key) {
+      return isValue(slots.get(key));
+    }
+
+    public Object get(Object key) {
+      return get(key, 0);
+    }
+
+    public Object get(long key) {
+      return get(null, key);
+    }
+
+    private Object get(Object key, long ikey) {
+      Object v = getSlot(key, ikey);
+      if (!isValue(v)) {
+        throw new InvalidReadException("Key " + keyObj(key, ikey) + " of " +
+                                       this + " was read before writing");
+      }
+      return v;
+    }
+
+    public int size() {
+      return (int)size.sum();
+    }
+
+    /**
+     * @return copy of current contents in key order
+     */
+    public Map<Object, Object> snapshot() {
+      final Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+      slots.visit(new ArraySlots.SlotVisitor() {
+        @Override
+        public void visit(Object key, Object slot) {
+          if (isValue(slot)) {
+            result.put(key, slot);
+          }
+        }
+      });
+      return result;
+    }
+
+    public List<Map.Entry<Object, Object>> entries() {
+      final List<Map.Entry<Object, Object>> result =
+                                new ArrayList<Map.Entry<Object, Object>>();
+      slots.visit(new ArraySlots.SlotVisitor() {
+        @Override
+        public void visit(Object key, Object slot) {
+          if (isValue(slot)) {
+            result.add(new SimpleImmutableEntry<Object, Object>(key, slot));
+          }
+        }
+      });
+      return result;
+    }
+
+    public MemberSlot slot(Object key) {
+      return new MemberSlot(this, key);
+    }
+
+    /**
+     * Subscribe to key being assigned
+     * @param key
+     * @param var var to pass to target when notified
+     * @param target
+     * @return true if subscribed, false if already assigned
+     */
+    public boolean subscribeKey(Object key, BaseVar var,
+                                NotifyTarget target) {
+      return subscribeKey(key, 0, var, target);
+    }
+
+    public boolean subscribeKey(long key, BaseVar var,
+                                NotifyTarget target) {
+      return subscribeKey(null, key, var, target);
+    }
+
+    private boolean subscribeKey(Object key, long ikey, BaseVar var,
+                                 NotifyTarget target) {
+      while (true) {
+        Object slot = getSlot(key, ikey);
+        if (isValue(slot)) {
+          return false;
+        }
+        if (isClosed()) {
+          throw new InvalidReadException("Key " + keyObj(key, ikey) + " of " +
+                          this + " will never be assigned: array closed");
+        }
+        KeyWaiter head = (KeyWaiter)slot;
+        if (casSlot(key, ikey, slot, new KeyWaiter(var, target, head))) {
+          if (head == null) {
+            waitingKeys.incrementAndGet();
+          }
+          break;
+        }
+      }
+      // Closing thread may have missed waiter
+      if (isClosed() && !isValue(getSlot(key, ikey))) {
+        throw new InvalidReadException("Key " + keyObj(key, ikey) + " of " +
+                        this + " will never be assigned: array closed");
+      }
+      return true;
+    }
+
+    /**
+     * Notify waiters removed from slot
+     */
+    private void notifyKey(KeyWaiter waiters) {
+      if (waiters == null) {
+        return;
+      }
+      waitingKeys.decrementAndGet();
+      for (KeyWaiter w = waiters; w != null; w = w.next) {
+        w.target.notifyFinal(w.var);
+      }
+    }
+
+    /**
+     * Create nested datum at key, or return existing one
+     * @param key
+     * @param factory
+     * @param callerWriteRefs writers count to give to caller
+     * @param writeDecr writers to decrement from this array
+     * @return
+     */
+    public BaseVar createNested(Object key, VarFactory factory,
+                                int callerWriteRefs, int writeDecr) {
+      return createNested(key, 0, factory, callerWriteRefs, writeDecr);
+    }
+
+    public BaseVar createNested(long key, VarFactory factory,
+                                int callerWriteRefs, int writeDecr) {
+      return createNested(null, key, factory, callerWriteRefs, writeDecr);
+    }
+
+    private BaseVar createNested(Object key, long ikey, VarFactory factory,
+                                 int callerWriteRefs, int writeDecr) {
+      BaseVar result;
+      BaseVar created = null;
+      while (true) {
+        Object slot = getSlot(key, ikey);
+        if (isValue(slot)) {
+          result = (BaseVar)slot;
+          result.incrWriters(callerWriteRefs);
+          break;
+        }
+        if (isClosed()) {
+          throw new DoubleWriteException("Creating " + keyObj(key, ikey) +
+                                         " in " + this + " after close");
+        }
+        if (created == null) {
+          // One writer held by this array until closed
+          created = factory.create(1 + callerWriteRefs);
+        }
+        if (casSlot(key, ikey, slot, created)) {
+          size.increment();
+          synchronized (this) {
+            if (nested == null) {
+              nested = new ArrayList<BaseVar>();
+            }
+            nested.add(created);
+          }
+          notifyKey((KeyWaiter)slot);
+          result = created;
+          break;
+        }
+      }
+      decrWriters(writeDecr);
+      return result;
+    }
+
+    @Override
+    protected void closed() {
+      if (waitingKeys.get() > 0) {
+        final List<Object> waiting = new ArrayList<Object>();
+        slots.visit(new ArraySlots.SlotVisitor() {
+          @Override
+          public void visit(Object key, Object slot) {
+            if (slot instanceof KeyWaiter) {
+              waiting.add(key);
+            }
+          }
+        });
+        throw new InvalidReadException("Keys " + waiting + " of " + this +
+                                       " will never be assigned: array closed");
+      }
+      List<BaseVar> toRelease;
+      synchronized (this) {
+        toRelease = nested;
+        nested = null;
+      }
+      if (toRelease != null) {
+        for (BaseVar v: toRelease) {
+          v.decrWriters(1);
+        }
+      }
+    }
+
+    /**
+     * Link in stack of waiters for a key
+     */
+    private static class KeyWaiter {
+      final BaseVar var;
+      final NotifyTarget target;
+      final KeyWaiter next;
+
+      KeyWaiter(BaseVar var, NotifyTarget target, KeyWaiter next) {
+        this.var = var;
+        this.target = target;
+        this.next = next;
+      }
+    }
+  }
+
+  /**
+   * Unordered collection of values, or variables for nested compound
+   * data.  Elements can only be enumerated once closed.
+   */
+  public static class BagVar extends BaseVar {
+    public static final VarFactory FACTORY = new VarFactory() {
+      @Override
+      public BaseVar create(int writers) {
+        return new BagVar(writers);
+      }
+    };
+
+    private final ConcurrentLinkedQueue<Object> elems =
+                                    new ConcurrentLinkedQueue<Object>();
+
+    private final LongAdder size = new LongAdder();
+
+    public BagVar() {
+      this(1);
+    }
+
+    public BagVar(int writers) {
+      super(writers);
+    }
+
+    /**
+     * Add element to bag
+     * @param writersDecr writers count to decrement
+     */
+    public void insert(Object value, int writersDecr) {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserting into " + this +
+                                       " after close");
+      }
+      elems.add(value);
+      size.increment();
+      decrWriters(writersDecr);
+    }
+
+    /**
+     * Add all elements of local bag representation
+     */
+    public void insertAll(Collection<?> values, int writersDecr) {
+      if (isClosed()) {
+        throw new DoubleWriteException("Inserting into " + this +
+                                       " after close");
+      }
+      elems.addAll(values);
+      size.add(values.size());
+      decrWriters(writersDecr);
+    }
+
+    public int size() {
+      return (int)size.sum();
+    }
+
+    /**
+     * @return copy of current contents
+     */
+    public List<Object> elements() {
+      return new ArrayList<Object>(elems);
+    }
+  }
+
+  /**
+   * Description of a struct type.  Fields that are structs are stored
+   * inline in the parent struct.
+   */
+  public static class StructType implements VarFactory {
+    final String name;
+    final String[] fields;
+    /** Type of each field if struct, otherwise null */
+    final StructType[] nested;
+
+    public StructType(String name, String[] fields, StructType[] nested) {
+      this.name = name;
+      this.fields = fields;
+      this.nested = nested;
+    }
+
+    @Override
+    public BaseVar create(int writers) {
+      return new StructVar(this, writers);
+    }
+
+    /**
+     * @return empty local representation
+     */
+    public Object[] newValue() {
+      Object[] v = new Object[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        if (nested[i] != null) {
+          v[i] = nested[i].newValue();
+        }
+      }
+      return v;
+    }
+
+    StructType fieldType(int[] path, int depth) {
+      StructType t = this;
+      for (int i = 0; i < depth; i++) {
+        t = t.nested[path[i]];
+      }
+      return t;
+    }
+
+    /**
+     * Build local value from paths and values
+     */
+    public Object[] build(int[][] paths, Object[] values) {
+      Object[] v = newValue();
+      for (int i = 0; i < paths.length; i++) {
+        int[] path = paths[i];
+        Object[] cell = v;
+        for (int j = 0; j < path.length - 1; j++) {
+          cell = (Object[])cell[path[j]];
+        }
+        cell[path[path.length - 1]] = values[i];
+      }
+      return v;
+    }
+
+    public String pathString(int[] path, int length) {
+      StringBuilder sb = new StringBuilder(name);
+      StructType t = this;
+      for (int i = 0; i < length; i++) {
+        sb.append('.').append(t.fields[path[i]]);
+        t = t.nested[path[i]];
+      }
+      return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Struct with fields that are assigned individually.  A struct nested
+   * in another struct is a view sharing the storage and writers count of
+   * the outermost struct.
+   */
+  public static class StructVar extends BaseVar {
+    private final StructType type;
+    private final StructVar root;
+    /** Path of this struct in root */
+    private final int[] prefix;
+    /** Storage for root struct, guarded by root */
+    private final Object[] storage;
+
+    /** Waiters for fields of root, guarded by root */
+    private List<FieldWaiter> fieldWaiters = null;
+
+    /** Nested data created in root, released on close */
+    private List<BaseVar> nested = null;
+
+    public StructVar(StructType type, int writers) {
+      super(writers);
+      this.type = type;
+      this.root = this;
+      this.prefix = new int[0];
+      this.storage = type.newValue();
+    }
+
+    private StructVar(StructVar root, int[] prefix, StructType type) {
+      super(0);
+      this.type = type;
+      this.root = root;
+      this.prefix = prefix;
+      this.storage = root.storage;
+    }
+
+    public StructType type() {
+      return type;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return root == this ? super.isClosed() : root.isClosed();
+    }
+
+    @Override
+    public void incrWriters(int amount) {
+      if (root == this) {
+        super.incrWriters(amount);
+      } else {
+        root.incrWriters(amount);
+      }
+    }
+
+    @Override
+    public void decrWriters(int amount) {
+      if (root == this) {
+        super.decrWriters(amount);
+      } else {
+        root.decrWriters(amount);
+      }
+    }
+
+    @Override
+    public boolean subscribe(NotifyTarget target) {
+      if (root == this) {
+        return super.subscribe(target);
+      } else {
+        return root.subscribe(target);
+      }
+    }
+
+    private int[] fullPath(int[] path) {
+      if (prefix.length == 0) {
+        return path;
+      }
+      int[] full = new int[prefix.length + path.length];
+      System.arraycopy(prefix, 0, full, 0, prefix.length);
+      System.arraycopy(path, 0, full, prefix.length, path.length);
+      return full;
+    }
+
+    private Object[] cell(int[] full) {
+      Object[] cell = storage;
+      for (int i = 0; i < full.length - 1; i++) {
+        cell = (Object[])cell[full[i]];
+      }
+      return cell;
+    }
+
+    private String describe(int[] full) {
+      return root + " " + root.type.pathString(full, full.length);
+    }
+
+    /**
+     * Assign field
+     * @param path field indices, can go into nested structs
+     * @param value value of field, or local struct value for struct fields
+     * @param writersDecr
+     */
+    public void store(int[] path, Object value, int writersDecr) {
+      int[] full = fullPath(path);
+      List<FieldWaiter> notify;
+      synchronized (root) {
+        if (root.isClosed()) {
+          throw new DoubleWriteException("Assigning " + describe(full) +
+                                         " after close");
+        }
+        StructType fieldType = root.type.fieldType(full, full.length);
+        if (full.length == 0) {
+          storeStruct(storage, (Object[])value, full);
+        } else if (fieldType != null) {
+          storeStruct((Object[])cell(full)[full[full.length - 1]],
+                      (Object[])value, full);
+        } else {
+          Object[] cell = cell(full);
+          int ix = full[full.length - 1];
+          if (cell[ix] != null) {
+            throw new DoubleWriteException(describe(full) +
+                                           " was assigned twice");
+          }
+          cell[ix] = value;
+        }
+        notify = root.takeWaiters(full);
+      }
+      notifyFields(notify);
+      decrWriters(writersDecr);
+    }
+
+    private void storeStruct(Object[] dst, Object[] src, int[] path) {
+      for (int i = 0; i < dst.length; i++) {
+        if (dst[i] instanceof Object[]) {
+          storeStruct((Object[])dst[i], (Object[])src[i], path);
+        } else if (src[i] != null) {
+          if (dst[i] != null) {
+            throw new DoubleWriteException(describe(path) +
+                                           " was assigned twice");
+          }
+          dst[i] = src[i];
+        }
+      }
+    }
+
+    /**
+     * Assign all fields from local struct value
+     */
+    public void storeAll(Object[] value, int writersDecr) {
+      store(new int[0], value, writersDecr);
+    }
+
+    /**
+     * Retrieve field value.  Struct fields are copied.
+     */
+    public Object get(int[] path) {
+      int[] full = fullPath(path);
+      synchronized (root) {
+        Object v = full.length == 0 ? storage : cell(full)[full[full.length - 1]];
+        if (v == null) {
+          throw new InvalidReadException(describe(full) +
+                                         " was read before writing");
+        } else if (v instanceof Object[]) {
+          return copy((Object[])v);
+        }
+        return v;
+      }
+    }
+
+    /**
+     * @return local struct value
+     */
+    public Object[] retrieve() {
+      return (Object[])get(new int[0]);
+    }
+
+    private static Object[] copy(Object[] v) {
+      Object[] result = v.clone();
+      for (int i = 0; i < result.length; i++) {
+        if (result[i] instanceof Object[]) {
+          result[i] = copy((Object[])result[i]);
+        }
+      }
+      return result;
+    }
+
+    private static boolean isSet(Object v) {
+      if (v instanceof Object[]) {
+        for (Object o: (Object[])v) {
+          if (!isSet(o)) {
+            return false;
+          }
+        }
+        return true;
+      }
+      return v != null;
+    }
+
+    public boolean isSet(int[] path) {
+      int[] full = fullPath(path);
+      synchronized (root) {
+        return isSet(full.length == 0 ? storage :
+                     cell(full)[full[full.length - 1]]);
+      }
+    }
+
+    /**
+     * Subscribe to field being assigned
+     * @return true if subscribed, false if already assigned
+     */
+    public boolean subscribeField(int[] path, BaseVar var,
+                                  NotifyTarget target) {
+      int[] full = fullPath(path);
+      synchronized (root) {
+        if (isSet(full.length == 0 ? storage :
+                  cell(full)[full[full.length - 1]])) {
+          return false;
+        }
+        if (root.isClosed()) {
+          throw new InvalidReadException(describe(full) +
+                                " will never be assigned: struct closed");
+        }
+        if (root.fieldWaiters == null) {
+          root.fieldWaiters = new ArrayList<FieldWaiter>();
+        }
+        root.fieldWaiters.add(new FieldWaiter(full, var, target));
+      }
+      return true;
+    }
+
+    /**
+     * Remove waiters for which field at path is now set.  Caller must hold
+     * lock on root.
+     */
+    private List<FieldWaiter> takeWaiters(int[] full) {
+      if (fieldWaiters == null) {
+        return null;
+      }
+      List<FieldWaiter> result = null;
+      for (int i = fieldWaiters.size() - 1; i >= 0; i--) {
+        FieldWaiter w = fieldWaiters.get(i);
+        if (isSet(w.path.length == 0 ? storage :
+                  cell(w.path)[w.path[w.path.length - 1]])) {
+          if (result == null) {
+            result = new ArrayList<FieldWaiter>();
+          }
+          result.add(w);
+          fieldWaiters.remove(i);
+        }
+      }
+      return result;
+    }
+
+    private static void notifyFields(List<FieldWaiter> waiters) {
+      if (waiters != null) {
+        for (FieldWaiter w: waiters) {
+          w.target.notifyFinal(w.var);
+        }
+      }
+    }
+
+    /**
+     * @return alias for field: a struct view if the field is a struct,
+     *         otherwise a future
+     */
+    public BaseVar field(int[] path) {
+      int[] full = fullPath(path);
+      StructType fieldType = root.type.fieldType(full, full.length);
+      if (fieldType != null) {
+        return new StructVar(root, full, fieldType);
+      } else {
+        return new FieldSlot(root, full);
+      }
+    }
+
+    /**
+     * Create nested datum in field, or return existing one
+     */
+    public BaseVar createNested(int[] path, VarFactory factory,
+                                int callerWriteRefs, int writeDecr) {
+      int[] full = fullPath(path);
+      BaseVar result;
+      boolean created = false;
+      List<FieldWaiter> notify = null;
+      synchronized (root) {
+        Object[] cell = cell(full);
+        int ix = full[full.length - 1];
+        if (cell[ix] == null) {
+          if (root.isClosed()) {
+            throw new DoubleWriteException("Creating " + describe(full) +
+                                           " after close");
+          }
+          // One writer held by struct until closed
+          result = factory.create(1 + callerWriteRefs);
+          cell[ix] = result;
+          if (root.nested == null) {
+            root.nested = new ArrayList<BaseVar>();
+          }
+          root.nested.add(result);
+          created = true;
+          notify = root.takeWaiters(full);
+        } else {
+          result = (BaseVar)cell[ix];
+        }
+      }
+      if (created) {
+        notifyFields(notify);
+      } else {
+        result.incrWriters(callerWriteRefs);
+      }
+      decrWriters(writeDecr);
+      return result;
+    }
+
+    @Override
+    protected void closed() {
+      List<BaseVar> toRelease;
+      synchronized (this) {
+        toRelease = nested;
+        nested = null;
+        if (fieldWaiters != null && !fieldWaiters.isEmpty()) {
+          throw new InvalidReadException(describe(fieldWaiters.get(0).path)
+                             + " will never be assigned: struct closed");
+        }
+      }
+      if (toRelease != null) {
+        for (BaseVar v: toRelease) {
+          v.decrWriters(1);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      if (root == this) {
+        return "<" + type.name + "@" +
+               Integer.toHexString(System.identityHashCode(this)) + ">";
+      }
+      return describe(prefix);
+    }
+
+    private static class FieldWaiter {
+      final int[] path;
+      final BaseVar var;
+      final NotifyTarget target;
+
+      FieldWaiter(int[] path, BaseVar var, NotifyTarget target) {
+        this.path = path;
+        this.var = var;
+        this.target = target;
+      }
+    }
+  }
+
+  /**
+   * Future referring to a non-struct field of a struct
+   */
+  public static class FieldSlot extends ScalarVar {
+    private final StructVar struct;
+    private final int[] path;
+
+    private FieldSlot(StructVar struct, int[] path) {
+      super(0);
+      this.struct = struct;
+      this.path = path;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return struct.isSet(path);
+    }
+
+    @Override
+    public boolean isSet() {
+      return struct.isSet(path);
+    }
+
+    @Override
+    public Object get() {
+      return struct.get(path);
+    }
+
+    @Override
+    public void set(Object value) {
+      struct.store(path, value, 1);
+    }
+
+    @Override
+    public boolean subscribe(NotifyTarget target) {
+      return struct.subscribeField(path, this, target);
+    }
+
+    @Override
+    public String toString() {
+      return struct.describe(path);
     }
   }
 }
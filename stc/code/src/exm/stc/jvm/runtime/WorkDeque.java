@@ -0,0 +1,117 @@
+package exm.stc.jvm.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free work-stealing deque, after Chase and Lev, "Dynamic Circular
+ * Work-Stealing Deque" (SPAA 2005).
+ *
+ * The owning worker pushes and pops at the bottom without contention
+ * except when one task is left.  Other workers steal from the top with a
+ * compare-and-swap.  The array grows as needed and never shrinks.
+ */
+class WorkDeque {
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** Index of next task to steal: only ever incremented */
+  private final AtomicLong top = new AtomicLong();
+
+  /** Index of next free slot: only written by owner */
+  private volatile long bottom = 0;
+
+  /** Circular array with power of two size */
+  private volatile AtomicReferenceArray<Task> tasks =
+                        new AtomicReferenceArray<Task>(INITIAL_CAPACITY);
+
+  /**
+   * Add task at bottom.  Must only be called by owner.
+   */
+  public void push(Task task) {
+    long b = bottom;
+    long t = top.get();
+    AtomicReferenceArray<Task> a = tasks;
+    if (b - t >= a.length() - 1) {
+      a = grow(a, b, t);
+    }
+    a.lazySet((int)b & (a.length() - 1), task);
+    // Volatile write publishes task to thieves
+    bottom = b + 1;
+  }
+
+  /**
+   * Remove most recently pushed task.  Must only be called by owner.
+   * @return the task, or null if empty
+   */
+  public Task pop() {
+    long b = bottom - 1;
+    AtomicReferenceArray<Task> a = tasks;
+    // Volatile write then read of top: thieves see reservation
+    bottom = b;
+    long t = top.get();
+    long size = b - t;
+    if (size < 0) {
+      // Was empty
+      bottom = t;
+      return null;
+    }
+    int i = (int)b & (a.length() - 1);
+    Task task = a.get(i);
+    if (size > 0) {
+      a.lazySet(i, null);
+      return task;
+    }
+    // Last task: race with thieves
+    if (top.compareAndSet(t, t + 1)) {
+      a.compareAndSet(i, task, null);
+    } else {
+      task = null;
+    }
+    bottom = t + 1;
+    return task;
+  }
+
+  /**
+   * Remove least recently pushed task.  Can be called by any thread.
+   * @return the task, or null if empty or another thread won a race for
+   *         the task
+   */
+  public Task steal() {
+    long t = top.get();
+    long b = bottom;
+    if (t >= b) {
+      return null;
+    }
+    AtomicReferenceArray<Task> a = tasks;
+    int i = (int)t & (a.length() - 1);
+    Task task = a.get(i);
+    if (task == null || !top.compareAndSet(t, t + 1)) {
+      return null;
+    }
+    // Clear slot unless owner already reused it
+    a.compareAndSet(i, task, null);
+    return task;
+  }
+
+  public boolean isEmpty() {
+    return top.get() >= bottom;
+  }
+
+  public int size() {
+    return (int)Math.max(0, bottom - top.get());
+  }
+
+  private AtomicReferenceArray<Task> grow(AtomicReferenceArray<Task> old,
+                                          long b, long t) {
+    int oldMask = old.length() - 1;
+    AtomicReferenceArray<Task> a =
+                new AtomicReferenceArray<Task>(old.length() * 2);
+    int mask = a.length() - 1;
+    for (long i = t; i < b; i++) {
+      a.lazySet((int)i & mask, old.get((int)i & oldMask));
+    }
+    // Old array still valid for thieves that already read it
+    tasks = a;
+    return a;
+  }
+}
@@ -23,7 +23,6 @@ import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 
-import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.AsyncExecutor;
 import exm.stc.common.lang.ExecContext;
@@ -1351,11 +1350,7 @@ class Turbine {
    */
   public static TclTree incrRef(Expression var, Expression change) {
     assert(change != null);
-    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
-      return new Command(REFCOUNT_INCR, var, change);
-    } else {
-      return new Token("");
-    }
+    return new Command(REFCOUNT_INCR, var, change);
   }
 
   /**
@@ -1367,11 +1362,7 @@ class Turbine {
    */
   public static TclTree decrRef(Expression var, Expression change) {
     assert(change != null);
-    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
-      return new Command(REFCOUNT_DECR, var, change);
-    } else {
-      return new Token("");
-    }
+    return new Command(REFCOUNT_DECR, var, change);
   }
 
   /**
@@ -1383,20 +1374,12 @@ class Turbine {
    */
   public static TclTree incrFileRef(Expression var, Expression change) {
     assert(change != null);
-    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
-      return new Command(FILE_REFCOUNT_INCR, var, change);
-    } else {
-      return new Token("");
-    }
+    return new Command(FILE_REFCOUNT_INCR, var, change);
   }
 
   public static TclTree decrFileRef(Expression var, Expression change) {
     assert(change != null);
-    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
-      return new Command(FILE_REFCOUNT_DECR, var, change);
-    } else {
-      return new Token("");
-    }
+    return new Command(FILE_REFCOUNT_DECR, var, change);
   }
 
   public static Expression dictSize(Value tclDict) {
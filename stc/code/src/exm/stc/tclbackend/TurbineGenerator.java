@@ -20,10 +20,12 @@
  */
 package exm.stc.tclbackend;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -35,11 +37,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
 
 import com.google.common.collect.ListMultimap;
 
 import exm.stc.common.CompilerBackend;
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
@@ -48,7 +52,6 @@ import exm.stc.common.exceptions.TypeMismatchException;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
 import exm.stc.common.lang.AsyncExecutor;
-import exm.stc.common.lang.CompileTimeArgs;
 import exm.stc.common.lang.ExecContext;
 import exm.stc.common.lang.ExecContext.WorkContext;
 import exm.stc.common.lang.ExecTarget;
@@ -126,12 +129,22 @@ public class TurbineGenerator implements CompilerBackend {
 
   private ForeignFunctions foreignFuncs = null;
 
+  /**
+   * Settings for this compilation
+   */
+  private final CompilerOptions compilerOptions;
+
+  private final boolean refcountingEnabled;
+
   /**
      This prevents duplicate "lappend auto_path" statements
      We use a List because these should stay in order
    */
   private final List<String> autoPaths = new ArrayList<String>();
 
+  /** Buffer size for writing generated code */
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
   private static final String TCLTMP_SPLITLEN = "tcltmp:splitlen";
   private static final String TCLTMP_SPLITEND = "tcltmp:splitend";
   private static final String TCLTMP_CONTAINER_SIZE = "tcltmp:container_sz";
@@ -231,7 +244,7 @@ public class TurbineGenerator implements CompilerBackend {
    */
   private final StackLite<ExecContext> execContextStack = new StackLite<ExecContext>();
 
-  private final String turbineVersion = Settings.get(Settings.TURBINE_VERSION);
+  private final String turbineVersion;
 
   private final HashSet<String> usedTclFunctionNames = new HashSet<String>();
 
@@ -290,10 +303,15 @@ public class TurbineGenerator implements CompilerBackend {
 
   private final List<VarDecl> globalVars = new ArrayList<VarDecl>();
 
-  public TurbineGenerator(Logger logger, String timestamp)
+  public TurbineGenerator(Logger logger, String timestamp,
+                          CompilerOptions compilerOptions)
   {
     this.logger = logger;
     this.timestamp = timestamp;
+    this.compilerOptions = compilerOptions;
+    this.turbineVersion = compilerOptions.get(Settings.TURBINE_VERSION);
+    this.refcountingEnabled = compilerOptions.getBoolean(
+                                        Settings.ENABLE_REFCOUNTING);
     pointPush(tree);
 
     execContextStack.push(ExecContext.control());
@@ -304,30 +322,6 @@ public class TurbineGenerator implements CompilerBackend {
     this.options = options;
     this.foreignFuncs = foreignFuncs;
 
-    //String[] rpaths = Settings.getRpaths();
-    File input_file   = new File(Settings.get(Settings.INPUT_FILENAME));
-    File output_file  = new File(Settings.get(Settings.OUTPUT_FILENAME));
-    tree.add(new Text(""));
-    tree.add(new Comment("Generated by stc version " + Settings.get(Settings.STC_VERSION)));
-    tree.add(new Comment("date                    : " + timestamp));
-    tree.add(new Comment("Turbine version         : " + this.turbineVersion));
-    tree.add(new Comment("Input filename          : " + input_file.getAbsolutePath() ));
-    tree.add(new Comment("Output filename         : " + output_file.getAbsolutePath() ));
-    tree.add(new Comment("STC home                : " + Settings.get(Settings.STC_HOME)) );
-    tree.add(new Comment("Turbine home            : " + Settings.get(Settings.TURBINE_HOME)) );
-    tree.add(new Comment("Compiler settings:"));
-    for (String key: Settings.getKeys()) {
-      tree.add(new Comment(String.format("%-30s: %s", key, Settings.get(key))));
-    }
-    tree.add(new Text(""));
-
-    tree.add(new Comment("Metadata:"));
-    for (Pair<String, String> kv: Settings.getMetadata()) {
-      tree.add(new Comment(String.format("%-30s: %s", kv.val1, kv.val2)));
-    }
-
-    tree.add(new Text(""));
-
     addAutoPaths();
 
     tree.add(new Command("package require turbine", turbineVersion));
@@ -340,8 +334,45 @@ public class TurbineGenerator implements CompilerBackend {
     tree.add(globInitProc);
   }
 
+  /**
+   * Comment block at the top of the output file, recording how it was
+   * generated.  Depends only on settings, not on the program.
+   * @param options
+   * @param timestamp
+   * @return Tcl text
+   */
+  public static String fileHeader(CompilerOptions options, String timestamp) {
+    Sequence header = new Sequence();
+    File input_file   = new File(options.get(Settings.INPUT_FILENAME));
+    File output_file  = new File(options.get(Settings.OUTPUT_FILENAME));
+    header.add(new Text(""));
+    header.add(new Comment("Generated by stc version " + options.get(Settings.STC_VERSION)));
+    header.add(new Comment("date                    : " + timestamp));
+    header.add(new Comment("Turbine version         : " + options.get(Settings.TURBINE_VERSION)));
+    header.add(new Comment("Input filename          : " + input_file.getAbsolutePath() ));
+    header.add(new Comment("Output filename         : " + output_file.getAbsolutePath() ));
+    header.add(new Comment("STC home                : " + options.get(Settings.STC_HOME)) );
+    header.add(new Comment("Turbine home            : " + options.get(Settings.TURBINE_HOME)) );
+    header.add(new Comment("Compiler settings:"));
+    for (String key: options.getKeys()) {
+      header.add(new Comment(String.format("%-30s: %s", key, options.get(key))));
+    }
+    header.add(new Text(""));
+
+    header.add(new Comment("Metadata:"));
+    for (Pair<String, String> kv: options.getMetadata()) {
+      header.add(new Comment(String.format("%-30s: %s", kv.val1, kv.val2)));
+    }
+
+    header.add(new Text(""));
+
+    StringBuilder sb = new StringBuilder();
+    header.appendTo(sb);
+    return sb.toString();
+  }
+
   private void addAutoPaths() {
-    String[] rpaths = Settings.getRpaths();
+    String[] rpaths = compilerOptions.getRpaths();
     // Uniquify:
     for (String rpath : rpaths)
       if (rpath.length() > 0)
@@ -362,7 +393,7 @@ public class TurbineGenerator implements CompilerBackend {
     tree.add(new Command("turbine::init $servers \"Swift\""));
     tree.add(checkWorkTypes());
 
-    if (Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
+    if (refcountingEnabled) {
       tree.add(Turbine.enableReferenceCounting());
     }
 
@@ -420,7 +451,7 @@ public class TurbineGenerator implements CompilerBackend {
   }
 
   private Sequence compileTimeArgs() {
-    Map<String, String> args = CompileTimeArgs.getCompileTimeArgs();
+    Map<String, String> args = compilerOptions.getCompileTimeArgs();
     Sequence seq = new Sequence();
     if (!args.isEmpty()) {
       for (String key: args.keySet()) {
@@ -450,28 +481,47 @@ public class TurbineGenerator implements CompilerBackend {
    */
   @Override
   public void generate(OutputStream output) throws IOException {
-    StringBuilder sb = new StringBuilder(10*1024);
+    generate(output, null);
+  }
+
+  /**
+   * Generate output, also copying everything after the file header
+   * to another stream.
+   * @param output
+   * @param bodyCopy if not null, receives the code after the header
+   * @throws IOException
+   */
+  public void generate(OutputStream output, OutputStream bodyCopy)
+      throws IOException {
+    Writer header = new OutputStreamWriter(output);
+    header.write(fileHeader(compilerOptions, timestamp));
+    header.flush();
+
+    // Code is streamed to output as it is generated
+    OutputStream bodyOut = output;
+    if (bodyCopy != null) {
+      bodyOut = new TeeOutputStream(output, bodyCopy);
+    }
+    Writer w = new BufferedWriter(new OutputStreamWriter(bodyOut),
+                                  OUTPUT_BUFFER_SIZE);
     try
     {
-      tree.appendTo(sb);
+      tree.appendTo(w);
     }
-    catch (Exception e)
+    catch (RuntimeException e)
     {
       System.out.println("CODE GENERATOR INTERNAL ERROR");
       System.out.println(e.getMessage());
       e.printStackTrace();
-      System.out.println("code generated before error:");
-      System.out.println(sb);
       System.out.println("exiting");
       throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
     }
-    OutputStreamWriter w = new OutputStreamWriter(output);
-    w.write(sb.toString());
     // Check everything is flushed to underlying stream
     w.flush();
   }
 
 
+
   @Override
   public void declareStructType(StructType st) {
     structTypes.newType(st);
@@ -582,7 +632,7 @@ public class TurbineGenerator implements CompilerBackend {
         continue;
       }
 
-      if (!Settings.getBooleanUnchecked(Settings.ENABLE_REFCOUNTING)) {
+      if (!refcountingEnabled) {
         // Have initial* set to regular amount to avoid bugs with reference counting
         initReaders = Arg.ONE;
       }
@@ -2427,8 +2477,11 @@ public class TurbineGenerator implements CompilerBackend {
      * @param negate if true, then negate incr
      * @return
      */
-    private static Sequence buildIncReaders(List<Var> vars, Expression incr, boolean negate) {
+    private Sequence buildIncReaders(List<Var> vars, Expression incr, boolean negate) {
       Sequence seq = new Sequence();
+      if (!refcountingEnabled) {
+        return seq;
+      }
       for (VarCount vc: Var.countVars(vars)) {
         Var var = vc.var;
         if (!RefCounting.trackReadRefCount(var)) {
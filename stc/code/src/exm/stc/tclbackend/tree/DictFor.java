@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 /**
  * Foreach construct
  * 
@@ -52,6 +54,12 @@ public class DictFor extends Sequence
     loopBody.appendToAsBlock(sb);
     sb.append("\n");
   }
+
+  @Override
+  public void appendTo(Appendable out) throws IOException
+  {
+    appendBuffered(out);
+  }
   
 
 }
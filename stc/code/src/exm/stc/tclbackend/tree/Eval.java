@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 public class Eval extends Sequence
 {
   public Eval()
@@ -34,4 +36,20 @@ public class Eval extends Sequence
     indent(sb);
     sb.append("}\n");
   }
+
+  @Override
+  public void appendTo(Appendable out) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    indent(sb);
+    sb.append("::eval {\n");
+    out.append(sb);
+    increaseIndent();
+    super.appendTo(out);
+    decreaseIndent();
+    sb.setLength(0);
+    indent(sb);
+    sb.append("}\n");
+    out.append(sb);
+  }
 }
@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
@@ -80,6 +81,25 @@ public class Proc extends TclTree
 
   @Override
   public void appendTo(StringBuilder sb)
+  {
+    appendHeader(sb);
+    body.setIndentation(indentation+indentWidth);
+    body.appendTo(sb);
+    sb.append("}\n\n");
+  }
+
+  @Override
+  public void appendTo(Appendable out) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    appendHeader(sb);
+    out.append(sb);
+    body.setIndentation(indentation+indentWidth);
+    body.appendTo(out);
+    out.append("}\n\n");
+  }
+
+  private void appendHeader(StringBuilder sb)
   {
     indent(sb);
     sb.append("\nproc ");
@@ -87,8 +107,5 @@ public class Proc extends TclTree
     sb.append(" { ");
     sb.append(StringUtils.join(args, " "));
     sb.append(" } {\n");
-    body.setIndentation(indentation+indentWidth);
-    body.appendTo(sb);
-    sb.append("}\n\n");
   }
 }
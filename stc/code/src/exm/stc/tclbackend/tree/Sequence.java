@@ -16,6 +16,7 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -73,4 +74,12 @@ public class Sequence extends TclTree {
       member.appendTo(sb);
     }
   }
+
+  @Override
+  public void appendTo(Appendable out) throws IOException {
+    for (TclTree member: members) {
+      member.setIndentation(indentation);
+      member.appendTo(out);
+    }
+  }
 }
@@ -16,6 +16,8 @@
 
 package exm.stc.tclbackend.tree;
 
+import java.io.IOException;
+
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -33,6 +35,27 @@ public abstract class TclTree
 
   public abstract void appendTo(StringBuilder sb);
 
+  /**
+   * Write the code to a stream.  Output is the same as
+   * appendTo(StringBuilder), but trees with many statements override
+   * this to write them one at a time, so that the code for the whole
+   * program doesn't need to be built in memory.
+   * @param out
+   * @throws IOException
+   */
+  public void appendTo(Appendable out) throws IOException {
+    appendBuffered(out);
+  }
+
+  /**
+   * Build the code for this tree in memory, then write it
+   */
+  protected final void appendBuffered(Appendable out) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    appendTo(sb);
+    out.append(sb);
+  }
+
   /**
    * Append the body to the StringBuilder inside
    * curly braces.
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import exm.stc.ast.SyntaxErrorListener;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.frontend.ModuleCache;
+import exm.stc.ui.InMemoryCompiler.Diagnostic;
+import exm.stc.ui.InMemoryCompiler.DiagnosticRecorder;
+import exm.stc.ui.InMemoryCompiler.Severity;
+
+/**
+ * Compile many programs in one JVM.  Modules imported by several
+ * programs, such as builtins, are parsed once and shared, and programs are
+ * compiled concurrently on a thread pool.  Each program gets its own
+ * diagnostics and exit code, as if it had been compiled on its own.
+ *
+ * Semantic checking of imported modules is still done for each program,
+ * since it generates code into that program.
+ */
+public class BatchCompiler {
+
+  /** Exit code for preprocessor failure, same as single compilation */
+  private static final int PREPROCESSOR_ERROR = 1;
+
+  /**
+   * A program to compile
+   */
+  public static class Job {
+    public final String inputFile;
+    public final String outputFile;
+
+    public Job(String inputFile, String outputFile) {
+      this.inputFile = inputFile;
+      this.outputFile = outputFile;
+    }
+  }
+
+  /**
+   * Outcome of compiling one program
+   */
+  public static class Result {
+    public final Job job;
+    public final int exitCode;
+    /** Errors and warnings, in the order they were reported */
+    public final List<Diagnostic> diagnostics;
+
+    private Result(Job job, int exitCode, List<Diagnostic> diagnostics) {
+      this.job = job;
+      this.exitCode = exitCode;
+      this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    public boolean succeeded() {
+      return exitCode == ExitCode.SUCCESS.code();
+    }
+  }
+
+  private final CompilerOptions options;
+  private final int threads;
+  private final boolean preprocess;
+  private final List<String> preprocessorMacros;
+  private final File workingDir;
+  private final ModuleCache sharedModules = new ModuleCache();
+
+  /**
+   * @param options settings for all programs.  Input and output file
+   *                names are set for each program.
+   * @param threads number of programs to compile at once
+   * @param preprocess if true, run programs through C preprocessor
+   * @param preprocessorMacros definitions for preprocessor
+   * @param workingDir directory to run preprocessor in, or null for
+   *                   the working directory of the JVM
+   */
+  public BatchCompiler(CompilerOptions options, int threads,
+          boolean preprocess, List<String> preprocessorMacros,
+          File workingDir) {
+    assert(threads > 0);
+    // Programs are compiled in parallel instead of optimizer passes,
+    // and the per-thread log only covers the compiling thread
+    this.options = options.with(Settings.OPT_THREADS, "1");
+    this.threads = threads;
+    this.preprocess = preprocess;
+    this.preprocessorMacros = preprocessorMacros;
+    this.workingDir = workingDir;
+  }
+
+  /**
+   * Compile all programs, writing output files for successful ones
+   * @param jobs
+   * @return results in same order as jobs
+   */
+  public List<Result> compileAll(List<Job> jobs) {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Result>> futures = new ArrayList<Future<Result>>();
+      for (final Job job: jobs) {
+        futures.add(pool.submit(new Callable<Result>() {
+          @Override
+          public Result call() {
+            return compile(job);
+          }
+        }));
+      }
+
+      List<Result> results = new ArrayList<Result>(jobs.size());
+      for (Future<Result> future: futures) {
+        results.add(waitFor(future));
+      }
+      return results;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static Result waitFor(Future<Result> future) {
+    while (true) {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        // Keep waiting
+      } catch (ExecutionException e) {
+        throw new STCRuntimeError("Unexpected error in batch compile",
+                                  e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Compile a single program in the current thread
+   */
+  private Result compile(Job job) {
+    final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+    SyntaxErrorListener syntaxErrors = new SyntaxErrorListener() {
+      @Override
+      public void syntaxError(String file, int line, int col, String msg) {
+        diagnostics.add(new Diagnostic(Severity.ERROR, file, line, col, msg));
+      }
+    };
+
+    Logger logger = Logging.startThreadLog(
+                          new DiagnosticRecorder(diagnostics));
+    File preprocessed = null;
+    int exitCode;
+    try {
+      String parseFile = job.inputFile;
+      if (!new File(job.inputFile).canRead()) {
+        diagnostics.add(new Diagnostic(Severity.ERROR,
+            "Input file \"" + job.inputFile + "\" is not readable"));
+        exitCode = ExitCode.ERROR_IO.code();
+      } else if (preprocess &&
+          (preprocessed = preprocess(logger, job, diagnostics)) == null) {
+        exitCode = PREPROCESSOR_ERROR;
+      } else {
+        if (preprocessed != null) {
+          parseFile = preprocessed.getPath();
+        }
+        CompilerOptions jobOptions = options
+            .with(Settings.INPUT_FILENAME, job.inputFile)
+            .with(Settings.OUTPUT_FILENAME, job.outputFile);
+        STCompiler stc = new STCompiler(logger, jobOptions, null,
+                                        syntaxErrors, sharedModules);
+        compileToOutput(stc, parseFile, job.inputFile,
+                        new File(job.outputFile));
+        exitCode = ExitCode.SUCCESS.code();
+      }
+    } catch (UserException e) {
+      diagnostics.add(new Diagnostic(Severity.ERROR, e.getFile(),
+                        e.getLine(), e.getColumn(), e.getDescription()));
+      exitCode = ExitCode.ERROR_USER.code();
+    } catch (IOException e) {
+      diagnostics.add(new Diagnostic(Severity.ERROR,
+            "Error writing " + job.outputFile + ": " + e.getMessage()));
+      exitCode = ExitCode.ERROR_IO.code();
+    } catch (STCFatal e) {
+      // Cause was already reported to a listener
+      exitCode = e.exitCode;
+    } catch (Throwable e) {
+      STCompiler.reportInternalError(logger, e);
+      exitCode = ExitCode.ERROR_INTERNAL.code();
+    } finally {
+      Logging.endThreadLog();
+      if (preprocessed != null) {
+        preprocessed.delete();
+      }
+    }
+    return new Result(job, exitCode, diagnostics);
+  }
+
+  /**
+   * @return preprocessed file, or null if preprocessing failed
+   */
+  private File preprocess(Logger logger, Job job,
+          List<Diagnostic> diagnostics) throws IOException {
+    File result = File.createTempFile("stc-preproc", ".swift");
+    Preprocessor.Result cpp;
+    try {
+      cpp = Preprocessor.run(workingDir, job.inputFile, result.getPath(),
+                             preprocessorMacros);
+    } catch (IOException e) {
+      result.delete();
+      diagnostics.add(new Diagnostic(Severity.ERROR, e.getMessage()));
+      return null;
+    }
+    if (cpp.exitCode != 0) {
+      result.delete();
+      diagnostics.add(new Diagnostic(Severity.ERROR, cpp.stderr +
+          "Failure in cpp preprocessor invoked as: " + cpp.command +
+          ". Exit code was " + cpp.exitCode + "."));
+      return null;
+    } else if (cpp.stderr.length() != 0) {
+      logger.warn("Preprocessor warnings:\n" + cpp.stderr);
+    }
+    return result;
+  }
+
+  /**
+   * Compile, streaming code to a temporary file next to the output, which
+   * is then renamed so that the output is never partially written.
+   */
+  private void compileToOutput(STCompiler stc, String parseFile,
+          String inputFile, File output) throws UserException, IOException {
+    File dir = output.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile("." + output.getName() + ".", ".tmp",
+                                   dir);
+    try {
+      OutputStream code = new BufferedOutputStream(
+                                new FileOutputStream(tmp));
+      try {
+        stc.compileFile(parseFile, inputFile, preprocess, code);
+      } finally {
+        code.close();
+      }
+      try {
+        Files.move(tmp.toPath(), output.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), output.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      tmp.delete();
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import exm.stc.common.Settings;
+
+/**
+ * Long-running compile server.  Keeps a JVM with the compiler loaded
+ * and JIT-compiled so that each invocation of bin/stc does not pay for
+ * JVM startup and warmup.
+ *
+ * The server listens on a loopback TCP port (the JVMs we support have
+ * no UNIX-domain sockets), and writes the port and a random token
+ * to a port file readable only by the user.  Clients must present the
+ * token.
+ *
+ * Requests are processed one at a time, since compiler settings are global.
+ *
+ * Protocol: all messages are UTF-8 lines.  The client sends:
+ * <pre>
+ *   STC-SERVER 1
+ *   token TOKEN
+ *   cwd DIRECTORY
+ *   env NAME=VALUE     (zero or more: client's environment variables)
+ *   prop KEY=VALUE     (zero or more: compiler properties)
+ *   arg ARG            (zero or more: command line arguments for Main)
+ *   end                (or shutdown, to stop the server)
+ * </pre>
+ * If any env lines are sent, they replace the server's environment for
+ * the request, so that e.g. cache directories and the preprocessor's
+ * search path are the same as when compiling in a fresh JVM.
+ * The server replies with any number of "out LINE" and "err LINE" lines
+ * holding compiler stdout and stderr, sent as they are printed, then
+ * "exit CODE".  If the server cannot handle the request it replies
+ * "reject REASON" and the client should compile in a fresh JVM instead.
+ */
+public class CompileServer {
+
+  public static final String PROTOCOL = "STC-SERVER 1";
+
+  /** Give up on clients that stall mid-request */
+  private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File portFile;
+  private final String token;
+  private final PrintStream serverOut;
+  private final PrintStream serverErr;
+
+  private CompileServer(File portFile) {
+    this.portFile = portFile;
+    this.token = makeToken();
+    this.serverOut = System.out;
+    this.serverErr = System.err;
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.err.println("Usage: CompileServer <port file>");
+      System.exit(ExitCode.ERROR_COMMAND.code());
+    }
+
+    CompileServer server = new CompileServer(new File(args[0]));
+    try {
+      server.serve();
+    } catch (IOException e) {
+      System.err.println("stc server: " + e.getMessage());
+      System.exit(ExitCode.ERROR_IO.code());
+    }
+  }
+
+  private void serve() throws IOException {
+    ServerSocket socket = new ServerSocket(0, 50,
+                                    InetAddress.getLoopbackAddress());
+    try {
+      writePortFile(socket.getLocalPort());
+      serverOut.println("stc server: listening on port " +
+                        socket.getLocalPort() + " (" + portFile + ")");
+
+      boolean shutdown = false;
+      while (!shutdown) {
+        Socket client = socket.accept();
+        try {
+          shutdown = handle(client);
+        } catch (IOException e) {
+          serverErr.println("stc server: error handling request: " +
+                            e.getMessage());
+        } finally {
+          client.close();
+        }
+      }
+    } finally {
+      portFile.delete();
+      socket.close();
+    }
+    serverOut.println("stc server: shut down");
+  }
+
+  /**
+   * Handle a single client connection
+   * @param client
+   * @return true if server should shut down
+   * @throws IOException
+   */
+  private boolean handle(Socket client) throws IOException {
+    client.setSoTimeout(READ_TIMEOUT_MS);
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(client.getInputStream(), UTF8));
+    Writer out = new BufferedWriter(
+        new OutputStreamWriter(client.getOutputStream(), UTF8));
+
+    if (!PROTOCOL.equals(in.readLine())) {
+      reply(out, "reject", "unknown protocol");
+      return false;
+    }
+
+    File workingDir = null;
+    Map<String, String> env = null;
+    Properties props = new Properties();
+    List<String> args = new ArrayList<String>();
+    boolean authenticated = false;
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.equals("end") || line.equals("shutdown")) {
+        break;
+      }
+      int split = line.indexOf(' ');
+      String key = split < 0 ? line : line.substring(0, split);
+      String val = split < 0 ? "" : line.substring(split + 1);
+      if (key.equals("token")) {
+        authenticated = token.equals(val);
+      } else if (key.equals("cwd")) {
+        workingDir = new File(val);
+      } else if (key.equals("env")) {
+        int eq = val.indexOf('=');
+        if (eq > 0) {
+          if (env == null) {
+            env = new HashMap<String, String>();
+          }
+          env.put(val.substring(0, eq), val.substring(eq + 1));
+        }
+      } else if (key.equals("prop")) {
+        int eq = val.indexOf('=');
+        if (eq > 0) {
+          props.setProperty(val.substring(0, eq), val.substring(eq + 1));
+        }
+      } else if (key.equals("arg")) {
+        args.add(val);
+      } else {
+        reply(out, "reject", "unknown request line: " + key);
+        return false;
+      }
+    }
+
+    if (!authenticated) {
+      reply(out, "reject", "bad token");
+      return false;
+    } else if (line == null) {
+      reply(out, "reject", "incomplete request");
+      return false;
+    } else if (line.equals("shutdown")) {
+      reply(out, "exit", Integer.toString(ExitCode.SUCCESS.code()));
+      return true;
+    } else if (workingDir == null || !workingDir.isAbsolute()) {
+      reply(out, "reject", "working directory must be absolute");
+      return false;
+    } else if (!sameInstallation(props)) {
+      reply(out, "reject", "server runs a different STC installation");
+      return false;
+    }
+
+    compile(out, args.toArray(new String[args.size()]), workingDir, env,
+            props);
+    return false;
+  }
+
+  /**
+   * Run the compiler, forwarding anything it prints to the client
+   */
+  private void compile(Writer out, String[] args, File workingDir,
+                       Map<String, String> env, Properties props)
+                           throws IOException {
+    LineForwarder stdout = new LineForwarder(out, "out");
+    LineForwarder stderr = new LineForwarder(out, "err");
+    int exitCode;
+    System.setOut(new PrintStream(stdout, true));
+    System.setErr(new PrintStream(stderr, true));
+    try {
+      exitCode = Main.run(args, workingDir, env, props);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      exitCode = ExitCode.ERROR_INTERNAL.code();
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      System.setOut(serverOut);
+      System.setErr(serverErr);
+    }
+
+    stdout.close();
+    stderr.close();
+    synchronized (out) {
+      reply(out, "exit", Integer.toString(exitCode));
+    }
+  }
+
+  /**
+   * Check that the client would have run the same compiler as us
+   */
+  private static boolean sameInstallation(Properties props) {
+    String clientHome = props.getProperty(Settings.STC_HOME);
+    String serverHome = System.getProperty(Settings.STC_HOME);
+    if (clientHome == null || serverHome == null) {
+      return clientHome == serverHome;
+    }
+    try {
+      return new File(clientHome).getCanonicalPath().equals(
+             new File(serverHome).getCanonicalPath());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void reply(Writer out, String kind, String msg)
+      throws IOException {
+    out.write(kind + " " + msg + "\n");
+    out.flush();
+  }
+
+  /**
+   * Sends each line written to it to the client as a reply line as soon
+   * as it is complete.  Compiler threads may print concurrently, so
+   * writes to the client are synchronized on its writer.
+   */
+  private static class LineForwarder extends OutputStream {
+    private final Writer out;
+    private final String kind;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    LineForwarder(Writer out, String kind) {
+      this.out = out;
+      this.kind = kind;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      if (b == '\n') {
+        sendLine();
+      } else {
+        line.write(b);
+      }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+        throws IOException {
+      int start = off;
+      for (int i = off; i < off + len; i++) {
+        if (b[i] == '\n') {
+          line.write(b, start, i - start);
+          sendLine();
+          start = i + 1;
+        }
+      }
+      line.write(b, start, off + len - start);
+    }
+
+    /**
+     * Send any incomplete last line
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      if (line.size() > 0) {
+        sendLine();
+      }
+    }
+
+    private void sendLine() throws IOException {
+      String text = new String(line.toByteArray(), UTF8);
+      line.reset();
+      if (text.endsWith("\r")) {
+        text = text.substring(0, text.length() - 1);
+      }
+      synchronized (out) {
+        reply(out, kind, text);
+      }
+    }
+  }
+
+  /**
+   * Atomically write port file, only readable by this user
+   */
+  private void writePortFile(int port) throws IOException {
+    File dir = portFile.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+    File tmp = File.createTempFile("stc-server", ".tmp", dir);
+    try {
+      Files.setPosixFilePermissions(tmp.toPath(),
+                      PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system: rely on directory permissions
+    }
+    Files.write(tmp.toPath(), (port + " " + token + "\n").getBytes(UTF8));
+    Files.move(tmp.toPath(), portFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String makeToken() {
+    byte bytes[] = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b: bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
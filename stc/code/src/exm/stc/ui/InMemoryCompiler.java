@@ -0,0 +1,277 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import exm.stc.ast.SyntaxErrorListener;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCFatal;
+import exm.stc.common.exceptions.UserException;
+import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.frontend.ModuleResolver;
+
+/**
+ * Library interface to compile Swift programs held in memory, for
+ * applications that generate programs and want to avoid starting the
+ * compiler in a separate process.
+ *
+ * Source code is passed in directly and imported modules are looked up
+ * with a {@link ModuleResolver} before the module search path.  The
+ * preprocessor isn't run, no temporary or output files are written, and
+ * nothing is printed: the generated code and any errors or warnings are
+ * returned in a {@link Result}.
+ *
+ * Instances may be shared between threads.  The compiler still keeps its
+ * settings in global state, so compilations in the same JVM (including
+ * those through {@link Main}) take turns rather than running concurrently.
+ */
+public class InMemoryCompiler {
+
+  /** Held while compiling, since settings and logging are global */
+  private static final Object compileLock = new Object();
+
+  private final ModuleResolver resolver;
+
+  public InMemoryCompiler() {
+    this(null);
+  }
+
+  /**
+   * @param resolver if not null, provides source for imported modules.
+   *          Must be safe to call from any thread.
+   */
+  public InMemoryCompiler(ModuleResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  public Result compile(String moduleName, Reader source, Properties options)
+                       throws IOException {
+    return compile(moduleName, IOUtils.toString(source), options);
+  }
+
+  /**
+   * Compile a main module
+   * @param moduleName name of main module, used in error messages
+   * @param source Swift source code
+   * @param options compiler settings, e.g. {@link Settings#TARGET},
+   *          which take precedence over System properties.  May be null.
+   * @return the generated code if compilation succeeded, and diagnostics
+   */
+  public Result compile(String moduleName, String source,
+                        Properties options) {
+    final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+    SyntaxErrorListener syntaxErrors = new SyntaxErrorListener() {
+      @Override
+      public void syntaxError(String file, int line, int col, String msg) {
+        diagnostics.add(new Diagnostic(Severity.ERROR, file, line, col, msg));
+      }
+    };
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    int exitCode;
+    synchronized (compileLock) {
+      Settings.reset();
+      CompileTimeArgs.reset();
+      try {
+        Settings.initSTCProperties(options);
+      } catch (InvalidOptionException e) {
+        diagnostics.add(new Diagnostic(Severity.ERROR, e.getMessage()));
+        return new Result(ExitCode.ERROR_COMMAND.code(), null, diagnostics);
+      }
+
+      CompilerOptions compilerOptions = CompilerOptions.fromSettings();
+      DiagnosticRecorder recorder = new DiagnosticRecorder(diagnostics);
+      Logger logger = Logging.setupLogging(recorder);
+      try {
+        STCompiler stc = new STCompiler(logger, compilerOptions, resolver,
+                                        syntaxErrors);
+        stc.compileSource(moduleName, source, output);
+        exitCode = ExitCode.SUCCESS.code();
+      } catch (UserException e) {
+        diagnostics.add(new Diagnostic(Severity.ERROR, e.getFile(),
+                          e.getLine(), e.getColumn(), e.getDescription()));
+        exitCode = ExitCode.ERROR_USER.code();
+      } catch (STCFatal e) {
+        // Cause was already reported to a listener
+        exitCode = e.exitCode;
+      } catch (Throwable e) {
+        STCompiler.reportInternalError(logger, e);
+        exitCode = ExitCode.ERROR_INTERNAL.code();
+      } finally {
+        logger.removeAppender(recorder);
+      }
+    }
+
+    String code = null;
+    if (exitCode == ExitCode.SUCCESS.code()) {
+      try {
+        code = output.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return new Result(exitCode, code, diagnostics);
+  }
+
+  public static enum Severity {
+    ERROR,
+    WARNING,
+  }
+
+  /**
+   * An error or warning from the compiler
+   */
+  public static class Diagnostic {
+    public final Severity severity;
+    /** Source file, or null if not known */
+    public final String file;
+    /** Line number, or -1 if not known */
+    public final int line;
+    /** Zero-based column, or -1 if not known */
+    public final int column;
+    public final String message;
+
+    public Diagnostic(Severity severity, String file, int line, int column,
+                      String message) {
+      this.severity = severity;
+      this.file = file;
+      this.line = line;
+      this.column = column;
+      this.message = message;
+    }
+
+    public Diagnostic(Severity severity, String message) {
+      this(severity, null, -1, -1, message);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      if (file != null) {
+        sb.append(file).append(":");
+        if (line >= 0) {
+          sb.append(line).append(":");
+        }
+        if (column >= 0) {
+          sb.append(column + 1).append(":");
+        }
+        sb.append(" ");
+      }
+      return sb.append(severity.toString().toLowerCase()).append(": ")
+               .append(message).toString();
+    }
+  }
+
+  public static class Result {
+    private final int exitCode;
+    /** Generated code, null if compilation failed */
+    private final String code;
+    private final List<Diagnostic> diagnostics;
+
+    private Result(int exitCode, String code, List<Diagnostic> diagnostics) {
+      this.exitCode = exitCode;
+      this.code = code;
+      this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    public boolean succeeded() {
+      return exitCode == ExitCode.SUCCESS.code();
+    }
+
+    /**
+     * @return exit code that the command line compiler would have exited
+     *         with
+     */
+    public int exitCode() {
+      return exitCode;
+    }
+
+    /**
+     * @return the generated code, or null if compilation failed
+     */
+    public CharSequence output() {
+      return code;
+    }
+
+    /**
+     * Write the generated code
+     * @throws IllegalStateException if compilation failed
+     */
+    public void writeTo(Writer out) throws IOException {
+      if (code == null) {
+        throw new IllegalStateException("Compilation failed: no output");
+      }
+      out.write(code);
+    }
+
+    /**
+     * @return errors and warnings, in the order they were reported
+     */
+    public List<Diagnostic> diagnostics() {
+      return diagnostics;
+    }
+  }
+
+  /**
+   * Collect warnings and errors logged by the compiler
+   */
+  static class DiagnosticRecorder extends AppenderSkeleton {
+    private final List<Diagnostic> diagnostics;
+
+    DiagnosticRecorder(List<Diagnostic> diagnostics) {
+      this.diagnostics = diagnostics;
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+      Severity severity = event.getLevel().isGreaterOrEqual(Level.ERROR) ?
+                          Severity.ERROR : Severity.WARNING;
+      String msg = event.getRenderedMessage();
+      if (event.getThrowableInformation() != null) {
+        msg += ": " + event.getThrowableInformation().getThrowable();
+      }
+      diagnostics.add(new Diagnostic(severity, msg));
+    }
+
+    @Override
+    public boolean requiresLayout() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to release
+    }
+  }
+}
@@ -17,16 +17,20 @@
 package exm.stc.ui;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.commons.cli.CommandLine;
@@ -37,17 +41,18 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.apache.log4j.Logger;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.InvalidOptionException;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.STCRuntimeError;
 import exm.stc.common.lang.CompileTimeArgs;
+import exm.stc.jvm.JVMGenerator;
+import exm.stc.jvm.JVMRunner;
+import exm.stc.ui.InMemoryCompiler.Diagnostic;
 
 /**
  * Command line interface to STC compiler.  Some compiler options
@@ -59,53 +64,288 @@ public class Main {
   private static final String PREPROC_MACRO_FLAG = "D";
   private static final String INCLUDE_FLAG = "I";
   private static final String UPDATE_FLAG = "u";
-  private static final List<File> temporaries = new ArrayList<File>();
+  private static final String BATCH_FLAG = "b";
 
+  /** Directory to resolve relative paths against, null for JVM cwd */
+  private final File workingDir;
+  private final List<File> temporaries = new ArrayList<File>();
+
+  private Main(File workingDir) {
+    this.workingDir = workingDir;
+  }
 
   public static void main(String[] args) {
+    int exitCode = run(args, null, null, null);
+    if (exitCode != ExitCode.SUCCESS.code()) {
+      System.exit(exitCode);
+    }
+  }
 
-    Args stcArgs = processArgs(args);
+  /**
+   * Run the compiler as if invoked from the command line.  Global
+   * settings are reset first, so this can be called repeatedly from
+   * a long-running JVM, but not concurrently.
+   * @param args command line arguments
+   * @param workingDir directory to resolve relative paths against,
+   *          or null to use the working directory of the JVM
+   * @param env environment variables to use instead of the JVM's,
+   *          or null
+   * @param overrides properties that take precedence over System
+   *          properties, or null
+   * @return exit code
+   */
+  public static int run(String[] args, File workingDir,
+                        Map<String, String> env, Properties overrides) {
+    Settings.reset();
+    CompileTimeArgs.reset();
+    if (workingDir != null) {
+      Settings.set(Settings.WORKING_DIR, workingDir.getPath());
+    }
+    Settings.setEnvironment(env);
+
+    Main main = new Main(workingDir);
+    try {
+      main.compile(main.processArgs(args), overrides);
+      return ExitCode.SUCCESS.code();
+    } catch (STCFatal ex) {
+      return ex.exitCode;
+    } finally {
+      main.cleanupTemporaries();
+    }
+  }
 
+  private void compile(Args stcArgs, Properties overrides) {
     try {
-      Settings.initSTCProperties();
+      Settings.initSTCProperties(overrides);
+      resolveSetting(Settings.LOG_FILE);
+      resolveSetting(Settings.IC_OUTPUT_FILE);
+      resolveSetting(Settings.PROFILE_REPORT);
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up options: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
     Logger logger = null;
     try {
       logger = setupLogging();
     } catch (InvalidOptionException ex) {
       System.err.println("Error setting up logging: " + ex.getMessage());
-      System.exit(1);
+      throw new STCFatal(1);
     }
 
 
     boolean preprocess = preprocessEnabled(logger);
+    if (stcArgs.batchFilename != null) {
+      compileBatch(stcArgs, preprocess);
+      return;
+    }
+    // Check before compiling so that a JRE is reported as a user error
+    if (runJVM() && !preprocessOnly() && !JVMRunner.compilerAvailable()) {
+      System.out.println("Cannot run programs: no Java compiler found.  " +
+          "Running programs needs a JDK, not a JRE: " +
+          "use stc -j /path/to/jdk/bin/java");
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+    }
     File inputFile = setupInputFile(logger, preprocess, stcArgs);
     PrintStream icOutput = setupICOutput();
+    if (runJVM() && !preprocessOnly()) {
+      compileAndRun(logger, stcArgs, inputFile, preprocess, icOutput);
+      return;
+    }
     File finalOutput = selectOutputFile(stcArgs);
 
     // Use intermediate file so we don't create invalid output in case of
     // compilation errors
-    File tmpOutput = setupTmpOutput();
+    File tmpOutput = setupTmpOutput(finalOutput);
     OutputStream outStream = openForOutput(tmpOutput);
 
     try {
       if (preprocessOnly()) {
         copyToOutput(inputFile, finalOutput);
       } else {
-        STCompiler stc = new STCompiler(logger);
+        STCompiler stc = new STCompiler(logger, CompilerOptions.fromSettings());
         stc.compile(inputFile.getPath(), stcArgs.inputFilename, preprocess,
                      outStream, icOutput);
-        copyToOutput(tmpOutput, finalOutput);
+        moveToOutput(tmpOutput, finalOutput);
       }
-
-      cleanupFiles(true, stcArgs);
     } catch (STCFatal ex) {
       // Cleanup output file if present
-      cleanupFiles(false, stcArgs);
-      System.exit(ex.exitCode);
+      cleanupOutput(stcArgs);
+      throw ex;
+    } finally {
+      // Already closed unless there was an error
+      closeQuietly(outStream);
+      if (icOutput != null) {
+        icOutput.close();
+      }
+    }
+  }
+
+  /**
+   * Compile all programs listed in the batch file in this JVM.
+   * Diagnostics are printed for each program, followed by a summary.
+   */
+  private void compileBatch(Args stcArgs, boolean preprocess) {
+    if (runJVM() || preprocessOnly()) {
+      System.out.println("Cannot run or only preprocess programs in " +
+                         "batch mode");
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+    }
+    // Programs are compiled concurrently, so they can't share these files
+    if (Settings.get(Settings.LOG_FILE).length() > 0 ||
+        Settings.get(Settings.IC_OUTPUT_FILE).length() > 0) {
+      System.out.println("Cannot write a log or IC output file in " +
+                         "batch mode");
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+    }
+    List<BatchCompiler.Job> jobs = readBatchFile(stcArgs.batchFilename);
+
+    int threads;
+    try {
+      threads = Settings.getInt(Settings.BATCH_THREADS);
+    } catch (InvalidOptionException e) {
+      throw new STCRuntimeError(e.toString());
+    }
+    if (threads == 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    long start = System.nanoTime();
+    BatchCompiler batch = new BatchCompiler(CompilerOptions.fromSettings(),
+            threads, preprocess, stcArgs.preprocessorMacros, workingDir);
+    List<BatchCompiler.Result> results = batch.compileAll(jobs);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    int failed = 0;
+    int firstFailure = ExitCode.SUCCESS.code();
+    for (BatchCompiler.Result result: results) {
+      for (Diagnostic diag: result.diagnostics) {
+        if (diag.file == null) {
+          System.err.println(result.job.inputFile + ": " + diag);
+        } else {
+          System.err.println(diag);
+        }
+      }
+      if (!result.succeeded()) {
+        System.err.println(result.job.inputFile + ": compilation failed " +
+                           "with exit code " + result.exitCode);
+        if (failed == 0) {
+          firstFailure = result.exitCode;
+        }
+        failed++;
+      }
+    }
+    System.out.println(String.format(
+        "Compiled %d programs, %d failed, in %.2fs (%.1f programs/s)",
+        results.size(), failed, seconds, results.size() / seconds));
+    if (failed > 0) {
+      throw new STCFatal(firstFailure);
+    }
+  }
+
+  /**
+   * Read list of programs to compile.  Each non-blank line has an input
+   * file and optionally an output file.  Lines starting with # are
+   * ignored.
+   */
+  private List<BatchCompiler.Job> readBatchFile(String batchFilename) {
+    List<String> lines;
+    try {
+      lines = FileUtils.readLines(new File(batchFilename), "UTF-8");
+    } catch (IOException e) {
+      System.out.println("Error reading batch file " + batchFilename + ": " +
+                         e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
+    }
+
+    List<BatchCompiler.Job> jobs = new ArrayList<BatchCompiler.Job>();
+    for (String line: lines) {
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      String files[] = line.split("\\s+");
+      if (files.length > 2) {
+        System.out.println("Expected input file and optional output file " +
+                           "in batch file, but got: " + line);
+        throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+      }
+      String input = resolve(files[0]);
+      String output;
+      if (files.length == 2) {
+        output = resolve(files[1]);
+      } else {
+        output = defaultOutputFile(input);
+      }
+      jobs.add(new BatchCompiler.Job(input, output));
+    }
+    return jobs;
+  }
+
+  /**
+   * Compile for the JVM target and run the program in this JVM.  The
+   * generated code is kept in memory, and only written out if an output
+   * file was given.
+   */
+  private void compileAndRun(Logger logger, Args stcArgs, File inputFile,
+                             boolean preprocess, PrintStream icOutput) {
+    Settings.set(Settings.TARGET, "jvm");
+    CompilerOptions options = CompilerOptions.fromSettings();
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    try {
+      STCompiler stc = new STCompiler(logger, options);
+      stc.compile(inputFile.getPath(), stcArgs.inputFilename, preprocess,
+                  code, icOutput);
+    } finally {
+      if (icOutput != null) {
+        icOutput.close();
+      }
+    }
+
+    if (stcArgs.outputFilename != null) {
+      File finalOutput = selectOutputFile(stcArgs);
+      File tmpOutput = setupTmpOutput(finalOutput);
+      OutputStream outStream = openForOutput(tmpOutput);
+      try {
+        code.writeTo(outStream);
+        outStream.close();
+      } catch (IOException e) {
+        System.err.println("Error writing output: " + e.getMessage());
+        throw new STCFatal(ExitCode.ERROR_IO.code());
+      } finally {
+        closeQuietly(outStream);
+      }
+      moveToOutput(tmpOutput, finalOutput);
+    }
+
+    int exitCode;
+    try {
+      exitCode = JVMRunner.run(logger, JVMGenerator.classNameFor(options),
+                               code.toString());
+    } catch (STCRuntimeError e) {
+      STCompiler.reportInternalError(logger, e);
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+    if (exitCode != ExitCode.SUCCESS.code()) {
+      throw new STCFatal(exitCode);
+    }
+  }
+
+  /**
+   * Resolve a path relative to the working directory
+   * @param path
+   * @return
+   */
+  private String resolve(String path) {
+    if (workingDir == null || new File(path).isAbsolute()) {
+      return path;
+    }
+    return new File(workingDir, path).getPath();
+  }
+
+  private void resolveSetting(String key) {
+    String path = Settings.get(key);
+    if (path != null && path.length() > 0) {
+      Settings.set(key, resolve(path));
     }
   }
 
@@ -128,11 +368,14 @@ public class Main {
     opts.addOption(preprocArg);
 
     opts.addOption(UPDATE_FLAG, false, "Update output only if out of date");
+
+    opts.addOption(BATCH_FLAG, "batch", true, "Compile each input and " +
+                   "optional output file listed in file");
     return opts;
   }
 
 
-  private static Args processArgs(String[] args) {
+  private Args processArgs(String[] args) {
     Options opts = initOptions();
 
     CommandLine cmd = null;
@@ -143,15 +386,14 @@ public class Main {
       // Use Apache CLI-provided messages
       System.err.println(ex.getMessage());
       usage(opts);
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
 
     boolean updateOutput = cmd.hasOption(UPDATE_FLAG);
 
     if (cmd.hasOption(INCLUDE_FLAG)) {
       for (String dir: cmd.getOptionValues(INCLUDE_FLAG)) {
-        Settings.addModulePath(dir);
+        Settings.addModulePath(resolve(dir));
       }
     }
 
@@ -165,20 +407,34 @@ public class Main {
     }
 
     String[] remainingArgs = cmd.getArgs();
+    if (cmd.hasOption(BATCH_FLAG)) {
+      if (remainingArgs.length != 0) {
+        System.out.println("Input and output files are given in batch " +
+                  "file, but got " + remainingArgs.length + " arguments");
+        usage(opts);
+        throw new STCFatal(ExitCode.ERROR_COMMAND.code());
+      }
+      Args result = new Args(null, null, null, updateOutput,
+              swiftProgramArgs, Arrays.asList(preprocMacros),
+              resolve(cmd.getOptionValue(BATCH_FLAG)));
+      recordArgValues(result);
+      return result;
+    }
+
     if (remainingArgs.length < 1 || remainingArgs.length > 2) {
       System.out.println("Expected input file and optional output file, but got "
               + remainingArgs.length + " arguments");
       usage(opts);
-      System.exit(ExitCode.ERROR_COMMAND.code());
+      throw new STCFatal(ExitCode.ERROR_COMMAND.code());
     }
 
     String input = remainingArgs[0];
     String output = null;
     if (remainingArgs.length == 2) {
-      output = remainingArgs[1];
+      output = resolve(remainingArgs[1]);
     }
-    Args result = new Args(input, output, updateOutput,
-            swiftProgramArgs, Arrays.asList(preprocMacros));
+    Args result = new Args(resolve(input), input, output, updateOutput,
+            swiftProgramArgs, Arrays.asList(preprocMacros), null);
     recordArgValues(result);
     return result;
   }
@@ -195,6 +451,14 @@ public class Main {
     return skipCompile;
   }
 
+  private static boolean runJVM() {
+    try {
+      return Settings.getBoolean(Settings.RUN_JVM);
+    } catch (InvalidOptionException e) {
+      throw new STCRuntimeError(e.toString());
+    }
+  }
+
   private static boolean preprocessEnabled(Logger logger) {
     try {
       if (Settings.getBoolean(Settings.USE_C_PREPROCESSOR)) {
@@ -202,7 +466,7 @@ public class Main {
       }
     } catch (InvalidOptionException e) {
       STCompiler.reportInternalError(logger, e);
-      System.exit(1);
+      throw new STCFatal(1);
     }
     return false;
   }
@@ -212,7 +476,9 @@ public class Main {
    * @param args
    */
   private static void recordArgValues(Args args) {
-    Settings.set(Settings.INPUT_FILENAME, args.inputFilename);
+    if (args.inputFilename != null) {
+      Settings.set(Settings.INPUT_FILENAME, args.inputFilename);
+    }
     if (args.outputFilename != null) {
       Settings.set(Settings.OUTPUT_FILENAME, args.outputFilename);
     }
@@ -242,6 +508,7 @@ public class Main {
     System.out.println(
       "The first filename is the input; it is required.\n"   +
       "The second filename is the output; it is optional.\n" +
+      "With -b, filenames are read from the batch file instead.\n" +
       "Use stc -h for full help.");
   }
 
@@ -252,37 +519,39 @@ public class Main {
    * @param args
    * @return
    */
-  private static File setupInputFile(Logger logger, boolean preprocess, Args args) {
+  private File setupInputFile(Logger logger, boolean preprocess, Args args) {
     File result;
     try {
       if (preprocess) {
         File input = new File(args.inputFilename);
         if (!input.isFile() || !input.canRead()) {
           System.out.println("Input file \"" + input + "\" is not readable");
-          System.exit(1);
+          throw new STCFatal(1);
         }
 
         result = File.createTempFile("stc-preproc", ".swift");
         temporaries.add(result);
-        runPreprocessor(logger, args.inputFilename, result.getPath(),
+        // Use name as given so that it appears unchanged in cpp output
+        runPreprocessor(logger, args.inputArg, result.getPath(),
                         args.preprocessorMacros);
       } else {
         result = new File(args.inputFilename);
       }
       if (!result.isFile() || !result.canRead()) {
         System.out.println("Input file \"" + result + "\" is not readable");
-        System.exit(1);
+        throw new STCFatal(1);
       }
       return result;
     } catch (IOException ex) {
       System.out.println("Error while setting up input file: " +
               ex.toString());
-      System.exit(1);
+      throw new STCFatal(1);
+    } catch (STCFatal ex) {
+      throw ex;
     } catch (Throwable t) {
       STCompiler.reportInternalError(logger, t);
-      System.exit(1);
+      throw new STCFatal(1);
     }
-    return null;
   }
 
   private static File selectOutputFile(Args args) {
@@ -290,20 +559,48 @@ public class Main {
     if (args.outputFilename != null) {
       outputFilename =  args.outputFilename;
     } else {
-      String infile = args.inputFilename;
-      String prefix;
-      String ext = ".swift";
-      if (infile.endsWith(ext)) {
-        prefix = infile.substring(0, infile.length() - ext.length());
-      } else {
-        prefix = infile;
-      }
-      outputFilename = prefix + ".tic";
+      outputFilename = defaultOutputFile(args.inputFilename);
     }
     return new File(outputFilename);
   }
 
-  private static File setupTmpOutput() {
+  /**
+   * @param infile input file name
+   * @return output file name for target, based on input file name
+   */
+  private static String defaultOutputFile(String infile) {
+    String prefix;
+    String ext = ".swift";
+    if (infile.endsWith(ext)) {
+      prefix = infile.substring(0, infile.length() - ext.length());
+    } else {
+      prefix = infile;
+    }
+    if (Settings.get(Settings.TARGET).equals("jvm")) {
+      return prefix + ".java";
+    } else {
+      return prefix + ".tic";
+    }
+  }
+
+  /**
+   * Create temporary output file.  Where possible, this is in the same
+   * directory as the final output so that it can be renamed into place
+   * instead of copied.
+   */
+  private File setupTmpOutput(File finalOutput) {
+    File outputDir = finalOutput.getAbsoluteFile().getParentFile();
+    if (outputDir != null && (finalOutput.isFile() || !finalOutput.exists())) {
+      try {
+        File result = File.createTempFile("." + finalOutput.getName() + ".",
+                                          ".tmp", outputDir);
+        temporaries.add(result);
+        return result;
+      } catch (IOException e) {
+        // Fall back to system temporary directory, e.g. if directory
+        // isn't writable
+      }
+    }
     try {
       File result = File.createTempFile("stc-out", ".swift");
       temporaries.add(result);
@@ -311,8 +608,7 @@ public class Main {
     } catch (IOException e) {
       System.out.println("Error while setting up temporary output: "
           + e.getMessage());
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
@@ -324,94 +620,62 @@ public class Main {
       e.printStackTrace();
       System.err.println("Unexpected error opening " +
                          outfile.getAbsolutePath() + " for output.") ;
-      System.exit(1);
-      return null;
+      throw new STCFatal(1);
     }
   }
 
 
-  private static void runPreprocessor(Logger logger, String input, String output,
+  private void runPreprocessor(Logger logger, String input, String output,
                                       List<String> preprocArgs) {
-    List<String> cmd = new ArrayList<String>();
-    /*
-      -undef flag is provided to disable non-standard macros
-     */
-    if (useGCCProcessor()) {
-      // We use gcc -E because cpp is broken on Mac GCC 4.2.1
-      //    Cf. http://stackoverflow.com/questions/4137923
-      cmd.addAll(Arrays.asList("gcc", "-E", "-undef", "-x", "c", input,
-                               "-o", output));
-    } else {
-      cmd.addAll(Arrays.asList("cpp", "-undef", input, output));
-    }
-
-    for (String dir: Settings.getModulePath()) {
-      cmd.add("-I");
-      cmd.add(dir);
-    }
-
-    for (String macro: preprocArgs) {
-      cmd.add("-D");
-      cmd.add(macro);
-    }
-
-    String cmdString = StringUtils.join(cmd, ' ');
+    Preprocessor.Result cpp;
     try {
-      logger.debug("Running cpp: " + cmdString);
-      Process cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}));
-      int cppExitCode = -1;
-      boolean done = false;
-      do {
-        try {
-          cppExitCode = cpp.waitFor();
-          done = true;
-        } catch (InterruptedException ex) {
-          // Continue on after spurious interrupt
-        }
-      } while (!done);
-
-      StringWriter sw = new StringWriter();
-      IOUtils.copy(cpp.getErrorStream(), sw, "UTF-8");
-      String cppStderr = sw.toString();
-
-      logger.debug("Preprocessor exit code: " + cppExitCode);
-      logger.debug("Preprocessor stderr: " + cppStderr);
-
-      if (cppExitCode != 0) {
-        // Print stderr message first, then clarify that failure was in preprocessor
-        System.out.println(cppStderr);
-        System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
-            cmdString + ". " + ("Exit code was " + cppExitCode + ". "));
-        System.exit(1);
-      } else if (cppStderr.length() != 0){
-        logger.warn("Preprocessor warnings:\n" + cppStderr);
-      }
+      cpp = Preprocessor.run(workingDir, input, output, preprocArgs);
     } catch (IOException e) {
-      System.out.println("I/O error while launching preprocessor with command line:" +
-                          cmdString + ": " + e.getMessage());
-      System.exit(1);
+      System.out.println(e.getMessage());
+      throw new STCFatal(1);
+    }
+    logger.debug("Ran cpp: " + cpp.command);
+    logger.debug("Preprocessor exit code: " + cpp.exitCode);
+    logger.debug("Preprocessor stderr: " + cpp.stderr);
+
+    if (cpp.exitCode != 0) {
+      // Print stderr message first, then clarify that failure was in preprocessor
+      System.out.println(cpp.stderr);
+      System.out.println("Aborting due to failure in cpp preprocessor invoked as: " +
+          cpp.command + ". " + ("Exit code was " + cpp.exitCode + ". "));
+      throw new STCFatal(1);
+    } else if (cpp.stderr.length() != 0){
+      logger.warn("Preprocessor warnings:\n" + cpp.stderr);
     }
   }
 
 
-  public static boolean useGCCProcessor() {
-    try {
-      if ((SystemUtils.IS_OS_MAC_OSX &&
-          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_CPP))) {
-        return true;
-      } else if (Settings.getBoolean(Settings.PREPROCESSOR_FORCE_GCC)) {
-        return true;
-      } else {
-        return false;
+  /**
+   * Move completed temporary output to output file, atomically if it is
+   * in the same directory, so that the output file is never partially
+   * written.  Otherwise the temporary file is copied.
+   * In event of failure, throw a fatal error
+   * @param tmpOutput
+   * @param output
+   */
+  private static void moveToOutput(File tmpOutput, File output) {
+    File tmpDir = tmpOutput.getAbsoluteFile().getParentFile();
+    if (tmpDir.equals(output.getAbsoluteFile().getParentFile())) {
+      try {
+        Files.move(tmpOutput.toPath(), output.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE);
+        return;
+      } catch (AtomicMoveNotSupportedException e) {
+        // Copy instead
+      } catch (IOException e) {
+        System.out.println("Error moving " + tmpOutput + " to " + output);
+        e.printStackTrace();
+        throw new STCFatal(1);
       }
-    } catch (InvalidOptionException e) {
-      System.out.println("Internal error with settings: " + e.getMessage());
-      System.exit(ExitCode.ERROR_INTERNAL.code());
-      return false;
     }
+    copyToOutput(tmpOutput, output);
   }
 
-
   /**
    * Copy input file to output file.  In event of failure, throw a fatal error
    * @param inputFile
@@ -423,6 +687,7 @@ public class Main {
       // devices such as /dev/stdout
       PrintStream outStream = new PrintStream(new FileOutputStream(output));
       FileUtils.copyFile(inputFile, outStream);
+      outStream.close();
     } catch (IOException e) {
       System.out.println("Error copying " + inputFile);
       e.printStackTrace();
@@ -453,18 +718,29 @@ public class Main {
     {
       System.out.println("Error opening IC output file " + icFileName
                       + ": " + e.getMessage());
-      System.exit(ExitCode.ERROR_IO.code());
+      throw new STCFatal(ExitCode.ERROR_IO.code());
     }
     return output;
   }
 
-  private static void cleanupFiles(boolean success, Args stcArgs) {
-    if (!success && stcArgs.outputFilename != null) {
+  private static void closeQuietly(OutputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // Ignore: only used to release resources after an error
+    }
+  }
+
+  private static void cleanupOutput(Args stcArgs) {
+    if (stcArgs.outputFilename != null) {
       File outFile = new File(stcArgs.outputFilename);
       if (outFile.exists()) {
         outFile.delete();
       }
     }
+  }
+
+  private void cleanupTemporaries() {
     for (File temp: temporaries) {
       if (temp.exists()) {
         temp.delete();
@@ -474,20 +750,27 @@ public class Main {
 
   private static class Args {
     public final String inputFilename;
+    /** Input filename before resolving against working directory */
+    public final String inputArg;
     public final String outputFilename;
     public final boolean updateOutput;
     public final Properties swiftProgramArgs;
     public final List<String> preprocessorMacros;
+    /** File listing programs to compile, or null if not batch mode */
+    public final String batchFilename;
 
-    public Args(String inputFilename, String outputFilename,
+    public Args(String inputFilename, String inputArg, String outputFilename,
                 boolean updateOutput,
-                Properties swiftProgramArgs, List<String> preprocessorArgs) {
+                Properties swiftProgramArgs, List<String> preprocessorArgs,
+                String batchFilename) {
       super();
       this.inputFilename = inputFilename;
+      this.inputArg = inputArg;
       this.outputFilename = outputFilename;
       this.updateOutput = updateOutput;
       this.swiftProgramArgs = swiftProgramArgs;
       this.preprocessorMacros = preprocessorArgs;
+      this.batchFilename = batchFilename;
     }
   }
 }
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Settings;
+import exm.stc.common.util.CacheDirs;
+import exm.stc.common.util.Misc;
+import exm.stc.common.util.Pair;
+import exm.stc.frontend.LoadedModules;
+import exm.stc.frontend.LoadedModules.LocatedModule;
+
+/**
+ * On-disk cache of generated code for whole programs, so that
+ * recompiling a program whose sources have not changed skips the
+ * frontend, optimizer and code generator entirely.
+ *
+ * Entries are keyed by a hash of the main program, compiler settings
+ * and the compiler build.  Each entry records the imported modules
+ * it was compiled from, which are checked before the entry is used:
+ * a module must still resolve to the same file in the module path
+ * and have the same contents.  Warnings logged during the original
+ * compilation are stored and replayed.
+ *
+ * The file header is not cached, since it includes the date and
+ * output file name.  Generated code is streamed into the entry as it is
+ * written to the output, with the modules and warnings in a trailer, so
+ * neither storing nor retrieving output holds the program in memory.
+ * The directory is kept under a size limit by removing least recently
+ * used entries.
+ *
+ * Any problem reading or writing the cache is logged and treated as
+ * a cache miss.
+ */
+public class OutputCache {
+
+  /** Change if serialized format changes */
+  private static final int FORMAT_MAGIC = 0x5354434f;
+  private static final int FORMAT_VERSION = 2;
+
+  /** Magic number and version */
+  private static final int HEADER_BYTES = 8;
+  /** Offset of metadata and magic number */
+  private static final int TRAILER_BYTES = 12;
+
+  private static final String ENTRY_SUFFIX = ".tcl";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Settings that only affect the file header or compiler diagnostics,
+   * not the generated code
+   */
+  private static final List<String> IGNORED_SETTINGS = Arrays.asList(
+      Settings.OUTPUT_FILENAME, Settings.IC_OUTPUT_FILE,
+      Settings.LOG_FILE, Settings.LOG_TRACE, Settings.PROFILE_STC,
+      Settings.AST_CACHE, Settings.AST_CACHE_DIR,
+      Settings.AST_CACHE_MAX_MB, Settings.OUTPUT_CACHE,
+      Settings.OUTPUT_CACHE_DIR, Settings.OUTPUT_CACHE_MAX_MB,
+      Settings.BATCH_THREADS);
+
+  private final File dir;
+  private final long maxBytes;
+  private final Logger logger;
+  private final CompilerOptions options;
+
+  private OutputCache(File dir, Logger logger, CompilerOptions options) {
+    this.dir = dir;
+    this.maxBytes = options.getLong(Settings.OUTPUT_CACHE_MAX_MB) *
+                    CacheDirs.BYTES_PER_MB;
+    this.logger = logger;
+    this.options = options;
+  }
+
+  /**
+   * @return cache based on options, or null if disabled
+   */
+  public static OutputCache fromOptions(Logger logger,
+                                        CompilerOptions options) {
+    if (!options.getBoolean(Settings.OUTPUT_CACHE)) {
+      return null;
+    }
+    return new OutputCache(options.cacheDir(Settings.OUTPUT_CACHE_DIR,
+                                            "output"), logger, options);
+  }
+
+  /**
+   * Compute key for a program.  Imported modules are not part of key,
+   * since we only know them after compiling.
+   * @param inputFile file to be parsed
+   * @param originalInputFile user's input file
+   * @return
+   * @throws IOException if input file can't be read
+   */
+  public String key(String inputFile, String originalInputFile)
+      throws IOException {
+    Hasher h = Hashing.sha1().newHasher();
+    h.putInt(FORMAT_VERSION);
+    h.putString(Misc.buildStamp(STCompiler.class), UTF8);
+    h.putString(new File(originalInputFile).getCanonicalPath(), UTF8);
+    h.putBytes(FileUtils.readFileToByteArray(new File(inputFile)));
+
+    for (String key: options.getKeys()) {
+      if (!IGNORED_SETTINGS.contains(key)) {
+        putString(h, key);
+        putString(h, options.get(key));
+      }
+    }
+    for (String dir: options.getModulePath()) {
+      putString(h, dir);
+    }
+    for (Map.Entry<String, String> arg:
+                  options.getCompileTimeArgs().entrySet()) {
+      putString(h, arg.getKey());
+      putString(h, arg.getValue());
+    }
+    return h.hash().toString();
+  }
+
+  /**
+   * Look up generated code and check it is still valid.  The entry keeps
+   * the file open so that code can be streamed from it: it must be
+   * closed by the caller.
+   * @param key
+   * @return cached entry, or null if not present or invalid
+   */
+  public Entry lookup(String key) {
+    File entryFile = entryFile(key);
+    if (!entryFile.isFile()) {
+      logger.debug("Output cache miss: " + key);
+      return null;
+    }
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(entryFile, "r");
+      long length = file.length();
+      if (length < HEADER_BYTES + TRAILER_BYTES ||
+          file.readInt() != FORMAT_MAGIC ||
+          file.readInt() != FORMAT_VERSION) {
+        logger.debug("Ignoring invalid output cache entry " + entryFile);
+        file.close();
+        return null;
+      }
+      file.seek(length - TRAILER_BYTES);
+      long codeEnd = file.readLong();
+      if (file.readInt() != FORMAT_MAGIC || codeEnd < HEADER_BYTES ||
+          codeEnd > length - TRAILER_BYTES) {
+        logger.debug("Ignoring truncated output cache entry " + entryFile);
+        file.close();
+        return null;
+      }
+
+      // Metadata follows code
+      file.seek(codeEnd);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+                            Channels.newInputStream(file.getChannel())));
+      int moduleCount = in.readInt();
+      for (int i = 0; i < moduleCount; i++) {
+        String canonicalName = readString(in);
+        String filePath = readString(in);
+        String hash = readString(in);
+        if (!moduleUnchanged(canonicalName, filePath, hash)) {
+          logger.debug("Output cache entry " + key + " is stale: module " +
+                       canonicalName + " changed");
+          file.close();
+          return null;
+        }
+      }
+
+      List<Pair<Level, String>> messages =
+                        new ArrayList<Pair<Level, String>>();
+      int messageCount = in.readInt();
+      for (int i = 0; i < messageCount; i++) {
+        Level level = Level.toLevel(in.readInt());
+        messages.add(Pair.create(level, readString(in)));
+      }
+
+      CacheDirs.touch(entryFile);
+      logger.debug("Output cache hit: " + entryFile);
+      return new Entry(messages, file, codeEnd);
+    } catch (IOException e) {
+      logger.debug("Error reading output cache entry " + entryFile + ": " +
+                   e.getMessage());
+      closeQuietly(file);
+      return null;
+    }
+  }
+
+  /**
+   * Start adding generated code to cache.  The code is written to a
+   * temporary file as it is generated, and moved into place atomically
+   * by {@link Writer#commit}, so concurrent compiler processes can share
+   * the cache.
+   * @param key
+   * @return writer, or null if cache directory cannot be written
+   */
+  public Writer startStore(String key) {
+    File tmp = null;
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Could not create " + dir);
+      }
+      tmp = File.createTempFile(key, CacheDirs.TMP_SUFFIX, dir);
+      return new Writer(entryFile(key), tmp);
+    } catch (IOException e) {
+      logger.debug("Could not store output in cache: " + e.getMessage());
+      if (tmp != null) {
+        tmp.delete();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Check that module name still resolves to same file with same contents
+   */
+  private boolean moduleUnchanged(String canonicalName, String filePath,
+                                  String hash) throws IOException {
+    String currPath = LoadedModules.findModuleFile(options,
+                          Arrays.asList(canonicalName.split("\\.")));
+    return filePath.equals(currPath) &&
+           hash.equals(fileHash(filePath).toString());
+  }
+
+  private static HashCode fileHash(String filePath) throws IOException {
+    return Hashing.sha1().hashBytes(
+              FileUtils.readFileToByteArray(new File(filePath)));
+  }
+
+  private File entryFile(String key) {
+    return new File(dir, key + ENTRY_SUFFIX);
+  }
+
+  private static void closeQuietly(Closeable c) {
+    if (c != null) {
+      try {
+        c.close();
+      } catch (IOException e) {
+        // Nothing more to do
+      }
+    }
+  }
+
+  /**
+   * Hash string unambiguously
+   */
+  private static void putString(Hasher h, String s) {
+    if (s == null) {
+      h.putInt(-1);
+    } else {
+      h.putInt(s.length());
+      h.putString(s, UTF8);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+                                                     throws IOException {
+    byte bytes[] = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte bytes[] = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Cached output for a program
+   */
+  public static class Entry implements Closeable {
+    /** Messages logged during compilation, to be replayed */
+    public final List<Pair<Level, String>> messages;
+    private final RandomAccessFile file;
+    /** Generated code is in file between header and this offset */
+    private final long codeEnd;
+
+    private Entry(List<Pair<Level, String>> messages, RandomAccessFile file,
+                  long codeEnd) {
+      this.messages = Collections.unmodifiableList(messages);
+      this.file = file;
+      this.codeEnd = codeEnd;
+    }
+
+    /**
+     * Copy generated code following header to output without buffering
+     * all of it in memory
+     */
+    public void writeCode(OutputStream output) throws IOException {
+      FileChannel channel = file.getChannel();
+      WritableByteChannel target = Channels.newChannel(output);
+      long pos = HEADER_BYTES;
+      while (pos < codeEnd) {
+        pos += channel.transferTo(pos, codeEnd - pos, target);
+      }
+      output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+
+  /**
+   * Writes an entry to a temporary file as code is generated.  Errors
+   * writing the entry are logged and cause the entry to be discarded,
+   * but are not reported to the code generator, so never affect the
+   * compiler's output.
+   */
+  public class Writer {
+    private final File entryFile;
+    private final File tmp;
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private boolean failed = false;
+
+    private Writer(File entryFile, File tmp) throws IOException {
+      this.entryFile = entryFile;
+      this.tmp = tmp;
+      this.counter = new CountingOutputStream(new BufferedOutputStream(
+                                                new FileOutputStream(tmp)));
+      this.out = new DataOutputStream(counter);
+      out.writeInt(FORMAT_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * @return stream to receive generated code, excluding header
+     */
+    public OutputStream codeStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) {
+          if (!failed) {
+            try {
+              out.write(b);
+            } catch (IOException e) {
+              writeFailed(e);
+            }
+          }
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) {
+          if (!failed) {
+            try {
+              out.write(b, off, len);
+            } catch (IOException e) {
+              writeFailed(e);
+            }
+          }
+        }
+      };
+    }
+
+    /**
+     * Finish writing entry and move it into place
+     * @param modules imported modules, excluding the main module
+     * @param messages messages logged during compilation
+     */
+    public void commit(List<LocatedModule> modules,
+                       List<Pair<Level, String>> messages) {
+      if (failed) {
+        return;
+      }
+      try {
+        long codeEnd = counter.getCount();
+        out.writeInt(modules.size());
+        for (LocatedModule module: modules) {
+          writeString(out, module.canonicalName);
+          writeString(out, module.filePath);
+          writeString(out, fileHash(module.filePath).toString());
+        }
+        out.writeInt(messages.size());
+        for (Pair<Level, String> message: messages) {
+          out.writeInt(message.val1.toInt());
+          writeString(out, message.val2);
+        }
+        out.writeLong(codeEnd);
+        out.writeInt(FORMAT_MAGIC);
+        out.close();
+        Files.move(tmp.toPath(), entryFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Stored output in cache: " + entryFile);
+        CacheDirs.trim(dir, ENTRY_SUFFIX, maxBytes, logger);
+      } catch (IOException e) {
+        writeFailed(e);
+      }
+    }
+
+    /**
+     * Discard entry, e.g. if compilation failed.  Has no effect after
+     * commit.
+     */
+    public void abort() {
+      closeQuietly(out);
+      tmp.delete();
+    }
+
+    private void writeFailed(IOException e) {
+      logger.debug("Could not store output in cache: " + e.getMessage());
+      failed = true;
+      abort();
+    }
+  }
+
+  /**
+   * Records messages logged during compilation, so they can be replayed
+   * if output is retrieved from cache.
+   */
+  public static class MessageRecorder extends AppenderSkeleton {
+    private final List<Pair<Level, String>> messages =
+                                new ArrayList<Pair<Level, String>>();
+
+    public MessageRecorder() {
+      setThreshold(Level.WARN);
+    }
+
+    public List<Pair<Level, String>> messages() {
+      return Collections.unmodifiableList(messages);
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+      messages.add(Pair.create(event.getLevel(), event.getRenderedMessage()));
+    }
+
+    @Override
+    public boolean requiresLayout() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to release
+    }
+  }
+}
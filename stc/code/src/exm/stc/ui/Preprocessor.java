@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 University of Chicago and Argonne National Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package exm.stc.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.common.exceptions.STCFatal;
+
+/**
+ * Runs the C preprocessor on Swift source files
+ */
+class Preprocessor {
+
+  /**
+   * Outcome of running preprocessor
+   */
+  static class Result {
+    final String command;
+    final int exitCode;
+    final String stderr;
+
+    Result(String command, int exitCode, String stderr) {
+      this.command = command;
+      this.exitCode = exitCode;
+      this.stderr = stderr;
+    }
+  }
+
+  /**
+   * Run the preprocessor, searching the module path for includes
+   * @param workingDir directory to run in, or null for the JVM's
+   * @param input
+   * @param output
+   * @param macros definitions passed with -D
+   * @return
+   * @throws IOException if preprocessor could not be run
+   */
+  /**
+   * @return environment for preprocessor, or null to inherit ours
+   */
+  private static String[] environment() {
+    Map<String, String> env = Settings.getEnvironment();
+    if (env == null) {
+      return null;
+    }
+    List<String> result = new ArrayList<String>();
+    for (Map.Entry<String, String> e: env.entrySet()) {
+      result.add(e.getKey() + "=" + e.getValue());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  static Result run(File workingDir, String input, String output,
+                    List<String> macros) throws IOException {
+    List<String> cmd = new ArrayList<String>();
+    /*
+      -undef flag is provided to disable non-standard macros
+     */
+    if (useGCCProcessor()) {
+      // We use gcc -E because cpp is broken on Mac GCC 4.2.1
+      //    Cf. http://stackoverflow.com/questions/4137923
+      cmd.addAll(Arrays.asList("gcc", "-E", "-undef", "-x", "c", input,
+                               "-o", output));
+    } else {
+      cmd.addAll(Arrays.asList("cpp", "-undef", input, output));
+    }
+
+    for (String dir: Settings.getModulePath()) {
+      cmd.add("-I");
+      cmd.add(dir);
+    }
+
+    for (String macro: macros) {
+      cmd.add("-D");
+      cmd.add(macro);
+    }
+
+    String cmdString = StringUtils.join(cmd, ' ');
+    Process cpp;
+    try {
+      cpp = Runtime.getRuntime().exec(cmd.toArray(new String[]{}),
+                                      environment(), workingDir);
+    } catch (IOException e) {
+      throw new IOException("I/O error while launching preprocessor with " +
+                            "command line:" + cmdString + ": " +
+                            e.getMessage());
+    }
+    int cppExitCode = -1;
+    boolean done = false;
+    do {
+      try {
+        cppExitCode = cpp.waitFor();
+        done = true;
+      } catch (InterruptedException ex) {
+        // Continue on after spurious interrupt
+      }
+    } while (!done);
+
+    StringWriter sw = new StringWriter();
+    IOUtils.copy(cpp.getErrorStream(), sw, "UTF-8");
+    return new Result(cmdString, cppExitCode, sw.toString());
+  }
+
+  static boolean useGCCProcessor() {
+    try {
+      if ((SystemUtils.IS_OS_MAC_OSX &&
+          !Settings.getBoolean(Settings.PREPROCESSOR_FORCE_CPP))) {
+        return true;
+      } else if (Settings.getBoolean(Settings.PREPROCESSOR_FORCE_GCC)) {
+        return true;
+      } else {
+        return false;
+      }
+    } catch (InvalidOptionException e) {
+      System.out.println("Internal error with settings: " + e.getMessage());
+      throw new STCFatal(ExitCode.ERROR_INTERNAL.code());
+    }
+  }
+}
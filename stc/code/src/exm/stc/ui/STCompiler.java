@@ -18,16 +18,30 @@ package exm.stc.ui;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import exm.stc.ast.SyntaxErrorListener;
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Profiler;
+import exm.stc.common.Profiler.Sample;
 import exm.stc.common.Settings;
 import exm.stc.common.exceptions.STCFatal;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.ForeignFunctions;
 import exm.stc.common.util.Misc;
+import exm.stc.common.util.Pair;
 import exm.stc.frontend.ASTWalker;
+import exm.stc.frontend.LoadedModules.LocatedModule;
+import exm.stc.frontend.ModuleCache;
+import exm.stc.frontend.ModuleResolver;
 import exm.stc.ic.STCMiddleEnd;
+import exm.stc.jvm.JVMGenerator;
 import exm.stc.tclbackend.TurbineGenerator;
 
 /**
@@ -37,10 +51,44 @@ public class STCompiler {
 
   private Logger logger;
 
+  /** Settings for every compilation done by this compiler */
+  private final CompilerOptions options;
 
-  public STCompiler(Logger logger) {
+  /** Provides source of modules held in memory, may be null */
+  private final ModuleResolver resolver;
+
+  /** Receives syntax errors, may be null to print them */
+  private final SyntaxErrorListener errorListener;
+
+  /** Parsed modules shared with other compilations, may be null */
+  private final ModuleCache sharedModules;
+
+  public STCompiler(Logger logger, CompilerOptions options) {
+    this(logger, options, null, null);
+  }
+
+  public STCompiler(Logger logger, CompilerOptions options,
+          ModuleResolver resolver, SyntaxErrorListener errorListener) {
+    this(logger, options, resolver, errorListener, null);
+  }
+
+  /**
+   * @param options settings to compile with
+   * @param resolver if not null, provides source of imported modules
+   *                 before the module search path is searched
+   * @param errorListener if not null, receives syntax errors
+   * @param sharedModules if not null, imported modules are shared with
+   *                 other compilations using it
+   */
+  public STCompiler(Logger logger, CompilerOptions options,
+          ModuleResolver resolver, SyntaxErrorListener errorListener,
+          ModuleCache sharedModules) {
     super();
     this.logger = logger;
+    this.options = options;
+    this.resolver = resolver;
+    this.errorListener = errorListener;
+    this.sharedModules = sharedModules;
   }
 
   /**
@@ -60,15 +108,18 @@ public class STCompiler {
     try {
       logger.info("STC starting: " + Misc.timestamp());
 
-      boolean profile = Settings.getBoolean(Settings.PROFILE_STC);
+      boolean profile = options.getBoolean(Settings.PROFILE_STC);
 
       /*
        * Walk AST, and build intermediate representation
        * This is where type checking and other semantic analysis happens.
        */
+      // Assume root module for now
+      LocatedModule mainModule = new LocatedModule(inputFile,
+          FilenameUtils.getBaseName(originalInputFile), preprocessed);
       int compileIterations = profile ? 100000 : 1;
       for (int i = 0; i < compileIterations; i++) {
-        compileOnce(inputFile, originalInputFile, preprocessed, output, icOutput);
+        compileOnce(mainModule, originalInputFile, output, icOutput);
       }
 
       output.close();
@@ -100,31 +151,195 @@ public class STCompiler {
     }
   }
 
-  private void compileOnce(String inputFile, String originalInputFile,
-      boolean preprocessed,
+  /**
+   * Compile a Swift file.  Unlike compile, errors are thrown rather than
+   * reported, and output is not closed.
+   * @param inputFile file to parse
+   * @param originalInputFile user's input file
+   * @param preprocessed true if input file is preprocessor output
+   * @param output receives generated code
+   * @throws UserException if there is an error in the program
+   */
+  public void compileFile(String inputFile, String originalInputFile,
+          boolean preprocessed, OutputStream output) throws UserException {
+    LocatedModule mainModule = new LocatedModule(inputFile,
+        FilenameUtils.getBaseName(originalInputFile), preprocessed);
+    compileOnce(mainModule, originalInputFile, output, null);
+  }
+
+  /**
+   * Compile a main module held in memory.  Nothing is cached and no files
+   * are written: errors are thrown and the generated code is written to
+   * output.
+   * @param moduleName name of main module
+   * @param source Swift source of main module
+   * @param output receives generated code
+   * @throws UserException if there is an error in the program
+   */
+  public void compileSource(String moduleName, String source,
+                    OutputStream output) throws UserException {
+    LocatedModule mainModule = LocatedModule.fromSource(
+                            moduleName + ".swift", moduleName, source);
+    compileOnce(mainModule, mainModule.filePath, output, null);
+  }
+
+  private void compileOnce(LocatedModule mainModule, String originalInputFile,
       OutputStream output, PrintStream icOutput) throws UserException {
-    ForeignFunctions foreignFuncs = new ForeignFunctions();
-    STCMiddleEnd intermediate = new STCMiddleEnd(logger, icOutput, foreignFuncs);
-    ASTWalker walker = new ASTWalker(intermediate, foreignFuncs);
-    walker.walk(inputFile, originalInputFile, preprocessed);
-
-    /* Optimise intermediate representation by repeatedly rewriting tree
-     * NOTE: currently the optimizer pass is actually required for correctness,
-     * as the frontend doesn't always provide correct information about which variables
-     * need to be passed into blocks.  The optimizer will fix this problem
-     */
-    intermediate.optimize();
-
-    /* Generate output tcl code from intermediate representation */
-    TurbineGenerator codeGen = new TurbineGenerator(logger, Misc.timestamp());
-    intermediate.regenerate(codeGen);
+    String inputFile = mainModule.filePath;
+    String timestamp = Misc.timestamp();
+    Profiler profiler = Profiler.fromOptions(options);
+    Sample compileStart = profiler.start();
+
+    boolean jvmTarget = options.get(Settings.TARGET).equals("jvm");
+
+    // Don't bypass compilation if intermediate code or profile requested
+    OutputCache cache = null;
+    String cacheKey = null;
+    if (icOutput == null && !options.getBoolean(Settings.PROFILE_STC) &&
+        !profiler.enabled() && !jvmTarget && mainModule.source == null) {
+      cache = OutputCache.fromOptions(logger, options);
+    }
+    if (cache != null) {
+      try {
+        cacheKey = cache.key(inputFile, originalInputFile);
+      } catch (IOException e) {
+        logger.debug("Could not compute output cache key: " +
+                     e.getMessage());
+        cache = null;
+      }
+    }
+
+    if (cache != null) {
+      OutputCache.Entry cached = cache.lookup(cacheKey);
+      if (cached != null) {
+        for (Pair<Level, String> message: cached.messages) {
+          logger.log(message.val1, message.val2);
+        }
+        try {
+          try {
+            output.write(TurbineGenerator.fileHeader(options, timestamp)
+                                                          .getBytes());
+            cached.writeCode(output);
+          } finally {
+            cached.close();
+          }
+        } catch (IOException e) {
+          reportIOError(e);
+        }
+        return;
+      }
+    }
+
+    OutputCache.MessageRecorder recorder = null;
+    if (cache != null) {
+      recorder = new OutputCache.MessageRecorder();
+      Logging.getSTCLogger().addAppender(recorder);
+    }
+    OutputCache.Writer cacheWriter = null;
+    try {
+      ForeignFunctions foreignFuncs = new ForeignFunctions();
+      STCMiddleEnd intermediate = new STCMiddleEnd(logger, icOutput,
+                                          profiler, foreignFuncs, options);
+      ASTWalker walker = new ASTWalker(intermediate, foreignFuncs, options,
+                      profiler, resolver, errorListener, sharedModules);
+      walker.walk(mainModule);
+
+      /* Optimise intermediate representation by repeatedly rewriting tree
+       * NOTE: currently the optimizer pass is actually required for correctness,
+       * as the frontend doesn't always provide correct information about which variables
+       * need to be passed into blocks.  The optimizer will fix this problem
+       */
+      intermediate.optimize();
+
+      if (jvmTarget) {
+        generateJVM(intermediate, profiler, timestamp, output);
+      } else {
+        /* Generate output tcl code from intermediate representation */
+        Sample start = profiler.start();
+        TurbineGenerator codeGen = new TurbineGenerator(logger, timestamp,
+                                                        options);
+        intermediate.regenerate(codeGen);
+        profiler.record(Profiler.CODEGEN, "generate", -1, start);
+
+        start = profiler.start();
+        // Lexer errors are printed directly, so can't be replayed
+        if (cache != null && !walker.lexerErrors()) {
+          cacheWriter = cache.startStore(cacheKey);
+        }
+        try {
+          // Code is streamed to the cache entry alongside the output
+          codeGen.generate(output, cacheWriter == null ? null :
+                                   cacheWriter.codeStream());
+        } catch (IOException e) {
+          reportIOError(e);
+        }
+        profiler.record(Profiler.CODEGEN, "write output", -1, start);
+
+        if (cacheWriter != null) {
+          List<LocatedModule> imported = new ArrayList<LocatedModule>();
+          for (LocatedModule module: walker.loadedModules()) {
+            if (!module.filePath.equals(inputFile)) {
+              imported.add(module);
+            }
+          }
+          cacheWriter.commit(imported, recorder.messages());
+          cacheWriter = null;
+        }
+      }
+    } finally {
+      if (cacheWriter != null) {
+        cacheWriter.abort();
+      }
+      if (recorder != null) {
+        Logging.getSTCLogger().removeAppender(recorder);
+      }
+    }
+
+    profiler.record(Profiler.COMPILE, "total", -1, compileStart);
+    if (profiler.enabled()) {
+      writeProfile(profiler, options.get(Settings.PROFILE_REPORT));
+    }
+  }
+
+  /**
+   * Generate Java code from intermediate representation
+   */
+  private void generateJVM(STCMiddleEnd intermediate, Profiler profiler,
+                           String timestamp, OutputStream output)
+                           throws UserException {
+    Sample start = profiler.start();
+    JVMGenerator codeGen = new JVMGenerator(logger, timestamp, options);
+    try {
+      intermediate.regenerate(codeGen);
+    } catch (JVMGenerator.UnsupportedFeature e) {
+      throw codeGen.unsupportedError(e);
+    }
+    profiler.record(Profiler.CODEGEN, "generate", -1, start);
+
+    start = profiler.start();
     try {
       codeGen.generate(output);
     } catch (IOException e) {
-      System.err.println("I/O error while writing to output");
+      reportIOError(e);
+    }
+    profiler.record(Profiler.CODEGEN, "write output", -1, start);
+  }
+
+  private static void writeProfile(Profiler profiler, String reportFile) {
+    try {
+      profiler.writeReport(reportFile);
+    } catch (IOException e) {
+      System.err.println("Error writing profile report to " + reportFile);
       System.err.println(e.getMessage());
       throw new STCFatal(ExitCode.ERROR_IO.code());
     }
+    profiler.printSummary(System.out);
+  }
+
+  private static void reportIOError(IOException e) {
+    System.err.println("I/O error while writing to output");
+    System.err.println(e.getMessage());
+    throw new STCFatal(ExitCode.ERROR_IO.code());
   }
 
   public static void reportInternalError(Logger logger, Throwable e) {
@@ -0,0 +1,99 @@
+package exm.stc.common.lang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import exm.stc.common.lang.Types.ArrayType;
+import exm.stc.common.lang.Types.RefType;
+import exm.stc.common.lang.Types.ScalarFutureType;
+import exm.stc.common.lang.Types.StructType;
+import exm.stc.common.lang.Types.StructType.StructField;
+import exm.stc.common.lang.Types.SubType;
+import exm.stc.common.lang.Types.Type;
+import exm.stc.common.lang.Types.UnionType;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+
+public class TypesTest {
+
+  @Test
+  public void testInternShares() {
+    Type a = ArrayType.sharedArray(new ScalarFutureType(Types.PrimType.INT),
+                                   new RefType(Types.F_STRING, false));
+    Type b = ArrayType.sharedArray(Types.F_INT,
+                                   new RefType(Types.F_STRING, false));
+    assertFalse(a.isCanonical());
+    Type ca = Types.intern(a);
+    assertTrue(ca.isCanonical());
+    assertSame(ca, Types.intern(b));
+    assertSame(ca, Types.intern(ca));
+    assertSame(Types.F_INT, ((ArrayType)ca).keyType());
+    assertEquals(a, ca);
+
+    StructType s = StructType.sharedStruct("s", Arrays.asList(
+        new StructField(a, "x"), new StructField(Types.F_FLOAT, "y")));
+    StructType cs = (StructType)Types.intern(s);
+    assertSame(ca, cs.fieldTypeByName("x"));
+    assertSame(cs, Types.intern(StructType.sharedStruct("s", cs.fields())));
+    assertNotEquals(cs, Types.intern(StructType.localStruct(cs)));
+  }
+
+  @Test
+  public void testInternKeepsDistinctions() {
+    // Equal but print differently, so canonical instances must differ
+    Type constRef = Types.intern(new RefType(Types.F_INT, false));
+    Type mutableRef = Types.intern(new RefType(Types.F_INT, true));
+    assertNotSame(constRef, mutableRef);
+    assertEquals(constRef, mutableRef);
+
+    Type u1 = Types.intern(UnionType.createUnionType(Types.F_INT,
+                                                     Types.F_FLOAT));
+    Type u2 = Types.intern(UnionType.createUnionType(Types.F_FLOAT,
+                                                     Types.F_INT));
+    assertNotSame(u1, u2);
+    assertEquals(u1, u2);
+
+    Type sub = Types.intern(new SubType(Types.F_STRING, "name"));
+    assertNotEquals(sub, Types.F_STRING);
+    assertNotEquals(Types.F_STRING, sub);
+    assertSame(sub, Types.intern(new SubType(Types.F_STRING, "name")));
+  }
+
+  @Test
+  public void testPredicates() {
+    Type arr = ArrayType.sharedArray(Types.F_INT, Types.F_INT);
+    Type arrRef = new RefType(new SubType(arr, "myarray"), true);
+    assertTrue(Types.isArrayRef(arrRef));
+    assertTrue(Types.isContainerRef(arrRef));
+    assertFalse(Types.isContainerLocalRef(arrRef));
+    assertTrue(Types.isFuture(arrRef));
+    assertFalse(Types.isPrimFuture(arrRef));
+    assertTrue(Types.isNonLocal(arrRef));
+    assertTrue(Types.isContainer(Types.intern(arr)));
+
+    Type localArr = Types.retrievedType(arr);
+    assertTrue(Types.isContainerLocal(localArr));
+    assertFalse(Types.isNonLocal(localArr));
+    assertTrue(Types.isPrimFuture(Types.F_FILE));
+    assertTrue(Types.isPrimValue(Types.V_FILE));
+    assertTrue(Types.isStructRef(new RefType(Types.F_LOCATION, false)));
+  }
+
+  @Test
+  public void testVarTypeCanonical() {
+    Var v = new Var(ArrayType.sharedArray(Types.F_INT, Types.F_STRING), "v",
+                    Alloc.STACK, DefType.LOCAL_USER, VarProvenance.unknown());
+    assertTrue(v.type().isCanonical());
+    assertSame(v.type(), Types.intern(
+                  ArrayType.sharedArray(Types.F_INT, Types.F_STRING)));
+  }
+}
@@ -0,0 +1,79 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheDirsTest {
+
+  private static final Logger logger = Logger.getLogger(CacheDirsTest.class);
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("stc-cache-dirs", "");
+    dir.delete();
+    assertTrue(dir.mkdir());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private File entry(String name, int size, long modified)
+                                                  throws IOException {
+    File f = new File(dir, name);
+    FileUtils.writeByteArrayToFile(f, new byte[size]);
+    assertTrue(f.setLastModified(modified));
+    return f;
+  }
+
+  @Test
+  public void testTrimLeastRecentlyUsed() throws IOException {
+    long now = System.currentTimeMillis();
+    File oldest = entry("a.ent", 100, now - 30000);
+    File used = entry("b.ent", 100, now - 20000);
+    File newest = entry("c.ent", 100, now - 10000);
+    File other = entry("d.other", 1000, now - 40000);
+
+    // Using entry makes it most recent
+    CacheDirs.touch(used);
+    CacheDirs.trim(dir, ".ent", 250, logger);
+    assertFalse(oldest.exists());
+    assertTrue(used.exists());
+    assertTrue(newest.exists());
+    // Files without suffix are not entries
+    assertTrue(other.exists());
+
+    CacheDirs.trim(dir, ".ent", 100, logger);
+    assertFalse(newest.exists());
+    assertTrue(used.exists());
+
+    // No limit
+    CacheDirs.trim(dir, ".ent", 0, logger);
+    assertTrue(used.exists());
+  }
+
+  @Test
+  public void testAbandonedTemporaryFiles() throws IOException {
+    long now = System.currentTimeMillis();
+    File abandoned = entry("x" + CacheDirs.TMP_SUFFIX, 10,
+                           now - 2 * 60 * 60 * 1000L);
+    File inProgress = entry("y" + CacheDirs.TMP_SUFFIX, 10, now);
+    CacheDirs.trim(dir, ".ent", 0, logger);
+    assertFalse(abandoned.exists());
+    assertTrue(inProgress.exists());
+    assertEquals(1, dir.listFiles().length);
+  }
+}
@@ -0,0 +1,80 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GapListTest {
+
+  @Test
+  public void testIteratorEdits() {
+    List<Integer> list = new GapList<Integer>(Arrays.asList(1, 2, 3, 4));
+    ListIterator<Integer> it = list.listIterator();
+    while (it.hasNext()) {
+      int x = it.next();
+      if (x % 2 == 0) {
+        it.remove();
+      } else {
+        it.add(x * 10);
+      }
+    }
+    assertEquals(Arrays.asList(1, 10, 3, 30), list);
+
+    it = list.listIterator(list.size());
+    it.previous();
+    it.set(-1);
+    assertEquals(Arrays.asList(1, 10, 3, -1), list);
+  }
+
+  @Test
+  public void testBulkOps() {
+    GapList<Integer> list = new GapList<Integer>();
+    list.addAll(Arrays.asList(1, 2, 3));
+    list.addAll(1, Arrays.asList(7, 8));
+    assertEquals(Arrays.asList(1, 7, 8, 2, 3), list);
+
+    assertTrue(list.removeAll(new HashSet<Integer>(Arrays.asList(8, 3))));
+    assertEquals(Arrays.asList(1, 7, 2), list);
+    assertFalse(list.removeAll(Arrays.asList(5)));
+
+    list.subList(0, 2).clear();
+    assertEquals(Arrays.asList(2), list);
+  }
+
+  /**
+   * Check against ArrayList with random edits so that gap moves around
+   */
+  @Test
+  public void testRandomOps() {
+    Random random = new Random(4321);
+    List<Integer> list = new GapList<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      int op = random.nextInt(4);
+      if (op == 0 && !expected.isEmpty()) {
+        int index = random.nextInt(expected.size());
+        assertEquals(expected.remove(index), list.remove(index));
+      } else if (op == 1) {
+        int index = random.nextInt(expected.size() + 1);
+        List<Integer> elems = Arrays.asList(i, -i, i * 2);
+        expected.addAll(index, elems);
+        list.addAll(index, elems);
+      } else {
+        int index = random.nextInt(expected.size() + 1);
+        expected.add(index, i);
+        list.add(index, i);
+      }
+      assertEquals(expected.size(), list.size());
+    }
+    assertEquals(expected, list);
+  }
+}
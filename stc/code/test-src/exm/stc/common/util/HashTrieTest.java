@@ -0,0 +1,115 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HashTrieTest {
+
+  @Test
+  public void testPersistence() {
+    HashTrie<String, Integer> empty = HashTrie.empty();
+    HashTrie<String, Integer> m1 = empty.plus("a", 1).plus("b", 2);
+    HashTrie<String, Integer> m2 = m1.plus("a", 3).minus("b");
+
+    assertEquals(2, m1.size());
+    assertEquals(1, (int)m1.get("a"));
+    assertEquals(2, (int)m1.get("b"));
+    assertEquals(1, m2.size());
+    assertEquals(3, (int)m2.get("a"));
+    assertFalse(m2.containsKey("b"));
+    assertTrue(empty.isEmpty());
+
+    // No-op updates return same map
+    assertSame(m1, m1.minus("c"));
+    assertSame(m2, m2.plus("a", m2.get("a")));
+
+    // Null values are allowed
+    HashTrie<String, Integer> m3 = m2.plus("c", null);
+    assertTrue(m3.containsKey("c"));
+    assertNull(m3.get("c"));
+  }
+
+  /**
+   * Key with controllable hash code to exercise collision nodes
+   */
+  private static class Key {
+    final int id;
+    final int hash;
+
+    Key(int id, int hash) {
+      this.id = id;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key)o).id == id;
+    }
+  }
+
+  /**
+   * Check against HashMap, keeping old versions to check they don't change
+   */
+  @Test
+  public void testRandomOps() {
+    Random random = new Random(2468);
+    HashTrie<Key, Integer> trie = HashTrie.empty();
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+
+    HashTrie<Key, Integer> snapshot = trie;
+    Map<Key, Integer> snapshotExpected = new HashMap<Key, Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int id = random.nextInt(2000);
+      // Few distinct hashes so that many keys collide
+      Key key = new Key(id, (id % 300) * 0x10001);
+      if (random.nextInt(3) == 0) {
+        trie = trie.minus(key);
+        expected.remove(key);
+      } else {
+        trie = trie.plus(key, i);
+        expected.put(key, i);
+      }
+      assertEquals(expected.size(), trie.size());
+
+      if (i % 5000 == 0) {
+        checkSame(snapshotExpected, snapshot);
+        snapshot = trie;
+        snapshotExpected = new HashMap<Key, Integer>(expected);
+      }
+    }
+    checkSame(expected, trie);
+    checkSame(snapshotExpected, snapshot);
+
+    // Bulk build should give same result
+    HashTrie<Key, Integer> empty = HashTrie.empty();
+    checkSame(expected, empty.plusAll(expected));
+  }
+
+  private void checkSame(Map<Key, Integer> expected,
+                         HashTrie<Key, Integer> trie) {
+    assertEquals(expected.size(), trie.size());
+    for (Entry<Key, Integer> e: expected.entrySet()) {
+      assertEquals(e.getValue(), trie.get(e.getKey()));
+    }
+    Map<Key, Integer> iterated = new HashMap<Key, Integer>();
+    for (Entry<Key, Integer> e: trie) {
+      assertNull(iterated.put(e.getKey(), e.getValue()));
+    }
+    assertEquals(expected, iterated);
+  }
+}
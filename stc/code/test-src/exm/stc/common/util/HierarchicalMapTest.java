@@ -0,0 +1,174 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HierarchicalMapTest {
+
+  @Test
+  public void testShadowing() {
+    HierarchicalMap<String, Integer> root = new HierarchicalMap<String, Integer>();
+    root.put("a", 1);
+    root.put("b", 2);
+    HierarchicalMap<String, Integer> child = root.makeChildMap();
+    child.put("a", 10);
+
+    assertEquals(10, (int)child.get("a"));
+    assertEquals(2, (int)child.get("b"));
+    assertEquals(1, (int)root.get("a"));
+    assertEquals(0, child.getDepth("a"));
+    assertEquals(1, child.getDepth("b"));
+    assertEquals(-1, child.getDepth("c"));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+                 child.keySet());
+    assertEquals(1, child.localMap().size());
+  }
+
+  /**
+   * Children should see changes made to ancestors after they were created
+   */
+  @Test
+  public void testParentModified() {
+    HierarchicalMap<String, Integer> root = new HierarchicalMap<String, Integer>();
+    HierarchicalMap<String, Integer> child = root.makeChildMap();
+    HierarchicalMap<String, Integer> grandchild = child.makeChildMap();
+    grandchild.put("x", 1);
+
+    root.put("a", 1);
+    assertEquals(1, (int)grandchild.get("a"));
+    assertEquals(1, (int)grandchild.get("x"));
+
+    child.put("a", 2);
+    assertEquals(2, (int)grandchild.get("a"));
+    assertEquals(1, (int)root.get("a"));
+
+    // Removal applies to ancestors too
+    grandchild.remove("a");
+    assertFalse(grandchild.containsKey("a"));
+    assertFalse(child.containsKey("a"));
+    assertNull(root.get("a"));
+    assertTrue(grandchild.containsKey("x"));
+  }
+
+  /**
+   * Check against simple chain of hash maps with random edits at all
+   * levels, so that children have to catch up with ancestors' changes
+   */
+  @Test
+  public void testRandomOps() {
+    Random random = new Random(1357);
+    List<HierarchicalMap<Integer, Integer>> maps =
+                      new ArrayList<HierarchicalMap<Integer, Integer>>();
+    List<Integer> parents = new ArrayList<Integer>();
+    List<Map<Integer, Integer>> expected =
+                      new ArrayList<Map<Integer, Integer>>();
+    maps.add(new HierarchicalMap<Integer, Integer>());
+    parents.add(-1);
+    expected.add(new HashMap<Integer, Integer>());
+
+    for (int i = 0; i < 20000; i++) {
+      int m = random.nextInt(maps.size());
+      int key = random.nextInt(100);
+      int op = random.nextInt(10);
+      if (op == 0 && maps.size() < 200) {
+        maps.add(maps.get(m).makeChildMap());
+        parents.add(m);
+        expected.add(new HashMap<Integer, Integer>());
+      } else if (op == 1) {
+        maps.get(m).remove(key);
+        for (int curr = m; curr >= 0; curr = parents.get(curr)) {
+          expected.get(curr).remove(key);
+        }
+      } else if (op < 5) {
+        maps.get(m).put(key, i);
+        expected.get(m).put(key, i);
+      } else if (op == 5) {
+        Map<Integer, Integer> visible = visible(expected, parents, m);
+        assertEquals(visible.size(), maps.get(m).size());
+        if (random.nextInt(10) == 0) {
+          assertEquals(visible, new HashMap<Integer, Integer>(maps.get(m)));
+        }
+      } else {
+        Integer expectedVal = visible(expected, parents, m).get(key);
+        assertEquals(expectedVal, maps.get(m).get(key));
+      }
+    }
+  }
+
+  private static Map<Integer, Integer> visible(
+      List<Map<Integer, Integer>> maps, List<Integer> parents, int m) {
+    Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+    for (int curr = m; curr >= 0; curr = parents.get(curr)) {
+      for (Map.Entry<Integer, Integer> e: maps.get(curr).entrySet()) {
+        if (!result.containsKey(e.getKey())) {
+          result.put(e.getKey(), e.getValue());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Views and size should follow later changes, including ancestors
+   * being cleared
+   */
+  @Test
+  public void testViews() {
+    HierarchicalMap<String, Integer> root = new HierarchicalMap<String, Integer>();
+    root.put("a", 1);
+    HierarchicalMap<String, Integer> child = root.makeChildMap();
+    HierarchicalMap<String, Integer> grandchild = child.makeChildMap();
+    Set<String> keys = grandchild.keySet();
+    assertEquals(1, keys.size());
+
+    child.put("a", 2);
+    child.put("b", 3);
+    grandchild.put("c", 4);
+    root.put("d", 5);
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c", "d")),
+                 keys);
+    assertEquals(4, grandchild.size());
+    assertEquals(2, (int)grandchild.get("a"));
+
+    grandchild.remove("a");
+    assertEquals(3, keys.size());
+    assertEquals(1, root.size());
+
+    child.clear();
+    assertEquals(new HashSet<String>(Arrays.asList("c")), keys);
+    assertEquals("{c:4}", grandchild.toString());
+  }
+
+  @Test
+  public void testSet() {
+    HierarchicalSet<Integer> root = new HierarchicalSet<Integer>();
+    root.add(1);
+    HierarchicalSet<Integer> child = root.makeChild();
+    assertTrue(child.add(2));
+    assertFalse(child.add(2));
+    root.add(3);
+
+    assertTrue(child.contains(1));
+    assertTrue(child.contains(3));
+    assertFalse(root.contains(2));
+    assertEquals(3, child.size());
+    HashSet<Integer> elems = new HashSet<Integer>();
+    for (int i: child) {
+      elems.add(i);
+    }
+    assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), elems);
+  }
+}
@@ -0,0 +1,64 @@
+package exm.stc.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntMapTest {
+
+  @Test
+  public void testBasic() {
+    IntMap<String> map = new IntMap<String>();
+    assertTrue(map.isEmpty());
+    assertNull(map.put(1, "one"));
+    assertNull(map.put(-5, "minus five"));
+    assertEquals("one", map.put(1, "uno"));
+    assertEquals(2, map.size());
+    assertEquals("uno", map.get(1));
+    assertEquals("minus five", map.get(-5));
+    assertNull(map.get(2));
+    assertFalse(map.containsKey(2));
+
+    int keys[] = map.keys();
+    Arrays.sort(keys);
+    assertTrue(Arrays.equals(new int[] {-5, 1}, keys));
+
+    assertEquals("uno", map.remove(1));
+    assertNull(map.remove(1));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(-5));
+  }
+
+  /**
+   * Check against HashMap with many collisions, so that removals need
+   * to shift entries back
+   */
+  @Test
+  public void testRandomOps() {
+    Random random = new Random(1234);
+    IntMap<Integer> map = new IntMap<Integer>();
+    Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 100000; i++) {
+      int key = random.nextInt(500);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.put(key, i), map.put(key, i));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    for (int key = 0; key < 500; key++) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+  }
+}
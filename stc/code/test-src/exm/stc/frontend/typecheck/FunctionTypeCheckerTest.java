@@ -7,6 +7,7 @@ import static exm.stc.frontend.typecheck.FunctionTypeChecker.selectArgType;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,6 +18,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.InvalidOverloadException;
 import exm.stc.common.exceptions.TypeMismatchException;
@@ -55,13 +57,16 @@ public class FunctionTypeCheckerTest {
 
   private static final GlobalContext FAKE_CONTEXT =
       new GlobalContext("fake.swift", Logging.getSTCLogger(),
-      new ForeignFunctions());
+      new ForeignFunctions(), CompilerOptions.defaults());
   @Rule
   public ExpectedException exception = ExpectedException.none();
 
   @BeforeClass
   public static void setupLogging() throws Exception {
-    Logging.setupLogging("FunctionTypeCheckerTest.stc.log", true);
+    // Log to temporary file to avoid cluttering working directory
+    File logFile = File.createTempFile("FunctionTypeCheckerTest", ".stc.log");
+    logFile.deleteOnExit();
+    Logging.setupLogging(logFile.getPath(), true);
   }
 
   @Test
@@ -0,0 +1,233 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.common.lang.WaitVar;
+import exm.stc.ic.opt.OptimizerPass.FunctionLocalPass;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.TurbineOp;
+
+public class ChangeTrackerTest {
+
+  private static final Logger logger =
+                          Logger.getLogger(ChangeTrackerTest.class);
+
+  private static final FnID F_ID = new FnID("f", "f");
+  private static final FnID G_ID = new FnID("g", "g");
+
+  @Test
+  public void testSkipUnmodified() throws Exception {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Function f = makeFunction(prog, F_ID);
+    Function g = makeFunction(prog, G_ID);
+    RecordingPass pass = new RecordingPass("skipping", true);
+    RecordingPass other = new RecordingPass("other", false);
+
+    ChangeTracker changes = new ChangeTracker();
+    changes.startIteration(prog);
+    // Pass changes f, so must be rerun on it
+    pass.modify = f;
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    pass.modify = null;
+    assertEquals(Arrays.asList(f), run(changes, prog, pass));
+    assertEquals(Collections.emptyList(), run(changes, prog, pass));
+    assertEquals(3, changes.epochSkips());
+
+    // Passes that don't opt in are still run
+    assertEquals(Arrays.asList(f, g), run(changes, prog, other));
+
+    // Rerun after function is modified by something else
+    addInstruction(g);
+    assertEquals(Arrays.asList(g), run(changes, prog, pass));
+
+    // Rerun everything after global constants change
+    addConstant(prog, "C");
+    changes.programModified(prog);
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    changes.endIteration(prog);
+  }
+
+  @Test
+  public void testFixpointSkipped() throws Exception {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Function f = makeFunction(prog, F_ID);
+    Function g = makeFunction(prog, G_ID);
+    RecordingPass pass = new RecordingPass("pass", false);
+    RecordingPass modifier = new RecordingPass("modifier", false);
+
+    ChangeTracker changes = new ChangeTracker();
+    changes.startIteration(prog);
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    assertFalse(changes.endIteration(prog));
+
+    // Nothing changed, so pass is at fixpoint for both functions
+    changes.startIteration(prog);
+    assertEquals(Collections.emptyList(), run(changes, prog, pass));
+    assertFalse(changes.endIteration(prog));
+
+    // Functions another pass ran on may have changed, so are rerun
+    // for rest of iteration
+    changes.startIteration(prog);
+    modifier.modify = g;
+    assertEquals(Arrays.asList(f, g), run(changes, prog, modifier));
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    assertTrue(changes.endIteration(prog));
+
+    // Only g actually changed, so fixpoint is recorded for f only
+    changes.startIteration(prog);
+    assertEquals(Arrays.asList(g), run(changes, prog, pass));
+    assertFalse(changes.endIteration(prog));
+
+    changes.startIteration(prog);
+    assertEquals(Collections.emptyList(), run(changes, prog, pass));
+
+    // Changes by passes that aren't function-local are also detected
+    addInstruction(f);
+    changes.programModified(prog);
+    assertEquals(Arrays.asList(f), run(changes, prog, pass));
+    assertTrue(changes.endIteration(prog));
+  }
+
+  @Test
+  public void testFixpointContextChanged() throws Exception {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Var input = new Var(Types.F_INT, "i", Alloc.STACK, DefType.INARG,
+                        VarProvenance.unknown());
+    Function f = makeFunction(prog, F_ID, Arrays.asList(input));
+    Function g = makeFunction(prog, G_ID);
+    RecordingPass pass = new RecordingPass("pass", false);
+
+    ChangeTracker changes = new ChangeTracker();
+    reachFixpoint(changes, prog, pass);
+
+    // New global constant invalidates fixpoints for all functions
+    changes.startIteration(prog);
+    addConstant(prog, "C");
+    changes.programModified(prog);
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    assertTrue(changes.endIteration(prog));
+    reachFixpoint(changes, prog, pass);
+
+    // Change to f's signature invalidates fixpoint for its callers too
+    changes.startIteration(prog);
+    f.addBlockingInput(new WaitVar(input, false));
+    changes.programModified(prog);
+    assertEquals(Arrays.asList(f, g), run(changes, prog, pass));
+    assertTrue(changes.endIteration(prog));
+    reachFixpoint(changes, prog, pass);
+  }
+
+  /**
+   * Run iterations until pass is skipped for all functions
+   */
+  private static void reachFixpoint(ChangeTracker changes, Program prog,
+                                    RecordingPass pass) throws Exception {
+    changes.startIteration(prog);
+    run(changes, prog, pass);
+    assertFalse(changes.endIteration(prog));
+
+    changes.startIteration(prog);
+    assertEquals(Collections.emptyList(), run(changes, prog, pass));
+    assertFalse(changes.endIteration(prog));
+  }
+
+  /**
+   * Run pass on functions the tracker says need it
+   * @return functions the pass was run on
+   */
+  static List<Function> run(ChangeTracker changes, Program prog,
+                            RecordingPass pass) throws Exception {
+    List<Function> functions = changes.functionsToOptimize(prog, pass);
+    pass.optimized.clear();
+    pass.optimize(logger, prog, functions);
+    changes.passFinished(prog, pass, functions);
+    return new ArrayList<Function>(pass.optimized);
+  }
+
+  static Function makeFunction(Program prog, FnID id) {
+    return makeFunction(prog, id, Var.NONE);
+  }
+
+  static Function makeFunction(Program prog, FnID id, List<Var> inputs) {
+    Function fn = new Function(id, inputs, Var.NONE,
+                               ExecTarget.syncControl());
+    prog.addFunction(fn);
+    return fn;
+  }
+
+  static void addInstruction(Function f) {
+    Var v = f.mainBlock().declareUnmapped(Types.F_INT,
+        f.mainBlock().uniqueVarName("v"), Alloc.STACK, DefType.LOCAL_USER,
+        VarProvenance.unknown());
+    f.mainBlock().addInstruction(TurbineOp.storePrim(v, Arg.newInt(1)));
+  }
+
+  static void addConstant(Program prog, String name) {
+    prog.constants().getOrCreateByVal(Arg.newString(name));
+  }
+
+  /**
+   * Pass that records which functions it is run on
+   */
+  static class RecordingPass extends FunctionLocalPass {
+    private final String name;
+    private final boolean skipUnmodified;
+
+    final List<Function> optimized = new ArrayList<Function>();
+
+    /** If not null, pass modifies this function */
+    Function modify = null;
+
+    RecordingPass(String name, boolean skipUnmodified) {
+      this.name = name;
+      this.skipUnmodified = skipUnmodified;
+    }
+
+    @Override
+    public String getPassName() {
+      return name;
+    }
+
+    @Override
+    public String getConfigEnabledKey() {
+      return null;
+    }
+
+    @Override
+    public boolean skipUnmodified() {
+      return skipUnmodified;
+    }
+
+    @Override
+    public void optimize(Logger logger, Program program, Function f) {
+      optimized.add(f);
+      if (f == modify) {
+        addInstruction(f);
+      }
+    }
+  }
+}
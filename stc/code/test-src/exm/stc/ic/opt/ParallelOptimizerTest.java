@@ -0,0 +1,100 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.ui.STCompiler;
+
+/**
+ * Check that running function-local passes in parallel gives the same
+ * intermediate code as running them serially.
+ */
+public class ParallelOptimizerTest {
+
+  private static final String TESTS_DIR = "../tests/";
+
+  /** Run parallel compilation this many times to catch races */
+  private static final int PARALLEL_RUNS = 3;
+
+  private static final Logger logger =
+                        Logger.getLogger(ParallelOptimizerTest.class);
+
+  @BeforeClass
+  public static void setupLogging() {
+    // Only need warnings, not a log file
+    Logging.setupLogging(null, false);
+  }
+
+  @After
+  public void tearDown() {
+    Settings.reset();
+  }
+
+  private static CompilerOptions options(int threads) throws Exception {
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    props.setProperty(Settings.OUTPUT_CACHE, "false");
+    props.setProperty(Settings.OPT_THREADS, Integer.toString(threads));
+    Settings.reset();
+    Settings.initSTCProperties(props);
+    return CompilerOptions.fromSettings();
+  }
+
+  /**
+   * @return intermediate code logged while compiling test program
+   */
+  private static String compileIC(String test, int threads)
+                                                  throws Exception {
+    String inputFile = TESTS_DIR + test + ".swift";
+    ByteArrayOutputStream ic = new ByteArrayOutputStream();
+    new STCompiler(logger, options(threads)).compile(inputFile, inputFile,
+        false, new ByteArrayOutputStream(), new PrintStream(ic, false,
+                                                            "UTF-8"));
+    return ic.toString("UTF-8");
+  }
+
+  private static void checkSameIC(String test) throws Exception {
+    String serial = compileIC(test, 1);
+    for (int i = 0; i < PARALLEL_RUNS; i++) {
+      assertEquals("Parallel IC for " + test, serial, compileIC(test, 4));
+    }
+  }
+
+  /**
+   * Wait coalescing used to push down waits in identity hash order
+   */
+  @Test
+  public void testWaitPushdown() throws Exception {
+    checkSameIC("280-test-wait-pushdown");
+  }
+
+  /**
+   * Value numbering used to unify branch values in an order that
+   * depended on identity hash codes of opcodes
+   */
+  @Test
+  public void testBranchUnification() throws Exception {
+    checkSameIC("226-branch-assign");
+  }
+
+  /**
+   * Several functions optimized concurrently
+   */
+  @Test
+  public void testManyFunctions() throws Exception {
+    checkSameIC("452-assoc-array");
+  }
+}
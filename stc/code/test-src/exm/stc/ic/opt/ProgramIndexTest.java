@@ -0,0 +1,296 @@
+package exm.stc.ic.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.ListIterator;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Profiler;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.common.lang.Arg;
+import exm.stc.common.lang.ExecTarget;
+import exm.stc.common.lang.FnID;
+import exm.stc.common.lang.ForeignFunctions;
+import exm.stc.common.lang.TaskProp.TaskProps;
+import exm.stc.common.lang.Types;
+import exm.stc.common.lang.Var;
+import exm.stc.common.lang.Var.Alloc;
+import exm.stc.common.lang.Var.DefType;
+import exm.stc.common.lang.Var.VarProvenance;
+import exm.stc.frontend.ASTWalker;
+import exm.stc.frontend.LoadedModules.LocatedModule;
+import exm.stc.ic.STCMiddleEnd;
+import exm.stc.ic.opt.TreeWalk.TreeWalker;
+import exm.stc.ic.tree.ICContinuations.Continuation;
+import exm.stc.ic.tree.ICInstructions.FunctionCall;
+import exm.stc.ic.tree.ICInstructions.Instruction;
+import exm.stc.ic.tree.ICTree.Block;
+import exm.stc.ic.tree.ICTree.CleanupAction;
+import exm.stc.ic.tree.ICTree.Function;
+import exm.stc.ic.tree.ICTree.Program;
+import exm.stc.ic.tree.ICTree.RenameMode;
+import exm.stc.ic.tree.TurbineOp;
+
+public class ProgramIndexTest {
+
+  private static final String TESTS_DIR = "../tests/";
+
+  private static final Logger logger = Logger.getLogger(ProgramIndexTest.class);
+
+  private static final FnID F_ID = new FnID("f", "f");
+  private static final FnID G_ID = new FnID("g", "g");
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging(null, false);
+  }
+
+  @After
+  public void tearDown() {
+    Settings.reset();
+  }
+
+  @Test
+  public void testIncrementalUpdate() {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Function entry = makeFunction(prog, FnID.ENTRY_FUNCTION);
+    Function f = makeFunction(prog, F_ID);
+    Function g = makeFunction(prog, G_ID);
+
+    Var global = new Var(Types.F_INT, "G", Alloc.GLOBAL_VAR,
+                         DefType.GLOBAL_USER, VarProvenance.unknown());
+    prog.globalVars().addVariable(global);
+
+    addCall(prog, entry, F_ID);
+    addCall(prog, entry, G_ID);
+    addCall(prog, entry, F_ID);
+    addCall(prog, f, G_ID);
+    f.mainBlock().addInstruction(TurbineOp.storePrim(global, Arg.newInt(1)));
+
+    ProgramIndex index = new ProgramIndex(prog);
+    assertEquals(Arrays.asList(FnID.ENTRY_FUNCTION, FnID.ENTRY_FUNCTION),
+                 index.callSites(F_ID));
+    assertEquals(Arrays.asList(FnID.ENTRY_FUNCTION, F_ID),
+                 index.callSites(G_ID));
+    assertEquals(3, index.instructionCount(entry));
+    assertTrue(index.callsFunctions(f));
+    assertFalse(index.callsFunctions(g));
+
+    // Index should see new call
+    addCall(prog, g, F_ID);
+    assertEquals(Collections.singleton(f), index.globalUsers(global));
+    assertEquals(Arrays.asList(FnID.ENTRY_FUNCTION, FnID.ENTRY_FUNCTION,
+                               G_ID), index.callSites(F_ID));
+    assertTrue(index.callsFunctions(g));
+    assertEquals(Arrays.asList(global), index.definedVars(f));
+
+    // Index should drop removed function
+    ListIterator<Function> it = prog.functionIterator();
+    while (it.hasNext()) {
+      if (it.next() == f) {
+        it.remove();
+      }
+    }
+    assertEquals(Arrays.asList(FnID.ENTRY_FUNCTION), index.callSites(G_ID));
+    assertTrue(index.globalUsers(global).isEmpty());
+    assertTrue(index.dependencies(F_ID).isEmpty());
+    assertEquals(Arrays.asList(F_ID), index.dependencies(G_ID));
+    index.check();
+  }
+
+  @Test
+  public void testCheckFindsUnmarkedEdit() {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Function entry = makeFunction(prog, FnID.ENTRY_FUNCTION);
+    Var global = new Var(Types.F_INT, "G", Alloc.GLOBAL_VAR,
+                         DefType.GLOBAL_USER, VarProvenance.unknown());
+    Var local = new Var(Types.F_INT, "l", Alloc.STACK,
+                        DefType.LOCAL_USER, VarProvenance.unknown());
+    prog.globalVars().addVariable(global);
+    Instruction store = TurbineOp.storePrim(global, Arg.newInt(1));
+    entry.mainBlock().addInstruction(store);
+
+    ProgramIndex index = new ProgramIndex(prog);
+    assertEquals(Collections.singleton(entry), index.globalUsers(global));
+    index.check();
+
+    // Renaming through the block is seen by the index
+    entry.mainBlock().renameVars(FnID.ENTRY_FUNCTION,
+        Collections.singletonMap(global, local.asArg()),
+        RenameMode.REPLACE_VAR, true);
+    assertTrue(index.globalUsers(global).isEmpty());
+    index.check();
+
+    // Editing instruction in place without marking block leaves index
+    // stale, which check must detect
+    store.renameVars(FnID.ENTRY_FUNCTION,
+        Collections.singletonMap(local, global.asArg()),
+        RenameMode.REPLACE_VAR);
+    try {
+      index.check();
+      fail("Expected stale index to be detected");
+    } catch (STCRuntimeError e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("out of date"));
+    }
+  }
+
+  /**
+   * A stale index must not make DemoteGlobals demote a global that is
+   * used outside the entry function
+   */
+  @Test
+  public void testDemoteWithStaleIndex() throws Exception {
+    Program prog = new Program(new ForeignFunctions(),
+                               CompilerOptions.defaults());
+    Function entry = makeFunction(prog, FnID.ENTRY_FUNCTION);
+    Function f = makeFunction(prog, F_ID);
+    Var global = new Var(Types.F_INT, "G", Alloc.GLOBAL_VAR,
+                         DefType.GLOBAL_USER, VarProvenance.unknown());
+    Var local = new Var(Types.F_INT, "l", Alloc.STACK,
+                        DefType.LOCAL_USER, VarProvenance.unknown());
+    prog.globalVars().addVariable(global);
+    entry.mainBlock().addInstruction(
+                        TurbineOp.storePrim(global, Arg.newInt(1)));
+    Instruction store = TurbineOp.storePrim(local, Arg.newInt(2));
+    f.mainBlock().addInstruction(store);
+
+    ProgramIndex index = new ProgramIndex(prog);
+    assertEquals(Collections.singleton(entry), index.globalUsers(global));
+
+    // Edit in place without marking block, so epochs miss the new use
+    store.renameVars(F_ID, Collections.singletonMap(local, global.asArg()),
+                     RenameMode.REPLACE_VAR);
+    new DemoteGlobals(index).optimize(logger, prog);
+
+    assertTrue(prog.globalVars().variables().contains(global));
+    assertEquals(new HashSet<Function>(Arrays.asList(entry, f)),
+                 index.globalUsers(global));
+  }
+
+  /**
+   * DemoteGlobals used to walk blocks, continuations and instructions of
+   * every function to find globals used outside the entry function.  The
+   * index must find at least those references, before and after
+   * optimization, or a global still in use could be demoted.
+   */
+  @Test
+  public void testGlobalsCoverWalker() throws Exception {
+    for (String test: new String[] {"181-global-assign", "182-globals-1",
+                    "286-test-pass-hoist", "238-fibonacci-2",
+                    "452-assoc-array", "560-file-1"}) {
+      STCMiddleEnd ic = frontend(test);
+      checkGlobalsCovered(test, ic.program());
+      ic.optimize();
+      checkGlobalsCovered(test + " optimized", ic.program());
+    }
+  }
+
+  private static STCMiddleEnd frontend(String test) throws Exception {
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    Settings.reset();
+    Settings.initSTCProperties(props);
+    CompilerOptions options = CompilerOptions.fromSettings();
+
+    ForeignFunctions foreignFuncs = new ForeignFunctions();
+    STCMiddleEnd ic = new STCMiddleEnd(logger, null, Profiler.DISABLED,
+                                       foreignFuncs, options);
+    new ASTWalker(ic, foreignFuncs, options).walk(
+        new LocatedModule(TESTS_DIR + test + ".swift", test, false));
+    return ic;
+  }
+
+  private static void checkGlobalsCovered(String test, Program prog) {
+    ProgramIndex index = new ProgramIndex(prog);
+    for (Function f: prog.functions()) {
+      Set<Var> referenced = new HashSet<Var>();
+      TreeWalk.walk(logger, f, new ReferencedVarsWalker(referenced));
+      for (Var global: referenced) {
+        assertTrue(test + ": " + f.id() + " references " + global,
+                   index.globalUsers(global).contains(f));
+      }
+    }
+  }
+
+  /**
+   * Collect globals referenced in the same places as the walker that
+   * DemoteGlobals used before the program index.  Vars are equal if their
+   * names are, so only add globals, not locals with the name of a global.
+   */
+  private static class ReferencedVarsWalker extends TreeWalker {
+    private final Set<Var> referenced;
+
+    ReferencedVarsWalker(Set<Var> referenced) {
+      this.referenced = referenced;
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext, Block block) {
+      addGlobals(block.variables());
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      Continuation cont) {
+      addGlobals(cont.requiredVars(false));
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      Instruction inst) {
+      addGlobals(inst.getOutputs());
+      for (Arg in: inst.getInputs()) {
+        if (in.isVar()) {
+          addGlobals(Collections.singletonList(in.getVar()));
+        }
+      }
+    }
+
+    @Override
+    public void visit(Logger logger, Function functionContext,
+                      CleanupAction cleanup) {
+      visit(logger, functionContext, cleanup.action());
+    }
+
+    private void addGlobals(Collection<Var> vars) {
+      for (Var v: vars) {
+        if (v.defType().isGlobal()) {
+          referenced.add(v);
+        }
+      }
+    }
+  }
+
+  private static Function makeFunction(Program prog, FnID id) {
+    Function fn = new Function(id, Var.NONE, Var.NONE,
+                               ExecTarget.syncControl());
+    prog.addFunction(fn);
+    return fn;
+  }
+
+  private static void addCall(Program prog, Function caller, FnID callee) {
+    caller.mainBlock().addInstruction(FunctionCall.createFunctionCall(
+        callee, Var.NONE, Arg.NONE, ExecTarget.syncControl(),
+        new TaskProps(), prog.foreignFunctions()));
+  }
+}
@@ -2,9 +2,13 @@ package exm.stc.ic.opt.valuenumber;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import exm.stc.common.CompilerOptions;
 import exm.stc.common.Logging;
 import exm.stc.common.exceptions.UserException;
 import exm.stc.common.lang.Arg;
@@ -34,14 +38,17 @@ public class ValueNumberRegression {
   private static final FnID FAKE_FN_ID = new FnID("fake", "fake");
 
   @BeforeClass
-  public static void setupLogging() {
-    Logging.setupLogging("ValueNumberRegression.stc.log", true);
+  public static void setupLogging() throws IOException {
+    // Log to temporary file to avoid cluttering working directory
+    File logFile = File.createTempFile("ValueNumberRegression", ".stc.log");
+    logFile.deleteOnExit();
+    Logging.setupLogging(logFile.getPath(), true);
   }
 
   @Test
   public void testValueNumber() throws UserException {
     ForeignFunctions ff = new ForeignFunctions();
-    Program prog = new Program(ff);
+    Program prog = new Program(ff, CompilerOptions.defaults());
     Function entry = new Function(FnID.ENTRY_FUNCTION, Var.NONE, Var.NONE,
         ExecTarget.syncControl());
     prog.addFunction(entry);
@@ -76,7 +83,7 @@ public class ValueNumberRegression {
     System.err.println(entry.toString());
     System.err.println();
 
-    ValueNumber optPass = new ValueNumber(true);
+    ValueNumber optPass = new ValueNumber(prog.options(), true);
     optPass.optimize(Logging.getSTCLogger(), prog);
 
     System.err.println(entry.toString());
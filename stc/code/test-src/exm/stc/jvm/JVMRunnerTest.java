@@ -0,0 +1,121 @@
+package exm.stc.jvm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.STCRuntimeError;
+import exm.stc.ui.STCompiler;
+
+public class JVMRunnerTest {
+
+  private static final String TESTS_DIR = "../tests/";
+
+  private static final Logger logger = Logger.getLogger(JVMRunnerTest.class);
+
+  @BeforeClass
+  public static void setupLogging() {
+    Logging.setupLogging(null, false);
+  }
+
+  @After
+  public void tearDown() {
+    Settings.reset();
+  }
+
+  @Test
+  public void testRun() {
+    // Anonymous class is compiled to a separate class file
+    String source =
+        "class Prog {\n" +
+        "  static int run() {\n" +
+        "    Runnable r = new Runnable() {\n" +
+        "      public void run() { }\n" +
+        "    };\n" +
+        "    r.run();\n" +
+        "    return 3;\n" +
+        "  }\n" +
+        "}\n";
+    assertEquals(3, JVMRunner.run(logger, "Prog", source));
+  }
+
+  @Test(expected=STCRuntimeError.class)
+  public void testCompileError() {
+    JVMRunner.run(logger, "Bad", "class Bad { static int run() { } }");
+  }
+
+  @Test
+  public void testKeywordClassName() {
+    assertEquals("Swift_null", JVMGenerator.javaClassName("null"));
+  }
+
+  /**
+   * Compile test program for the JVM target and run it
+   * @return lines printed by program
+   */
+  private static List<String> runSwift(String test) throws Exception {
+    String inputFile = TESTS_DIR + test + ".swift";
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    props.setProperty(Settings.OUTPUT_CACHE, "false");
+    props.setProperty(Settings.TARGET, "jvm");
+    props.setProperty(Settings.INPUT_FILENAME, inputFile);
+    Settings.reset();
+    Settings.initSTCProperties(props);
+    CompilerOptions options = CompilerOptions.fromSettings();
+
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    new STCompiler(logger, options).compileFile(inputFile, inputFile,
+                                                false, code);
+
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    int exitCode;
+    System.setOut(new PrintStream(printed, true, "UTF-8"));
+    try {
+      exitCode = JVMRunner.run(logger, JVMGenerator.classNameFor(options),
+                               code.toString("UTF-8"));
+    } finally {
+      System.setOut(stdout);
+    }
+    assertEquals("Exit code of " + test, 0, exitCode);
+    return Arrays.asList(printed.toString("UTF-8").split("\n"));
+  }
+
+  @Test
+  public void testRecursion() throws Exception {
+    assertEquals(Arrays.asList("trace: 21"), runSwift("238-fibonacci-2"));
+  }
+
+  /**
+   * Tasks may run in any order, so compare sorted output with
+   * expected output
+   */
+  @Test
+  public void testForeach() throws Exception {
+    String test = "400-foreach-1";
+    List<String> expected = FileUtils.readLines(
+                            new File(TESTS_DIR + test + ".exp"), "UTF-8");
+    List<String> actual = runSwift(test);
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,87 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import exm.stc.jvm.runtime.JVMRuntime.BlockingMode;
+
+public class JVMRuntimeTest {
+
+  /**
+   * A blocking task waiting on a later task must not hold up the only
+   * worker
+   */
+  @Test
+  public void testBlockingOffWorkers() {
+    final JVMRuntime rt = new JVMRuntime(1, BlockingMode.POOL);
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicInteger done = new AtomicInteger();
+    int rc = rt.run(new Task() {
+      @Override
+      public void run() {
+        rt.spawn(new BlockingTask() {
+          @Override
+          public void run() {
+            try {
+              if (latch.await(10, TimeUnit.SECONDS)) {
+                done.incrementAndGet();
+              }
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+        rt.spawn(new Task() {
+          @Override
+          public void run() {
+            latch.countDown();
+          }
+        });
+      }
+    });
+    assertEquals(0, rc);
+    assertEquals(1, done.get());
+  }
+
+  /**
+   * Runtime waits for chains of blocking and worker tasks spawning each
+   * other
+   */
+  @Test
+  public void testBlockingChain() {
+    final JVMRuntime rt = new JVMRuntime(2, BlockingMode.VIRTUAL);
+    final AtomicInteger done = new AtomicInteger();
+    final int length = 50;
+    int rc = rt.run(chainTask(rt, done, length));
+    assertEquals(0, rc);
+    assertEquals(length + 1, done.get());
+  }
+
+  private static Task chainTask(final JVMRuntime rt,
+                                final AtomicInteger done, final int left) {
+    if (left % 2 == 0) {
+      return new Task() {
+        @Override
+        public void run() {
+          done.incrementAndGet();
+          if (left > 0) {
+            rt.spawn(chainTask(rt, done, left - 1));
+          }
+        }
+      };
+    }
+    return new BlockingTask() {
+      @Override
+      public void run() {
+        Builtins.sleep(0.001);
+        done.incrementAndGet();
+        rt.spawn(chainTask(rt, done, left - 1));
+      }
+    };
+  }
+}
@@ -0,0 +1,113 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TaskQueueTest {
+
+  private static class Labelled implements Task {
+    final int label;
+
+    Labelled(int label) {
+      this.label = label;
+    }
+
+    @Override
+    public void run() {
+      // Not run
+    }
+  }
+
+  @Test
+  public void testLevels() {
+    assertEquals(TaskQueue.DEFAULT_LEVEL, TaskQueue.level(0));
+    assertEquals(TaskQueue.LEVELS - 1, TaskQueue.level(Integer.MAX_VALUE));
+    assertEquals(0, TaskQueue.level(Integer.MIN_VALUE));
+    int prev = -1;
+    for (int p = -1000; p <= 1000; p++) {
+      int level = TaskQueue.level(p);
+      assertTrue("Level of " + p, level >= prev);
+      assertTrue(level >= 0 && level < TaskQueue.LEVELS);
+      prev = level;
+    }
+    assertTrue(TaskQueue.level(1) > TaskQueue.level(0));
+    assertTrue(TaskQueue.level(-1) < TaskQueue.level(0));
+  }
+
+  /**
+   * Tasks queued by a worker are taken in priority order, newest first
+   * within a priority
+   */
+  @Test
+  public void testPriorityOrder() throws Exception {
+    final TaskQueue queue = new TaskQueue(1);
+    final List<Integer> order = new ArrayList<Integer>();
+    final int[] priorities = {0, -5, 10, 0, 1000, -5, 10};
+    queue.add(new Task() {
+      @Override
+      public void run() {
+        for (int i = 0; i < priorities.length; i++) {
+          queue.add(new Labelled(i), priorities[i]);
+        }
+      }
+    });
+
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        queue.getTask(0).run();
+        for (int i = 0; i < priorities.length; i++) {
+          order.add(((Labelled)queue.getTask(0)).label);
+        }
+      }
+    };
+    worker.start();
+    worker.join();
+    queue.shutdown();
+    assertEquals(Arrays.asList(4, 6, 2, 3, 0, 5, 1), order);
+  }
+
+  /**
+   * A high priority task queued by one worker is taken by another worker
+   * before its own default priority tasks
+   */
+  @Test
+  public void testPriorityHint() throws Exception {
+    final TaskQueue queue = new TaskQueue(2);
+    final Task[] taken = new Task[1];
+    final Labelled urgent = new Labelled(1);
+    queue.add(new Task() {
+      @Override
+      public void run() {
+        queue.add(urgent, 100);
+      }
+    });
+
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        queue.getTask(0).run();
+      }
+    };
+    producer.start();
+    producer.join();
+
+    Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        queue.add(new Labelled(0));
+        taken[0] = queue.getTask(1);
+      }
+    };
+    consumer.start();
+    consumer.join();
+    queue.shutdown();
+    assertTrue(taken[0] == urgent);
+  }
+}
@@ -0,0 +1,317 @@
+package exm.stc.jvm.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import exm.stc.jvm.runtime.Vars.ArrayVar;
+import exm.stc.jvm.runtime.Vars.BagVar;
+import exm.stc.jvm.runtime.Vars.BaseVar;
+import exm.stc.jvm.runtime.Vars.FloatVar;
+import exm.stc.jvm.runtime.Vars.IntVar;
+import exm.stc.jvm.runtime.Vars.NotifyTarget;
+import exm.stc.jvm.runtime.Vars.ScalarVar;
+
+public class VarsTest {
+
+  private static class CountingTarget implements NotifyTarget {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public void notifyFinal(BaseVar var) {
+      count.incrementAndGet();
+    }
+  }
+
+  @Test
+  public void testSubscribe() {
+    ScalarVar v = new ScalarVar(2);
+    CountingTarget t1 = new CountingTarget();
+    CountingTarget t2 = new CountingTarget();
+    CountingTarget t3 = new CountingTarget();
+
+    // Single waiter, then stack of waiters
+    assertTrue(v.subscribe(t1));
+    assertTrue(v.subscribe(t2));
+    assertTrue(v.subscribe(t3));
+
+    v.decrWriters(1);
+    assertFalse(v.isClosed());
+    assertEquals(0, t1.count.get());
+
+    v.set(123L);
+    assertTrue(v.isClosed());
+    assertEquals(1, t1.count.get());
+    assertEquals(1, t2.count.get());
+    assertEquals(1, t3.count.get());
+
+    assertFalse(v.subscribe(new CountingTarget()));
+  }
+
+  @Test
+  public void testNoWriters() {
+    ScalarVar v = new ScalarVar(0);
+    assertTrue(v.isClosed());
+    assertFalse(v.subscribe(new CountingTarget()));
+  }
+
+  @Test(expected=DoubleWriteException.class)
+  public void testWriteAfterClose() {
+    ScalarVar v = new ScalarVar(1);
+    v.decrWriters(1);
+    v.incrWriters(1);
+  }
+
+  @Test
+  public void testPrimitiveVars() {
+    IntVar i = new IntVar(1);
+    CountingTarget t = new CountingTarget();
+    assertTrue(i.subscribe(t));
+    assertFalse(i.isSet());
+    i.setInt(42);
+    assertTrue(i.isClosed());
+    assertEquals(1, t.count.get());
+    assertEquals(42L, i.getInt());
+    assertEquals(Long.valueOf(42), i.get());
+
+    FloatVar f = new FloatVar(1);
+    f.set(1.5);
+    assertEquals(1.5, f.getFloat(), 0.0);
+  }
+
+  @Test(expected=DoubleWriteException.class)
+  public void testIntDoubleWrite() {
+    IntVar i = new IntVar(2);
+    i.setInt(1);
+    i.setInt(2);
+  }
+
+  @Test
+  public void testArrayKeyOrder() {
+    ArrayVar a = new ArrayVar(1);
+    long[] keys = {5, -3, ArraySlots.DENSE_LIMIT + 7, 0, 1000, 64,
+                   Long.MIN_VALUE};
+    for (long key: keys) {
+      a.store(Long.valueOf(key), "v" + key, 0);
+    }
+    // Boxed key goes to same slot
+    a.store(Long.valueOf(63), "v63", 0);
+    a.decrWriters(1);
+
+    assertEquals(keys.length + 1, a.size());
+    assertTrue(a.contains(Long.valueOf(1000)));
+    assertTrue(a.contains(ArraySlots.DENSE_LIMIT + 7));
+    assertFalse(a.contains(1));
+    assertEquals("v63", a.get(63));
+    assertEquals(Arrays.<Object>asList(Long.MIN_VALUE, -3L, 0L, 5L, 63L, 64L,
+                 1000L, ArraySlots.DENSE_LIMIT + 7),
+                 new ArrayList<Object>(a.snapshot().keySet()));
+  }
+
+  @Test
+  public void testStringKeys() {
+    ArrayVar a = new ArrayVar(1);
+    a.store("b", 2L, 0);
+    a.store("a", 1L, 1);
+    List<Object> keys = new ArrayList<Object>();
+    for (Map.Entry<Object, Object> e: a.entries()) {
+      keys.add(e.getKey());
+    }
+    assertEquals(Arrays.<Object>asList("a", "b"), keys);
+  }
+
+  @Test
+  public void testSubscribeKey() {
+    ArrayVar a = new ArrayVar(1);
+    CountingTarget t1 = new CountingTarget();
+    CountingTarget t2 = new CountingTarget();
+    assertTrue(a.subscribeKey(3, a, t1));
+    assertTrue(a.subscribeKey(Long.valueOf(3), a, t2));
+    assertTrue(a.subscribeKey("x", a, new CountingTarget()));
+    a.store("x", 1L, 0);
+
+    a.store(3L, "three", 0);
+    assertEquals(1, t1.count.get());
+    assertEquals(1, t2.count.get());
+    assertFalse(a.subscribeKey(3, a, t1));
+    assertEquals("three", a.get(3));
+
+    BaseVar nested = a.createNested(4, ArrayVar.FACTORY, 0, 0);
+    assertTrue(nested == a.createNested(Long.valueOf(4), ArrayVar.FACTORY,
+                                        0, 0));
+    a.decrWriters(1);
+    assertTrue(nested.isClosed());
+  }
+
+  @Test(expected=InvalidReadException.class)
+  public void testKeyNeverAssigned() {
+    ArrayVar a = new ArrayVar(1);
+    a.subscribeKey(1, a, new CountingTarget());
+    a.decrWriters(1);
+  }
+
+  @Test
+  public void testBag() {
+    BagVar b = new BagVar(2);
+    b.insert(1L, 0);
+    b.insertAll(Arrays.asList(2L, 3L), 1);
+    b.insert(1L, 1);
+    assertTrue(b.isClosed());
+    assertEquals(4, b.size());
+    List<Object> elems = b.elements();
+    assertEquals(4, elems.size());
+    assertTrue(elems.containsAll(Arrays.asList(1L, 2L, 3L)));
+  }
+
+  /**
+   * Threads insert disjoint keys into an array while others subscribe
+   * to them.  Every subscriber must be notified once.
+   */
+  @Test
+  public void testArrayStress() throws Exception {
+    final int threads = 4;
+    final int keys = 20000;
+    final ArrayVar a = new ArrayVar(threads);
+    final AtomicInteger subscribed = new AtomicInteger();
+    final AtomicInteger notified = new AtomicInteger();
+    final Throwable[] error = new Throwable[1];
+    final CyclicBarrier start = new CyclicBarrier(threads * 2);
+
+    Thread[] ts = new Thread[threads * 2];
+    for (int i = 0; i < threads; i++) {
+      final int first = i;
+      ts[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (long k = first; k < keys; k += threads) {
+              // Sparse keys share the skip list
+              long key = k % 3 == 0 ? -k - 1 : k;
+              a.store(Long.valueOf(key), k, 0);
+            }
+            a.decrWriters(1);
+          } catch (Throwable t) {
+            error[0] = t;
+          }
+        }
+      };
+      ts[threads + i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (long k = first; k < keys; k += threads) {
+              long key = k % 3 == 0 ? -k - 1 : k;
+              if (a.subscribeKey(key, a, new NotifyTarget() {
+                @Override
+                public void notifyFinal(BaseVar var) {
+                  notified.incrementAndGet();
+                }
+              })) {
+                subscribed.incrementAndGet();
+              }
+            }
+          } catch (Throwable t) {
+            error[0] = t;
+          }
+        }
+      };
+    }
+    for (Thread t: ts) {
+      t.start();
+    }
+    for (Thread t: ts) {
+      t.join();
+    }
+    if (error[0] != null) {
+      throw new AssertionError(error[0]);
+    }
+    assertTrue(a.isClosed());
+    assertEquals(keys, a.size());
+    assertEquals(subscribed.get(), notified.get());
+  }
+
+  /**
+   * Threads race to subscribe to vars while writers of the vars are
+   * incremented and decremented concurrently, so that subscriptions and
+   * writer updates contend for the var's state.  The count can only reach
+   * zero after every writer thread is done.  Each target must be notified
+   * exactly once if subscribe returned true, and never if it returned
+   * false.
+   */
+  @Test
+  public void testSubscribeStress() throws Exception {
+    final int threads = 4;
+    final int writers = 4;
+    final int rounds = 2000;
+
+    for (int round = 0; round < rounds; round++) {
+      final ScalarVar v = new ScalarVar(writers);
+      final AtomicIntegerArray notified = new AtomicIntegerArray(threads);
+      final boolean[] subscribed = new boolean[threads];
+      final CyclicBarrier start = new CyclicBarrier(threads + writers);
+      final Throwable[] error = new Throwable[1];
+
+      Thread[] ts = new Thread[threads + writers];
+      for (int i = 0; i < threads; i++) {
+        final int ix = i;
+        ts[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              subscribed[ix] = v.subscribe(new NotifyTarget() {
+                @Override
+                public void notifyFinal(BaseVar var) {
+                  notified.incrementAndGet(ix);
+                }
+              });
+            } catch (Throwable t) {
+              error[0] = t;
+            }
+          }
+        };
+      }
+      for (int i = threads; i < threads + writers; i++) {
+        ts[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              v.incrWriters(1);
+              v.decrWriters(2);
+            } catch (Throwable t) {
+              error[0] = t;
+            }
+          }
+        };
+      }
+      for (Thread t: ts) {
+        t.start();
+      }
+      for (Thread t: ts) {
+        t.join();
+      }
+
+      if (error[0] != null) {
+        throw new AssertionError(error[0]);
+      }
+      assertTrue(v.isClosed());
+      for (int i = 0; i < threads; i++) {
+        assertEquals("Round " + round + " target " + i,
+                     subscribed[i] ? 1 : 0, notified.get(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package exm.stc.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Settings;
+import exm.stc.common.exceptions.InvalidOptionException;
+import exm.stc.ui.BatchCompiler.Job;
+import exm.stc.ui.BatchCompiler.Result;
+import exm.stc.ui.InMemoryCompiler.Diagnostic;
+import exm.stc.ui.InMemoryCompiler.Severity;
+
+public class BatchCompilerTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("stc-batch", "");
+    dir.delete();
+    assertTrue(dir.mkdir());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private static CompilerOptions options() throws InvalidOptionException {
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    props.setProperty(Settings.OUTPUT_CACHE, "false");
+    Settings.reset();
+    Settings.initSTCProperties(props);
+    return CompilerOptions.fromSettings();
+  }
+
+  private Job job(String name, String source) throws IOException {
+    File input = new File(dir, name + ".swift");
+    FileUtils.writeStringToFile(input, source, "UTF-8");
+    return new Job(input.getPath(), new File(dir, name + ".tic").getPath());
+  }
+
+  @Test
+  public void testCompileAll() throws Exception {
+    List<Job> jobs = new ArrayList<Job>();
+    jobs.add(job("first", "import io;\nprintf(\"%i\", 1 + 1);\n"));
+    jobs.add(job("bad", "import io;\n\nint x = \"a string\";\n"));
+    jobs.add(job("second", "import io;\nprintf(\"%i\", 2 * 3);\n"));
+
+    BatchCompiler batch = new BatchCompiler(options(), 2, false,
+                                Collections.<String>emptyList(), null);
+    List<Result> results = batch.compileAll(jobs);
+    assertEquals(3, results.size());
+
+    for (int i: new int[] {0, 2}) {
+      Result result = results.get(i);
+      assertTrue(result.diagnostics.toString(), result.succeeded());
+      assertTrue(new File(result.job.outputFile).isFile());
+    }
+    assertTrue(FileUtils.readFileToString(new File(jobs.get(0).outputFile),
+                                          "UTF-8").contains("\"%i\" 2"));
+    assertTrue(FileUtils.readFileToString(new File(jobs.get(2).outputFile),
+                                          "UTF-8").contains("\"%i\" 6"));
+
+    Result bad = results.get(1);
+    assertFalse(bad.succeeded());
+    assertEquals(ExitCode.ERROR_USER.code(), bad.exitCode);
+    assertFalse(new File(bad.job.outputFile).exists());
+    // Code is streamed to temporary files, which must be cleaned up
+    assertEquals(5, dir.list().length);
+    Diagnostic d = bad.diagnostics.get(0);
+    assertEquals(Severity.ERROR, d.severity);
+    assertEquals(3, d.line);
+  }
+
+  @Test
+  public void testMissingInput() throws Exception {
+    Job missing = new Job(new File(dir, "missing.swift").getPath(),
+                          new File(dir, "missing.tic").getPath());
+    BatchCompiler batch = new BatchCompiler(options(), 1, false,
+                                Collections.<String>emptyList(), null);
+    Result result = batch.compileAll(Collections.singletonList(missing)).get(0);
+    assertEquals(ExitCode.ERROR_IO.code(), result.exitCode);
+    assertEquals(1, result.diagnostics.size());
+  }
+}
@@ -0,0 +1,88 @@
+package exm.stc.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import exm.stc.common.Settings;
+import exm.stc.frontend.ModuleResolver;
+import exm.stc.ui.InMemoryCompiler.Diagnostic;
+import exm.stc.ui.InMemoryCompiler.Result;
+import exm.stc.ui.InMemoryCompiler.Severity;
+
+public class InMemoryCompilerTest {
+
+  private static Properties options() {
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    props.setProperty(Settings.OUTPUT_CACHE, "false");
+    return props;
+  }
+
+  @Test
+  public void testImportFromResolver() {
+    InMemoryCompiler stc = new InMemoryCompiler(new ModuleResolver() {
+      @Override
+      public String findSource(List<String> modulePath) {
+        if (modulePath.equals(Arrays.asList("pkg", "lib"))) {
+          return "(int o) twice(int i) { o = 2 * i; }\n";
+        }
+        return null;
+      }
+    });
+    Result result = stc.compile("main",
+        "import io;\nimport pkg.lib;\nprintf(\"%i\", twice(21));\n",
+        options());
+    assertTrue(result.diagnostics().toString(), result.succeeded());
+    // Call to imported function is evaluated at compile time
+    assertTrue(result.output().toString().contains("\"%i\" 42"));
+  }
+
+  @Test
+  public void testTypeError() {
+    Result result = new InMemoryCompiler().compile("bad",
+        "int x = \"a string\";\n", options());
+    assertFalse(result.succeeded());
+    assertEquals(ExitCode.ERROR_USER.code(), result.exitCode());
+    assertNull(result.output());
+    Diagnostic d = result.diagnostics().get(0);
+    assertEquals(Severity.ERROR, d.severity);
+    assertEquals("bad.swift", d.file);
+    assertEquals(1, d.line);
+  }
+
+  @Test
+  public void testSyntaxError() {
+    Result result = new InMemoryCompiler().compile("bad",
+        "\nint x = ;\n", options());
+    assertFalse(result.succeeded());
+    Diagnostic d = result.diagnostics().get(0);
+    assertEquals(Severity.ERROR, d.severity);
+    assertEquals("bad.swift", d.file);
+    assertEquals(2, d.line);
+  }
+
+  @Test
+  public void testJVMUnsupportedFeature() {
+    Properties props = options();
+    props.setProperty(Settings.TARGET, "jvm");
+    Result result = new InMemoryCompiler().compile("unsupported",
+        "import io;\nimport sys;\nprintf(\"%s\", argv(\"n\"));\n", props);
+    assertFalse(result.succeeded());
+    // Reported as user error, not internal compiler error
+    assertEquals(ExitCode.ERROR_USER.code(), result.exitCode());
+    Diagnostic d = result.diagnostics().get(0);
+    assertEquals(Severity.ERROR, d.severity);
+    assertTrue(d.toString(),
+               d.message.contains("not supported by JVM backend"));
+  }
+}
@@ -0,0 +1,183 @@
+package exm.stc.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import exm.stc.common.CompilerOptions;
+import exm.stc.common.Logging;
+import exm.stc.common.Settings;
+
+public class OutputCacheTest {
+
+  private static final String MAIN =
+      "import io;\nimport lib;\nprintf(\"%i\", twice(21));\n";
+
+  private File dir;
+  private File srcDir;
+  private File shadowDir;
+  private File cacheDir;
+  private File mainFile;
+
+  /** Messages logged by last compilation */
+  private final List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("stc-output-cache", "");
+    dir.delete();
+    assertTrue(dir.mkdir());
+    srcDir = new File(dir, "src");
+    shadowDir = new File(dir, "shadow");
+    cacheDir = new File(dir, "cache");
+    assertTrue(srcDir.mkdir());
+    assertTrue(shadowDir.mkdir());
+    mainFile = new File(dir, "main.swift");
+    FileUtils.writeStringToFile(mainFile, MAIN, "UTF-8");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private CompilerOptions options() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(Settings.STC_HOME, ".");
+    props.setProperty(Settings.TURBINE_HOME, "../../turbine/code");
+    props.setProperty(Settings.TURBINE_VERSION, "1.0");
+    props.setProperty(Settings.AST_CACHE, "false");
+    props.setProperty(Settings.OUTPUT_CACHE, "true");
+    props.setProperty(Settings.OUTPUT_CACHE_DIR, cacheDir.getPath());
+    Settings.reset();
+    Settings.initSTCProperties(props);
+    // Shadow directory is searched first
+    Settings.addModulePath(shadowDir.getPath());
+    Settings.addModulePath(srcDir.getPath());
+    return CompilerOptions.fromSettings();
+  }
+
+  private void writeLib(File libDir, int factor) throws IOException {
+    FileUtils.writeStringToFile(new File(libDir, "lib.swift"),
+        "@deprecated\n(int o) twice(int i) { o = " + factor + " * i; }\n",
+        "UTF-8");
+  }
+
+  /**
+   * Compile main program, recording messages in events
+   * @return generated code
+   */
+  private String compile() throws Exception {
+    CompilerOptions options = options();
+    events.clear();
+    Logger logger = Logging.startThreadLog(new AppenderSkeleton() {
+      @Override
+      protected void append(LoggingEvent event) {
+        events.add(event);
+      }
+
+      @Override
+      public boolean requiresLayout() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+        // Nothing to release
+      }
+    });
+    // Need debug messages to see whether cache was used
+    ((AppenderSkeleton)logger.getAllAppenders().nextElement())
+                                            .setThreshold(Level.DEBUG);
+    logger.setLevel(Level.DEBUG);
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      new STCompiler(logger, options).compileFile(mainFile.getPath(),
+                                  mainFile.getPath(), false, output);
+      return output.toString("UTF-8");
+    } finally {
+      Logging.endThreadLog();
+    }
+  }
+
+  private static String withoutDate(String code) {
+    return code.replaceFirst("(?m)^.*date +:.*$", "");
+  }
+
+  private boolean cacheHit() {
+    for (LoggingEvent event: events) {
+      if (event.getRenderedMessage().startsWith("Output cache hit")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<String> warnings() {
+    List<String> warnings = new ArrayList<String>();
+    for (LoggingEvent event: events) {
+      if (event.getLevel().equals(Level.WARN)) {
+        warnings.add(event.getRenderedMessage());
+      }
+    }
+    return warnings;
+  }
+
+  @Test
+  public void testHitAndReplayWarnings() throws Exception {
+    writeLib(srcDir, 2);
+    String first = compile();
+    assertFalse(cacheHit());
+    assertTrue(first.contains("\"%i\" 42"));
+    List<String> warnings = warnings();
+    assertEquals(1, warnings.size());
+    assertTrue(warnings.get(0).contains("deprecated"));
+
+    String second = compile();
+    assertTrue(cacheHit());
+    assertEquals(withoutDate(first), withoutDate(second));
+    assertEquals(warnings, warnings());
+  }
+
+  @Test
+  public void testModuleEdited() throws Exception {
+    writeLib(srcDir, 2);
+    assertTrue(compile().contains("\"%i\" 42"));
+
+    writeLib(srcDir, 3);
+    String output = compile();
+    assertFalse(cacheHit());
+    assertTrue(output.contains("\"%i\" 63"));
+
+    // New output replaces stale entry
+    compile();
+    assertTrue(cacheHit());
+  }
+
+  @Test
+  public void testModuleShadowed() throws Exception {
+    writeLib(srcDir, 2);
+    assertTrue(compile().contains("\"%i\" 42"));
+
+    writeLib(shadowDir, 4);
+    String output = compile();
+    assertFalse(cacheHit());
+    assertTrue(output.contains("\"%i\" 84"));
+  }
+}